@@ -21,4 +21,23 @@ import java.util.List;
 public interface DiscoverFieldsCallback {
   public void notifyFields( List<MongoField> fields );
   public void notifyException( Exception exception );
+
+  /**
+   * Called every so often while the sample is being read, with the fields found so far.
+   *
+   * @param fields   the fields found so far
+   * @param docsRead the number of documents read so far
+   */
+  public default void notifyProgress( List<MongoField> fields, int docsRead ) {
+  }
+
+  /**
+   * Polled while the sample is being read. Once this returns true, discovery stops and neither notifyFields nor
+   * notifyException is called.
+   *
+   * @return true if discovery should stop
+   */
+  public default boolean isCancelled() {
+    return false;
+  }
 }
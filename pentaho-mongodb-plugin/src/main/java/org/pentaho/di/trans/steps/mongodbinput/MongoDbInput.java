@@ -13,7 +13,10 @@
 
 package org.pentaho.di.trans.steps.mongodbinput;
 
+import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.ServerAddress;
 import com.mongodb.util.JSON;
@@ -22,6 +25,8 @@ import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.Metrics;
+import org.pentaho.di.core.metrics.MetricsSnapshotType;
 import org.pentaho.di.core.row.RowDataUtil;
 import org.pentaho.di.core.row.RowMeta;
 import org.pentaho.di.core.row.RowMetaInterface;
@@ -37,12 +42,17 @@ import org.pentaho.di.trans.steps.mongodb.MongoDBHelper;
 import org.pentaho.mongo.MongoDbException;
 import org.pentaho.mongo.MongoProperties;
 import org.pentaho.mongo.wrapper.MongoClientWrapper;
+import org.pentaho.mongo.wrapper.MongoDBAction;
 import org.pentaho.mongo.wrapper.MongoWrapperUtil;
+import org.pentaho.mongo.wrapper.cursor.DefaultCursorWrapper;
+import org.pentaho.mongo.wrapper.cursor.MongoCursorWrapper;
+import org.pentaho.mongo.wrapper.field.MongoArrayExpansion;
 import org.pentaho.mongo.wrapper.field.MongoField;
 import org.pentaho.mongo.wrapper.field.MongodbInputDiscoverFieldsImpl;
 import org.pentaho.reporting.libraries.base.util.StringUtils;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -56,12 +66,40 @@ public class MongoDbInput extends BaseStep implements StepInterface {
   // Translator2!!
   // $NON-NLS-1$
 
+  /** Time (ms) the step spent waiting for prefetched documents */
+  public static final Metrics METRIC_PREFETCH_WAIT = new Metrics( MetricsSnapshotType.SUM,
+      "METRIC_MONGODB_INPUT_PREFETCH_WAIT", "MongoDB input prefetch wait (ms)" ); //$NON-NLS-1$ //$NON-NLS-2$
+
+  /** Time (ms) the prefetch reader spent waiting for room in the queue */
+  public static final Metrics METRIC_PREFETCH_READER_BLOCKED = new Metrics( MetricsSnapshotType.SUM,
+      "METRIC_MONGODB_INPUT_PREFETCH_READER_BLOCKED", "MongoDB input prefetch reader blocked (ms)" ); //$NON-NLS-1$ //$NON-NLS-2$
+
+  /** Highest number of documents waiting in the prefetch queue */
+  public static final Metrics METRIC_PREFETCH_OCCUPANCY = new Metrics( MetricsSnapshotType.MAX,
+      "METRIC_MONGODB_INPUT_PREFETCH_OCCUPANCY", "MongoDB input prefetch queue occupancy" ); //$NON-NLS-1$ //$NON-NLS-2$
+
   private MongoDbInputMeta meta;
   private MongoDbInputData data;
 
   private boolean m_serverDetermined;
   private Object[] m_currentInputRowDrivingQuery = null;
 
+  /** true if the current row's query has already been looked up in the result cache, and wasn't there */
+  private boolean m_resultCacheMissed;
+
+  /** passes on the row(s) converted from each document */
+  private final MongoArrayExpansion.RowSink m_rowSink = new MongoArrayExpansion.RowSink() {
+    @Override
+    public void putRow( Object[] outputRow ) throws KettleException {
+      // Add all the incoming column values if they are not null
+      if ( meta.getExecuteForEachIncomingRow() && m_currentInputRowDrivingQuery != null ) {
+        appendTheIncomingRowsAtStart( outputRow, getInputRowMeta() );
+      }
+
+      MongoDbInput.this.putRow( data.outputRowMeta, outputRow );
+    }
+  };
+
   public MongoDbInput( StepMeta stepMeta, StepDataInterface stepDataInterface, int copyNr, TransMeta transMeta,
       Trans trans ) {
     super( stepMeta, stepDataInterface, copyNr, transMeta, trans );
@@ -69,6 +107,10 @@ public class MongoDbInput extends BaseStep implements StepInterface {
 
   @Override public boolean processRow( StepMetaInterface smi, StepDataInterface sdi ) throws KettleException {
     try {
+      if ( data.m_queryBatcher != null ) {
+        return processQueryBatch();
+      }
+
       if ( meta.getExecuteForEachIncomingRow() && m_currentInputRowDrivingQuery == null ) {
         m_currentInputRowDrivingQuery = getRow();
 
@@ -98,56 +140,10 @@ public class MongoDbInput extends BaseStep implements StepInterface {
         data.init();
       }
 
-      boolean
-          hasNext =
-          ( ( meta.getQueryIsPipeline() ? data.m_pipelineResult.hasNext() : data.cursor.hasNext() ) && !isStopped() );
-      if ( hasNext ) {
-        DBObject nextDoc = null;
-        Object[] row = null;
-        if ( meta.getQueryIsPipeline() ) {
-          nextDoc = data.m_pipelineResult.next();
-        } else {
-          nextDoc = data.cursor.next();
-        }
-
-        if ( !meta.getQueryIsPipeline() && !m_serverDetermined ) {
-          ServerAddress s = data.cursor.getServerAddress();
-          if ( s != null ) {
-            m_serverDetermined = true;
-            logBasic(
-                BaseMessages.getString( PKG, "MongoDbInput.Message.QueryPulledDataFrom", s.toString() ) ); //$NON-NLS-1$
-          }
-        }
-
-        if ( meta.getOutputJson() || meta.getMongoFields() == null || meta.getMongoFields().isEmpty() ) {
-          String json = JSON.serialize( nextDoc );
-          row = RowDataUtil.allocateRowData( data.outputRowMeta.size() );
-
-          if ( meta.getExecuteForEachIncomingRow() && m_currentInputRowDrivingQuery != null ) {
-            // Add the incoming columns at start and at the end of the incoming columns add json output.
-            RowMetaInterface inputRowMeta = getInputRowMeta();
-            appendTheIncomingRowsAtStart( row, inputRowMeta );
-            row[ inputRowMeta.size() ] = json;
-          } else {
-            // If there are no incoming columns then adding only json output to output row
-            row[ 0 ] = json;
-          }
-          putRow( data.outputRowMeta, row );
-        } else {
-          Object[][] outputRows = data.mongoDocumentToKettle( nextDoc, MongoDbInput.this );
-
-          // there may be more than one row if the paths contain an array
-          // unwind
-          for ( Object[] outputRow : outputRows ) {
-            // Add all the incoming column values if they are not null
-            if ( meta.getExecuteForEachIncomingRow() && m_currentInputRowDrivingQuery != null ) {
-              appendTheIncomingRowsAtStart( outputRow, getInputRowMeta() );
-            }
-
-            putRow( data.outputRowMeta, outputRow );
-          }
-        }
+      if ( hasNextDocument() ) {
+        outputDocument( nextDocument() );
       } else {
+        finishQuery();
         if ( !meta.getExecuteForEachIncomingRow() ) {
           setOutputDone();
 
@@ -167,6 +163,263 @@ public class MongoDbInput extends BaseStep implements StepInterface {
     }
   }
 
+  private boolean hasNextDocument() throws KettleException, MongoDbException {
+    boolean
+        hasNext =
+        data.m_cachedResult != null ? data.m_cachedResult.hasNext()
+            : data.m_prefetcher != null ? data.m_prefetcher.hasNext()
+            : isAggregating() ? data.m_pipelineResult.hasNext() : data.cursor.hasNext();
+
+    return hasNext && !isStopped();
+  }
+
+  private DBObject nextDocument() throws KettleException, MongoDbException {
+    if ( data.m_cachedResult != null ) {
+      return data.m_cachedResult.next();
+    }
+
+    DBObject nextDoc = null;
+    if ( data.m_prefetcher != null ) {
+      nextDoc = data.m_prefetcher.next();
+    } else if ( isAggregating() ) {
+      nextDoc = data.m_pipelineResult.next();
+    } else {
+      nextDoc = data.cursor.next();
+    }
+
+    if ( !isAggregating() ) {
+      determineServer();
+    }
+
+    if ( data.m_cacheRecording != null ) {
+      data.m_cacheRecordingBytes += MongoDbInputResultCache.estimateSize( nextDoc );
+      if ( data.m_cacheRecordingBytes > data.m_resultCache.getMaxBytes() ) {
+        // too big to cache - don't hold on to the documents
+        data.m_cacheRecording = null;
+      } else {
+        data.m_cacheRecording.add( nextDoc );
+      }
+    }
+
+    return nextDoc;
+  }
+
+  /**
+   * Tidy up once all the documents of a query have been read, caching the result if it was recorded
+   */
+  private void finishQuery() {
+    stopPrefetching();
+    if ( data.m_cacheRecording != null && !isStopped() ) {
+      data.m_resultCache.put( data.m_cacheKey, data.m_cacheRecording, data.m_cacheRecordingBytes );
+    }
+    data.m_cachedResult = null;
+    data.m_cacheKey = null;
+    data.m_cacheRecording = null;
+  }
+
+  /**
+   * Answer the current row's query from the result cache if it is there, otherwise get ready to record the result
+   * read from the server.
+   *
+   * @param key the query (after field substitution)
+   * @return true if the result was cached
+   */
+  private boolean useCachedResult( String key ) {
+    data.m_cachedResult = null;
+    data.m_cacheKey = null;
+    data.m_cacheRecording = null;
+    boolean missed = m_resultCacheMissed;
+    m_resultCacheMissed = false;
+    if ( data.m_resultCache == null || m_currentInputRowDrivingQuery == null ) {
+      return false;
+    }
+
+    // don't count a second miss for a row that a query batch already looked up
+    List<DBObject> cached = missed ? null : data.m_resultCache.get( key );
+    if ( cached != null ) {
+      data.m_cachedResult = cached.iterator();
+      return true;
+    }
+    data.m_cacheKey = key;
+    data.m_cacheRecording = new ArrayList<DBObject>();
+    data.m_cacheRecordingBytes = 0;
+
+    return false;
+  }
+
+  private static String resultCacheKey( String query, String fields ) {
+    return Const.isEmpty( fields ) ? query : query + '\u0000' + fields;
+  }
+
+  private void cacheResult( String key, List<DBObject> documents ) {
+    long bytes = 0;
+    for ( DBObject doc : documents ) {
+      bytes += MongoDbInputResultCache.estimateSize( doc );
+    }
+    data.m_resultCache.put( key, documents, bytes );
+  }
+
+  private void determineServer() throws MongoDbException {
+    if ( !m_serverDetermined ) {
+      // the cursor belongs to the prefetch thread while it is reading ahead
+      ServerAddress s = data.m_prefetcher != null ? data.m_prefetcher.getServerAddress()
+          : data.cursor.getServerAddress();
+      if ( s != null ) {
+        m_serverDetermined = true;
+        logBasic(
+            BaseMessages.getString( PKG, "MongoDbInput.Message.QueryPulledDataFrom", s.toString() ) ); //$NON-NLS-1$
+      }
+    }
+  }
+
+  private void outputDocument( DBObject nextDoc ) throws KettleException {
+    if ( meta.getOutputJson() || meta.getMongoFields() == null || meta.getMongoFields().isEmpty() ) {
+      String json = data.m_jsonWriter != null ? data.m_jsonWriter.toJson( nextDoc ) : JSON.serialize( nextDoc );
+      Object[] row = RowDataUtil.allocateRowData( data.outputRowMeta.size() );
+
+      if ( meta.getExecuteForEachIncomingRow() && m_currentInputRowDrivingQuery != null ) {
+        // Add the incoming columns at start and at the end of the incoming columns add json output.
+        RowMetaInterface inputRowMeta = getInputRowMeta();
+        appendTheIncomingRowsAtStart( row, inputRowMeta );
+        row[ inputRowMeta.size() ] = json;
+      } else {
+        // If there are no incoming columns then adding only json output to output row
+        row[ 0 ] = json;
+      }
+      putRow( data.outputRowMeta, row );
+    } else {
+      // there may be more than one row if the paths contain an array
+      // unwind - these are passed on one at a time
+      data.mongoDocumentToKettle( nextDoc, MongoDbInput.this, m_rowSink );
+    }
+  }
+
+  /**
+   * Execute the query for a batch of incoming rows as one query, then output each row's documents in turn - so the
+   * output is the same as executing the query for each row separately. The documents for a batch are held in memory
+   * until the whole result has been read.
+   *
+   * @return false when there are no more incoming rows
+   */
+  private boolean processQueryBatch() throws KettleException, MongoDbException {
+    int batchSize = Const.toInt( environmentSubstitute( meta.getQueryBatchSize() ), 1 );
+    List<Object[]> drivingRows = new ArrayList<Object[]>( batchSize );
+    Object[] r;
+    while ( drivingRows.size() < batchSize && ( r = getRow() ) != null ) {
+      drivingRows.add( r );
+    }
+
+    if ( drivingRows.isEmpty() ) {
+      // no more input, no more queries to make
+      setOutputDone();
+      return false;
+    }
+
+    if ( first ) {
+      first = false;
+      data.outputRowMeta = getInputRowMeta().clone();
+      meta.getFields( data.outputRowMeta, getStepname(), null, null, MongoDbInput.this );
+      data.init();
+    }
+
+    // rows whose result is cached don't need to be queried
+    String query = environmentSubstitute( meta.getJsonQuery() );
+    List<List<DBObject>> results = new ArrayList<List<DBObject>>( drivingRows.size() );
+    List<Integer> toQuery = new ArrayList<Integer>();
+    List<String> keys = new ArrayList<String>();
+    List<DBObject> rowQueries = new ArrayList<DBObject>();
+    for ( int i = 0; i < drivingRows.size(); i++ ) {
+      String rowQuery = fieldSubstitute( query, getInputRowMeta(), drivingRows.get( i ) );
+      String key = resultCacheKey( rowQuery, null );
+      List<DBObject> cached = data.m_resultCache != null ? data.m_resultCache.get( key ) : null;
+      results.add( cached );
+      if ( cached == null ) {
+        toQuery.add( i );
+        keys.add( key );
+        rowQueries.add( (DBObject) JSON.parse( rowQuery ) );
+      }
+    }
+
+    DBObject combined = toQuery.isEmpty() ? null : data.m_queryBatcher.combine( rowQueries );
+    List<List<DBObject>> fetched = combined != null ? runQueryBatch( combined, toQuery.size() ) : null;
+    if ( fetched != null ) {
+      for ( int i = 0; i < toQuery.size(); i++ ) {
+        results.set( toQuery.get( i ), fetched.get( i ) );
+        if ( data.m_resultCache != null ) {
+          cacheResult( keys.get( i ), fetched.get( i ) );
+        }
+      }
+    }
+
+    for ( int i = 0; i < drivingRows.size() && !isStopped(); i++ ) {
+      m_currentInputRowDrivingQuery = drivingRows.get( i );
+      if ( results.get( i ) != null ) {
+        for ( DBObject doc : results.get( i ) ) {
+          outputDocument( doc );
+        }
+      } else {
+        // some values can't be combined - query for the row on its own (it has already missed the result cache)
+        m_resultCacheMissed = data.m_resultCache != null;
+        initQuery();
+        while ( hasNextDocument() ) {
+          outputDocument( nextDocument() );
+        }
+        finishQuery();
+      }
+    }
+    m_currentInputRowDrivingQuery = null;
+
+    return true;
+  }
+
+  /**
+   * Run the combined query for a batch of rows and share the documents out among the rows.
+   *
+   * @param combined the combined query
+   * @param numRows  the number of rows in the batch
+   * @return the documents for each row, or null if a document could not be matched to a row or the step was stopped
+   */
+  private List<List<DBObject>> runQueryBatch( DBObject combined, int numRows )
+    throws KettleException, MongoDbException {
+    if ( data.cursor != null ) {
+      data.cursor.close();
+    }
+    if ( log.isDetailed() ) {
+      m_serverDetermined = false;
+    }
+
+    logDetailed( BaseMessages.getString( PKG, "MongoDbInput.Message.BatchedQuery", numRows, //$NON-NLS-1$
+        JSON.serialize( combined ) ) );
+
+    DBObject projection = getAutoProjection();
+    MongoDbInputCursorOptions cursorOptions = getCursorOptions();
+    data.cursor = cursorOptions.isSet() ? findWithCursorOptions( combined, projection, cursorOptions )
+        : data.collection.find( combined, projection );
+
+    List<List<DBObject>> results = new ArrayList<List<DBObject>>( numRows );
+    for ( int i = 0; i < numRows; i++ ) {
+      results.add( new ArrayList<DBObject>() );
+    }
+    while ( data.cursor.hasNext() && !isStopped() ) {
+      DBObject doc = data.cursor.next();
+      determineServer();
+
+      List<Integer> rows = data.m_queryBatcher.getMatchingRows( doc );
+      if ( rows.isEmpty() ) {
+        // the server matched it in a way we can't tell (e.g. a case insensitive collation)
+        logDetailed( BaseMessages.getString( PKG, "MongoDbInput.Message.BatchedQueryFallback", //$NON-NLS-1$
+            numRows ) );
+        return null;
+      }
+      for ( int row : rows ) {
+        results.get( row ).add( doc );
+      }
+    }
+
+    // a result cut short by stopping the step mustn't be taken (or cached) as complete
+    return isStopped() ? null : results;
+  }
+
   private void appendTheIncomingRowsAtStart( Object[] row, RowMetaInterface inputRowMeta ) {
     for ( int columnIndex = 0; columnIndex < inputRowMeta.size(); columnIndex++ ) {
       if ( m_currentInputRowDrivingQuery[ columnIndex ] != null ) {
@@ -178,6 +431,7 @@ public class MongoDbInput extends BaseStep implements StepInterface {
   protected void initQuery() throws KettleException, MongoDbException {
 
     // close any previous cursor
+    stopPrefetching();
     if ( data.cursor != null ) {
       data.cursor.close();
     }
@@ -190,13 +444,30 @@ public class MongoDbInput extends BaseStep implements StepInterface {
 
     String query = environmentSubstitute( meta.getJsonQuery() );
     String fields = environmentSubstitute( meta.getFieldsName() );
+    if ( data.m_partitionFilter == null && isPartitionedRead() ) {
+      data.m_partitionFilter = computePartitionFilter( query );
+    }
+    DBObject projection = data.m_unwind != null ? data.m_unwind.getProjection( this ) : getAutoProjection();
+    MongoDbInputCursorOptions cursorOptions = getCursorOptions();
+
     if ( Const.isEmpty( query ) && Const.isEmpty( fields ) ) {
       if ( meta.getQueryIsPipeline() ) {
         throw new KettleException( BaseMessages
             .getString( MongoDbInputMeta.PKG, "MongoDbInput.ErrorMessage.EmptyAggregationPipeline" ) ); //$NON-NLS-1$
       }
 
-      data.cursor = data.collection.find();
+      if ( data.m_unwind != null ) {
+        aggregateUnwound( data.m_partitionFilter != null ? data.m_partitionFilter : new BasicDBObject(), null,
+            projection, cursorOptions );
+      } else if ( cursorOptions.isSet() ) {
+        data.cursor = findWithCursorOptions( data.m_partitionFilter != null ? data.m_partitionFilter
+            : new BasicDBObject(), projection, cursorOptions );
+      } else if ( data.m_partitionFilter != null || projection != null ) {
+        data.cursor = data.collection.find( data.m_partitionFilter != null ? data.m_partitionFilter
+            : new BasicDBObject(), projection );
+      } else {
+        data.cursor = data.collection.find();
+      }
     } else {
 
       if ( meta.getQueryIsPipeline() ) {
@@ -209,23 +480,43 @@ public class MongoDbInput extends BaseStep implements StepInterface {
           // do field value substitution
           query = fieldSubstitute( query, getInputRowMeta(), m_currentInputRowDrivingQuery );
         }
+        if ( useCachedResult( resultCacheKey( query, null ) ) ) {
+          return;
+        }
 
         logDetailed( BaseMessages.getString( PKG, "MongoDbInput.Message.QueryPulledDataFrom", query ) );
 
         List<DBObject> pipeline = MongodbInputDiscoverFieldsImpl.jsonPipelineToDBObjectList( query );
-        DBObject firstP = pipeline.get( 0 );
-        DBObject[] remainder = null;
-        if ( pipeline.size() > 1 ) {
-          remainder = new DBObject[pipeline.size() - 1];
-          for ( int i = 1; i < pipeline.size(); i++ ) {
-            remainder[i - 1] = pipeline.get( i );
-          }
-        } else {
-          remainder = new DBObject[0];
+        if ( data.m_partitionFilter != null ) {
+          // restrict the documents entering the pipeline to this copy's share
+          pipeline.add( 0, new BasicDBObject( "$match", data.m_partitionFilter ) ); //$NON-NLS-1$
+        }
+        cursorOptions.appendStages( pipeline );
+        if ( data.m_unwind != null ) {
+          data.m_unwind.appendStages( pipeline );
         }
+        if ( projection != null ) {
+          // only ship the paths that the fields refer to
+          pipeline.add( new BasicDBObject( "$project", projection ) ); //$NON-NLS-1$
+        }
+        if ( cursorOptions.isSet() ) {
+          data.m_pipelineResult =
+              data.collection.aggregate( pipeline, cursorOptions.toAggregationOptions( meta.isAllowDiskUse() ) );
+        } else {
+          DBObject firstP = pipeline.get( 0 );
+          DBObject[] remainder = null;
+          if ( pipeline.size() > 1 ) {
+            remainder = new DBObject[pipeline.size() - 1];
+            for ( int i = 1; i < pipeline.size(); i++ ) {
+              remainder[i - 1] = pipeline.get( i );
+            }
+          } else {
+            remainder = new DBObject[0];
+          }
 
-        // Utilize MongoDB cursor class
-        data.m_pipelineResult = data.collection.aggregate( firstP, remainder, meta.isAllowDiskUse() );
+          // Utilize MongoDB cursor class
+          data.m_pipelineResult = data.collection.aggregate( firstP, remainder, meta.isAllowDiskUse() );
+        }
 
       } else {
         if ( meta.getExecuteForEachIncomingRow() && m_currentInputRowDrivingQuery != null ) {
@@ -234,15 +525,306 @@ public class MongoDbInput extends BaseStep implements StepInterface {
 
           fields = fieldSubstitute( fields, getInputRowMeta(), m_currentInputRowDrivingQuery );
         }
+        if ( useCachedResult( resultCacheKey( query, fields ) ) ) {
+          return;
+        }
 
         logDetailed( BaseMessages.getString( PKG, "MongoDbInput.Message.ExecutingQuery", query ) );
 
         DBObject dbObject = (DBObject) JSON.parse( Const.isEmpty( query ) ? "{}" //$NON-NLS-1$
             : query );
-        DBObject dbObject2 = (DBObject) JSON.parse( fields );
-        data.cursor = data.collection.find( dbObject, dbObject2 );
+        DBObject dbObject2 = Const.isEmpty( fields ) ? projection : (DBObject) JSON.parse( fields );
+        if ( data.m_unwind != null ) {
+          aggregateUnwound( applyPartitionFilter( dbObject ), Const.isEmpty( fields ) ? null : dbObject2, projection,
+              cursorOptions );
+        } else if ( cursorOptions.isSet() ) {
+          data.cursor = findWithCursorOptions( applyPartitionFilter( dbObject ), dbObject2, cursorOptions );
+        } else {
+          data.cursor = data.collection.find( applyPartitionFilter( dbObject ), dbObject2 );
+        }
       }
     }
+
+    startPrefetching();
+  }
+
+  /**
+   * Run a find query as an aggregation that unwinds the array expansions on the server.
+   *
+   * @param query      the query
+   * @param fields     the fields expression (null if none)
+   * @param projection the projection to apply to the unwound documents (null if none)
+   */
+  private void aggregateUnwound( DBObject query, DBObject fields, DBObject projection,
+                                 MongoDbInputCursorOptions cursorOptions ) throws MongoDbException {
+    List<DBObject> pipeline = new ArrayList<DBObject>();
+    pipeline.add( new BasicDBObject( "$match", query ) ); //$NON-NLS-1$
+
+    // skip and limit count documents, not unwound rows
+    cursorOptions.appendStages( pipeline );
+    if ( fields != null && !fields.keySet().isEmpty() ) {
+      pipeline.add( new BasicDBObject( "$project", fields ) ); //$NON-NLS-1$
+    }
+    data.m_unwind.appendStages( pipeline );
+    if ( projection != null ) {
+      pipeline.add( new BasicDBObject( "$project", projection ) ); //$NON-NLS-1$
+    }
+
+    logDetailed( BaseMessages.getString( PKG, "MongoDbInput.Message.ExecutingPipelineQuery", //$NON-NLS-1$
+        JSON.serialize( pipeline ) ) );
+    data.m_pipelineResult =
+        data.collection.aggregate( pipeline, cursorOptions.toAggregationOptions( meta.isAllowDiskUse() ) );
+  }
+
+  /**
+   * Resolve the cursor settings, working out the batch size from the collection statistics if adaptive sizing is on
+   * and no explicit batch size has been set.
+   *
+   * @return the cursor settings
+   */
+  protected MongoDbInputCursorOptions getCursorOptions() throws MongoDbException {
+    MongoDbInputCursorOptions options = new MongoDbInputCursorOptions( meta, this );
+    if ( meta.isAdaptiveBatchSize() && options.getBatchSize() <= 0 ) {
+      if ( data.m_adaptiveBatchSize <= 0 ) {
+        data.m_adaptiveBatchSize = computeAdaptiveBatchSize();
+      }
+      options.setBatchSize( data.m_adaptiveBatchSize );
+    }
+
+    return options;
+  }
+
+  private int computeAdaptiveBatchSize() throws MongoDbException {
+    final String collection = environmentSubstitute( meta.getCollection() );
+    double avgDocumentSize = data.clientWrapper.perform( environmentSubstitute( meta.getDbName() ),
+        new MongoDBAction<Double>() {
+          @Override
+          public Double perform( DB db ) {
+            try {
+              Object size = db.getCollection( collection ).getStats().get( "avgObjSize" ); //$NON-NLS-1$
+              return size instanceof Number ? ( (Number) size ).doubleValue() : 0d;
+            } catch ( Exception e ) {
+              // e.g. a view, or not authorized to run collStats - fall back to the minimum batch size
+              return 0d;
+            }
+          }
+        } );
+
+    int batchSize = MongoDbInputCursorOptions.adaptiveBatchSize( avgDocumentSize, getTransMeta().getSizeRowset() );
+    logDetailed( BaseMessages.getString( PKG, "MongoDbInput.Message.AdaptiveBatchSize", batchSize, //$NON-NLS-1$
+        (long) avgDocumentSize ) );
+
+    return batchSize;
+  }
+
+  /**
+   * Run a find query with cursor settings that the collection wrapper doesn't expose
+   */
+  private MongoCursorWrapper findWithCursorOptions( final DBObject query, final DBObject fields,
+                                                    final MongoDbInputCursorOptions cursorOptions )
+    throws MongoDbException {
+    final String collection = environmentSubstitute( meta.getCollection() );
+    return data.clientWrapper.perform( environmentSubstitute( meta.getDbName() ),
+        new MongoDBAction<MongoCursorWrapper>() {
+          @Override
+          public MongoCursorWrapper perform( DB db ) {
+            DBCursor cursor = db.getCollection( collection ).find( query, fields );
+            return new DefaultCursorWrapper( cursorOptions.apply( cursor ) );
+          }
+        } );
+  }
+
+  /**
+   * Start reading the results of the current query ahead on a background thread (if configured to)
+   */
+  protected void startPrefetching() {
+    int depth = Const.toInt( environmentSubstitute( meta.getPrefetchSize() ), 0 );
+    if ( depth <= 0 || data.m_queryBatcher != null ) {
+      return;
+    }
+
+    data.m_prefetcher = isAggregating() ? new MongoDbInputPrefetcher( data.m_pipelineResult, depth )
+        : new MongoDbInputPrefetcher( data.cursor, depth );
+    data.m_prefetcher.start( getStepname() + " - prefetch " + getCopy() ); //$NON-NLS-1$
+  }
+
+  /**
+   * Stop any background reading of query results, and report how well the read ahead kept up
+   */
+  protected void stopPrefetching() {
+    if ( data.m_prefetcher == null ) {
+      return;
+    }
+
+    MongoDbInputPrefetcher prefetcher = data.m_prefetcher;
+    data.m_prefetcher = null;
+    if ( !prefetcher.stop() ) {
+      logError( BaseMessages.getString( PKG, "MongoDbInput.ErrorMessage.PrefetchStillRunning" ) ); //$NON-NLS-1$
+    }
+
+    if ( log.isGatheringMetrics() ) {
+      log.snap( METRIC_PREFETCH_WAIT, prefetcher.getConsumerWaitMillis() );
+      log.snap( METRIC_PREFETCH_READER_BLOCKED, prefetcher.getProducerWaitMillis() );
+      log.snap( METRIC_PREFETCH_OCCUPANCY, prefetcher.getMaxOccupancy() );
+    }
+    if ( log.isDetailed() ) {
+      logDetailed( BaseMessages.getString( PKG, "MongoDbInput.Message.PrefetchStatistics", //$NON-NLS-1$
+          prefetcher.getDepth(), prefetcher.getConsumerWaitMillis(), prefetcher.getProducerWaitMillis(),
+          String.format( "%.1f", prefetcher.getAverageOccupancy() ), prefetcher.getMaxOccupancy() ) ); //$NON-NLS-1$
+    }
+  }
+
+  /**
+   * Derive a projection from the paths of the configured fields, so that the server only sends the parts of each
+   * document that the step outputs. Only used when no fields expression has been supplied.
+   *
+   * @return the projection, or null if the whole document is needed
+   */
+  protected DBObject getAutoProjection() {
+    if ( !meta.isAutoProjection() || meta.getOutputJson() ) {
+      return null;
+    }
+
+    // combined queries need the paths that documents are matched back to incoming rows on
+    DBObject projection = MongoDbInputData.buildProjection( meta.getMongoFields(), data.m_queryBatcher != null
+        ? data.m_queryBatcher.getKeyPaths() : Collections.<String>emptyList(), this );
+    if ( projection != null ) {
+      logDetailed( BaseMessages.getString( PKG, "MongoDbInput.Message.AutoProjection", //$NON-NLS-1$
+          JSON.serialize( projection ) ) );
+    }
+
+    return projection;
+  }
+
+  /**
+   * @return true if results come from an aggregation - either a pipeline query, or a find query whose array
+   * expansions are unwound by the server
+   */
+  protected boolean isAggregating() {
+    return meta.getQueryIsPipeline() || data.m_unwind != null;
+  }
+
+  /**
+   * @return true if the queries for several incoming rows can be combined into one
+   */
+  protected boolean isQueryBatching() {
+    if ( !meta.getExecuteForEachIncomingRow() || isAggregating()
+        || Const.toInt( environmentSubstitute( meta.getQueryBatchSize() ), 1 ) <= 1
+        || !Const.isEmpty( environmentSubstitute( meta.getFieldsName() ) ) ) {
+      return false;
+    }
+
+    // skip and limit apply to the documents for each row
+    MongoDbInputCursorOptions options = new MongoDbInputCursorOptions( meta, this );
+    return options.getSkip() <= 0 && options.getLimit() <= 0;
+  }
+
+  /**
+   * @return true if documents are output as a single JSON field
+   */
+  protected boolean isJsonOutput() {
+    return meta.getOutputJson() || meta.getMongoFields() == null || meta.getMongoFields().isEmpty();
+  }
+
+  /**
+   * @return true if JSON output is written as Extended JSON straight from the BSON, rather than by the legacy serializer
+   */
+  protected boolean isFastJsonOutput() {
+    return isJsonOutput() && ( MongoDbInputMeta.JSON_OUTPUT_RELAXED.equals( meta.getJsonOutputMode() )
+        || MongoDbInputMeta.JSON_OUTPUT_CANONICAL.equals( meta.getJsonOutputMode() ) );
+  }
+
+  /**
+   * @return true if documents returned by find queries should be left as raw BSON - either to be decoded only as far
+   * as the field paths reach, or to be written straight out as JSON. Aggregation results are always fully decoded.
+   */
+  protected boolean isRawBsonDecoding() {
+    if ( isAggregating() ) {
+      return false;
+    }
+
+    return isJsonOutput() ? isFastJsonOutput() : meta.isRawBsonDecoding();
+  }
+
+  /**
+   * Switch the collection over to lazy decoding. The client (and hence the cached collection object that the collection
+   * wrapper talks to) belongs to this copy of the step, so nothing else sees the change.
+   */
+  private void enableRawBsonDecoding( String db, final String collection ) throws MongoDbException {
+    data.clientWrapper.perform( db, new MongoDBAction<Void>() {
+      @Override
+      public Void perform( DB mongoDb ) {
+        mongoDb.getCollection( collection ).setDBDecoderFactory( RawBsonDBDecoder.FACTORY );
+        return null;
+      }
+    } );
+    logDetailed( BaseMessages.getString( PKG, "MongoDbInput.Message.RawBsonDecoding" ) ); //$NON-NLS-1$
+  }
+
+  /**
+   * @return true if this copy of the step should only read its share of the collection
+   */
+  protected boolean isPartitionedRead() {
+    return meta.isPartitionedRead() && !meta.getExecuteForEachIncomingRow() && getUniqueStepCountAcrossSlaves() > 1;
+  }
+
+  /**
+   * Work out the range of the collection that this copy of the step reads. The split points are computed by the first
+   * copy to get here and shared (via the transformation) with all the other copies.
+   *
+   * @param query the (variable substituted) query
+   * @return the filter that selects this copy's share of the documents
+   */
+  protected DBObject computePartitionFilter( String query ) throws KettleException, MongoDbException {
+    final int numPartitions = getUniqueStepCountAcrossSlaves();
+    final String collection = environmentSubstitute( meta.getCollection() );
+    final String strategy = environmentSubstitute( meta.getPartitionStrategy() );
+    final String field = environmentSubstitute( meta.getPartitionField() );
+    final DBObject splitQuery = meta.getQueryIsPipeline() || Const.isEmpty( query ) ? new BasicDBObject()
+        : (DBObject) JSON.parse( query );
+
+    Map<String, Object> shared = getTrans().getExtensionDataMap();
+    String key = MongoDbInputPartitioner.class.getName() + "." + getStepname(); //$NON-NLS-1$
+    MongoDbInputPartitioner.Partitioning partitioning;
+    synchronized ( shared ) {
+      partitioning = (MongoDbInputPartitioner.Partitioning) shared.get( key );
+      if ( partitioning == null ) {
+        partitioning = data.clientWrapper.perform( environmentSubstitute( meta.getDbName() ),
+            new MongoDBAction<MongoDbInputPartitioner.Partitioning>() {
+              @Override
+              public MongoDbInputPartitioner.Partitioning perform( DB db ) throws MongoDbException {
+                try {
+                  return MongoDbInputPartitioner
+                      .computePartitioning( db.getCollection( collection ), splitQuery, strategy, field,
+                          numPartitions );
+                } catch ( KettleException e ) {
+                  throw new MongoDbException( e );
+                }
+              }
+            } );
+        shared.put( key, partitioning );
+      }
+    }
+
+    DBObject filter = partitioning.getFilter( getUniqueStepNrAcrossSlaves() );
+    logBasic( BaseMessages.getString( PKG, "MongoDbInput.Message.PartitionedRead", //$NON-NLS-1$
+        getUniqueStepNrAcrossSlaves() + 1, numPartitions, JSON.serialize( filter ) ) );
+
+    return filter;
+  }
+
+  private DBObject applyPartitionFilter( DBObject query ) {
+    if ( data.m_partitionFilter == null || data.m_partitionFilter.keySet().isEmpty() ) {
+      return query;
+    }
+    if ( query == null || query.keySet().isEmpty() ) {
+      return data.m_partitionFilter;
+    }
+
+    BasicDBList clauses = new BasicDBList();
+    clauses.add( query );
+    clauses.add( data.m_partitionFilter );
+    return new BasicDBObject( "$and", clauses ); //$NON-NLS-1$
   }
 
   @Override public boolean init( StepMetaInterface stepMetaInterface, StepDataInterface stepDataInterface ) {
@@ -280,10 +862,36 @@ public class MongoDbInput extends BaseStep implements StepInterface {
         // init connection constructs a MongoCredentials object if necessary
         data.clientWrapper = MongoWrapperUtil.createMongoClientWrapper( meta, this, log );
         data.collection = data.clientWrapper.getCollection( db, collection );
+        if ( meta.isServerSideUnwind() && !isJsonOutput() ) {
+          data.m_unwind = MongoDbInputUnwind.plan( meta.getMongoFields(), this );
+          if ( data.m_unwind != null ) {
+            logDetailed( BaseMessages.getString( PKG, "MongoDbInput.Message.ServerSideUnwind", //$NON-NLS-1$
+                data.m_unwind.getUnwindPaths() ) );
+          }
+        }
+        if ( isFastJsonOutput() ) {
+          data.m_jsonWriter = new MongoDbInputJsonWriter( meta.getJsonOutputMode() );
+        }
+        if ( isRawBsonDecoding() ) {
+          enableRawBsonDecoding( db, collection );
+        }
+        int resultCacheSize = Const.toInt( environmentSubstitute( meta.getResultCacheSize() ), 0 );
+        if ( meta.getExecuteForEachIncomingRow() && resultCacheSize > 0 ) {
+          data.m_resultCache = new MongoDbInputResultCache( resultCacheSize,
+              Const.toLong( environmentSubstitute( meta.getResultCacheTtl() ), 0 ) * 1000,
+              Const.toLong( environmentSubstitute( meta.getResultCacheMemory() ), 0 ) * 1024 * 1024 );
+        }
+        if ( isQueryBatching() ) {
+          data.m_queryBatcher = new MongoDbInputQueryBatcher( environmentSubstitute( meta.getJsonQuery() ) );
+          if ( !data.m_queryBatcher.isBatchable() ) {
+            logBasic( BaseMessages.getString( PKG, "MongoDbInput.Message.QueryNotBatchable" ) ); //$NON-NLS-1$
+            data.m_queryBatcher = null;
+          }
+        }
 
         if ( !( (MongoDbInputMeta) stepMetaInterface ).getOutputJson() ) {
-          ( (MongoDbInputData) stepDataInterface )
-              .setMongoFields( ( (MongoDbInputMeta) stepMetaInterface ).getMongoFields() );
+          ( (MongoDbInputData) stepDataInterface ).setMongoFields( data.m_unwind != null ? data.m_unwind.getFields()
+              : ( (MongoDbInputMeta) stepMetaInterface ).getMongoFields() );
         }
 
         return true;
@@ -299,6 +907,13 @@ public class MongoDbInput extends BaseStep implements StepInterface {
   }
 
   @Override public void dispose( StepMetaInterface smi, StepDataInterface sdi ) {
+    stopPrefetching();
+    if ( data.m_resultCache != null ) {
+      MongoDbInputResultCache cache = data.m_resultCache;
+      logBasic( BaseMessages.getString( PKG, "MongoDbInput.Message.ResultCacheStatistics", //$NON-NLS-1$
+          cache.getHits(), cache.getMisses(), cache.getEvictions(), cache.getExpirations(), cache.size(),
+          cache.getBytes() ) );
+    }
     if ( data.cursor != null ) {
       try {
         data.cursor.close();
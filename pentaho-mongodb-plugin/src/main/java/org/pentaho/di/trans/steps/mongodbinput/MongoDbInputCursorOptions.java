@@ -0,0 +1,165 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2026 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.mongodbinput;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.variables.VariableSpace;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cursor settings of a MongoDB input step (batch size, max time, cursor timeout, skip and limit), resolved against
+ * variables and ready to apply to a find cursor or an aggregation.
+ */
+public class MongoDbInputCursorOptions {
+
+  /** Aim for batches of about this many bytes when sizing batches adaptively */
+  public static final long ADAPTIVE_TARGET_BATCH_BYTES = 4 * 1024 * 1024;
+
+  /** Never go below the driver's default first batch when sizing batches adaptively */
+  public static final int ADAPTIVE_MIN_BATCH_SIZE = 101;
+
+  private int m_batchSize;
+  private long m_maxTimeMS;
+  private boolean m_noCursorTimeout;
+  private int m_limit;
+  private int m_skip;
+
+  /**
+   * @param meta  the step settings
+   * @param space variables to use
+   */
+  public MongoDbInputCursorOptions( MongoDbInputMeta meta, VariableSpace space ) {
+    m_batchSize = Const.toInt( space.environmentSubstitute( meta.getBatchSize() ), 0 );
+    m_maxTimeMS = Const.toLong( space.environmentSubstitute( meta.getMaxTimeMS() ), 0 );
+    m_noCursorTimeout = meta.isNoCursorTimeout();
+    m_limit = Const.toInt( space.environmentSubstitute( meta.getQueryLimit() ), 0 );
+    m_skip = Const.toInt( space.environmentSubstitute( meta.getQuerySkip() ), 0 );
+  }
+
+  /**
+   * @return true if any setting differs from the driver defaults
+   */
+  public boolean isSet() {
+    return m_batchSize > 0 || m_maxTimeMS > 0 || m_noCursorTimeout || m_limit > 0 || m_skip > 0;
+  }
+
+  public int getBatchSize() {
+    return m_batchSize;
+  }
+
+  /**
+   * @param batchSize the number of documents to ask for in each batch (0 for the driver default)
+   */
+  public void setBatchSize( int batchSize ) {
+    m_batchSize = batchSize;
+  }
+
+  public long getMaxTimeMS() {
+    return m_maxTimeMS;
+  }
+
+  public boolean isNoCursorTimeout() {
+    return m_noCursorTimeout;
+  }
+
+  public int getLimit() {
+    return m_limit;
+  }
+
+  public int getSkip() {
+    return m_skip;
+  }
+
+  /**
+   * Apply the settings to a find cursor
+   *
+   * @param cursor the cursor (before iteration has started)
+   * @return the cursor
+   */
+  public DBCursor apply( DBCursor cursor ) {
+    if ( m_batchSize > 0 ) {
+      cursor.batchSize( m_batchSize );
+    }
+    if ( m_maxTimeMS > 0 ) {
+      cursor.maxTime( m_maxTimeMS, TimeUnit.MILLISECONDS );
+    }
+    if ( m_noCursorTimeout ) {
+      cursor.noCursorTimeout( true );
+    }
+    if ( m_skip > 0 ) {
+      cursor.skip( m_skip );
+    }
+    if ( m_limit > 0 ) {
+      cursor.limit( m_limit );
+    }
+
+    return cursor;
+  }
+
+  /**
+   * Build the options for an aggregation. Aggregation cursors can't be exempted from the server's idle cursor timeout,
+   * so that setting does not apply here.
+   *
+   * @param allowDiskUse whether the aggregation may use temporary files
+   * @return the aggregation options
+   */
+  public AggregationOptions toAggregationOptions( boolean allowDiskUse ) {
+    AggregationOptions.Builder builder = AggregationOptions.builder().allowDiskUse( allowDiskUse );
+    if ( m_batchSize > 0 ) {
+      builder.batchSize( m_batchSize );
+    }
+    if ( m_maxTimeMS > 0 ) {
+      builder.maxTime( m_maxTimeMS, TimeUnit.MILLISECONDS );
+    }
+
+    return builder.build();
+  }
+
+  /**
+   * Add $skip and $limit stages to the end of a pipeline
+   *
+   * @param pipeline the pipeline
+   */
+  public void appendStages( List<DBObject> pipeline ) {
+    if ( m_skip > 0 ) {
+      pipeline.add( new BasicDBObject( "$skip", m_skip ) ); //$NON-NLS-1$
+    }
+    if ( m_limit > 0 ) {
+      pipeline.add( new BasicDBObject( "$limit", m_limit ) ); //$NON-NLS-1$
+    }
+  }
+
+  /**
+   * Work out a batch size from the average size of the documents in a collection. Batches are sized to hold roughly
+   * ADAPTIVE_TARGET_BATCH_BYTES of data, but no more documents than the step's output row set can take, as there is
+   * no point fetching documents faster than the next step can consume them.
+   *
+   * @param avgDocumentSize the average document size in bytes (0 if not known)
+   * @param rowSetSize      the size of the step's output row set
+   * @return the batch size
+   */
+  public static int adaptiveBatchSize( double avgDocumentSize, int rowSetSize ) {
+    long batchSize =
+        avgDocumentSize > 0 ? (long) ( ADAPTIVE_TARGET_BATCH_BYTES / avgDocumentSize ) : ADAPTIVE_MIN_BATCH_SIZE;
+    if ( rowSetSize > 0 ) {
+      batchSize = Math.min( batchSize, rowSetSize );
+    }
+
+    return (int) Math.max( batchSize, ADAPTIVE_MIN_BATCH_SIZE );
+  }
+}
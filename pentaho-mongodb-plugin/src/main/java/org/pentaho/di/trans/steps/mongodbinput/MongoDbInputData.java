@@ -13,7 +13,6 @@
 
 package org.pentaho.di.trans.steps.mongodbinput;
 
-import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 import org.pentaho.di.core.exception.KettleException;
@@ -28,10 +27,16 @@ import org.pentaho.mongo.wrapper.collection.MongoCollectionWrapper;
 import org.pentaho.mongo.wrapper.cursor.MongoCursorWrapper;
 import org.pentaho.mongo.wrapper.field.MongoArrayExpansion;
 import org.pentaho.mongo.wrapper.field.MongoField;
+import org.pentaho.mongo.wrapper.field.MongoFieldPath;
+import org.pentaho.mongo.wrapper.field.MongoFieldTrie;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 /**
  * @author Matt
@@ -55,8 +60,64 @@ public class MongoDbInputData extends BaseStepData implements StepDataInterface
    */
   Iterator<DBObject> m_pipelineResult;
 
+  /**
+   * filter selecting this step copy's share of the collection when the read is partitioned (null otherwise)
+   */
+  DBObject m_partitionFilter;
+
+  /**
+   * reads query results ahead on a background thread (null if not prefetching)
+   */
+  MongoDbInputPrefetcher m_prefetcher;
+
+  /**
+   * batch size worked out from the collection statistics when adaptive batch sizing is on (0 until computed)
+   */
+  int m_adaptiveBatchSize;
+
+  /**
+   * writes documents as Extended JSON when a fast JSON output mode is selected (null otherwise)
+   */
+  MongoDbInputJsonWriter m_jsonWriter;
+
+  /**
+   * combines the queries for several incoming rows into one (null if executing the query row by row)
+   */
+  MongoDbInputQueryBatcher m_queryBatcher;
+
+  /**
+   * unwinds the array expansions on the server (null if they are expanded by the step)
+   */
+  MongoDbInputUnwind m_unwind;
+
+  /**
+   * caches query results when executing the query for each row (null if not caching)
+   */
+  MongoDbInputResultCache m_resultCache;
+
+  /**
+   * the cached result being output for the current row (null if reading from the server)
+   */
+  Iterator<DBObject> m_cachedResult;
+
+  /**
+   * the query whose result is being read from the server and recorded for the cache (null if not recording)
+   */
+  String m_cacheKey;
+
+  /**
+   * the documents read so far for m_cacheKey, and their estimated size
+   */
+  List<DBObject> m_cacheRecording;
+  long m_cacheRecordingBytes;
+
   private List<MongoField> m_userFields;
   private MongoArrayExpansion m_expansionHandler;
+
+  /**
+   * shared-prefix trie of the normal (non expansion-related) fields, so that each document is walked only once
+   */
+  private MongoFieldTrie m_fieldTrie;
   private static MongoDbInputDiscoverFieldsHolder mongoDbInputDiscoverFieldsHolder =
       MongoDbInputDiscoverFieldsHolder.getInstance();
 
@@ -166,6 +227,7 @@ public class MongoDbInputData extends BaseStepData implements StepDataInterface
         int outputIndex = outputRowMeta.indexOfValue( f.m_fieldName );
         f.init( outputIndex );
       }
+      m_fieldTrie = new MongoFieldTrie( m_userFields );
 
       if ( m_expansionHandler != null ) {
         m_expansionHandler.init();
@@ -183,50 +245,136 @@ public class MongoDbInputData extends BaseStepData implements StepDataInterface
    * @throws KettleException if a problem occurs
    */
   public Object[][] mongoDocumentToKettle( DBObject mongoObj, VariableSpace space ) throws KettleException {
+    final List<Object[]> result = new ArrayList<Object[]>();
+    mongoDocumentToKettle( mongoObj, space, new MongoArrayExpansion.RowSink() {
+      @Override
+      public void putRow( Object[] row ) {
+        result.add( row );
+      }
+    } );
 
-    Object[][] result = null;
-
-    if ( m_expansionHandler != null ) {
-      m_expansionHandler.reset( space );
+    return result.toArray( new Object[result.size()][] );
+  }
 
-      if ( mongoObj instanceof BasicDBObject ) {
-        result = m_expansionHandler.convertToKettleValue( (BasicDBObject) mongoObj, space );
-      } else {
-        result = m_expansionHandler.convertToKettleValue( (BasicDBList) mongoObj, space );
-      }
-    } else {
-      result = new Object[1][];
-    }
+  /**
+   * Convert a mongo document to outgoing row field values with respect to the user-specified paths, handing each row
+   * to a sink as soon as it is complete. When an array is being expanded/unwound the rows are produced one at a time,
+   * so memory use does not depend on the size of the array.
+   *
+   * @param mongoObj the mongo document
+   * @param space    variables to use
+   * @param sink     receives the Kettle row(s)
+   * @throws KettleException if a problem occurs
+   */
+  public void mongoDocumentToKettle( DBObject mongoObj, VariableSpace space, MongoArrayExpansion.RowSink sink )
+    throws KettleException {
 
     // get the normal (non expansion-related fields)
     Object[] normalData = RowDataUtil.allocateRowData( outputRowMeta.size() );
-    Object value;
     for ( MongoField f : m_userFields ) {
-      value = null;
       f.reset( space );
+    }
+    if ( m_fieldTrie.isStale() ) {
+      // variables in one or more paths now resolve differently
+      m_fieldTrie = new MongoFieldTrie( m_userFields );
+    }
+    if ( MongoFieldPath.isRecord( mongoObj ) || MongoFieldPath.isArray( mongoObj ) ) {
+      m_fieldTrie.convert( mongoObj, normalData );
+    }
+
+    if ( m_expansionHandler == null ) {
+      sink.putRow( normalData );
+    } else {
+      // each expansion row starts out with the normal fields
+      m_expansionHandler.reset( space );
+      m_expansionHandler.expand( mongoObj, normalData, sink );
+    }
+  }
 
-      if ( mongoObj instanceof BasicDBObject ) {
-        value = f.convertToKettleValue( (BasicDBObject) mongoObj );
-      } else if ( mongoObj instanceof BasicDBList ) {
-        value = f.convertToKettleValue( (BasicDBList) mongoObj );
+  /**
+   * Build a projection that includes just the parts of a document that a set of fields refer to. Paths are cut off at
+   * the first array index or expansion, as projecting into arrays changes their contents.
+   *
+   * @param fields the fields
+   * @param space  variables to use
+   * @return the projection, or null if at least one field needs the whole document
+   */
+  public static DBObject buildProjection( List<MongoField> fields, VariableSpace space ) {
+    return buildProjection( fields, Collections.<String>emptyList(), space );
+  }
+
+  /**
+   * Build a projection that includes just the parts of a document that a set of fields refer to, plus some extra
+   * (dot separated) paths.
+   *
+   * @param fields     the fields
+   * @param extraPaths further paths to include
+   * @param space      variables to use
+   * @return the projection, or null if at least one field needs the whole document
+   */
+  public static DBObject buildProjection( List<MongoField> fields, List<String> extraPaths, VariableSpace space ) {
+    if ( fields == null || fields.isEmpty() ) {
+      return null;
+    }
+
+    List<String> paths = new ArrayList<String>( extraPaths );
+    for ( MongoField f : fields ) {
+      String path = space.environmentSubstitute( f.m_fieldPath );
+      if ( path == null ) {
+        return null;
+      }
+      if ( path.startsWith( "$" ) ) { //$NON-NLS-1$
+        path = path.substring( 1 );
+      }
+      if ( path.startsWith( "." ) ) { //$NON-NLS-1$
+        path = path.substring( 1 );
       }
 
-      normalData[f.m_outputIndex] = value;
+      // arrays are fetched whole - projecting into an array drops any
+      // elements that are not records, which would shift the array indexes
+      int bracket = path.indexOf( '[' );
+      if ( bracket >= 0 ) {
+        path = path.substring( 0, bracket );
+      }
+      if ( path.endsWith( "." ) ) { //$NON-NLS-1$
+        path = path.substring( 0, path.length() - 1 );
+      }
+
+      if ( path.length() == 0 || path.startsWith( "." ) || path.contains( ".." ) ) { //$NON-NLS-1$ //$NON-NLS-2$
+        // this field needs the whole document (or we can't tell what it needs)
+        return null;
+      }
+      paths.add( path );
     }
 
-    // copy normal fields over to each expansion row (if necessary)
-    if ( m_expansionHandler == null ) {
-      result[0] = normalData;
-    } else {
-      for ( int i = 0; i < result.length; i++ ) {
-        Object[] row = result[i];
-        for ( MongoField f : m_userFields ) {
-          row[f.m_outputIndex] = normalData[f.m_outputIndex];
-        }
+    // shortest first, so that a path is dropped if one of its ancestors is
+    // already included (the server rejects overlapping paths)
+    Collections.sort( paths, new Comparator<String>() {
+      @Override
+      public int compare( String p1, String p2 ) {
+        return p1.length() - p2.length();
+      }
+    } );
+
+    Set<String> included = new HashSet<String>();
+    BasicDBObject projection = new BasicDBObject();
+    boolean includesId = false;
+    for ( String path : paths ) {
+      boolean covered = included.contains( path );
+      for ( int dot = path.indexOf( '.' ); dot >= 0 && !covered; dot = path.indexOf( '.', dot + 1 ) ) {
+        covered = included.contains( path.substring( 0, dot ) );
       }
+      if ( !covered ) {
+        included.add( path );
+        projection.put( path, 1 );
+        includesId |= path.equals( "_id" ) || path.startsWith( "_id." ); //$NON-NLS-1$ //$NON-NLS-2$
+      }
+    }
+    if ( !includesId ) {
+      projection.put( "_id", 0 ); //$NON-NLS-1$
     }
 
-    return result;
+    return projection;
   }
 
   /**
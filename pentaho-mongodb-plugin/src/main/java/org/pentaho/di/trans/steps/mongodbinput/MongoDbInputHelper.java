@@ -29,6 +29,10 @@ import com.mongodb.DBObject;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 public class MongoDbInputHelper extends BaseStepHelper {
@@ -45,6 +49,10 @@ public class MongoDbInputHelper extends BaseStepHelper {
   private static final String GET_TAGSET = "getTagSet";
   private static final String TEST_TAGSET = "testTagSet";
   private static final String GET_FIELDS = "getFields";
+  private static final String DISCOVERY_TIMED_OUT = "MongoDbInputDialog.ErrorMessage.FieldDiscoveryTimedOut";
+
+  /** how long (seconds) a getFields request waits for discovery when no timeout is given */
+  static final long DISCOVER_FIELDS_TIMEOUT = 120;
 
   public MongoDbInputHelper( MongoDbInputMeta mongoDbInputMeta ) {
     this.mongoDbInputMeta = mongoDbInputMeta;
@@ -206,29 +214,69 @@ public class MongoDbInputHelper extends BaseStepHelper {
       return response;
     }
 
+    // discovery runs on its own thread; this request only waits for it up to the time budget, and then cancels it
+    final CountDownLatch done = new CountDownLatch( 1 );
+    final AtomicBoolean cancelled = new AtomicBoolean();
+    final AtomicReference<List<MongoField>> progress = new AtomicReference<>();
     try {
       int numDocsToSample = Integer.parseInt( queryParams.get( "sampleSize" ) );
+      long timeout = queryParams.containsKey( "timeout" )
+        ? Long.parseLong( queryParams.get( "timeout" ) ) : DISCOVER_FIELDS_TIMEOUT;
       MongoProperties.Builder propertiesBuilder = MongoWrapperUtil.createPropertiesBuilder( mongoDbInputMeta, transMeta );
       MongoDbInputData.getMongoDbInputDiscoverFieldsHolder().getMongoDbInputDiscoverFields().discoverFields( propertiesBuilder, mongoDbInputMeta.getDbName(),
                     mongoDbInputMeta.getCollection(), mongoDbInputMeta.getJsonQuery(), mongoDbInputMeta.getFieldsName(), mongoDbInputMeta.getQueryIsPipeline(), numDocsToSample,
                     mongoDbInputMeta, transMeta, new DiscoverFieldsCallback() {
                         @Override
                         public void notifyFields( final List<MongoField> fields ) {
-                        if ( !fields.isEmpty() ) {
-                            response.put( "fields", setFieldResponse( fields ) );
-                            response.put( StepInterface.ACTION_STATUS, StepInterface.SUCCESS_RESPONSE );
-                        } else {
-                            response.put( ERROR_MESSAGE, BaseMessages.getString( PKG, "MongoDbInputDialog.ErrorMessage.NoFieldsFound" ) );
-                            response.put( StepInterface.ACTION_STATUS, StepInterface.FAILURE_RESPONSE );
+                        synchronized ( response ) {
+                          if ( cancelled.get() ) {
+                            return;
+                          }
+                          setFieldsResponse( response, fields, false );
+                          done.countDown();
                         }
                         }
                         @Override
                         public void notifyException( Exception exception ) {
-                        MongoDBHelper.errorResponse( response, BaseMessages.getString( PKG, UNABLE_TO_CONNECT_LABEL ), exception );
+                        synchronized ( response ) {
+                          if ( cancelled.get() ) {
+                            return;
+                          }
+                          MongoDBHelper.errorResponse( response, BaseMessages.getString( PKG, UNABLE_TO_CONNECT_LABEL ), exception );
+                          done.countDown();
+                        }
+                        }
+                        @Override
+                        public void notifyProgress( List<MongoField> fields, int docsRead ) {
+                          progress.set( fields );
+                        }
+                        @Override
+                        public boolean isCancelled() {
+                          return cancelled.get();
                         }
                     } );
+
+      if ( !done.await( timeout, TimeUnit.SECONDS ) ) {
+        synchronized ( response ) {
+          if ( done.getCount() > 0 ) {
+            cancelled.set( true );
+            List<MongoField> partial = progress.get();
+            if ( partial != null && !partial.isEmpty() ) {
+              // better than nothing - the fields found in the part of the sample that was read in time
+              setFieldsResponse( response, partial, true );
+            } else {
+              MongoDBHelper.errorResponse( response, BaseMessages.getString( PKG, UNABLE_TO_CONNECT_LABEL ),
+                BaseMessages.getString( PKG, DISCOVERY_TIMED_OUT, String.valueOf( timeout ) ) );
+            }
+          }
+        }
+      }
     } catch ( KettleException e ) {
       return MongoDBHelper.errorResponse( response, BaseMessages.getString( PKG, UNABLE_TO_CONNECT_LABEL ), e );
+    } catch ( InterruptedException e ) {
+      cancelled.set( true );
+      Thread.currentThread().interrupt();
+      return MongoDBHelper.errorResponse( response, BaseMessages.getString( PKG, UNABLE_TO_CONNECT_LABEL ), e );
     } finally {
       mongoDbInputMeta.setExecuteForEachIncomingRow( current );
     }
@@ -236,6 +284,17 @@ public class MongoDbInputHelper extends BaseStepHelper {
     return response;
   }
 
+  private void setFieldsResponse( JSONObject response, List<MongoField> fields, boolean partial ) {
+    if ( !fields.isEmpty() ) {
+      response.put( "fields", setFieldResponse( fields ) );
+      response.put( "partial", partial );
+      response.put( StepInterface.ACTION_STATUS, StepInterface.SUCCESS_RESPONSE );
+    } else {
+      response.put( ERROR_MESSAGE, BaseMessages.getString( PKG, "MongoDbInputDialog.ErrorMessage.NoFieldsFound" ) );
+      response.put( StepInterface.ACTION_STATUS, StepInterface.FAILURE_RESPONSE );
+    }
+  }
+
   private boolean checkForUnresolved( MongoDbInputMeta meta, TransMeta transMeta, JSONObject response ) {
     String jsonQuery = meta.getJsonQuery() != null ? meta.getJsonQuery() : "";
     String query = transMeta.environmentSubstitute( jsonQuery );
@@ -0,0 +1,60 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2026 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.mongodbinput;
+
+import com.mongodb.DBObject;
+import com.mongodb.DBObjectCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriter;
+import org.bson.json.JsonWriterSettings;
+
+import java.io.StringWriter;
+
+/**
+ * Writes documents as Extended JSON into a buffer that is reused from one document to the next. Documents that are
+ * still raw BSON ({@link RawBsonDBObject}) are piped straight from their bytes to JSON without being decoded; other
+ * documents are encoded with the standard DBObject codec.
+ */
+public class MongoDbInputJsonWriter {
+
+  private static final EncoderContext ENCODER_CONTEXT = EncoderContext.builder().build();
+
+  private final StringWriter m_buffer = new StringWriter( 1024 );
+  private final JsonWriterSettings m_settings;
+  private final DBObjectCodec m_codec = new DBObjectCodec();
+
+  /**
+   * @param mode one of the MongoDbInputMeta.JSON_OUTPUT_ constants (relaxed or canonical)
+   */
+  public MongoDbInputJsonWriter( String mode ) {
+    m_settings = JsonWriterSettings.builder().outputMode(
+        MongoDbInputMeta.JSON_OUTPUT_CANONICAL.equals( mode ) ? JsonMode.EXTENDED : JsonMode.RELAXED ).build();
+  }
+
+  /**
+   * @param doc the document
+   * @return the document as JSON
+   */
+  public String toJson( DBObject doc ) {
+    m_buffer.getBuffer().setLength( 0 );
+    JsonWriter writer = new JsonWriter( m_buffer, m_settings );
+    if ( doc instanceof RawBsonDBObject ) {
+      writer.pipe( ( (RawBsonDBObject) doc ).getBsonReader() );
+    } else {
+      m_codec.encode( writer, doc, ENCODER_CONTEXT );
+    }
+    writer.flush();
+
+    return m_buffer.toString();
+  }
+}
@@ -60,6 +60,42 @@ import java.util.List;
 public class MongoDbInputMeta extends MongoDbMeta {
   protected static Class<?> PKG = MongoDbInputMeta.class; // for i18n purposes
 
+  /** Partitioned read strategy: split on ranges of _id */
+  public static final String PARTITION_ID_RANGE = "IdRange"; //$NON-NLS-1$
+
+  /** Partitioned read strategy: split on $bucketAuto boundaries of the partition field */
+  public static final String PARTITION_BUCKET_AUTO = "BucketAuto"; //$NON-NLS-1$
+
+  /** Partitioned read strategy: split the date range of the partition field evenly */
+  public static final String PARTITION_DATE_RANGE = "DateRange"; //$NON-NLS-1$
+
+  /** JSON output: the legacy com.mongodb.util.JSON serializer */
+  public static final String JSON_OUTPUT_LEGACY = "Legacy"; //$NON-NLS-1$
+
+  /** JSON output: relaxed Extended JSON, written straight from the BSON */
+  public static final String JSON_OUTPUT_RELAXED = "Relaxed"; //$NON-NLS-1$
+
+  /** JSON output: canonical Extended JSON, written straight from the BSON */
+  public static final String JSON_OUTPUT_CANONICAL = "Canonical"; //$NON-NLS-1$
+
+  /** Field discovery sampling: the first documents in natural order */
+  public static final String SAMPLE_FIRST = "First"; //$NON-NLS-1$
+
+  /** Field discovery sampling: random documents ($sample) */
+  public static final String SAMPLE_RANDOM = "Random"; //$NON-NLS-1$
+
+  /** Field discovery sampling: random documents from each part of the range of a time field */
+  public static final String SAMPLE_STRATIFIED = "Stratified"; //$NON-NLS-1$
+
+  /** Field discovery: sample documents and merge their structure */
+  public static final String DISCOVER_SAMPLE = "Sample"; //$NON-NLS-1$
+
+  /** Field discovery: map the $jsonSchema of the collection's validator */
+  public static final String DISCOVER_VALIDATOR = "Validator"; //$NON-NLS-1$
+
+  /** Field discovery: aggregate the paths and types of the sampled documents on the server */
+  public static final String DISCOVER_AGGREGATION = "Aggregation"; //$NON-NLS-1$
+
   @Injection( name = "JSON_OUTPUT_FIELD" )
   private String jsonFieldName;
   @Injection( name = "JSON_FIELD" )
@@ -83,6 +119,100 @@ public class MongoDbInputMeta extends MongoDbMeta {
   @Injection( name = "EXECUTE_FOR_EACH_ROW" )
   private boolean m_executeForEachIncomingRow = false;
 
+  /** whether multiple copies of the step should each read a share of the collection */
+  @Injection( name = "PARTITIONED_READ" )
+  private boolean m_partitionedRead = false;
+
+  @Injection( name = "PARTITION_STRATEGY" )
+  private String m_partitionStrategy = PARTITION_ID_RANGE;
+
+  @Injection( name = "PARTITION_FIELD" )
+  private String m_partitionField = ""; //$NON-NLS-1$
+
+  /** whether to leave documents as raw BSON and only decode the values that fields reference */
+  @Injection( name = "RAW_BSON_DECODING" )
+  private boolean m_rawBsonDecoding = false;
+
+  /** whether to derive a projection from the field paths when no fields expression is given */
+  @Injection( name = "AUTO_PROJECTION" )
+  private boolean m_autoProjection = false;
+
+  /** number of documents to read ahead on a background thread (empty or 0 to read inline) */
+  @Injection( name = "PREFETCH_SIZE" )
+  private String m_prefetchSize = ""; //$NON-NLS-1$
+
+  /** number of documents to fetch per batch (empty for the driver default) */
+  @Injection( name = "BATCH_SIZE" )
+  private String m_batchSize = ""; //$NON-NLS-1$
+
+  /** server side time limit (ms) for the query (empty for no limit) */
+  @Injection( name = "MAX_TIME_MS" )
+  private String m_maxTimeMS = ""; //$NON-NLS-1$
+
+  /** whether the server should keep the cursor open while it is idle */
+  @Injection( name = "NO_CURSOR_TIMEOUT" )
+  private boolean m_noCursorTimeout = false;
+
+  /** maximum number of documents to return (empty for all) */
+  @Injection( name = "QUERY_LIMIT" )
+  private String m_queryLimit = ""; //$NON-NLS-1$
+
+  /** number of documents to skip (empty for none) */
+  @Injection( name = "QUERY_SKIP" )
+  private String m_querySkip = ""; //$NON-NLS-1$
+
+  /** whether to size batches from the average document size when no batch size is set */
+  @Injection( name = "ADAPTIVE_BATCH_SIZE" )
+  private boolean m_adaptiveBatchSize = false;
+
+  /** how documents are written when outputting JSON (one of the JSON_OUTPUT_ constants) */
+  @Injection( name = "JSON_OUTPUT_MODE" )
+  private String m_jsonOutputMode = JSON_OUTPUT_LEGACY;
+
+  /** number of incoming rows to combine into one query when executing for each row */
+  @Injection( name = "QUERY_BATCH_SIZE" )
+  private String m_queryBatchSize = ""; //$NON-NLS-1$
+
+  /** maximum number of query results to cache when executing for each row (empty or 0 for no cache) */
+  @Injection( name = "RESULT_CACHE_SIZE" )
+  private String m_resultCacheSize = ""; //$NON-NLS-1$
+
+  /** how long (seconds) cached query results stay valid (empty or 0 for no expiry) */
+  @Injection( name = "RESULT_CACHE_TTL" )
+  private String m_resultCacheTtl = ""; //$NON-NLS-1$
+
+  /** maximum memory (MB) for cached query results (empty for a share of the heap) */
+  @Injection( name = "RESULT_CACHE_MEMORY" )
+  private String m_resultCacheMemory = ""; //$NON-NLS-1$
+
+  /** whether [*] array expansions are unwound by the server rather than by the step */
+  @Injection( name = "SERVER_SIDE_UNWIND" )
+  private boolean m_serverSideUnwind = false;
+
+  /** how documents are sampled when discovering fields (one of the SAMPLE_ constants) */
+  @Injection( name = "SAMPLE_MODE" )
+  private String m_sampleMode = SAMPLE_FIRST;
+
+  /** the (date or numeric) field whose range is split up for stratified sampling */
+  @Injection( name = "SAMPLE_TIME_FIELD" )
+  private String m_sampleTimeField = ""; //$NON-NLS-1$
+
+  /** how long (seconds) discovered fields are reused for the same sample (empty or 0 for no caching) */
+  @Injection( name = "SCHEMA_CACHE_TTL" )
+  private String m_schemaCacheTtl = ""; //$NON-NLS-1$
+
+  /** whether cached fields are discarded when the document count or size of the collection has changed */
+  @Injection( name = "SCHEMA_CACHE_CHECK_STATS" )
+  private boolean m_schemaCacheCheckStats = true;
+
+  /** whether discovered fields are also cached on disk (under the Kettle home directory) */
+  @Injection( name = "SCHEMA_CACHE_PERSIST" )
+  private boolean m_schemaCachePersist = false;
+
+  /** how fields are discovered (one of the DISCOVER_ constants) */
+  @Injection( name = "DISCOVERY_STRATEGY" )
+  private String m_discoveryStrategy = DISCOVER_SAMPLE;
+
   public void setMongoFields( List<MongoField> fields ) {
     m_fields = fields;
   }
@@ -173,6 +303,34 @@ public class MongoDbInputMeta extends MongoDbMeta {
         m_executeForEachIncomingRow = executeForEachR.equalsIgnoreCase( "Y" );
       }
 
+      m_partitionedRead = "Y".equalsIgnoreCase( XMLHandler.getTagValue( stepnode, "partitioned_read" ) ); //$NON-NLS-1$
+      m_partitionStrategy = Const.NVL( XMLHandler.getTagValue( stepnode, "partition_strategy" ), //$NON-NLS-1$
+        PARTITION_ID_RANGE );
+      m_partitionField = Const.NVL( XMLHandler.getTagValue( stepnode, "partition_field" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
+      m_rawBsonDecoding = "Y".equalsIgnoreCase( XMLHandler.getTagValue( stepnode, "raw_bson_decoding" ) ); //$NON-NLS-1$
+      m_autoProjection = "Y".equalsIgnoreCase( XMLHandler.getTagValue( stepnode, "auto_projection" ) ); //$NON-NLS-1$
+      m_prefetchSize = Const.NVL( XMLHandler.getTagValue( stepnode, "prefetch_size" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
+      m_batchSize = Const.NVL( XMLHandler.getTagValue( stepnode, "batch_size" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
+      m_maxTimeMS = Const.NVL( XMLHandler.getTagValue( stepnode, "max_time_ms" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
+      m_queryLimit = Const.NVL( XMLHandler.getTagValue( stepnode, "query_limit" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
+      m_querySkip = Const.NVL( XMLHandler.getTagValue( stepnode, "query_skip" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
+      m_noCursorTimeout = "Y".equalsIgnoreCase( XMLHandler.getTagValue( stepnode, "no_cursor_timeout" ) ); //$NON-NLS-1$
+      m_adaptiveBatchSize = "Y".equalsIgnoreCase( XMLHandler.getTagValue( stepnode, "adaptive_batch_size" ) ); //$NON-NLS-1$
+      m_jsonOutputMode = Const.NVL( XMLHandler.getTagValue( stepnode, "json_output_mode" ), //$NON-NLS-1$
+        JSON_OUTPUT_LEGACY );
+      m_queryBatchSize = Const.NVL( XMLHandler.getTagValue( stepnode, "query_batch_size" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
+      m_resultCacheSize = Const.NVL( XMLHandler.getTagValue( stepnode, "result_cache_size" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
+      m_resultCacheTtl = Const.NVL( XMLHandler.getTagValue( stepnode, "result_cache_ttl" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
+      m_resultCacheMemory = Const.NVL( XMLHandler.getTagValue( stepnode, "result_cache_memory" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
+      m_serverSideUnwind = "Y".equalsIgnoreCase( XMLHandler.getTagValue( stepnode, "server_side_unwind" ) ); //$NON-NLS-1$
+      m_sampleMode = Const.NVL( XMLHandler.getTagValue( stepnode, "sample_mode" ), SAMPLE_FIRST ); //$NON-NLS-1$
+      m_sampleTimeField = Const.NVL( XMLHandler.getTagValue( stepnode, "sample_time_field" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
+      m_schemaCacheTtl = Const.NVL( XMLHandler.getTagValue( stepnode, "schema_cache_ttl" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
+      m_schemaCacheCheckStats = !"N".equalsIgnoreCase( //$NON-NLS-1$
+          XMLHandler.getTagValue( stepnode, "schema_cache_check_stats" ) ); //$NON-NLS-1$
+      m_schemaCachePersist = "Y".equalsIgnoreCase( XMLHandler.getTagValue( stepnode, "schema_cache_persist" ) ); //$NON-NLS-1$
+      m_discoveryStrategy = Const.NVL( XMLHandler.getTagValue( stepnode, "discovery_strategy" ), DISCOVER_SAMPLE ); //$NON-NLS-1$
+
       Node mongo_fields = XMLHandler.getSubNode( stepnode, "mongo_fields" ); //$NON-NLS-1$
       if ( mongo_fields != null && XMLHandler.countNodes( mongo_fields, "mongo_field" ) > 0 ) { //$NON-NLS-1$
         int nrfields = XMLHandler.countNodes( mongo_fields, "mongo_field" ); //$NON-NLS-1$
@@ -312,6 +470,54 @@ public class MongoDbInputMeta extends MongoDbMeta {
       XMLHandler.addTagValue( "allow_disk_use", allowDiskUse ) ); //$NON-NLS-1$
     retval.append( "    " ).append( //$NON-NLS-1$
             XMLHandler.addTagValue( "execute_for_each_row", m_executeForEachIncomingRow ) ); //$NON-NLS-1$
+    retval.append( "    " ).append( //$NON-NLS-1$
+            XMLHandler.addTagValue( "partitioned_read", m_partitionedRead ) ); //$NON-NLS-1$
+    retval.append( "    " ).append( //$NON-NLS-1$
+            XMLHandler.addTagValue( "partition_strategy", m_partitionStrategy ) ); //$NON-NLS-1$
+    retval.append( "    " ).append( //$NON-NLS-1$
+            XMLHandler.addTagValue( "partition_field", m_partitionField ) ); //$NON-NLS-1$
+    retval.append( "    " ).append( //$NON-NLS-1$
+            XMLHandler.addTagValue( "raw_bson_decoding", m_rawBsonDecoding ) ); //$NON-NLS-1$
+    retval.append( "    " ).append( //$NON-NLS-1$
+            XMLHandler.addTagValue( "auto_projection", m_autoProjection ) ); //$NON-NLS-1$
+    retval.append( "    " ).append( //$NON-NLS-1$
+            XMLHandler.addTagValue( "prefetch_size", m_prefetchSize ) ); //$NON-NLS-1$
+    retval.append( "    " ).append( //$NON-NLS-1$
+            XMLHandler.addTagValue( "batch_size", m_batchSize ) ); //$NON-NLS-1$
+    retval.append( "    " ).append( //$NON-NLS-1$
+            XMLHandler.addTagValue( "max_time_ms", m_maxTimeMS ) ); //$NON-NLS-1$
+    retval.append( "    " ).append( //$NON-NLS-1$
+            XMLHandler.addTagValue( "query_limit", m_queryLimit ) ); //$NON-NLS-1$
+    retval.append( "    " ).append( //$NON-NLS-1$
+            XMLHandler.addTagValue( "query_skip", m_querySkip ) ); //$NON-NLS-1$
+    retval.append( "    " ).append( //$NON-NLS-1$
+            XMLHandler.addTagValue( "no_cursor_timeout", m_noCursorTimeout ) ); //$NON-NLS-1$
+    retval.append( "    " ).append( //$NON-NLS-1$
+            XMLHandler.addTagValue( "adaptive_batch_size", m_adaptiveBatchSize ) ); //$NON-NLS-1$
+    retval.append( "    " ).append( //$NON-NLS-1$
+            XMLHandler.addTagValue( "json_output_mode", m_jsonOutputMode ) ); //$NON-NLS-1$
+    retval.append( "    " ).append( //$NON-NLS-1$
+            XMLHandler.addTagValue( "query_batch_size", m_queryBatchSize ) ); //$NON-NLS-1$
+    retval.append( "    " ).append( //$NON-NLS-1$
+            XMLHandler.addTagValue( "result_cache_size", m_resultCacheSize ) ); //$NON-NLS-1$
+    retval.append( "    " ).append( //$NON-NLS-1$
+            XMLHandler.addTagValue( "result_cache_ttl", m_resultCacheTtl ) ); //$NON-NLS-1$
+    retval.append( "    " ).append( //$NON-NLS-1$
+            XMLHandler.addTagValue( "result_cache_memory", m_resultCacheMemory ) ); //$NON-NLS-1$
+    retval.append( "    " ).append( //$NON-NLS-1$
+            XMLHandler.addTagValue( "server_side_unwind", m_serverSideUnwind ) ); //$NON-NLS-1$
+    retval.append( "    " ).append( //$NON-NLS-1$
+            XMLHandler.addTagValue( "sample_mode", m_sampleMode ) ); //$NON-NLS-1$
+    retval.append( "    " ).append( //$NON-NLS-1$
+            XMLHandler.addTagValue( "sample_time_field", m_sampleTimeField ) ); //$NON-NLS-1$
+    retval.append( "    " ).append( //$NON-NLS-1$
+            XMLHandler.addTagValue( "schema_cache_ttl", m_schemaCacheTtl ) ); //$NON-NLS-1$
+    retval.append( "    " ).append( //$NON-NLS-1$
+            XMLHandler.addTagValue( "schema_cache_check_stats", m_schemaCacheCheckStats ) ); //$NON-NLS-1$
+    retval.append( "    " ).append( //$NON-NLS-1$
+            XMLHandler.addTagValue( "schema_cache_persist", m_schemaCachePersist ) ); //$NON-NLS-1$
+    retval.append( "    " ).append( //$NON-NLS-1$
+            XMLHandler.addTagValue( "discovery_strategy", m_discoveryStrategy ) ); //$NON-NLS-1$
 
     if ( m_fields != null && m_fields.size() > 0 ) {
       retval.append( "\n    " ).append( XMLHandler.openTag( "mongo_fields" ) ); //$NON-NLS-1$ //$NON-NLS-2$
@@ -375,6 +581,32 @@ public class MongoDbInputMeta extends MongoDbMeta {
       m_aggPipeline = rep.getStepAttributeBoolean( id_step, "query_is_pipeline" ); //$NON-NLS-1$
       allowDiskUse = rep.getStepAttributeBoolean( id_step, "allow_disk_use" ); //$NON-NLS-1$
       m_executeForEachIncomingRow = rep.getStepAttributeBoolean( id_step, "execute_for_each_row" ); //$NON-NLS-1$
+      m_partitionedRead = rep.getStepAttributeBoolean( id_step, 0, "partitioned_read", false ); //$NON-NLS-1$
+      m_partitionStrategy = Const.NVL( rep.getStepAttributeString( id_step, "partition_strategy" ), //$NON-NLS-1$
+        PARTITION_ID_RANGE );
+      m_partitionField = Const.NVL( rep.getStepAttributeString( id_step, "partition_field" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
+      m_rawBsonDecoding = rep.getStepAttributeBoolean( id_step, 0, "raw_bson_decoding", false ); //$NON-NLS-1$
+      m_autoProjection = rep.getStepAttributeBoolean( id_step, 0, "auto_projection", false ); //$NON-NLS-1$
+      m_prefetchSize = Const.NVL( rep.getStepAttributeString( id_step, "prefetch_size" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
+      m_batchSize = Const.NVL( rep.getStepAttributeString( id_step, "batch_size" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
+      m_maxTimeMS = Const.NVL( rep.getStepAttributeString( id_step, "max_time_ms" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
+      m_queryLimit = Const.NVL( rep.getStepAttributeString( id_step, "query_limit" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
+      m_querySkip = Const.NVL( rep.getStepAttributeString( id_step, "query_skip" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
+      m_noCursorTimeout = rep.getStepAttributeBoolean( id_step, 0, "no_cursor_timeout", false ); //$NON-NLS-1$
+      m_adaptiveBatchSize = rep.getStepAttributeBoolean( id_step, 0, "adaptive_batch_size", false ); //$NON-NLS-1$
+      m_jsonOutputMode = Const.NVL( rep.getStepAttributeString( id_step, "json_output_mode" ), //$NON-NLS-1$
+        JSON_OUTPUT_LEGACY );
+      m_queryBatchSize = Const.NVL( rep.getStepAttributeString( id_step, "query_batch_size" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
+      m_resultCacheSize = Const.NVL( rep.getStepAttributeString( id_step, "result_cache_size" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
+      m_resultCacheTtl = Const.NVL( rep.getStepAttributeString( id_step, "result_cache_ttl" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
+      m_resultCacheMemory = Const.NVL( rep.getStepAttributeString( id_step, "result_cache_memory" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
+      m_serverSideUnwind = rep.getStepAttributeBoolean( id_step, 0, "server_side_unwind", false ); //$NON-NLS-1$
+      m_sampleMode = Const.NVL( rep.getStepAttributeString( id_step, "sample_mode" ), SAMPLE_FIRST ); //$NON-NLS-1$
+      m_sampleTimeField = Const.NVL( rep.getStepAttributeString( id_step, "sample_time_field" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
+      m_schemaCacheTtl = Const.NVL( rep.getStepAttributeString( id_step, "schema_cache_ttl" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
+      m_schemaCacheCheckStats = rep.getStepAttributeBoolean( id_step, 0, "schema_cache_check_stats", true ); //$NON-NLS-1$
+      m_schemaCachePersist = rep.getStepAttributeBoolean( id_step, 0, "schema_cache_persist", false ); //$NON-NLS-1$
+      m_discoveryStrategy = Const.NVL( rep.getStepAttributeString( id_step, "discovery_strategy" ), DISCOVER_SAMPLE ); //$NON-NLS-1$
 
       int nrfields = rep.countNrStepAttributes( id_step, "field_name" ); //$NON-NLS-1$
       if ( nrfields > 0 ) {
@@ -447,6 +679,38 @@ public class MongoDbInputMeta extends MongoDbMeta {
         allowDiskUse );
       rep.saveStepAttribute( id_transformation, id_step, 0, "execute_for_each_row", //$NON-NLS-1$
               m_executeForEachIncomingRow );
+      rep.saveStepAttribute( id_transformation, id_step, 0, "partitioned_read", //$NON-NLS-1$
+              m_partitionedRead );
+      rep.saveStepAttribute( id_transformation, id_step, "partition_strategy", m_partitionStrategy ); //$NON-NLS-1$
+      rep.saveStepAttribute( id_transformation, id_step, "partition_field", m_partitionField ); //$NON-NLS-1$
+      rep.saveStepAttribute( id_transformation, id_step, 0, "raw_bson_decoding", //$NON-NLS-1$
+              m_rawBsonDecoding );
+      rep.saveStepAttribute( id_transformation, id_step, 0, "auto_projection", //$NON-NLS-1$
+              m_autoProjection );
+      rep.saveStepAttribute( id_transformation, id_step, "prefetch_size", m_prefetchSize ); //$NON-NLS-1$
+      rep.saveStepAttribute( id_transformation, id_step, "batch_size", m_batchSize ); //$NON-NLS-1$
+      rep.saveStepAttribute( id_transformation, id_step, "max_time_ms", m_maxTimeMS ); //$NON-NLS-1$
+      rep.saveStepAttribute( id_transformation, id_step, "query_limit", m_queryLimit ); //$NON-NLS-1$
+      rep.saveStepAttribute( id_transformation, id_step, "query_skip", m_querySkip ); //$NON-NLS-1$
+      rep.saveStepAttribute( id_transformation, id_step, 0, "no_cursor_timeout", //$NON-NLS-1$
+              m_noCursorTimeout );
+      rep.saveStepAttribute( id_transformation, id_step, 0, "adaptive_batch_size", //$NON-NLS-1$
+              m_adaptiveBatchSize );
+      rep.saveStepAttribute( id_transformation, id_step, "json_output_mode", m_jsonOutputMode ); //$NON-NLS-1$
+      rep.saveStepAttribute( id_transformation, id_step, "query_batch_size", m_queryBatchSize ); //$NON-NLS-1$
+      rep.saveStepAttribute( id_transformation, id_step, "result_cache_size", m_resultCacheSize ); //$NON-NLS-1$
+      rep.saveStepAttribute( id_transformation, id_step, "result_cache_ttl", m_resultCacheTtl ); //$NON-NLS-1$
+      rep.saveStepAttribute( id_transformation, id_step, "result_cache_memory", m_resultCacheMemory ); //$NON-NLS-1$
+      rep.saveStepAttribute( id_transformation, id_step, 0, "server_side_unwind", //$NON-NLS-1$
+              m_serverSideUnwind );
+      rep.saveStepAttribute( id_transformation, id_step, "sample_mode", m_sampleMode ); //$NON-NLS-1$
+      rep.saveStepAttribute( id_transformation, id_step, "sample_time_field", m_sampleTimeField ); //$NON-NLS-1$
+      rep.saveStepAttribute( id_transformation, id_step, "schema_cache_ttl", m_schemaCacheTtl ); //$NON-NLS-1$
+      rep.saveStepAttribute( id_transformation, id_step, 0, "schema_cache_check_stats", //$NON-NLS-1$
+              m_schemaCacheCheckStats );
+      rep.saveStepAttribute( id_transformation, id_step, 0, "schema_cache_persist", //$NON-NLS-1$
+              m_schemaCachePersist );
+      rep.saveStepAttribute( id_transformation, id_step, "discovery_strategy", m_discoveryStrategy ); //$NON-NLS-1$
 
       if ( m_fields != null && m_fields.size() > 0 ) {
         for ( int i = 0; i < m_fields.size(); i++ ) {
@@ -595,4 +859,387 @@ public class MongoDbInputMeta extends MongoDbMeta {
   public void setAllowDiskUse( boolean allowDiskUse ) {
     this.allowDiskUse = allowDiskUse;
   }
+
+  /**
+   * Set whether multiple copies of this step should each read a disjoint share of the collection
+   *
+   * @param partitionedRead true to partition the read across step copies
+   */
+  public void setPartitionedRead( boolean partitionedRead ) {
+    m_partitionedRead = partitionedRead;
+  }
+
+  /**
+   * Get whether multiple copies of this step should each read a disjoint share of the collection
+   *
+   * @return true if the read is partitioned across step copies
+   */
+  public boolean isPartitionedRead() {
+    return m_partitionedRead;
+  }
+
+  /**
+   * @param partitionStrategy how to split the collection for a partitioned read (one of the PARTITION_ constants)
+   */
+  public void setPartitionStrategy( String partitionStrategy ) {
+    m_partitionStrategy = partitionStrategy;
+  }
+
+  /**
+   * @return how to split the collection for a partitioned read (one of the PARTITION_ constants)
+   */
+  public String getPartitionStrategy() {
+    return m_partitionStrategy;
+  }
+
+  /**
+   * @param partitionField the field to split on for the bucket and date range partition strategies
+   */
+  public void setPartitionField( String partitionField ) {
+    m_partitionField = partitionField;
+  }
+
+  /**
+   * @return the field to split on for the bucket and date range partition strategies
+   */
+  public String getPartitionField() {
+    return m_partitionField;
+  }
+
+  /**
+   * @param rawBsonDecoding true if documents returned by find queries should be left as raw BSON and only decoded as
+   *                        far as the field paths reach
+   */
+  public void setRawBsonDecoding( boolean rawBsonDecoding ) {
+    m_rawBsonDecoding = rawBsonDecoding;
+  }
+
+  /**
+   * Get whether documents returned by find queries are left as raw BSON. Only the values referenced by the field paths
+   * are decoded, which saves a lot of work (and garbage) for wide documents where only a few fields are wanted.
+   *
+   * @return true if raw BSON decoding is enabled
+   */
+  public boolean isRawBsonDecoding() {
+    return m_rawBsonDecoding;
+  }
+
+  /**
+   * @param autoProjection true if a projection should be derived from the field paths when no fields expression has
+   *                       been supplied
+   */
+  public void setAutoProjection( boolean autoProjection ) {
+    m_autoProjection = autoProjection;
+  }
+
+  /**
+   * Get whether a projection (or a $project stage for pipelines) is derived from the paths of the configured fields
+   * when no fields expression has been supplied.
+   *
+   * @return true if the projection is derived automatically
+   */
+  public boolean isAutoProjection() {
+    return m_autoProjection;
+  }
+
+  /**
+   * @param prefetchSize the number of documents to read ahead on a background thread (empty or 0 to read inline)
+   */
+  public void setPrefetchSize( String prefetchSize ) {
+    m_prefetchSize = prefetchSize;
+  }
+
+  /**
+   * @return the number of documents to read ahead on a background thread (empty or 0 to read inline)
+   */
+  public String getPrefetchSize() {
+    return m_prefetchSize;
+  }
+
+  /**
+   * @param batchSize the number of documents to fetch per batch (empty for the driver default)
+   */
+  public void setBatchSize( String batchSize ) {
+    m_batchSize = batchSize;
+  }
+
+  /**
+   * @return the number of documents to fetch per batch (empty for the driver default)
+   */
+  public String getBatchSize() {
+    return m_batchSize;
+  }
+
+  /**
+   * @param maxTimeMS the server side time limit (ms) for the query (empty for no limit)
+   */
+  public void setMaxTimeMS( String maxTimeMS ) {
+    m_maxTimeMS = maxTimeMS;
+  }
+
+  /**
+   * @return the server side time limit (ms) for the query (empty for no limit)
+   */
+  public String getMaxTimeMS() {
+    return m_maxTimeMS;
+  }
+
+  /**
+   * @param noCursorTimeout true if the server should keep the cursor open while it is idle
+   */
+  public void setNoCursorTimeout( boolean noCursorTimeout ) {
+    m_noCursorTimeout = noCursorTimeout;
+  }
+
+  /**
+   * Get whether the server should keep the query cursor open while it is idle. Useful for long extracts where
+   * downstream steps can hold up the read for longer than the server's idle cursor timeout (find queries only).
+   *
+   * @return true if the cursor should not time out
+   */
+  public boolean isNoCursorTimeout() {
+    return m_noCursorTimeout;
+  }
+
+  /**
+   * @param queryLimit the maximum number of documents to return (empty for all)
+   */
+  public void setQueryLimit( String queryLimit ) {
+    m_queryLimit = queryLimit;
+  }
+
+  /**
+   * @return the maximum number of documents to return (empty for all)
+   */
+  public String getQueryLimit() {
+    return m_queryLimit;
+  }
+
+  /**
+   * @param querySkip the number of documents to skip (empty for none)
+   */
+  public void setQuerySkip( String querySkip ) {
+    m_querySkip = querySkip;
+  }
+
+  /**
+   * @return the number of documents to skip (empty for none)
+   */
+  public String getQuerySkip() {
+    return m_querySkip;
+  }
+
+  /**
+   * @param adaptiveBatchSize true to size batches from the average document size when no batch size is set
+   */
+  public void setAdaptiveBatchSize( boolean adaptiveBatchSize ) {
+    m_adaptiveBatchSize = adaptiveBatchSize;
+  }
+
+  /**
+   * Get whether batches are sized from the collection's average document size (capped by the row set size) when no
+   * explicit batch size has been set.
+   *
+   * @return true if batch sizes are adaptive
+   */
+  public boolean isAdaptiveBatchSize() {
+    return m_adaptiveBatchSize;
+  }
+
+  /**
+   * @param jsonOutputMode how documents are written when outputting JSON (one of the JSON_OUTPUT_ constants)
+   */
+  public void setJsonOutputMode( String jsonOutputMode ) {
+    m_jsonOutputMode = jsonOutputMode;
+  }
+
+  /**
+   * Get how documents are written when outputting JSON. The relaxed and canonical Extended JSON modes are written
+   * straight from the raw BSON of find results into a reused buffer; the legacy mode uses the old serializer.
+   *
+   * @return one of the JSON_OUTPUT_ constants
+   */
+  public String getJsonOutputMode() {
+    return m_jsonOutputMode;
+  }
+
+  /**
+   * @param queryBatchSize the number of incoming rows to combine into one query when executing the query for each
+   *                       incoming row (empty or 1 to query row by row)
+   */
+  public void setQueryBatchSize( String queryBatchSize ) {
+    m_queryBatchSize = queryBatchSize;
+  }
+
+  /**
+   * Get the number of incoming rows to combine into one query when executing the query for each incoming row. Only
+   * find queries whose parameters are compared for equality with top level paths can be combined; others are still
+   * run row by row.
+   *
+   * @return the number of rows to combine
+   */
+  public String getQueryBatchSize() {
+    return m_queryBatchSize;
+  }
+
+  /**
+   * @param resultCacheSize the maximum number of query results to cache when executing the query for each incoming row
+   *                        (empty or 0 for no cache)
+   */
+  public void setResultCacheSize( String resultCacheSize ) {
+    m_resultCacheSize = resultCacheSize;
+  }
+
+  /**
+   * Get the maximum number of query results to cache when executing the query for each incoming row. Results are
+   * cached by the query (or pipeline) after field substitution, so rows that repeat a query are answered without going
+   * to the server; the least recently used result is dropped when the cache is full.
+   *
+   * @return the maximum number of cached results
+   */
+  public String getResultCacheSize() {
+    return m_resultCacheSize;
+  }
+
+  /**
+   * @param resultCacheTtl how long (seconds) cached query results stay valid (empty or 0 for no expiry)
+   */
+  public void setResultCacheTtl( String resultCacheTtl ) {
+    m_resultCacheTtl = resultCacheTtl;
+  }
+
+  /**
+   * @return how long (seconds) cached query results stay valid
+   */
+  public String getResultCacheTtl() {
+    return m_resultCacheTtl;
+  }
+
+  /**
+   * @param resultCacheMemory the maximum memory (MB) to use for cached query results (empty for a share of the heap)
+   */
+  public void setResultCacheMemory( String resultCacheMemory ) {
+    m_resultCacheMemory = resultCacheMemory;
+  }
+
+  /**
+   * @return the maximum memory (MB) to use for cached query results
+   */
+  public String getResultCacheMemory() {
+    return m_resultCacheMemory;
+  }
+
+  /**
+   * @param serverSideUnwind true to have the server unwind [*] array expansions
+   */
+  public void setServerSideUnwind( boolean serverSideUnwind ) {
+    m_serverSideUnwind = serverSideUnwind;
+  }
+
+  /**
+   * Get whether [*] array expansions are rewritten into $unwind aggregation stages, so that the server does the
+   * unwinding and only sends the parts of each unwound document that the fields refer to. Several different expansions
+   * can be used this way (each is unwound in turn). The rows are the same as when expanding on the client: an empty
+   * array gives no rows, and a document where the array is missing, null or not an array gives one row, with nulls for
+   * the fields inside the array. Needs MongoDB 3.4 or later, for $addFields.
+   *
+   * @return true if the server unwinds array expansions
+   */
+  public boolean isServerSideUnwind() {
+    return m_serverSideUnwind;
+  }
+
+  /**
+   * @param sampleMode how documents are sampled when discovering fields (one of the SAMPLE_ constants)
+   */
+  public void setSampleMode( String sampleMode ) {
+    m_sampleMode = sampleMode;
+  }
+
+  /**
+   * Get how documents are sampled when discovering fields. The first documents in natural order are quickest to read,
+   * but in a collection that has changed over time they only show the oldest form of the documents; a random sample
+   * ($sample) covers the whole collection, and a stratified sample takes the same number of random documents from each
+   * part of the range of the sample time field.
+   *
+   * @return one of the SAMPLE_ constants
+   */
+  public String getSampleMode() {
+    return m_sampleMode;
+  }
+
+  /**
+   * @param sampleTimeField the (date or numeric) field whose range is split up for stratified sampling
+   */
+  public void setSampleTimeField( String sampleTimeField ) {
+    m_sampleTimeField = sampleTimeField;
+  }
+
+  /**
+   * @return the (date or numeric) field whose range is split up for stratified sampling
+   */
+  public String getSampleTimeField() {
+    return m_sampleTimeField;
+  }
+
+  /**
+   * @param schemaCacheTtl how long (seconds) discovered fields are reused for the same sample (empty or 0 for no caching)
+   */
+  public void setSchemaCacheTtl( String schemaCacheTtl ) {
+    m_schemaCacheTtl = schemaCacheTtl;
+  }
+
+  /**
+   * @return how long (seconds) discovered fields are reused for the same sample (empty or 0 for no caching)
+   */
+  public String getSchemaCacheTtl() {
+    return m_schemaCacheTtl;
+  }
+
+  /**
+   * @param checkStats true if cached fields are discarded when the document count or size of the collection has changed
+   */
+  public void setSchemaCacheCheckStats( boolean checkStats ) {
+    m_schemaCacheCheckStats = checkStats;
+  }
+
+  /**
+   * @return true if cached fields are discarded when the document count or size of the collection has changed
+   */
+  public boolean getSchemaCacheCheckStats() {
+    return m_schemaCacheCheckStats;
+  }
+
+  /**
+   * @param persist true to also cache discovered fields on disk (under the Kettle home directory)
+   */
+  public void setSchemaCachePersist( boolean persist ) {
+    m_schemaCachePersist = persist;
+  }
+
+  /**
+   * @return true if discovered fields are also cached on disk (under the Kettle home directory)
+   */
+  public boolean getSchemaCachePersist() {
+    return m_schemaCachePersist;
+  }
+
+  /**
+   * @param discoveryStrategy how fields are discovered (one of the DISCOVER_ constants)
+   */
+  public void setDiscoveryStrategy( String discoveryStrategy ) {
+    m_discoveryStrategy = discoveryStrategy;
+  }
+
+  /**
+   * Get how fields are discovered. Sampling reads whole documents from the collection; the validator strategy maps
+   * the $jsonSchema of the collection's validator to fields without reading any documents, and the aggregation
+   * strategy has the server break the sampled documents down into path/type/count tuples so that only those are
+   * returned. Both fall back to sampling when they can't be used (no $jsonSchema validator, or an old server).
+   *
+   * @return one of the DISCOVER_ constants
+   */
+  public String getDiscoveryStrategy() {
+    return m_discoveryStrategy;
+  }
 }
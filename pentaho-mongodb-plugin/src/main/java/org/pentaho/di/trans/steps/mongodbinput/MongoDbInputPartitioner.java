@@ -0,0 +1,295 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2026 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.mongodbinput;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.i18n.BaseMessages;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Splits a collection into contiguous ranges of a field so that each copy of the MongoDB input step can read a
+ * disjoint share of the documents. The split points are computed once per transformation and shared by all copies, so
+ * every copy sees the same ranges.
+ * <p>
+ * The first range is expressed as "not greater than or equal to the first split point", which also picks up documents
+ * where the field is missing, null or of a different type to the split points. The partition field should therefore
+ * hold a single value (not an array), and ranges of _id are split on the type of the largest _id - documents with an
+ * _id of any other type are all read by the first copy.
+ * <p>
+ * In a clustered run each slave computes the split points for itself, so the collection must not change (in a way
+ * that moves the smallest or largest value of the field) while the slaves start up - otherwise the ranges the slaves
+ * read can overlap or leave gaps.
+ */
+public class MongoDbInputPartitioner {
+  private static final Class<?> PKG = MongoDbInputMeta.class; // for i18n purposes
+
+  private static final String ID_FIELD = "_id"; //$NON-NLS-1$
+
+  /** BSON type number for dates */
+  private static final int BSON_DATE_TYPE = 9;
+
+  /**
+   * The split points for a partitioned read, shared by all the copies of a step.
+   */
+  public static class Partitioning {
+    private final String m_field;
+    private final List<Object> m_boundaries;
+    private final Object m_upperBound;
+
+    /**
+     * @param field      the field that ranges are defined on
+     * @param boundaries the (strictly increasing) split points. N split points define N + 1 ranges
+     * @param upperBound an inclusive upper bound applied to all but the first range (may be null). This pins the read
+     *                   to the documents that existed when the split points were computed. It isn't applied to the
+     *                   first range, which also reads values of other types
+     */
+    public Partitioning( String field, List<Object> boundaries, Object upperBound ) {
+      m_field = field;
+      m_boundaries = boundaries;
+      m_upperBound = upperBound;
+    }
+
+    public String getField() {
+      return m_field;
+    }
+
+    public List<Object> getBoundaries() {
+      return m_boundaries;
+    }
+
+    public Object getUpperBound() {
+      return m_upperBound;
+    }
+
+    /**
+     * @return the number of ranges defined by the split points
+     */
+    public int getNumRanges() {
+      return m_boundaries.size() + 1;
+    }
+
+    /**
+     * Get the query filter that selects the documents in one range.
+     *
+     * @param partition the index of the range
+     * @return the filter for the range. The filter matches nothing if there is no such range (i.e. there are more
+     * step copies than there were distinct split points)
+     */
+    public DBObject getFilter( int partition ) {
+      if ( partition >= getNumRanges() ) {
+        return new BasicDBObject( m_field, new BasicDBObject( "$in", new BasicDBList() ) ); //$NON-NLS-1$
+      }
+
+      BasicDBObject ops = new BasicDBObject();
+      int numBoundaries = m_boundaries.size();
+      if ( partition == 0 ) {
+        if ( numBoundaries > 0 ) {
+          ops.put( "$not", new BasicDBObject( "$gte", m_boundaries.get( 0 ) ) ); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+      } else {
+        ops.put( "$gte", m_boundaries.get( partition - 1 ) ); //$NON-NLS-1$
+        if ( partition < numBoundaries ) {
+          ops.put( "$lt", m_boundaries.get( partition ) ); //$NON-NLS-1$
+        }
+        if ( m_upperBound != null ) {
+          ops.put( "$lte", m_upperBound ); //$NON-NLS-1$
+        }
+      }
+
+      return ops.isEmpty() ? new BasicDBObject() : new BasicDBObject( m_field, ops );
+    }
+  }
+
+  /**
+   * Compute the split points for a partitioned read.
+   *
+   * @param collection    the collection to read
+   * @param query         the query that the step will run (may be empty)
+   * @param strategy      one of the MongoDbInputMeta.PARTITION_ constants
+   * @param field         the field to split on (ignored for _id ranges)
+   * @param numPartitions the number of partitions required
+   * @return the partitioning
+   * @throws KettleException if the partitioning can't be determined
+   */
+  public static Partitioning computePartitioning( DBCollection collection, DBObject query, String strategy,
+                                                  String field, int numPartitions ) throws KettleException {
+    if ( MongoDbInputMeta.PARTITION_BUCKET_AUTO.equals( strategy ) ) {
+      return new Partitioning( checkField( field ), bucketAutoBoundaries( collection, query, field, numPartitions ),
+          null );
+    }
+
+    if ( MongoDbInputMeta.PARTITION_DATE_RANGE.equals( strategy ) ) {
+      checkField( field );
+      DBObject dateQuery =
+          and( query, new BasicDBObject( field, new BasicDBObject( "$type", BSON_DATE_TYPE ) ) ); //$NON-NLS-1$
+      Object min = extreme( collection, dateQuery, field, 1 );
+      Object max = extreme( collection, dateQuery, field, -1 );
+      List<Object> boundaries = new ArrayList<Object>();
+      if ( min instanceof Date && max instanceof Date ) {
+        long lo = ( (Date) min ).getTime();
+        long hi = ( (Date) max ).getTime();
+        for ( int i = 1; i < numPartitions; i++ ) {
+          addBoundary( boundaries, new Date( split( lo, hi, i, numPartitions ) ) );
+        }
+      }
+      return new Partitioning( field, boundaries, null );
+    }
+
+    // ranges of _id, pinned to the largest _id that exists right now. Only _ids of the same type as the largest are
+    // split (comparisons don't match across types) - the first range reads all the others
+    Object max = extreme( collection, query, ID_FIELD, -1 );
+    String type = typeAlias( max );
+    DBObject typedQuery = type == null ? query
+        : and( query, new BasicDBObject( ID_FIELD, new BasicDBObject( "$type", type ) ) ); //$NON-NLS-1$
+    Object min = max == null ? null : extreme( collection, typedQuery, ID_FIELD, 1 );
+    List<Object> boundaries = new ArrayList<Object>();
+    if ( min instanceof ObjectId && max instanceof ObjectId ) {
+      long lo = ( (ObjectId) min ).getTimestamp() & 0xffffffffL;
+      long hi = ( (ObjectId) max ).getTimestamp() & 0xffffffffL;
+      for ( int i = 1; i < numPartitions; i++ ) {
+        addBoundary( boundaries, objectIdForSeconds( split( lo, hi, i, numPartitions ) ) );
+      }
+    } else if ( isIntegral( min ) && isIntegral( max ) ) {
+      long lo = ( (Number) min ).longValue();
+      long hi = ( (Number) max ).longValue();
+      for ( int i = 1; i < numPartitions; i++ ) {
+        addBoundary( boundaries, split( lo, hi, i, numPartitions ) );
+      }
+    } else if ( min instanceof Number && max instanceof Number ) {
+      double lo = ( (Number) min ).doubleValue();
+      double hi = ( (Number) max ).doubleValue();
+      for ( int i = 1; i < numPartitions; i++ ) {
+        // interpolate rather than take hi - lo, which can overflow
+        double t = (double) i / numPartitions;
+        addBoundary( boundaries, lo * ( 1 - t ) + hi * t );
+      }
+    } else if ( min != null ) {
+      // some other type of key - let the server work out where to split
+      boundaries = bucketAutoBoundaries( collection, typedQuery, ID_FIELD, numPartitions );
+    }
+
+    return new Partitioning( ID_FIELD, boundaries, max );
+  }
+
+  private static DBObject and( DBObject query, DBObject clause ) {
+    if ( query.keySet().isEmpty() ) {
+      return clause;
+    }
+    BasicDBList clauses = new BasicDBList();
+    clauses.add( query );
+    clauses.add( clause );
+    return new BasicDBObject( "$and", clauses ); //$NON-NLS-1$
+  }
+
+  private static String checkField( String field ) throws KettleException {
+    if ( field == null || field.trim().length() == 0 ) {
+      throw new KettleException( BaseMessages.getString( PKG,
+          "MongoDbInput.ErrorMessage.NoPartitionField" ) ); //$NON-NLS-1$
+    }
+    return field;
+  }
+
+  private static List<Object> bucketAutoBoundaries( DBCollection collection, DBObject query, String field,
+                                                    int numPartitions ) {
+    List<DBObject> pipeline = new ArrayList<DBObject>();
+    if ( !query.keySet().isEmpty() ) {
+      pipeline.add( new BasicDBObject( "$match", query ) ); //$NON-NLS-1$
+    }
+    pipeline.add( new BasicDBObject( "$bucketAuto", //$NON-NLS-1$
+        new BasicDBObject( "groupBy", "$" + field ).append( "buckets", numPartitions ) ) ); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+    List<Object> boundaries = new ArrayList<Object>();
+    Cursor cursor = collection.aggregate( pipeline, AggregationOptions.builder().allowDiskUse( true ).build() );
+    try {
+      boolean first = true;
+      while ( cursor.hasNext() ) {
+        DBObject bucket = (DBObject) cursor.next().get( ID_FIELD );
+        if ( !first ) {
+          // each bucket after the first starts a new range
+          addBoundary( boundaries, bucket.get( "min" ) ); //$NON-NLS-1$
+        }
+        first = false;
+      }
+    } finally {
+      cursor.close();
+    }
+
+    return boundaries;
+  }
+
+  private static Object extreme( DBCollection collection, DBObject query, String field, int direction ) {
+    DBCursor cursor =
+        collection.find( query, new BasicDBObject( field, 1 ) ).sort( new BasicDBObject( field, direction ) ).limit( 1 );
+    try {
+      return cursor.hasNext() ? cursor.next().get( field ) : null;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  private static void addBoundary( List<Object> boundaries, Object boundary ) {
+    // split points must be strictly increasing - skip repeats caused by a
+    // narrow key range
+    if ( boundary != null && ( boundaries.isEmpty() || !boundaries.get( boundaries.size() - 1 ).equals( boundary ) ) ) {
+      boundaries.add( boundary );
+    }
+  }
+
+  /**
+   * The i-th of n evenly spaced split points between lo and hi, without overflowing when the range is wider than a
+   * long can hold.
+   */
+  static long split( long lo, long hi, int i, int n ) {
+    return BigInteger.valueOf( hi ).subtract( BigInteger.valueOf( lo ) ).multiply( BigInteger.valueOf( i ) )
+        .divide( BigInteger.valueOf( n ) ).add( BigInteger.valueOf( lo ) ).longValue();
+  }
+
+  /**
+   * @return the $type alias for the type of a value, or null if it isn't one that can be split on
+   */
+  private static String typeAlias( Object value ) {
+    if ( value instanceof ObjectId ) {
+      return "objectId"; //$NON-NLS-1$
+    }
+    if ( value instanceof Number ) {
+      return "number"; //$NON-NLS-1$
+    }
+    if ( value instanceof String ) {
+      return "string"; //$NON-NLS-1$
+    }
+    if ( value instanceof Date ) {
+      return "date"; //$NON-NLS-1$
+    }
+    return null;
+  }
+
+  private static boolean isIntegral( Object value ) {
+    return value instanceof Integer || value instanceof Long;
+  }
+
+  private static ObjectId objectIdForSeconds( long seconds ) {
+    // the smallest ObjectId generated in the given second
+    return new ObjectId( String.format( "%08x", seconds ) + "0000000000000000" ); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+}
@@ -0,0 +1,272 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2026 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.mongodbinput;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.ServerAddress;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.mongo.MongoDbException;
+import org.pentaho.mongo.wrapper.cursor.MongoCursorWrapper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads documents from a query cursor (or aggregation result) on a background thread into a bounded queue, so that the
+ * round trips to the server for the next batch overlap with the step converting and emitting the documents already
+ * received.
+ * <p>
+ * hasNext() and next() must only be called from the step thread. The cursor must not be used by the step thread while
+ * the prefetcher reads from it - the server it reads from is available from getServerAddress() instead.
+ */
+public class MongoDbInputPrefetcher implements Runnable {
+
+  /** marks the end of the results (or a failure) in the queue */
+  private static final DBObject END = new BasicDBObject();
+
+  /** how often (ms) a blocked thread checks whether the prefetcher has been stopped */
+  private static final long POLL_INTERVAL = 100;
+
+  /** how long (ms) stop() waits for the reader thread to finish */
+  static final long STOP_TIMEOUT = 10000;
+
+  private final MongoCursorWrapper m_cursor;
+  private final Iterator<DBObject> m_pipelineResult;
+  private final BlockingQueue<DBObject> m_queue;
+  private final int m_depth;
+
+  private Thread m_thread;
+  private volatile boolean m_stopped;
+  private volatile Exception m_failure;
+
+  /** the server the cursor reads from, once the first document has been read */
+  private volatile ServerAddress m_serverAddress;
+
+  /** next document to hand out (step thread only) */
+  private DBObject m_next;
+  private boolean m_done;
+
+  /** statistics */
+  private long m_consumerWaitNanos;
+  private volatile long m_producerWaitNanos;
+  private long m_occupancySum;
+  private long m_taken;
+  private int m_maxOccupancy;
+
+  /**
+   * @param cursor the cursor to read from
+   * @param depth  the maximum number of documents to read ahead
+   */
+  public MongoDbInputPrefetcher( MongoCursorWrapper cursor, int depth ) {
+    this( cursor, null, depth );
+  }
+
+  /**
+   * @param pipelineResult the aggregation result to read from
+   * @param depth          the maximum number of documents to read ahead
+   */
+  public MongoDbInputPrefetcher( Iterator<DBObject> pipelineResult, int depth ) {
+    this( null, pipelineResult, depth );
+  }
+
+  private MongoDbInputPrefetcher( MongoCursorWrapper cursor, Iterator<DBObject> pipelineResult, int depth ) {
+    m_cursor = cursor;
+    m_pipelineResult = pipelineResult;
+    m_depth = Math.max( 1, depth );
+    m_queue = new ArrayBlockingQueue<DBObject>( m_depth + 1 );
+  }
+
+  /**
+   * Start reading ahead.
+   *
+   * @param threadName the name to give the reader thread
+   */
+  public void start( String threadName ) {
+    m_thread = new Thread( this, threadName );
+    m_thread.setDaemon( true );
+    m_thread.start();
+  }
+
+  @Override
+  public void run() {
+    try {
+      while ( !m_stopped && sourceHasNext() ) {
+        DBObject doc = sourceNext();
+        if ( m_cursor != null && m_serverAddress == null ) {
+          // set before the document is queued, so it is there by the time the step reads the document
+          m_serverAddress = m_cursor.getServerAddress();
+        }
+        put( doc );
+      }
+    } catch ( Exception e ) {
+      m_failure = e;
+    } finally {
+      put( END );
+    }
+  }
+
+  private boolean sourceHasNext() throws Exception {
+    return m_cursor != null ? m_cursor.hasNext() : m_pipelineResult.hasNext();
+  }
+
+  private DBObject sourceNext() throws Exception {
+    return m_cursor != null ? m_cursor.next() : m_pipelineResult.next();
+  }
+
+  private void put( DBObject doc ) {
+    long start = System.nanoTime();
+    try {
+      while ( !m_stopped && !m_queue.offer( doc, POLL_INTERVAL, TimeUnit.MILLISECONDS ) ) {
+        // queue is full - the step is behind
+      }
+    } catch ( InterruptedException e ) {
+      m_stopped = true;
+    }
+    m_producerWaitNanos += System.nanoTime() - start;
+  }
+
+  /**
+   * @return true if there is another document
+   * @throws KettleException if reading from the server failed, or the step thread was interrupted
+   */
+  public boolean hasNext() throws KettleException {
+    if ( m_next == null && !m_done ) {
+      int occupancy = m_queue.size();
+      m_occupancySum += occupancy;
+      m_maxOccupancy = Math.max( m_maxOccupancy, occupancy );
+      m_taken++;
+
+      DBObject doc = m_queue.poll();
+      if ( doc == null ) {
+        long start = System.nanoTime();
+        try {
+          while ( doc == null && !m_stopped ) {
+            doc = m_queue.poll( POLL_INTERVAL, TimeUnit.MILLISECONDS );
+          }
+        } catch ( InterruptedException e ) {
+          throw new KettleException( e );
+        } finally {
+          m_consumerWaitNanos += System.nanoTime() - start;
+        }
+      }
+
+      if ( doc == null || doc == END ) {
+        m_done = true;
+        if ( m_failure != null ) {
+          throw new KettleException( m_failure );
+        }
+      } else {
+        m_next = doc;
+      }
+    }
+
+    return m_next != null;
+  }
+
+  /**
+   * @return the next document
+   * @throws KettleException if reading from the server failed
+   */
+  public DBObject next() throws KettleException {
+    if ( !hasNext() ) {
+      throw new NoSuchElementException();
+    }
+    DBObject doc = m_next;
+    m_next = null;
+
+    return doc;
+  }
+
+  /**
+   * Stop reading ahead and wait (for a while) for the reader thread to finish. If it is still reading, the reader
+   * thread is interrupted and the underlying cursor closed, so that it isn't held up by a round trip to the server.
+   *
+   * @return true if the reader thread finished, false if it was still reading when the wait timed out
+   */
+  public boolean stop() {
+    m_stopped = true;
+    m_queue.clear();
+    if ( m_thread == null || !m_thread.isAlive() ) {
+      return true;
+    }
+
+    m_thread.interrupt();
+    closeSource();
+    try {
+      m_thread.join( STOP_TIMEOUT );
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+    }
+    return !m_thread.isAlive();
+  }
+
+  private void closeSource() {
+    try {
+      if ( m_cursor != null ) {
+        m_cursor.close();
+      } else if ( m_pipelineResult instanceof Closeable ) {
+        ( (Closeable) m_pipelineResult ).close();
+      }
+    } catch ( MongoDbException | IOException | RuntimeException e ) {
+      // the reader thread fails, or has already finished - either way it is stopping
+    }
+  }
+
+  /**
+   * @return the server the cursor reads from, or null until the first document has been read (or when reading an
+   * aggregation result)
+   */
+  public ServerAddress getServerAddress() {
+    return m_serverAddress;
+  }
+
+  /**
+   * @return the maximum number of documents read ahead
+   */
+  public int getDepth() {
+    return m_depth;
+  }
+
+  /**
+   * @return the total time (ms) that the step thread has spent waiting for documents
+   */
+  public long getConsumerWaitMillis() {
+    return TimeUnit.NANOSECONDS.toMillis( m_consumerWaitNanos );
+  }
+
+  /**
+   * @return the total time (ms) that the reader thread has spent waiting for room in the queue
+   */
+  public long getProducerWaitMillis() {
+    return TimeUnit.NANOSECONDS.toMillis( m_producerWaitNanos );
+  }
+
+  /**
+   * @return the highest number of documents that were waiting in the queue when the step asked for one
+   */
+  public int getMaxOccupancy() {
+    return m_maxOccupancy;
+  }
+
+  /**
+   * @return the average number of documents waiting in the queue when the step asked for one
+   */
+  public double getAverageOccupancy() {
+    return m_taken == 0 ? 0 : (double) m_occupancySum / m_taken;
+  }
+}
@@ -0,0 +1,345 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2026 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.mongodbinput;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import org.bson.BSONObject;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+import org.pentaho.mongo.wrapper.field.MongoFieldPath;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Combines the queries that "execute for each incoming row" would run into one query, and works out which incoming
+ * rows each document in the combined result belongs to.
+ * <p>
+ * Only query templates whose field placeholders each supply the whole value of a top level equality condition (e.g.
+ * <code>{"customer": "?{id}", "status": "open"}</code>) can be combined. A template with one such condition becomes a
+ * single <code>$in</code>; a template with several becomes an <code>$or</code> of the individual queries. The values
+ * are taken from the per row queries themselves, so they have exactly the types that running the rows separately
+ * would use.
+ */
+public class MongoDbInputQueryBatcher {
+
+  /** a field placeholder in a query, e.g. ?{fieldname} */
+  private static final Pattern PLACEHOLDER = Pattern.compile( "\\?\\{[^}]*\\}" ); //$NON-NLS-1$
+
+  /** stands in for the placeholders when analysing the template */
+  private static final String PARAMETER = "__pdi_query_parameter__"; //$NON-NLS-1$
+
+  private static final String EQ = "$eq"; //$NON-NLS-1$
+
+  /** paths that are compared with incoming row values, in the order they appear in the template */
+  private final List<String> m_keyPaths = new ArrayList<String>();
+
+  /** whether each key path is compared using the explicit {$eq: value} form */
+  private final List<Boolean> m_explicitEq = new ArrayList<Boolean>();
+
+  /** the rows of the current batch, by (normalized) key values */
+  private final Map<List<Object>, List<Integer>> m_rowsByKey = new HashMap<List<Object>, List<Integer>>();
+
+  /**
+   * @param queryTemplate the query, with variables substituted but field placeholders still in place
+   */
+  public MongoDbInputQueryBatcher( String queryTemplate ) {
+    analyse( queryTemplate );
+  }
+
+  private void analyse( String queryTemplate ) {
+    if ( queryTemplate == null ) {
+      return;
+    }
+
+    // replace each placeholder with a marker string, keeping the result parseable whether
+    // or not the placeholder was quoted
+    Matcher m = PLACEHOLDER.matcher( queryTemplate );
+    StringBuffer marked = new StringBuffer();
+    while ( m.find() ) {
+      boolean quoted = m.start() > 0 && m.end() < queryTemplate.length()
+          && ( queryTemplate.charAt( m.start() - 1 ) == '"' || queryTemplate.charAt( m.start() - 1 ) == '\'' )
+          && queryTemplate.charAt( m.end() ) == queryTemplate.charAt( m.start() - 1 );
+      m.appendReplacement( marked, quoted ? PARAMETER : "\"" + PARAMETER + "\"" ); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+    m.appendTail( marked );
+
+    Object parsed;
+    try {
+      parsed = JSON.parse( marked.toString() );
+    } catch ( Exception e ) {
+      // e.g. a placeholder in the middle of a string
+      return;
+    }
+    if ( !( parsed instanceof DBObject ) || parsed instanceof List ) {
+      return;
+    }
+
+    DBObject template = (DBObject) parsed;
+    List<String> keyPaths = new ArrayList<String>();
+    List<Boolean> explicitEq = new ArrayList<Boolean>();
+    for ( String key : template.keySet() ) {
+      Object value = template.get( key );
+      if ( key.contains( PARAMETER ) ) {
+        return;
+      }
+      if ( !key.startsWith( "$" ) && PARAMETER.equals( value ) ) { //$NON-NLS-1$
+        keyPaths.add( key );
+        explicitEq.add( false );
+      } else if ( !key.startsWith( "$" ) && MongoFieldPath.isRecord( value ) //$NON-NLS-1$
+          && ( (BSONObject) value ).keySet().size() == 1 && PARAMETER.equals( ( (BSONObject) value ).get( EQ ) ) ) {
+        keyPaths.add( key );
+        explicitEq.add( true );
+      } else if ( containsParameter( value ) ) {
+        // a parameter used in some other way (range, nested operator, part of a string, ...)
+        return;
+      }
+    }
+
+    m_keyPaths.addAll( keyPaths );
+    m_explicitEq.addAll( explicitEq );
+  }
+
+  private static boolean containsParameter( Object value ) {
+    if ( value instanceof String ) {
+      return ( (String) value ).contains( PARAMETER );
+    }
+    if ( value instanceof BSONObject ) {
+      BSONObject o = (BSONObject) value;
+      for ( String key : o.keySet() ) {
+        if ( key.contains( PARAMETER ) || containsParameter( o.get( key ) ) ) {
+          return true;
+        }
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * @return true if queries built from the template can be combined
+   */
+  public boolean isBatchable() {
+    return !m_keyPaths.isEmpty();
+  }
+
+  /**
+   * @return the paths that are compared with incoming row values
+   */
+  public List<String> getKeyPaths() {
+    return Collections.unmodifiableList( m_keyPaths );
+  }
+
+  /**
+   * Combine the queries for a batch of incoming rows into one query.
+   *
+   * @param rowQueries the query for each row, with the row's field values substituted
+   * @return the combined query, or null if they can't be combined (e.g. a field value that is itself a document,
+   * or null)
+   */
+  public DBObject combine( List<DBObject> rowQueries ) {
+    m_rowsByKey.clear();
+    if ( !isBatchable() || rowQueries.isEmpty() ) {
+      return null;
+    }
+
+    // one query per distinct set of values
+    Map<List<Object>, DBObject> distinct = new LinkedHashMap<List<Object>, DBObject>();
+    for ( int i = 0; i < rowQueries.size(); i++ ) {
+      DBObject rowQuery = rowQueries.get( i );
+      List<Object> key = new ArrayList<Object>( m_keyPaths.size() );
+      for ( int j = 0; j < m_keyPaths.size(); j++ ) {
+        Object value = rowQuery.get( m_keyPaths.get( j ) );
+        if ( m_explicitEq.get( j ) ) {
+          value = value instanceof BSONObject ? ( (BSONObject) value ).get( EQ ) : null;
+        }
+        if ( !isPlainValue( value ) ) {
+          m_rowsByKey.clear();
+          return null;
+        }
+        key.add( normalize( value ) );
+      }
+
+      List<Integer> rows = m_rowsByKey.get( key );
+      if ( rows == null ) {
+        rows = new ArrayList<Integer>();
+        m_rowsByKey.put( key, rows );
+        distinct.put( key, rowQuery );
+      }
+      rows.add( i );
+    }
+
+    if ( m_keyPaths.size() == 1 ) {
+      String path = m_keyPaths.get( 0 );
+      BasicDBList values = new BasicDBList();
+      for ( DBObject rowQuery : distinct.values() ) {
+        Object value = rowQuery.get( path );
+        values.add( m_explicitEq.get( 0 ) ? ( (BSONObject) value ).get( EQ ) : value );
+      }
+
+      // the rest of the query is the same for every row
+      BasicDBObject combined = new BasicDBObject();
+      combined.putAll( rowQueries.get( 0 ) );
+      combined.put( path, new BasicDBObject( "$in", values ) ); //$NON-NLS-1$
+
+      return combined;
+    }
+
+    return new BasicDBObject( "$or", new ArrayList<DBObject>( distinct.values() ) ); //$NON-NLS-1$
+  }
+
+  /**
+   * Work out which rows of the last combined batch a document belongs to, by comparing the values at the key paths
+   * the way the server compares them for equality (arrays match if any element matches).
+   *
+   * @param document a document from the result of the combined query
+   * @return the indexes of the rows (in ascending order)
+   */
+  public List<Integer> getMatchingRows( BSONObject document ) {
+    List<Set<Object>> candidates = new ArrayList<Set<Object>>( m_keyPaths.size() );
+    for ( String path : m_keyPaths ) {
+      Set<Object> values = new LinkedHashSet<Object>();
+      collectValues( document, path.split( "\\." ), 0, values ); //$NON-NLS-1$
+      if ( values.isEmpty() ) {
+        return Collections.emptyList();
+      }
+      candidates.add( values );
+    }
+
+    Set<Integer> rows = new TreeSet<Integer>();
+    collectRows( candidates, new ArrayList<Object>( candidates.size() ), rows );
+
+    return new ArrayList<Integer>( rows );
+  }
+
+  private void collectRows( List<Set<Object>> candidates, List<Object> key, Set<Integer> rows ) {
+    if ( key.size() == candidates.size() ) {
+      List<Integer> matched = m_rowsByKey.get( key );
+      if ( matched != null ) {
+        rows.addAll( matched );
+      }
+      return;
+    }
+
+    for ( Object value : candidates.get( key.size() ) ) {
+      key.add( value );
+      collectRows( candidates, key, rows );
+      key.remove( key.size() - 1 );
+    }
+  }
+
+  private static void collectValues( Object node, String[] parts, int i, Set<Object> values ) {
+    if ( i == parts.length ) {
+      if ( MongoFieldPath.isArray( node ) ) {
+        for ( Object element : (List<?>) node ) {
+          if ( isPlainValue( element ) ) {
+            values.add( normalize( element ) );
+          }
+        }
+      } else if ( isPlainValue( node ) ) {
+        values.add( normalize( node ) );
+      }
+      return;
+    }
+
+    if ( MongoFieldPath.isArray( node ) ) {
+      List<?> list = (List<?>) node;
+      if ( isIndex( parts[i] ) ) {
+        int index = Integer.parseInt( parts[i] );
+        if ( index < list.size() ) {
+          collectValues( list.get( index ), parts, i + 1, values );
+        }
+      }
+      // the path also applies to each record in the array
+      for ( Object element : list ) {
+        if ( MongoFieldPath.isRecord( element ) ) {
+          collectValues( element, parts, i, values );
+        }
+      }
+    } else if ( MongoFieldPath.isRecord( node ) ) {
+      BSONObject record = (BSONObject) node;
+      if ( record.containsField( parts[i] ) ) {
+        collectValues( record.get( parts[i] ), parts, i + 1, values );
+      }
+    }
+  }
+
+  private static boolean isIndex( String part ) {
+    if ( part.length() == 0 || part.length() > 9 ) {
+      return false;
+    }
+    for ( int i = 0; i < part.length(); i++ ) {
+      if ( !Character.isDigit( part.charAt( i ) ) ) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private static boolean isPlainValue( Object value ) {
+    return value instanceof String || value instanceof Number || value instanceof Boolean || value instanceof Date
+        || value instanceof ObjectId;
+  }
+
+  /**
+   * Numbers compare by value on the server regardless of their BSON type, so bring them to a common form
+   */
+  static Object normalize( Object value ) {
+    if ( value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte ) {
+      return ( (Number) value ).longValue();
+    }
+    if ( value instanceof Decimal128 ) {
+      Decimal128 decimal = (Decimal128) value;
+      if ( decimal.isNaN() || decimal.isInfinite() ) {
+        return decimal.doubleValue();
+      }
+      try {
+        value = decimal.bigDecimalValue();
+      } catch ( ArithmeticException e ) {
+        // negative zero
+        return 0L;
+      }
+    }
+    if ( value instanceof BigDecimal ) {
+      BigDecimal decimal = (BigDecimal) value;
+      try {
+        return decimal.longValueExact();
+      } catch ( ArithmeticException e ) {
+        return decimal.doubleValue();
+      }
+    }
+    if ( value instanceof Number ) {
+      double d = ( (Number) value ).doubleValue();
+      if ( d == Math.rint( d ) && Math.abs( d ) < 0x1p63 ) {
+        return (long) d;
+      }
+      return d;
+    }
+
+    return value;
+  }
+}
@@ -0,0 +1,215 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2026 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.mongodbinput;
+
+import com.mongodb.DBObject;
+import org.bson.BSONObject;
+import org.bson.LazyBSONObject;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A least recently used cache of query results, for steps that execute a query for each incoming row. Results are
+ * keyed by the query after field substitution. The cache is bounded by the number of results and by an estimate of
+ * the memory that the cached documents take up; results can also be given a time to live.
+ * <p>
+ * Not thread safe - it is only used by the step thread.
+ */
+public class MongoDbInputResultCache {
+
+  /** Share of the maximum heap used for cached results when no memory limit is set */
+  public static final double DEFAULT_HEAP_SHARE = 0.1;
+
+  /** Rough per object overhead (bytes) used when estimating sizes */
+  private static final long OBJECT_OVERHEAD = 16;
+
+  private static class Entry {
+    final List<DBObject> m_documents;
+    final long m_bytes;
+    final long m_created;
+
+    Entry( List<DBObject> documents, long bytes, long created ) {
+      m_documents = documents;
+      m_bytes = bytes;
+      m_created = created;
+    }
+  }
+
+  private final int m_maxEntries;
+  private final long m_ttlMillis;
+  private final long m_maxBytes;
+
+  /** in access order, so the first entry is the least recently used */
+  private final LinkedHashMap<String, Entry> m_entries = new LinkedHashMap<String, Entry>( 16, 0.75f, true );
+  private long m_bytes;
+
+  /** statistics */
+  private long m_hits;
+  private long m_misses;
+  private long m_evictions;
+  private long m_expirations;
+
+  /**
+   * @param maxEntries the maximum number of results to hold
+   * @param ttlMillis  how long (ms) a result stays valid (0 for no expiry)
+   * @param maxBytes   the maximum (estimated) memory for the cached documents (0 for a share of the heap)
+   */
+  public MongoDbInputResultCache( int maxEntries, long ttlMillis, long maxBytes ) {
+    m_maxEntries = Math.max( 1, maxEntries );
+    m_ttlMillis = Math.max( 0, ttlMillis );
+    m_maxBytes = maxBytes > 0 ? maxBytes : (long) ( Runtime.getRuntime().maxMemory() * DEFAULT_HEAP_SHARE );
+  }
+
+  /**
+   * Look up the result of a query.
+   *
+   * @param key the query
+   * @return the documents, or null if the result isn't cached (or has expired)
+   */
+  public List<DBObject> get( String key ) {
+    Entry entry = m_entries.get( key );
+    if ( entry != null && m_ttlMillis > 0 && now() - entry.m_created >= m_ttlMillis ) {
+      remove( key );
+      m_expirations++;
+      entry = null;
+    }
+
+    if ( entry == null ) {
+      m_misses++;
+      return null;
+    }
+    m_hits++;
+
+    return entry.m_documents;
+  }
+
+  /**
+   * Cache the result of a query, dropping the least recently used results to make room. A result bigger than the
+   * whole cache is not cached.
+   *
+   * @param key       the query
+   * @param documents the documents the query returned (must not be modified afterwards)
+   * @param bytes     the estimated size of the documents
+   */
+  public void put( String key, List<DBObject> documents, long bytes ) {
+    remove( key );
+    if ( bytes > m_maxBytes ) {
+      return;
+    }
+
+    Iterator<Map.Entry<String, Entry>> lru = m_entries.entrySet().iterator();
+    while ( lru.hasNext() && ( m_entries.size() >= m_maxEntries || m_bytes + bytes > m_maxBytes ) ) {
+      m_bytes -= lru.next().getValue().m_bytes;
+      lru.remove();
+      m_evictions++;
+    }
+
+    m_entries.put( key, new Entry( Collections.unmodifiableList( documents ), bytes, now() ) );
+    m_bytes += bytes;
+  }
+
+  private void remove( String key ) {
+    Entry entry = m_entries.remove( key );
+    if ( entry != null ) {
+      m_bytes -= entry.m_bytes;
+    }
+  }
+
+  /**
+   * @return the current time (ms)
+   */
+  protected long now() {
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * @return the maximum (estimated) memory for cached documents
+   */
+  public long getMaxBytes() {
+    return m_maxBytes;
+  }
+
+  /**
+   * @return the (estimated) memory taken by the cached documents
+   */
+  public long getBytes() {
+    return m_bytes;
+  }
+
+  /**
+   * @return the number of cached results
+   */
+  public int size() {
+    return m_entries.size();
+  }
+
+  public long getHits() {
+    return m_hits;
+  }
+
+  public long getMisses() {
+    return m_misses;
+  }
+
+  public long getEvictions() {
+    return m_evictions;
+  }
+
+  public long getExpirations() {
+    return m_expirations;
+  }
+
+  /**
+   * Estimate the memory taken by a document (or value within a document).
+   *
+   * @param value the document or value
+   * @return the estimated size in bytes
+   */
+  public static long estimateSize( Object value ) {
+    if ( value == null ) {
+      return 0;
+    }
+    if ( value instanceof LazyBSONObject ) {
+      // still raw BSON
+      return OBJECT_OVERHEAD + ( (LazyBSONObject) value ).getBSONSize();
+    }
+    if ( value instanceof String ) {
+      return OBJECT_OVERHEAD + 24 + 2L * ( (String) value ).length();
+    }
+    if ( value instanceof byte[] ) {
+      return OBJECT_OVERHEAD + ( (byte[]) value ).length;
+    }
+    if ( value instanceof BSONObject ) {
+      // a map (or list) of entries
+      BSONObject o = (BSONObject) value;
+      long size = OBJECT_OVERHEAD * 4;
+      for ( String key : o.keySet() ) {
+        size += OBJECT_OVERHEAD * 2 + ( value instanceof List ? 0 : estimateSize( key ) ) + estimateSize( o.get( key ) );
+      }
+      return size;
+    }
+    if ( value instanceof List ) {
+      long size = OBJECT_OVERHEAD * 2;
+      for ( Object element : (List<?>) value ) {
+        size += 8 + estimateSize( element );
+      }
+      return size;
+    }
+
+    // numbers, dates, ids etc.
+    return OBJECT_OVERHEAD * 2;
+  }
+}
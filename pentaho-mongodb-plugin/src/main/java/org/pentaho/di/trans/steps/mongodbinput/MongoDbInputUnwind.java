@@ -0,0 +1,170 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2026 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.mongodbinput;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.mongo.wrapper.field.MongoField;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Rewrites the [*] array expansions in a set of field paths into $unwind aggregation stages, so that the server does
+ * the unwinding. After the arrays have been unwound, each of their elements sits where the array was, so the fields
+ * are rewritten to paths without the [*] (e.g. <code>$.orders[*].lines[*].sku</code> becomes
+ * <code>$.orders.lines.sku</code>, with orders and then orders.lines being unwound).
+ * <p>
+ * The stages give the same rows as expanding on the client: an empty array gives no rows, and a document where the
+ * array is missing, null or not an array gives one row, with nulls for the fields inside the array.
+ */
+public class MongoDbInputUnwind {
+
+  private static final String EXPANSION = "[*]"; //$NON-NLS-1$
+
+  /** the (dot separated) paths to unwind, parents before children */
+  private final List<String> m_unwindPaths;
+
+  /** the fields, with expansions taken out of their paths */
+  private final List<MongoField> m_fields;
+
+  private MongoDbInputUnwind( List<String> unwindPaths, List<MongoField> fields ) {
+    m_unwindPaths = unwindPaths;
+    m_fields = fields;
+  }
+
+  /**
+   * Work out how to unwind the expansions in a set of fields on the server.
+   *
+   * @param fields the fields
+   * @param space  variables to use
+   * @return the plan, or null if there are no expansions or they can't be unwound on the server (an expansion of the
+   * root document or one below an array index, or another field that reads the whole document or goes through an
+   * unwound array without expanding it - e.g. <code>$.orders[0].id</code> - since unwinding changes what it reads)
+   */
+  public static MongoDbInputUnwind plan( List<MongoField> fields, VariableSpace space ) {
+    if ( fields == null ) {
+      return null;
+    }
+
+    List<String> unwindPaths = new ArrayList<String>();
+    List<String> otherPaths = new ArrayList<String>();
+    List<MongoField> rewritten = new ArrayList<MongoField>();
+    for ( MongoField f : fields ) {
+      MongoField copy = f.copy();
+      rewritten.add( copy );
+
+      String path = space.environmentSubstitute( f.m_fieldPath );
+      if ( path == null ) {
+        continue;
+      }
+      if ( path.startsWith( "$" ) ) { //$NON-NLS-1$
+        path = path.substring( 1 );
+      }
+      if ( path.startsWith( "." ) ) { //$NON-NLS-1$
+        path = path.substring( 1 );
+      }
+      if ( !path.contains( EXPANSION ) ) {
+        otherPaths.add( path );
+        continue;
+      }
+
+      StringBuilder unwound = new StringBuilder();
+      int from = 0;
+      for ( int star = path.indexOf( EXPANSION ); star >= 0; star = path.indexOf( EXPANSION, from ) ) {
+        unwound.append( path, from, star );
+        String unwindPath = unwound.toString();
+        if ( unwindPath.length() == 0 || unwindPath.indexOf( '[' ) >= 0 || unwindPath.startsWith( "." ) //$NON-NLS-1$
+            || unwindPath.endsWith( "." ) || unwindPath.contains( ".." ) ) { //$NON-NLS-1$ //$NON-NLS-2$
+          return null;
+        }
+        if ( !unwindPaths.contains( unwindPath ) ) {
+          unwindPaths.add( unwindPath );
+        }
+        from = star + EXPANSION.length();
+      }
+      unwound.append( path.substring( from ) );
+      copy.m_fieldPath = "$." + unwound; //$NON-NLS-1$
+    }
+
+    if ( unwindPaths.isEmpty() ) {
+      return null;
+    }
+    for ( String path : otherPaths ) {
+      for ( String unwindPath : unwindPaths ) {
+        if ( path.length() == 0 || path.equals( unwindPath ) || path.startsWith( unwindPath + "." ) //$NON-NLS-1$
+            || path.startsWith( unwindPath + "[" ) ) { //$NON-NLS-1$
+          return null;
+        }
+      }
+    }
+
+    // an array inside another array can only be unwound once its parent has been
+    Collections.sort( unwindPaths, new Comparator<String>() {
+      @Override
+      public int compare( String p1, String p2 ) {
+        return p1.length() - p2.length();
+      }
+    } );
+
+    return new MongoDbInputUnwind( unwindPaths, rewritten );
+  }
+
+  /**
+   * @return the paths that are unwound, in the order they are unwound
+   */
+  public List<String> getUnwindPaths() {
+    return Collections.unmodifiableList( m_unwindPaths );
+  }
+
+  /**
+   * @return the fields to extract from the unwound documents
+   */
+  public List<MongoField> getFields() {
+    return m_fields;
+  }
+
+  /**
+   * Add the $unwind stages to a pipeline. Anything other than an array (including a missing field) is first replaced
+   * with an array holding a single null, so that the document still gives one row - as it does when expanding on the
+   * client - while an empty array gives none. Needs MongoDB 3.4 or later ($addFields).
+   *
+   * @param pipeline the pipeline
+   */
+  public void appendStages( List<DBObject> pipeline ) {
+    for ( String path : m_unwindPaths ) {
+      String field = "$" + path; //$NON-NLS-1$
+      BasicDBList nullElement = new BasicDBList();
+      nullElement.add( null );
+      pipeline.add( new BasicDBObject( "$addFields", new BasicDBObject( path, //$NON-NLS-1$
+          new BasicDBObject( "$cond", Arrays.asList( new BasicDBObject( "$isArray", field ), //$NON-NLS-1$ //$NON-NLS-2$
+              field, nullElement ) ) ) ) );
+      pipeline.add( new BasicDBObject( "$unwind", field ) ); //$NON-NLS-1$
+    }
+  }
+
+  /**
+   * Build the projection to apply to the unwound documents. This matters more than for an ordinary query, since each
+   * unwound document repeats everything in the original document outside the array.
+   *
+   * @param space variables to use
+   * @return the projection, or null if at least one field needs the whole document
+   */
+  public DBObject getProjection( VariableSpace space ) {
+    return MongoDbInputData.buildProjection( m_fields, space );
+  }
+}
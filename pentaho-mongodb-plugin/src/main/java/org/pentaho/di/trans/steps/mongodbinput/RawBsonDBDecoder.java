@@ -0,0 +1,42 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2026 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.mongodbinput;
+
+import com.mongodb.DBCallback;
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.LazyDBCallback;
+import com.mongodb.LazyDBDecoder;
+
+/**
+ * A lazy decoder whose documents are {@link RawBsonDBObject}s, i.e. keep their raw BSON available.
+ */
+public class RawBsonDBDecoder extends LazyDBDecoder {
+
+  public static final DBDecoderFactory FACTORY = new DBDecoderFactory() {
+    @Override
+    public DBDecoder create() {
+      return new RawBsonDBDecoder();
+    }
+  };
+
+  @Override
+  public DBCallback getDBCallback( DBCollection collection ) {
+    return new LazyDBCallback( collection ) {
+      @Override
+      public Object createObject( byte[] bytes, int offset ) {
+        return new RawBsonDBObject( bytes, offset, this );
+      }
+    };
+  }
+}
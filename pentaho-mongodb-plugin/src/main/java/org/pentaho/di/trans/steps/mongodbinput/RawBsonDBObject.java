@@ -0,0 +1,41 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2026 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.mongodbinput;
+
+import com.mongodb.LazyDBObject;
+import org.bson.BsonBinaryReader;
+import org.bson.LazyBSONCallback;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A lazily decoded document that also gives access to its raw BSON, so that it can be re-encoded (e.g. as JSON)
+ * without first being decoded into Java objects.
+ */
+public class RawBsonDBObject extends LazyDBObject {
+
+  public RawBsonDBObject( byte[] bytes, int offset, LazyBSONCallback callback ) {
+    super( bytes, offset, callback );
+  }
+
+  /**
+   * @return a reader positioned at the start of this document's BSON
+   */
+  public BsonBinaryReader getBsonReader() {
+    ByteBuffer buffer = ByteBuffer.wrap( getBytes(), getOffset(), getBytes().length - getOffset() ).slice();
+    buffer.order( ByteOrder.LITTLE_ENDIAN );
+    buffer.limit( buffer.getInt( 0 ) );
+
+    return new BsonBinaryReader( buffer );
+  }
+}
@@ -13,10 +13,10 @@
 
 package org.pentaho.di.trans.steps.mongodboutput;
 
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
 import com.mongodb.DBObject;
 import com.mongodb.MongoException;
-import com.mongodb.MongoExecutionTimeoutException;
-import com.mongodb.WriteResult;
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.row.RowMetaInterface;
@@ -32,9 +32,13 @@ import org.pentaho.mongo.MongoDbException;
 import org.pentaho.mongo.wrapper.MongoWrapperUtil;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
 
 /**
  * Class providing an output step for writing data to a MongoDB collection. Supports insert, truncate, upsert,
@@ -45,6 +49,9 @@ import java.util.Set;
  */
 public class MongoDbOutput extends BaseStep implements StepInterface {
   private static final Class<?> PKG = MongoDbOutputMeta.class;
+
+  /** The server error code for a duplicate key */
+  private static final int DUPLICATE_KEY = 11000;
   protected MongoDbOutputMeta m_meta;
   protected MongoDbOutputData m_data;
 
@@ -55,6 +62,21 @@ public class MongoDbOutput extends BaseStep implements StepInterface {
    */
   protected int m_batchInsertSize = 100;
 
+  /**
+   * The maximum (estimated BSON) size of a batch, in bytes
+   */
+  protected int m_batchMaxBytes = MongoDbOutputMeta.BATCH_MAX_BYTES;
+
+  /**
+   * The estimated BSON size of the documents in the current batch, in bytes
+   */
+  protected int m_batchBytes;
+
+  /**
+   * Tunes the batch size while writing, or null to use the batch insert size
+   */
+  protected MongoDbOutputBatchSizer m_sizer;
+
   /**
    * Holds a batch of rows converted to documents
    */
@@ -65,6 +87,16 @@ public class MongoDbOutput extends BaseStep implements StepInterface {
    */
   protected List<Object[]> m_batchRows;
 
+  /**
+   * Holds the queries for a batch of updates (corresponding to the update documents in m_batch)
+   */
+  protected List<DBObject> m_batchQueries;
+
+  /**
+   * Writes batches in the background, or null to write each batch on the step thread
+   */
+  protected MongoDbOutputBatchWriter m_writer;
+
   protected int m_writeRetries = MongoDbOutputMeta.RETRIES;
   protected int m_writeRetryDelay = MongoDbOutputMeta.RETRY_DELAY;
 
@@ -88,6 +120,8 @@ public class MongoDbOutput extends BaseStep implements StepInterface {
           throw new KettleException( e );
         }
       }
+      finishBatches();
+      logBatchSizes();
 
       // INDEXING - http://www.mongodb.org/display/DOCS/Indexes
       // Indexing is computationally expensive - it needs to be
@@ -122,8 +156,28 @@ public class MongoDbOutput extends BaseStep implements StepInterface {
       if ( !Const.isEmpty( batchInsert ) ) {
         m_batchInsertSize = Integer.parseInt( batchInsert );
       }
+      if ( m_meta.getAutoTuneBatchSize() ) {
+        m_sizer = new MongoDbOutputBatchSizer( m_batchInsertSize,
+            Const.toInt( environmentSubstitute( m_meta.getMinBatchSize() ), MongoDbOutputMeta.MIN_BATCH_SIZE ),
+            Const.toInt( environmentSubstitute( m_meta.getMaxBatchSize() ), MongoDbOutputMeta.MAX_BATCH_SIZE ) );
+      }
       m_batch = new ArrayList<DBObject>( m_batchInsertSize );
       m_batchRows = new ArrayList<Object[]>();
+      m_batchQueries = new ArrayList<DBObject>( m_batchInsertSize );
+      m_batchMaxBytes =
+          Const.toInt( environmentSubstitute( m_meta.getBatchMaxBytes() ), MongoDbOutputMeta.BATCH_MAX_BYTES );
+      if ( m_batchMaxBytes <= 0 ) {
+        m_batchMaxBytes = MongoDbOutputMeta.BATCH_MAX_BYTES;
+      }
+
+      int inFlight = Const.toInt( environmentSubstitute( m_meta.getInFlightBatches() ), 0 );
+      if ( inFlight > 0 ) {
+        // updates are written one batch at a time, in order - batches written in parallel could upsert the same key
+        // (and both insert it), or apply updates to the same document in the wrong order
+        boolean inOrder = m_meta.getUpdate();
+        m_writer = new MongoDbOutputBatchWriter( inFlight, inOrder ? 1 : inFlight,
+            getStepname() + " - writer " + getCopy() ); //$NON-NLS-1$
+      }
 
       // output the same as the input
       m_data.setOutputRowMeta( getInputRowMeta() );
@@ -202,8 +256,8 @@ public class MongoDbOutput extends BaseStep implements StepInterface {
             }
           }
 
-          if ( insertUpdate != null ) {
-            commitUpdate( updateQuery, insertUpdate, row );
+          if ( insertUpdate != null && !queue( updateQuery, insertUpdate, row ) ) {
+            return true;
           }
         }
       } else {
@@ -214,17 +268,18 @@ public class MongoDbOutput extends BaseStep implements StepInterface {
             MongoDbOutputData.kettleRowToMongo( m_data.getMongoFields(), getInputRowMeta(), row,
                 m_mongoTopLevelStructure, m_data.m_hasTopLevelJSONDocInsert );
 
-        if ( mongoInsert != null ) {
-          m_batch.add( mongoInsert );
-          m_batchRows.add( row );
+        if ( mongoInsert != null && !queue( null, mongoInsert, row ) ) {
+          return true;
         }
-        if ( m_batch.size() == m_batchInsertSize ) {
-          logDetailed( BaseMessages.getString( PKG, "MongoDbOutput.Messages.CommitingABatch" ) ); //$NON-NLS-1$
-          try {
-            doBatch();
-          } catch ( MongoDbException e ) {
-            throw new KettleException( e );
-          }
+      }
+
+      int batchSize = m_sizer != null ? m_sizer.getBatchSize() : m_batchInsertSize;
+      if ( m_batch.size() >= batchSize ) {
+        logDetailed( BaseMessages.getString( PKG, "MongoDbOutput.Messages.CommitingABatch" ) ); //$NON-NLS-1$
+        try {
+          doBatch( batchSize );
+        } catch ( MongoDbException e ) {
+          throw new KettleException( e );
         }
       }
       putRow( m_data.getOutputRowMeta(), row );
@@ -234,158 +289,332 @@ public class MongoDbOutput extends BaseStep implements StepInterface {
     return true;
   }
 
-  protected void commitUpdate( DBObject updateQuery, DBObject insertUpdate, Object[] row ) throws KettleException {
-
-    int retrys = 0;
-    MongoException lastEx = null;
-
-    while ( retrys <= m_writeRetries && !isStopped() ) {
-      WriteResult result = null;
-      try {
-        // TODO It seems that doing an update() via a secondary node does not
-        // generate any sort of exception or error result! (at least via
-        // driver version 2.11.1). Transformation completes successfully
-        // but no updates are made to the collection.
-        // This is unlike doing an insert(), which generates
-        // a MongoException if you are not talking to the primary. So we need
-        // some logic to check whether or not the connection configuration
-        // contains the primary in the replica set and give feedback if it
-        // doesnt
-        try {
-          result = m_data.getCollection().update( updateQuery, insertUpdate, m_meta.getUpsert(), m_meta.getMulti() );
-        } catch ( MongoDbException e ) {
-          throw new MongoException( e.getMessage(), e );
-        }
-      } catch ( MongoException me ) {
-        lastEx = me;
-        retrys++;
-        if ( retrys <= m_writeRetries ) {
-          logError( BaseMessages.getString( PKG, "MongoDbOutput.Messages.Error.ErrorWritingToMongo", //$NON-NLS-1$
-              me.toString() ) );
-          logBasic(
-              BaseMessages.getString( PKG, "MongoDbOutput.Messages.Message.Retry", m_writeRetryDelay ) ); //$NON-NLS-1$
-          try {
-            Thread.sleep( m_writeRetryDelay * 1000 );
-            // CHECKSTYLE:OFF
-          } catch ( InterruptedException e ) {
-            // CHECKSTYLE:ON
-          }
-        }
+  /**
+   * Add a document to the current batch. The batch is written first if the document would take it over the maximum
+   * batch size in bytes. A document that is too large for the server is never sent - its row goes to the error stream
+   * instead.
+   *
+   * @param query    the query for an update, or null for an insert
+   * @param document the document to insert or update with
+   * @param row      the row the document came from
+   * @return false if the document was too large (and its row was sent to the error stream)
+   * @throws KettleException if the document is too large and the step isn't doing error handling, or writing the
+   *                         batch failed
+   */
+  protected boolean queue( DBObject query, DBObject document, Object[] row ) throws KettleException {
+    int bytes = MongoDbOutputData.estimateBsonSize( document );
+    if ( query == null && !document.containsField( "_id" ) ) { //$NON-NLS-1$
+      // the driver adds an ObjectId before sending the document
+      bytes += MongoDbOutputData.GENERATED_ID_BYTES;
+    }
+    if ( bytes > MongoDbOutputData.MAX_DOCUMENT_BYTES ) {
+      String error = BaseMessages.getString( PKG, "MongoDbOutput.Messages.Error.DocumentTooLarge", bytes, //$NON-NLS-1$
+          MongoDbOutputData.MAX_DOCUMENT_BYTES );
+      if ( !getStepMeta().isDoingErrorHandling() ) {
+        throw new KettleException( error );
       }
+      putError( getInputRowMeta(), row, 1, error, "", "MongoDbOutput" ); //$NON-NLS-1$ //$NON-NLS-2$
+      return false;
+    }
 
-      if ( result != null ) {
-        break;
+    // the query is sent with the update, so counts towards the size of the batch (but not of the document)
+    int batchBytes = query != null ? bytes + MongoDbOutputData.estimateBsonSize( query ) : bytes;
+    if ( !m_batch.isEmpty() && m_batchBytes + batchBytes > m_batchMaxBytes ) {
+      logDetailed( BaseMessages.getString( PKG, "MongoDbOutput.Messages.CommitingABatch" ) ); //$NON-NLS-1$
+      try {
+        doBatch();
+      } catch ( MongoDbException e ) {
+        throw new KettleException( e );
       }
     }
 
-    if ( ( retrys > m_writeRetries || isStopped() ) && lastEx != null ) {
-
-      // Send this one to the error stream if doing error handling
-      if ( getStepMeta().isDoingErrorHandling() ) {
-        putError( getInputRowMeta(), row, 1, lastEx.getMessage(), "", "MongoDbOutput" );
-      } else {
-        throw new KettleException( lastEx );
-      }
+    if ( query != null ) {
+      m_batchQueries.add( query );
     }
+    m_batch.add( document );
+    m_batchRows.add( row );
+    m_batchBytes += batchBytes;
+    return true;
   }
 
-  protected WriteResult batchRetryUsingSave( boolean lastRetry )
-    throws MongoException, KettleException, MongoDbException {
-    WriteResult result = null;
-    int count = 0;
-    logBasic( BaseMessages.getString( PKG, "MongoDbOutput.Messages.CurrentBatchSize", m_batch.size() ) );
-    for ( int i = 0, len = m_batch.size(); i < len; i++ ) {
-      DBObject toTry = m_batch.get( i );
-      Object[] correspondingRow = m_batchRows.get( i );
-      try {
-        result = m_data.getCollection().save( toTry );
-        count++;
-      } catch ( MongoException ex ) {
-        if ( !lastRetry ) {
-          logBasic( BaseMessages.getString( PKG, "MongoDbOutput.Messages.SuccessfullySavedXDocuments", count ) );
-          m_batch = copyExceptFirst( count, m_batch );
-          m_batchRows = copyExceptFirst( count, m_batchRows );
-          throw ex;
-        }
+  /**
+   * Write the current batch - on a background thread if batches are written in the background, otherwise before
+   * returning.
+   *
+   * @throws KettleException if a write fails after the last retry and the step isn't doing error handling
+   */
+  protected void doBatch() throws KettleException, MongoDbException {
+    doBatch( 0 );
+  }
 
-        // Send this one to the error stream if doing error handling
-        if ( getStepMeta().isDoingErrorHandling() ) {
-          putError( getInputRowMeta(), correspondingRow, 1, ex.getMessage(), "", "MongoDbOutput" );
-        } else {
-          m_batch = copyExceptFirst( i + 1, m_batch );
-          m_batchRows = copyExceptFirst( i + 1, m_batchRows );
-          throw ex;
-        }
+  /**
+   * Write the current batch - on a background thread if batches are written in the background, otherwise before
+   * returning.
+   *
+   * @param targetSize the batch size the batch was cut at, or 0 if it was written before reaching it (the last batch,
+   *                   or one that reached the maximum size in bytes)
+   * @throws KettleException if a write fails after the last retry and the step isn't doing error handling
+   */
+  protected void doBatch( int targetSize ) throws KettleException, MongoDbException {
+    final MongoDbOutputBatch batch = new MongoDbOutputBatch( m_batch, m_meta.getUpdate() ? m_batchQueries : null,
+        m_batchRows );
+    batch.m_targetSize = targetSize;
+
+    if ( m_writer == null ) {
+      writeBatch( batch );
+      routeFailures( batch );
+
+      m_batch.clear();
+      m_batchRows.clear();
+      if ( batch.m_queries != null ) {
+        m_batchQueries.clear();
       }
+      m_batchBytes = 0;
+      return;
     }
 
-    m_batch.clear();
-    m_batchRows.clear();
+    List<MongoDbOutputBatch> written = m_writer.submit( new Callable<MongoDbOutputBatch>() {
+      @Override
+      public MongoDbOutputBatch call() {
+        writeBatch( batch );
+        return batch;
+      }
+    } );
+
+    // the batch now belongs to the writer
+    m_batch = new ArrayList<DBObject>( m_batchInsertSize );
+    m_batchRows = new ArrayList<Object[]>();
+    m_batchQueries = new ArrayList<DBObject>( m_batchInsertSize );
+    m_batchBytes = 0;
 
-    logBasic( BaseMessages.getString( PKG, "MongoDbOutput.Messages.SuccessfullySavedXDocuments", count ) );
+    for ( MongoDbOutputBatch w : written ) {
+      routeFailures( w );
+    }
+  }
 
-    return result;
+  /**
+   * Wait for the batches being written in the background (if any)
+   *
+   * @throws KettleException if a write fails after the last retry and the step isn't doing error handling
+   */
+  protected void finishBatches() throws KettleException {
+    if ( m_writer != null ) {
+      for ( MongoDbOutputBatch w : m_writer.finish() ) {
+        routeFailures( w );
+      }
+      m_writer = null;
+    }
   }
 
-  private static <T> List<T> copyExceptFirst( int amount, List<T> list ) {
-    return new ArrayList<T>( list.subList( amount, list.size() ) );
+  /**
+   * Log the throughput observed for each batch size, and the best size, when the batch size was tuned
+   */
+  private void logBatchSizes() {
+    if ( m_sizer == null || m_sizer.getBestBatchSize() == 0 ) {
+      return;
+    }
+    SortedMap<Integer, Double> curve = m_sizer.getCurve();
+    if ( log.isDetailed() ) {
+      for ( Map.Entry<Integer, Double> e : curve.entrySet() ) {
+        logDetailed( BaseMessages.getString( PKG, "MongoDbOutput.Messages.BatchSizeThroughput", //$NON-NLS-1$
+            e.getKey(), Math.round( e.getValue() ) ) );
+      }
+    }
+    int best = m_sizer.getBestBatchSize();
+    logBasic( BaseMessages.getString( PKG, "MongoDbOutput.Messages.BestBatchSize", best, //$NON-NLS-1$
+        Math.round( curve.get( best ) ) ) );
   }
 
-  protected void doBatch() throws KettleException, MongoDbException {
-    int retries = 0;
+  /**
+   * Write a batch as a single bulk write - an unordered insert, or an update in the configured order. Retries and
+   * error handling apply to each document on its own: only the writes that failed are retried, and a write that still
+   * fails after the last retry is recorded in the batch (to send its row to the error stream) without holding up the
+   * rest of the batch. After a failure that leaves it unknown which writes were applied (e.g. a timeout), updates that
+   * can't safely be applied twice (e.g. $inc or $push) are not retried but recorded as failed. Safe to call from a
+   * writer thread.
+   *
+   * @param batch the batch to write
+   */
+  protected void writeBatch( MongoDbOutputBatch batch ) {
+    boolean update = batch.m_queries != null;
+    boolean ordered = update && m_meta.getOrderedWrites();
+    int[] attempts = new int[ batch.size() ];
+    String[] errors = new String[ batch.size() ];
     MongoException lastEx = null;
 
-    while ( retries <= m_writeRetries && !isStopped() ) {
-      WriteResult result = null;
+    // inserts that may have been written by an attempt that failed as a whole (e.g. timed out)
+    boolean[] maybeWritten = new boolean[ batch.size() ];
+
+    // inserts whose _id is set by the driver when they are first sent, so a duplicate _id can only be the document
+    // itself
+    boolean[] driverId = new boolean[ batch.size() ];
+    for ( int i = 0; !update && i < batch.size(); i++ ) {
+      driverId[ i ] = !batch.m_documents.get( i ).containsField( "_id" ); //$NON-NLS-1$
+    }
+
+    List<Integer> pending = new ArrayList<Integer>( batch.size() );
+    for ( int i = 0; i < batch.size(); i++ ) {
+      pending.add( i );
+    }
+
+    // how long the server took to acknowledge the writes (not counting retry delays)
+    long nanos = 0;
+
+    // whether a bulk write failed as a whole (rather than for some of its documents)
+    boolean batchFailed = false;
+
+    while ( !pending.isEmpty() && !isStopped() ) {
+      MongoException failure = null;
+      long start = System.nanoTime();
       try {
-        if ( retries == 0 ) {
-          result = m_data.getCollection().insert( m_batch );
-        } else {
-          // fall back to save
-          logBasic( BaseMessages.getString( PKG, "MongoDbOutput.Messages.SavingIndividualDocsInCurrentBatch" ) );
-          result = batchRetryUsingSave( retries == m_writeRetries );
-        }
+        write( batch, pending, ordered );
       } catch ( MongoException me ) {
-        // avoid exception if a timeout issue occurred and it was exactly the first attempt
-        boolean shouldNotBeAvoided = !isTimeoutException( me ) && ( retries == 0 );
-        if ( shouldNotBeAvoided ) {
-          lastEx = me;
-        }
-        retries++;
-        if ( retries <= m_writeRetries ) {
-          if ( shouldNotBeAvoided ) {
-            // skip logging error
-            // however do not skip saving elements separately during next attempt to prevent losing data
-            logError( BaseMessages.getString( PKG, "MongoDbOutput.Messages.Error.ErrorWritingToMongo", //$NON-NLS-1$
-                me.toString() ) );
-            logBasic( BaseMessages
-                .getString( PKG, "MongoDbOutput.Messages.Message.Retry", m_writeRetryDelay ) ); //$NON-NLS-1$
+        failure = me;
+      } catch ( MongoDbException e ) {
+        failure = e.getCause() instanceof MongoException ? (MongoException) e.getCause()
+            : new MongoException( e.getMessage(), e );
+      }
+      nanos += System.nanoTime() - start;
+
+      if ( failure == null ) {
+        pending.clear();
+        break;
+      }
+      lastEx = failure;
+
+      List<BulkWriteError> writeErrors = failure instanceof BulkWriteException
+          ? ( (BulkWriteException) failure ).getWriteErrors() : Collections.<BulkWriteError>emptyList();
+      List<Integer> failed = new ArrayList<Integer>();
+      List<Integer> retry = new ArrayList<Integer>();
+      if ( writeErrors.isEmpty() ) {
+        // the bulk write as a whole failed (e.g. a network error), so it's not known which writes were applied. Inserts
+        // and replacements can be retried, but an update like $inc may already have been applied, so isn't
+        batchFailed = true;
+        for ( int i : pending ) {
+          errors[ i ] = failure.getMessage();
+          maybeWritten[ i ] = !update;
+          if ( update && !MongoDbOutputData.isIdempotentUpdate( batch.m_documents.get( i ) ) ) {
+            batch.fail( i, BaseMessages.getString( PKG, "MongoDbOutput.Messages.Error.UpdateNotRetried", //$NON-NLS-1$
+                failure.getMessage() ), failure );
+          } else {
+            failed.add( i );
           }
-          try {
-            Thread.sleep( m_writeRetryDelay * 1000 );
-            // CHECKSTYLE:OFF
-          } catch ( InterruptedException e ) {
-            // CHECKSTYLE:ON
+        }
+      } else {
+        // the writes without a write error were applied, except that an ordered bulk write stops at its first error
+        int firstError = pending.size();
+        for ( BulkWriteError error : writeErrors ) {
+          int i = pending.get( error.getIndex() );
+          firstError = Math.min( firstError, error.getIndex() );
+          if ( maybeWritten[ i ] && driverId[ i ] && isDuplicateId( error ) ) {
+            // written by an earlier attempt (the driver sets the _id of a document when it is first sent)
+            continue;
           }
+          failed.add( i );
+          errors[ i ] = error.getMessage();
+        }
+        if ( ordered ) {
+          retry.addAll( pending.subList( firstError + 1, pending.size() ) );
         }
-        // throw new KettleException(me.getMessage(), me);
       }
 
-      if ( result != null ) {
-        break;
+      for ( int i : failed ) {
+        if ( ++attempts[ i ] > m_writeRetries ) {
+          batch.fail( i, errors[ i ], failure );
+        } else {
+          retry.add( i );
+        }
+      }
+      Collections.sort( retry );
+      pending = retry;
+
+      if ( !pending.isEmpty() ) {
+        logError( BaseMessages.getString( PKG, "MongoDbOutput.Messages.Error.ErrorWritingToMongo", //$NON-NLS-1$
+            failure.toString() ) );
+        logBasic(
+            BaseMessages.getString( PKG, "MongoDbOutput.Messages.Message.Retry", m_writeRetryDelay ) ); //$NON-NLS-1$
+        try {
+          Thread.sleep( m_writeRetryDelay * 1000 );
+        } catch ( InterruptedException e ) {
+          // the writer is being stopped
+          Thread.currentThread().interrupt();
+          break;
+        }
       }
     }
 
-    if ( ( retries > m_writeRetries || isStopped() ) && lastEx != null ) {
-      throw new KettleException( lastEx );
+    // writes that were still waiting to be retried when the step was stopped
+    for ( int i : pending ) {
+      if ( errors[ i ] != null ) {
+        batch.fail( i, errors[ i ], lastEx );
+      }
     }
 
-    m_batch.clear();
-    m_batchRows.clear();
+    if ( m_sizer != null ) {
+      int documentErrors = 0;
+      for ( String error : errors ) {
+        if ( error != null ) {
+          documentErrors++;
+        }
+      }
+      int size = m_sizer.record( batch.m_targetSize, batch.size(), nanos, documentErrors, batchFailed );
+      if ( log.isDetailed() ) {
+        logDetailed( BaseMessages.getString( PKG, "MongoDbOutput.Messages.BatchSizeTuned", batch.size(), //$NON-NLS-1$
+            nanos / 1000000, size ) );
+      }
+    }
   }
 
-  private static boolean isTimeoutException( MongoException me ) {
-    return ( me instanceof MongoExecutionTimeoutException );
+  /**
+   * @param error a write error
+   * @return true if the error is a duplicate key on the _id index
+   */
+  static boolean isDuplicateId( BulkWriteError error ) {
+    // "... index: _id_ dup key ..." (or "... index: db.coll.$_id_ dup key ..." from older servers)
+    String message = String.valueOf( error.getMessage() );
+    return error.getCode() == DUPLICATE_KEY
+        && ( message.contains( "index: _id_ " ) || message.contains( ".$_id_ " ) ); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  private void write( MongoDbOutputBatch batch, List<Integer> pending, boolean ordered ) throws MongoDbException {
+    List<DBObject> documents = new ArrayList<DBObject>( pending.size() );
+    for ( int i : pending ) {
+      documents.add( batch.m_documents.get( i ) );
+    }
+
+    if ( batch.m_queries == null ) {
+      m_data.bulkInsert( documents );
+      return;
+    }
+
+    List<DBObject> queries = new ArrayList<DBObject>( pending.size() );
+    for ( int i : pending ) {
+      queries.add( batch.m_queries.get( i ) );
+    }
+    // TODO It seems that doing an update() via a secondary node does not
+    // generate any sort of exception or error result! (at least via
+    // driver version 2.11.1). Transformation completes successfully
+    // but no updates are made to the collection.
+    // This is unlike doing an insert(), which generates
+    // a MongoException if you are not talking to the primary. So we need
+    // some logic to check whether or not the connection configuration
+    // contains the primary in the replica set and give feedback if it
+    // doesnt
+    m_data.bulkUpdate( queries, documents, m_meta.getUpsert(), m_meta.getMulti(), ordered );
+  }
+
+  private void routeFailures( MongoDbOutputBatch batch ) throws KettleException {
+    for ( int f = 0; f < batch.m_failed.size(); f++ ) {
+      String error = batch.m_errors.get( f );
+
+      // Send this one to the error stream if doing error handling
+      if ( getStepMeta().isDoingErrorHandling() ) {
+        putError( getInputRowMeta(), batch.m_rows.get( batch.m_failed.get( f ) ), 1, error, "", "MongoDbOutput" );
+      } else {
+        throw new KettleException( BaseMessages.getString( PKG,
+            "MongoDbOutput.Messages.Error.ErrorWritingToMongo", error ), batch.m_lastFailure ); //$NON-NLS-1$
+      }
+    }
   }
 
   @Override public boolean init( StepMetaInterface stepMetaInterface, StepDataInterface stepDataInterface ) {
@@ -437,6 +666,7 @@ public class MongoDbOutput extends BaseStep implements StepInterface {
         }
         m_data.createCollection( db, collection );
         m_data.setCollection( m_data.getConnection().getCollection( db, collection ) );
+        m_data.setCollectionName( db, collection );
 
         try {
           m_mongoTopLevelStructure =
@@ -479,6 +709,9 @@ public class MongoDbOutput extends BaseStep implements StepInterface {
   }
 
   @Override public void dispose( StepMetaInterface smi, StepDataInterface sdi ) {
+    if ( m_writer != null && !m_writer.stop() ) {
+      logError( BaseMessages.getString( PKG, "MongoDbOutput.Messages.Error.WritesStillInProgress" ) ); //$NON-NLS-1$
+    }
     disconnect();
     super.dispose( smi, sdi );
   }
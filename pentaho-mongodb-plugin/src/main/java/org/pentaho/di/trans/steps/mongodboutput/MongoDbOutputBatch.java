@@ -0,0 +1,75 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2026 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.mongodboutput;
+
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A batch of documents to write, with the rows they were converted from and, once it has been written, the writes
+ * that failed after the last retry.
+ */
+public class MongoDbOutputBatch {
+
+  /** the documents to insert, or the update documents */
+  protected final List<DBObject> m_documents;
+
+  /** the query for each update document, or null for inserts */
+  protected final List<DBObject> m_queries;
+
+  /** the row each document was converted from */
+  protected final List<Object[]> m_rows;
+
+  /** the indexes of the writes that failed, and the error for each */
+  protected final List<Integer> m_failed = new ArrayList<Integer>();
+  protected final List<String> m_errors = new ArrayList<String>();
+
+  /** the batch size the batch was cut at, or 0 if it was written before reaching it */
+  protected int m_targetSize;
+
+  /** the last failure reported for the batch */
+  protected MongoException m_lastFailure;
+
+  /**
+   * @param documents the documents to insert, or the update documents
+   * @param queries   the query for each update document, or null for inserts
+   * @param rows      the row each document was converted from
+   */
+  public MongoDbOutputBatch( List<DBObject> documents, List<DBObject> queries, List<Object[]> rows ) {
+    m_documents = documents;
+    m_queries = queries;
+    m_rows = rows;
+  }
+
+  /**
+   * @return the number of documents in the batch
+   */
+  public int size() {
+    return m_documents.size();
+  }
+
+  /**
+   * Record a write that failed after the last retry
+   *
+   * @param i     the index of the write in the batch
+   * @param error the error reported for the write
+   * @param cause the failure of the (bulk) write that reported the error
+   */
+  public void fail( int i, String error, MongoException cause ) {
+    m_failed.add( i );
+    m_errors.add( error );
+    m_lastFailure = cause;
+  }
+}
@@ -0,0 +1,145 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2026 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.mongodboutput;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Tunes the batch size from how writing each batch went (additive increase, multiplicative decrease). After a batch is
+ * acknowledged the size grows by a fixed step, until the throughput of a batch (documents per second, from the time
+ * until the server acknowledged it) drops well below the recent average. A bulk write that fails as a whole (e.g. a
+ * timeout), a high rate of failed writes, or a drop in throughput halve the size. An occasional failed write (e.g. a
+ * duplicate key) says nothing about the load on the server, so doesn't. The size always stays within the configured
+ * bounds.
+ * <p>
+ * The throughput observed for each batch size is kept, so that the best size can be reported and copied into a static
+ * configuration. Only batches that were cut at the chosen size count - not e.g. the last, partial, batch. Thread safe -
+ * batches may be written by several writer threads.
+ */
+public class MongoDbOutputBatchSizer {
+
+  /** The fraction of the average throughput a batch can fall below before the size is decreased */
+  public static final double THROUGHPUT_TOLERANCE = 0.25;
+
+  /** The fraction of the writes in a batch that can fail before the size is decreased */
+  public static final double ERROR_RATE_THRESHOLD = 0.1;
+
+  /** The weight of the latest batch in the average throughput */
+  private static final double SMOOTHING = 0.2;
+
+  private final int m_min;
+  private final int m_max;
+  private final int m_step;
+
+  private int m_size;
+
+  /** the smoothed throughput (documents/s), 0 until the first batch is written */
+  private double m_throughput;
+
+  /** documents written and time taken (ns), per batch size */
+  private final SortedMap<Integer, long[]> m_curve = new TreeMap<Integer, long[]>();
+
+  /**
+   * @param initial the size of the first batch
+   * @param min     the smallest batch size
+   * @param max     the largest batch size
+   */
+  public MongoDbOutputBatchSizer( int initial, int min, int max ) {
+    m_min = Math.max( 1, min );
+    m_max = Math.max( m_min, max );
+    m_size = Math.max( m_min, Math.min( m_max, initial ) );
+    m_step = Math.max( 1, m_size / 10 );
+  }
+
+  /**
+   * @return the number of documents to put in the next batch
+   */
+  public synchronized int getBatchSize() {
+    return m_size;
+  }
+
+  /**
+   * Record how writing a batch went, and adjust the batch size.
+   *
+   * @param targetSize the batch size the batch was cut at, or 0 if it was written before reaching it (its throughput
+   *                   then isn't recorded, but failures still decrease the size)
+   * @param documents  the number of documents in the batch
+   * @param nanos      the time (ns) until the writes were acknowledged
+   * @param errors     the number of writes in the batch that failed (even if a retry succeeded)
+   * @param failed     true if a bulk write failed as a whole (e.g. timed out)
+   * @return the new batch size
+   */
+  public synchronized int record( int targetSize, int documents, long nanos, int errors, boolean failed ) {
+    if ( documents <= 0 ) {
+      return m_size;
+    }
+
+    boolean backOff = failed || errors > documents * ERROR_RATE_THRESHOLD;
+    if ( targetSize <= 0 ) {
+      if ( backOff ) {
+        m_size = Math.max( m_min, m_size / 2 );
+      }
+      return m_size;
+    }
+
+    long[] totals = m_curve.get( targetSize );
+    if ( totals == null ) {
+      totals = new long[ 2 ];
+      m_curve.put( targetSize, totals );
+    }
+    totals[ 0 ] += documents;
+    totals[ 1 ] += nanos;
+
+    double throughput = throughput( documents, nanos );
+    boolean slower = m_throughput > 0 && throughput < m_throughput * ( 1 - THROUGHPUT_TOLERANCE );
+    m_throughput = m_throughput == 0 ? throughput : ( 1 - SMOOTHING ) * m_throughput + SMOOTHING * throughput;
+
+    if ( backOff || slower ) {
+      m_size = Math.max( m_min, m_size / 2 );
+    } else {
+      m_size = Math.min( m_max, m_size + m_step );
+    }
+    return m_size;
+  }
+
+  /**
+   * @return the average throughput (documents/s) observed for each batch size
+   */
+  public synchronized SortedMap<Integer, Double> getCurve() {
+    SortedMap<Integer, Double> curve = new TreeMap<Integer, Double>();
+    for ( Map.Entry<Integer, long[]> e : m_curve.entrySet() ) {
+      curve.put( e.getKey(), throughput( e.getValue()[ 0 ], e.getValue()[ 1 ] ) );
+    }
+    return curve;
+  }
+
+  /**
+   * @return the batch size with the highest average throughput, or 0 if no batches were written
+   */
+  public synchronized int getBestBatchSize() {
+    int best = 0;
+    double bestThroughput = -1;
+    for ( Map.Entry<Integer, Double> e : getCurve().entrySet() ) {
+      if ( e.getValue() > bestThroughput ) {
+        best = e.getKey();
+        bestThroughput = e.getValue();
+      }
+    }
+    return best;
+  }
+
+  private static double throughput( long documents, long nanos ) {
+    return documents * 1e9 / Math.max( 1, nanos );
+  }
+}
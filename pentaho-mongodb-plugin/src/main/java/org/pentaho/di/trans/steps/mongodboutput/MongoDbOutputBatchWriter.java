@@ -0,0 +1,138 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2026 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.mongodboutput;
+
+import org.pentaho.di.core.exception.KettleException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes batches on background threads, so that the round trips to the server overlap with the step converting the
+ * next rows. At most a fixed number of batches are in flight (written or waiting to be written) - submitting another
+ * waits for one of them to finish, which holds up the step and, through its input row set, the steps before it. With
+ * a single thread, batches are written one at a time in the order they were submitted.
+ * <p>
+ * submit() and finish() must only be called from the step thread.
+ */
+public class MongoDbOutputBatchWriter {
+
+  /** How long stop() waits for the writes in progress to end (ms) */
+  static final long STOP_TIMEOUT = 10000;
+
+  private final ExecutorService m_executor;
+  private final CompletionService<MongoDbOutputBatch> m_written;
+  private final int m_maxInFlight;
+
+  private int m_inFlight;
+
+  /**
+   * @param maxInFlight the maximum number of batches in flight
+   * @param threads     the number of batches written at the same time (1 to write them in order)
+   * @param threadName  the name to give the writer threads
+   */
+  public MongoDbOutputBatchWriter( int maxInFlight, int threads, final String threadName ) {
+    m_maxInFlight = Math.max( 1, maxInFlight );
+    m_executor = Executors.newFixedThreadPool( Math.max( 1, Math.min( threads, m_maxInFlight ) ), new ThreadFactory() {
+      @Override
+      public Thread newThread( Runnable r ) {
+        Thread t = new Thread( r, threadName );
+        t.setDaemon( true );
+        return t;
+      }
+    } );
+    m_written = new ExecutorCompletionService<MongoDbOutputBatch>( m_executor );
+  }
+
+  /**
+   * Submit a batch to be written, first waiting for a batch in flight to finish if there is no room for another.
+   *
+   * @param write writes the batch, and returns it
+   * @return the batches that finished while waiting (empty if there was room)
+   * @throws KettleException if writing a batch failed, or the step thread was interrupted
+   */
+  public List<MongoDbOutputBatch> submit( Callable<MongoDbOutputBatch> write ) throws KettleException {
+    List<MongoDbOutputBatch> written = new ArrayList<MongoDbOutputBatch>();
+    while ( m_inFlight >= m_maxInFlight ) {
+      written.add( take() );
+    }
+
+    m_written.submit( write );
+    m_inFlight++;
+
+    return written;
+  }
+
+  /**
+   * Wait for all the batches in flight to finish, and stop the writer threads.
+   *
+   * @return the batches, in the order they finished
+   * @throws KettleException if writing a batch failed, or the step thread was interrupted
+   */
+  public List<MongoDbOutputBatch> finish() throws KettleException {
+    List<MongoDbOutputBatch> written = new ArrayList<MongoDbOutputBatch>();
+    try {
+      while ( m_inFlight > 0 ) {
+        written.add( take() );
+      }
+    } finally {
+      m_executor.shutdown();
+    }
+
+    return written;
+  }
+
+  /**
+   * Stop writing - batches that haven't started are dropped, and the writer threads are interrupted. Waits (for a
+   * while) for the writes in progress to end, so that the connection isn't closed under them.
+   *
+   * @return true if the writer threads ended, false if they were still writing when the wait timed out
+   */
+  public boolean stop() {
+    m_executor.shutdownNow();
+    try {
+      return m_executor.awaitTermination( STOP_TIMEOUT, TimeUnit.MILLISECONDS );
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * @return the number of batches in flight
+   */
+  public int getInFlight() {
+    return m_inFlight;
+  }
+
+  private MongoDbOutputBatch take() throws KettleException {
+    try {
+      Future<MongoDbOutputBatch> batch = m_written.take();
+      m_inFlight--;
+      return batch.get();
+    } catch ( ExecutionException e ) {
+      throw new KettleException( e.getCause() );
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      throw new KettleException( e );
+    }
+  }
+}
@@ -15,9 +15,22 @@ package org.pentaho.di.trans.steps.mongodboutput;
 
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
+import com.mongodb.BulkUpdateRequestBuilder;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteRequestBuilder;
+import com.mongodb.BulkWriteResult;
+import com.mongodb.DB;
 import com.mongodb.DBObject;
 import com.mongodb.MongoException;
 import com.mongodb.util.JSON;
+import org.bson.types.BSONTimestamp;
+import org.bson.types.Binary;
+import org.bson.types.Code;
+import org.bson.types.Decimal128;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.bson.types.ObjectId;
+import org.bson.types.Symbol;
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.exception.KettleValueException;
@@ -30,15 +43,22 @@ import org.pentaho.di.trans.step.BaseStepData;
 import org.pentaho.di.trans.step.StepDataInterface;
 import org.pentaho.mongo.MongoDbException;
 import org.pentaho.mongo.wrapper.MongoClientWrapper;
+import org.pentaho.mongo.wrapper.MongoDBAction;
 import org.pentaho.mongo.wrapper.collection.MongoCollectionWrapper;
 import org.pentaho.mongo.wrapper.cursor.MongoCursorWrapper;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 /**
  * Data class for the MongoDbOutput step
@@ -56,6 +76,20 @@ public class MongoDbOutputData extends BaseStepData implements StepDataInterface
   public static final String REPL_SET_SETTINGS = "settings"; //$NON-NLS-1$
   public static final String REPL_SET_LAST_ERROR_MODES = "getLastErrorModes"; //$NON-NLS-1$
 
+  /** The largest document the server accepts, in bytes */
+  public static final int MAX_DOCUMENT_BYTES = 16 * 1024 * 1024;
+
+  /** The size in bytes of the ObjectId _id field the driver adds to an inserted document that has no _id */
+  public static final int GENERATED_ID_BYTES = 17;
+
+  /** Update operators that give the same result when applied again */
+  private static final Set<String> IDEMPOTENT_MODIFIERS = new HashSet<String>( Arrays.asList( "$set", //$NON-NLS-1$
+      "$unset", "$setOnInsert", "$min", "$max" ) ); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+
+  /** Range of the (unbiased) exponent of a Decimal128 */
+  private static final long DECIMAL128_MIN_EXPONENT = -6176;
+  private static final long DECIMAL128_MAX_EXPONENT = 6111;
+
   /**
    * Enum for the type of the top level object of the document structure
    */
@@ -78,6 +112,13 @@ public class MongoDbOutputData extends BaseStepData implements StepDataInterface
    */
   protected MongoCollectionWrapper m_collection;
 
+  /**
+   * The names of the database and collection in use - bulk writes go to the collection directly, as the collection
+   * wrapper doesn't expose them
+   */
+  protected String m_dbName;
+  protected String m_collectionName;
+
   protected List<MongoDbOutputMeta.MongoField> m_userFields;
 
   /**
@@ -227,6 +268,210 @@ public class MongoDbOutputData extends BaseStepData implements StepDataInterface
     return m_collection;
   }
 
+  /**
+   * Set the names of the database and collection to use for bulk writes
+   *
+   * @param db             the name of the database
+   * @param collectionName the name of the collection
+   */
+  public void setCollectionName( String db, String collectionName ) {
+    m_dbName = db;
+    m_collectionName = collectionName;
+  }
+
+  /**
+   * Apply a batch of updates to the collection in a single bulk write. An update document made of update operators
+   * ($set, $inc etc.) modifies the matching document(s); any other document replaces the first match.
+   *
+   * @param queries the query for each update
+   * @param updates the update or replacement document for each update
+   * @param upsert  true if a document is to be inserted when nothing matches a query
+   * @param multi   true if an update operator document is to be applied to all matching documents rather than the first
+   * @param ordered true if the updates are to be applied in order, stopping at the first failure
+   * @return the result of the bulk write
+   * @throws com.mongodb.BulkWriteException if some of the updates failed. Its write errors give the (batch) index of
+   *                                        each failed update
+   * @throws MongoDbException               if a problem occurs
+   */
+  public BulkWriteResult bulkUpdate( final List<DBObject> queries, final List<DBObject> updates, final boolean upsert,
+                                     final boolean multi, final boolean ordered ) throws MongoDbException {
+    return clientWrapper.perform( m_dbName, new MongoDBAction<BulkWriteResult>() {
+      @Override
+      public BulkWriteResult perform( DB db ) {
+        BulkWriteOperation bulk =
+          ordered ? db.getCollection( m_collectionName ).initializeOrderedBulkOperation()
+            : db.getCollection( m_collectionName ).initializeUnorderedBulkOperation();
+
+        for ( int i = 0; i < queries.size(); i++ ) {
+          DBObject update = updates.get( i );
+          boolean modifier = isModifierUpdate( update );
+          BulkWriteRequestBuilder find = bulk.find( queries.get( i ) );
+
+          if ( upsert ) {
+            BulkUpdateRequestBuilder upsertFind = find.upsert();
+            if ( !modifier ) {
+              upsertFind.replaceOne( update );
+            } else if ( multi ) {
+              upsertFind.update( update );
+            } else {
+              upsertFind.updateOne( update );
+            }
+          } else if ( !modifier ) {
+            find.replaceOne( update );
+          } else if ( multi ) {
+            find.update( update );
+          } else {
+            find.updateOne( update );
+          }
+        }
+
+        return bulk.execute();
+      }
+    } );
+  }
+
+  /**
+   * Insert a batch of documents into the collection in a single, unordered bulk write. Documents without an _id are
+   * given one before they are sent, so sending them again can't insert them twice.
+   *
+   * @param documents the documents to insert
+   * @return the result of the bulk write
+   * @throws com.mongodb.BulkWriteException if some of the documents could not be inserted. Its write errors give the
+   *                                        (batch) index of each failed document
+   * @throws MongoDbException               if a problem occurs
+   */
+  public BulkWriteResult bulkInsert( final List<DBObject> documents ) throws MongoDbException {
+    return clientWrapper.perform( m_dbName, new MongoDBAction<BulkWriteResult>() {
+      @Override
+      public BulkWriteResult perform( DB db ) {
+        BulkWriteOperation bulk = db.getCollection( m_collectionName ).initializeUnorderedBulkOperation();
+        for ( DBObject document : documents ) {
+          bulk.insert( document );
+        }
+
+        return bulk.execute();
+      }
+    } );
+  }
+
+  private static boolean isModifierUpdate( DBObject update ) {
+    return !update.keySet().isEmpty() && update.keySet().iterator().next().startsWith( "$" ); //$NON-NLS-1$
+  }
+
+  /**
+   * Whether applying an update twice leaves the same result as applying it once - true for a replacement, or for a
+   * modifier update that only uses operators like $set (but not e.g. $inc or $push).
+   *
+   * @param update the update document
+   * @return true if the update can safely be applied again
+   */
+  public static boolean isIdempotentUpdate( DBObject update ) {
+    if ( !isModifierUpdate( update ) ) {
+      return true;
+    }
+    for ( String operator : update.keySet() ) {
+      if ( !IDEMPOTENT_MODIFIERS.contains( operator ) ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Estimate the size of a document once it is encoded as BSON, without encoding it. The estimate is exact for the
+   * types that rows are converted to (and that JSON documents are parsed to); anything else is counted as its string
+   * form.
+   *
+   * @param document the document
+   * @return the estimated size, in bytes
+   */
+  public static int estimateBsonSize( DBObject document ) {
+    // int32 length, the elements, and a trailing 0
+    int size = 5;
+    for ( String key : document.keySet() ) {
+      size += elementSize( key, document.get( key ) );
+    }
+    return size;
+  }
+
+  private static int elementSize( String key, Object value ) {
+    // type byte, and the key as a cstring
+    return 2 + utf8Length( key ) + valueSize( value );
+  }
+
+  private static int valueSize( Object value ) {
+    if ( value == null || value instanceof MinKey || value instanceof MaxKey ) {
+      return 0;
+    }
+    if ( value instanceof String || value instanceof Symbol || value instanceof Code ) {
+      // int32 length, the characters and a trailing 0
+      return 5 + utf8Length( value.toString() );
+    }
+    if ( value instanceof Integer || value instanceof Short || value instanceof Byte ) {
+      return 4;
+    }
+    if ( value instanceof Number || value instanceof Date || value instanceof BSONTimestamp ) {
+      return value instanceof Decimal128 ? 16 : 8;
+    }
+    if ( value instanceof Boolean ) {
+      return 1;
+    }
+    if ( value instanceof ObjectId ) {
+      return 12;
+    }
+    if ( value instanceof byte[] ) {
+      // int32 length, subtype byte and the bytes
+      return 5 + ( (byte[]) value ).length;
+    }
+    if ( value instanceof Binary ) {
+      return 5 + ( (Binary) value ).length();
+    }
+    if ( value instanceof Pattern ) {
+      // the pattern and the flags, as cstrings
+      return 2 + utf8Length( ( (Pattern) value ).pattern() ) + Integer.bitCount( ( (Pattern) value ).flags() );
+    }
+    if ( value instanceof DBObject ) {
+      // documents, and arrays (keyed by index)
+      return estimateBsonSize( (DBObject) value );
+    }
+    if ( value instanceof Map ) {
+      int size = 5;
+      for ( Map.Entry<?, ?> e : ( (Map<?, ?>) value ).entrySet() ) {
+        size += elementSize( String.valueOf( e.getKey() ), e.getValue() );
+      }
+      return size;
+    }
+    if ( value instanceof Iterable ) {
+      int size = 5;
+      int i = 0;
+      for ( Object element : (Iterable<?>) value ) {
+        size += elementSize( Integer.toString( i++ ), element );
+      }
+      return size;
+    }
+    return 5 + utf8Length( value.toString() );
+  }
+
+  private static int utf8Length( String s ) {
+    int length = 0;
+    for ( int i = 0; i < s.length(); i++ ) {
+      char c = s.charAt( i );
+      if ( c < 0x80 ) {
+        length++;
+      } else if ( c < 0x800 ) {
+        length += 2;
+      } else if ( Character.isHighSurrogate( c ) && i + 1 < s.length()
+          && Character.isLowSurrogate( s.charAt( i + 1 ) ) ) {
+        // a supplementary character
+        length += 4;
+        i++;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
   /**
    * Set the output row format
    *
@@ -426,6 +671,7 @@ public class MongoDbOutputData extends BaseStepData implements StepDataInterface
             // incoming field name has already been appended (if necessary)
             a.m_useIncomingFieldNameAsMongoFieldName = false;
             a.m_JSON = field.m_JSON;
+            a.m_decimal128 = field.m_decimal128;
             a.init( vars, false );
             List<MongoDbOutputMeta.MongoField> fds = m_setComplexArrays.get( arrayPath );
             if ( fds == null ) {
@@ -454,6 +700,7 @@ public class MongoDbOutputData extends BaseStepData implements StepDataInterface
             // incoming field name has already been appended (if necessary)
             a.m_useIncomingFieldNameAsMongoFieldName = false;
             a.m_JSON = field.m_JSON;
+            a.m_decimal128 = field.m_decimal128;
             a.init( vars, false );
             List<MongoDbOutputMeta.MongoField> fds = m_pushComplexStructures.get( arrayPath );
             if ( fds == null ) {
@@ -462,11 +709,12 @@ public class MongoDbOutputData extends BaseStepData implements StepDataInterface
             }
             fds.add( a );
           } else {
-            Object[] params = new Object[ 4 ];
+            Object[] params = new Object[ 5 ];
             params[ 0 ] = modifierUpdateOpp;
             params[ 1 ] = index;
             params[ 2 ] = field.m_JSON;
             params[ 3 ] = field.insertNull;
+            params[ 4 ] = field.m_decimal128;
             m_primitiveLeafModifiers.put( path, params );
           }
         }
@@ -530,6 +778,7 @@ public class MongoDbOutputData extends BaseStepData implements StepDataInterface
       int index = (Integer) params[ 1 ];
       boolean isJSON = (Boolean) params[ 2 ];
       boolean allowNull = (Boolean) params[ 3 ];
+      boolean decimal128 = (Boolean) params[ 4 ];
       ValueMetaInterface vm = inputMeta.getValueMeta( index );
 
       DBObject fieldsToUpdateWithValues = null;
@@ -543,7 +792,8 @@ public class MongoDbOutputData extends BaseStepData implements StepDataInterface
         // otherwise create a new DBObject for this modifier operation
         fieldsToUpdateWithValues = new BasicDBObject();
       }
-      setMongoValueFromKettleValue( fieldsToUpdateWithValues, path, vm, row[ index ], isJSON, allowNull );
+      setMongoValueFromKettleValue( fieldsToUpdateWithValues, path, vm, row[ index ], isJSON, allowNull,
+        decimal128 );
 
       updateObject.put( modifierUpdateOpp, fieldsToUpdateWithValues );
     }
@@ -620,7 +870,8 @@ public class MongoDbOutputData extends BaseStepData implements StepDataInterface
           path = path.replace( "[", "." ).replace( "]", "" ); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
         }
 
-        setMongoValueFromKettleValue( query, path, vm, row[ index ], field.m_JSON, field.insertNull );
+        setMongoValueFromKettleValue( query, path, vm, row[ index ], field.m_JSON, field.insertNull,
+          field.m_decimal128 );
       }
     }
 
@@ -700,7 +951,8 @@ public class MongoDbOutputData extends BaseStepData implements StepDataInterface
               // leaf - primitive element of the array (unless kettle field
               // value is JSON)
               boolean res =
-                setMongoValueFromKettleValue( temp, lookup, vm, row[ index ], field.m_JSON, field.insertNull );
+                setMongoValueFromKettleValue( temp, lookup, vm, row[ index ], field.m_JSON, field.insertNull,
+                  field.m_decimal128 );
               haveNonNullFields = ( haveNonNullFields || res );
             } else {
               // must be a record here (since multi-dimensional array creation
@@ -718,7 +970,7 @@ public class MongoDbOutputData extends BaseStepData implements StepDataInterface
                   boolean
                     res =
                     setMongoValueFromKettleValue( current, incomingFieldName, vm, row[ index ], field.m_JSON,
-                      field.insertNull );
+                      field.insertNull, field.m_decimal128 );
                   haveNonNullFields = ( haveNonNullFields || res );
                 } else {
                   throw new KettleException( BaseMessages
@@ -739,7 +991,7 @@ public class MongoDbOutputData extends BaseStepData implements StepDataInterface
                   boolean
                     res =
                     setMongoValueFromKettleValue( current, incomingFieldName, vm, row[ index ], field.m_JSON,
-                      field.insertNull );
+                      field.insertNull, field.m_decimal128 );
                   haveNonNullFields = ( haveNonNullFields || res );
                 } else {
                   throw new KettleException( BaseMessages
@@ -753,7 +1005,7 @@ public class MongoDbOutputData extends BaseStepData implements StepDataInterface
           if ( lookup == null && pathParts.size() == 0 ) {
             if ( field.m_useIncomingFieldNameAsMongoFieldName ) {
               boolean res = setMongoValueFromKettleValue( current, incomingFieldName, vm, row[ index ], field.m_JSON,
-                field.insertNull );
+                field.insertNull, field.m_decimal128 );
               haveNonNullFields = ( haveNonNullFields || res );
             } else {
               throw new KettleException( BaseMessages
@@ -763,12 +1015,12 @@ public class MongoDbOutputData extends BaseStepData implements StepDataInterface
             if ( pathParts.size() == 0 ) {
               if ( !field.m_useIncomingFieldNameAsMongoFieldName ) {
                 boolean res = setMongoValueFromKettleValue( current, lookup.toString(), vm, row[ index ], field.m_JSON,
-                  field.insertNull );
+                  field.insertNull, field.m_decimal128 );
                 haveNonNullFields = ( haveNonNullFields || res );
               } else {
                 current = (DBObject) current.get( lookup.toString() );
                 boolean res = setMongoValueFromKettleValue( current, incomingFieldName, vm, row[ index ], field.m_JSON,
-                  field.insertNull );
+                  field.insertNull, field.m_decimal128 );
                 haveNonNullFields = ( haveNonNullFields || res );
               }
             } else {
@@ -790,7 +1042,8 @@ public class MongoDbOutputData extends BaseStepData implements StepDataInterface
 
   private static boolean setMongoValueFromKettleValue( DBObject mongoObject, Object lookup,
                                                        ValueMetaInterface kettleType, Object kettleValue,
-                                                       boolean kettleValueIsJSON, boolean allowNull )
+                                                       boolean kettleValueIsJSON, boolean allowNull,
+                                                       boolean decimal128 )
     throws KettleValueException {
     if ( kettleType.isNull( kettleValue ) ) {
       if ( allowNull ) {
@@ -836,6 +1089,13 @@ public class MongoDbOutputData extends BaseStepData implements StepDataInterface
       return true;
     }
     if ( kettleType.isBigNumber() ) {
+      if ( decimal128 ) {
+        Decimal128 val = toDecimal128( kettleType.getBigNumber( kettleValue ) );
+        if ( val != null ) {
+          mongoObject.put( lookup.toString(), val );
+          return true;
+        }
+      }
       // use string value - user can use Kettle to convert back
       String val = kettleType.getString( kettleValue );
       mongoObject.put( lookup.toString(), val );
@@ -854,6 +1114,33 @@ public class MongoDbOutputData extends BaseStepData implements StepDataInterface
     return false;
   }
 
+  /**
+   * Convert a BigNumber to a Decimal128 without going through a string or a double.
+   *
+   * @param value the value
+   * @return the Decimal128, or null if the value has too many digits (or too large an exponent) for Decimal128
+   */
+  static Decimal128 toDecimal128( BigDecimal value ) {
+    BigInteger unscaled = value.unscaledValue();
+    long exponent = -(long) value.scale();
+    if ( unscaled.bitLength() < 64 && exponent >= DECIMAL128_MIN_EXPONENT && exponent <= DECIMAL128_MAX_EXPONENT ) {
+      // the common case - encode the bits directly, which is much quicker than the general constructor
+      long coefficient = unscaled.longValue();
+      long high = ( exponent - DECIMAL128_MIN_EXPONENT ) << 49;
+      if ( coefficient < 0 ) {
+        high |= Long.MIN_VALUE;
+        coefficient = -coefficient;
+      }
+      return Decimal128.fromIEEE754BIDEncoding( high, coefficient );
+    }
+
+    try {
+      return new Decimal128( value );
+    } catch ( NumberFormatException e ) {
+      return null;
+    }
+  }
+
   private static Object getPathElementName( List<String> pathParts, DBObject current, boolean incomingAsFieldName )
     throws KettleException {
 
@@ -142,6 +142,14 @@ public class MongoDbOutputMeta extends MongoDbMeta implements StepMetaInterface
     @Injection( name = "JSON", group = "FIELDS" )
     public boolean m_JSON = false;
 
+    /**
+     * If true, then BigNumber values for this mongo field are stored as Decimal128 (MongoDB 3.4 and up) rather than
+     * as strings. Values that need more than the 34 digits of precision that Decimal128 has are still stored as
+     * strings.
+     */
+    @Injection( name = "DECIMAL128", group = "FIELDS" )
+    public boolean m_decimal128 = false;
+
     public MongoField copy() {
       MongoField newF = new MongoField();
       newF.m_incomingFieldName = m_incomingFieldName;
@@ -155,6 +163,7 @@ public class MongoDbOutputMeta extends MongoDbMeta implements StepMetaInterface
       newF.m_modifierOperationApplyPolicy = m_modifierOperationApplyPolicy;
       newF.m_JSON = m_JSON;
       newF.insertNull = insertNull;
+      newF.m_decimal128 = m_decimal128;
 
       return newF;
     }
@@ -272,11 +281,44 @@ public class MongoDbOutputMeta extends MongoDbMeta implements StepMetaInterface
   public static final int RETRIES = 5;
   public static final int RETRY_DELAY = 10; // seconds
 
+  /** The default maximum size of a batch, in bytes */
+  public static final int BATCH_MAX_BYTES = 16 * 1024 * 1024;
+
+  /** The default bounds of the batch size when tuning it */
+  public static final int MIN_BATCH_SIZE = 10;
+  public static final int MAX_BATCH_SIZE = 10000;
+
   @Injection( name = "RETRY_NUMBER" )
   private String m_writeRetries = "" + RETRIES; //$NON-NLS-1$
   @Injection( name = "RETRY_DELAY" )
   private String m_writeRetryDelay = "" + RETRY_DELAY; // seconds //$NON-NLS-1$
 
+  /**
+   * True if the updates in a batch are applied in order, stopping at the first failure. Inserts are always unordered
+   */
+  @Injection( name = "ORDERED_WRITES" )
+  protected boolean m_orderedWrites = true;
+
+  /** The number of batches that can be written on background threads while the step converts the next rows */
+  @Injection( name = "IN_FLIGHT_BATCHES" )
+  protected String m_inFlightBatches = ""; //$NON-NLS-1$
+
+  /** The maximum (estimated BSON) size of a batch, in bytes */
+  @Injection( name = "BATCH_MAX_BYTES" )
+  protected String m_batchMaxBytes = ""; //$NON-NLS-1$
+
+  /** True if the batch size is tuned while writing, starting from the batch insert size */
+  @Injection( name = "AUTO_TUNE_BATCH_SIZE" )
+  protected boolean m_autoTuneBatchSize = false;
+
+  /** The smallest batch size when tuning the batch size */
+  @Injection( name = "BATCH_SIZE_MIN" )
+  protected String m_minBatchSize = ""; //$NON-NLS-1$
+
+  /** The largest batch size when tuning the batch size */
+  @Injection( name = "BATCH_SIZE_MAX" )
+  protected String m_maxBatchSize = ""; //$NON-NLS-1$
+
   @Override
   public void setDefault() {
     setHostnames( "localhost" ); //$NON-NLS-1$
@@ -369,6 +411,124 @@ public class MongoDbOutputMeta extends MongoDbMeta implements StepMetaInterface
     return m_writeRetryDelay;
   }
 
+  /**
+   * Set whether the updates in a batch are applied in order. Unordered updates let the server apply the batch in any
+   * order and carry on past failed updates. Inserts are always unordered.
+   *
+   * @param ordered
+   *          true if the updates in a batch are to be applied in order
+   */
+  public void setOrderedWrites( boolean ordered ) {
+    m_orderedWrites = ordered;
+  }
+
+  /**
+   * Get whether the updates in a batch are applied in order
+   *
+   * @return true if the updates in a batch are applied in order
+   */
+  public boolean getOrderedWrites() {
+    return m_orderedWrites;
+  }
+
+  /**
+   * Set the number of batches that can be written on background threads while the step converts the next rows. The
+   * step waits when this many batches are being written.
+   *
+   * @param inFlightBatches
+   *          the number of batches (empty or 0 to write each batch on the step thread)
+   */
+  public void setInFlightBatches( String inFlightBatches ) {
+    m_inFlightBatches = inFlightBatches;
+  }
+
+  /**
+   * Get the number of batches that can be written on background threads while the step converts the next rows
+   *
+   * @return the number of batches (empty or 0 to write each batch on the step thread)
+   */
+  public String getInFlightBatches() {
+    return m_inFlightBatches;
+  }
+
+  /**
+   * Set the maximum size of a batch, in bytes. A batch is written when the next document would take it over this
+   * size, or when it holds the batch insert size number of documents.
+   *
+   * @param maxBytes
+   *          the maximum size in bytes (empty for the default)
+   */
+  public void setBatchMaxBytes( String maxBytes ) {
+    m_batchMaxBytes = maxBytes;
+  }
+
+  /**
+   * Get the maximum size of a batch, in bytes
+   *
+   * @return the maximum size in bytes (empty for the default)
+   */
+  public String getBatchMaxBytes() {
+    return m_batchMaxBytes;
+  }
+
+  /**
+   * Set whether the batch size is tuned while writing - grown while batches are acknowledged quickly and without
+   * errors, and shrunk when they fail or slow down. The batch insert size is the starting size.
+   *
+   * @param autoTune
+   *          true to tune the batch size
+   */
+  public void setAutoTuneBatchSize( boolean autoTune ) {
+    m_autoTuneBatchSize = autoTune;
+  }
+
+  /**
+   * Get whether the batch size is tuned while writing
+   *
+   * @return true if the batch size is tuned
+   */
+  public boolean getAutoTuneBatchSize() {
+    return m_autoTuneBatchSize;
+  }
+
+  /**
+   * Set the smallest batch size when tuning the batch size
+   *
+   * @param minSize
+   *          the smallest batch size (empty for the default)
+   */
+  public void setMinBatchSize( String minSize ) {
+    m_minBatchSize = minSize;
+  }
+
+  /**
+   * Get the smallest batch size when tuning the batch size
+   *
+   * @return the smallest batch size (empty for the default)
+   */
+  public String getMinBatchSize() {
+    return m_minBatchSize;
+  }
+
+  /**
+   * Set the largest batch size when tuning the batch size
+   *
+   * @param maxSize
+   *          the largest batch size (empty for the default)
+   */
+  public void setMaxBatchSize( String maxSize ) {
+    m_maxBatchSize = maxSize;
+  }
+
+  /**
+   * Get the largest batch size when tuning the batch size
+   *
+   * @return the largest batch size (empty for the default)
+   */
+  public String getMaxBatchSize() {
+    return m_maxBatchSize;
+  }
+
   /**
    * Set whether updates (rather than inserts) are to be performed
    *
@@ -608,6 +768,18 @@ public class MongoDbOutputMeta extends MongoDbMeta implements StepMetaInterface
         XMLHandler.addTagValue( "write_retries", m_writeRetries ) ); //$NON-NLS-1$
     retval.append( "    " ).append( //$NON-NLS-1$
         XMLHandler.addTagValue( "write_retry_delay", m_writeRetryDelay ) ); //$NON-NLS-1$
+    retval.append( "    " ).append( //$NON-NLS-1$
+        XMLHandler.addTagValue( "ordered_writes", m_orderedWrites ) ); //$NON-NLS-1$
+    retval.append( "    " ).append( //$NON-NLS-1$
+        XMLHandler.addTagValue( "in_flight_batches", m_inFlightBatches ) ); //$NON-NLS-1$
+    retval.append( "    " ).append( //$NON-NLS-1$
+        XMLHandler.addTagValue( "batch_max_bytes", m_batchMaxBytes ) ); //$NON-NLS-1$
+    retval.append( "    " ).append( //$NON-NLS-1$
+        XMLHandler.addTagValue( "auto_tune_batch_size", m_autoTuneBatchSize ) ); //$NON-NLS-1$
+    retval.append( "    " ).append( //$NON-NLS-1$
+        XMLHandler.addTagValue( "batch_size_min", m_minBatchSize ) ); //$NON-NLS-1$
+    retval.append( "    " ).append( //$NON-NLS-1$
+        XMLHandler.addTagValue( "batch_size_max", m_maxBatchSize ) ); //$NON-NLS-1$
 
     if ( m_mongoFields != null && m_mongoFields.size() > 0 ) {
       retval.append( "\n    " ).append( XMLHandler.openTag( "mongo_fields" ) ); //$NON-NLS-1$ //$NON-NLS-2$
@@ -636,6 +808,8 @@ public class MongoDbOutputMeta extends MongoDbMeta implements StepMetaInterface
             XMLHandler.addTagValue( "json_field", field.m_JSON ) ); //$NON-NLS-1$
         retval.append( "\n         " ).append( //$NON-NLS-1$
             XMLHandler.addTagValue( "allow_null", field.insertNull ) ); //$NON-NLS-1$
+        retval.append( "\n         " ).append( //$NON-NLS-1$
+            XMLHandler.addTagValue( "decimal128", field.m_decimal128 ) ); //$NON-NLS-1$
 
         retval.append( "\n      " ).append( XMLHandler.closeTag( "mongo_field" ) ); //$NON-NLS-1$ //$NON-NLS-2$
       }
@@ -742,6 +916,18 @@ public class MongoDbOutputMeta extends MongoDbMeta implements StepMetaInterface
     if ( !Const.isEmpty( writeRetryDelay ) ) {
       m_writeRetryDelay = writeRetryDelay;
     }
+    m_orderedWrites =
+        !"N".equalsIgnoreCase( XMLHandler.getTagValue( stepnode, "ordered_writes" ) ); //$NON-NLS-1$ //$NON-NLS-2$
+    m_inFlightBatches =
+        Const.NVL( XMLHandler.getTagValue( stepnode, "in_flight_batches" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
+    m_batchMaxBytes =
+        Const.NVL( XMLHandler.getTagValue( stepnode, "batch_max_bytes" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
+    m_autoTuneBatchSize =
+        "Y".equalsIgnoreCase( XMLHandler.getTagValue( stepnode, "auto_tune_batch_size" ) ); //$NON-NLS-1$ //$NON-NLS-2$
+    m_minBatchSize =
+        Const.NVL( XMLHandler.getTagValue( stepnode, "batch_size_min" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
+    m_maxBatchSize =
+        Const.NVL( XMLHandler.getTagValue( stepnode, "batch_size_max" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
 
     Node fields = XMLHandler.getSubNode( stepnode, "mongo_fields" ); //$NON-NLS-1$
     if ( fields != null && XMLHandler.countNodes( fields, "mongo_field" ) > 0 ) { //$NON-NLS-1$
@@ -770,6 +956,7 @@ public class MongoDbOutputMeta extends MongoDbMeta implements StepMetaInterface
         }
         String allowNull = XMLHandler.getTagValue( fieldNode, "allow_null" ); //$NON-NLS-1$
         newField.insertNull = "Y".equalsIgnoreCase( allowNull );
+        newField.m_decimal128 = "Y".equalsIgnoreCase( XMLHandler.getTagValue( fieldNode, "decimal128" ) ); //$NON-NLS-1$
 
         m_mongoFields.add( newField );
       }
@@ -849,6 +1036,16 @@ public class MongoDbOutputMeta extends MongoDbMeta implements StepMetaInterface
     if ( !Const.isEmpty( writeRetryDelay ) ) {
       m_writeRetryDelay = writeRetryDelay;
     }
+    m_orderedWrites = rep.getStepAttributeBoolean( id_step, 0, "ordered_writes", true ); //$NON-NLS-1$
+    m_inFlightBatches =
+        Const.NVL( rep.getStepAttributeString( id_step, "in_flight_batches" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
+    m_batchMaxBytes =
+        Const.NVL( rep.getStepAttributeString( id_step, "batch_max_bytes" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
+    m_autoTuneBatchSize = rep.getStepAttributeBoolean( id_step, 0, "auto_tune_batch_size", false ); //$NON-NLS-1$
+    m_minBatchSize =
+        Const.NVL( rep.getStepAttributeString( id_step, "batch_size_min" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
+    m_maxBatchSize =
+        Const.NVL( rep.getStepAttributeString( id_step, "batch_size_max" ), "" ); //$NON-NLS-1$ //$NON-NLS-2$
 
     if ( nrfields > 0 ) {
       m_mongoFields = new ArrayList<MongoField>();
@@ -869,6 +1066,7 @@ public class MongoDbOutputMeta extends MongoDbMeta implements StepMetaInterface
         }
         newField.m_JSON = rep.getStepAttributeBoolean( id_step, i, "json_field" ); //$NON-NLS-1$
         newField.insertNull = rep.getStepAttributeBoolean( id_step, i, "allow_null" ); //$NON-NLS-1$
+        newField.m_decimal128 = rep.getStepAttributeBoolean( id_step, i, "decimal128" ); //$NON-NLS-1$
 
         m_mongoFields.add( newField );
       }
@@ -961,6 +1159,18 @@ public class MongoDbOutputMeta extends MongoDbMeta implements StepMetaInterface
         m_writeRetries );
     rep.saveStepAttribute( id_transformation, id_step, 0, "write_retry_delay", //$NON-NLS-1$
         m_writeRetryDelay );
+    rep.saveStepAttribute( id_transformation, id_step, 0, "ordered_writes", //$NON-NLS-1$
+        m_orderedWrites );
+    rep.saveStepAttribute( id_transformation, id_step, 0, "in_flight_batches", //$NON-NLS-1$
+        m_inFlightBatches );
+    rep.saveStepAttribute( id_transformation, id_step, 0, "batch_max_bytes", //$NON-NLS-1$
+        m_batchMaxBytes );
+    rep.saveStepAttribute( id_transformation, id_step, 0, "auto_tune_batch_size", //$NON-NLS-1$
+        m_autoTuneBatchSize );
+    rep.saveStepAttribute( id_transformation, id_step, 0, "batch_size_min", //$NON-NLS-1$
+        m_minBatchSize );
+    rep.saveStepAttribute( id_transformation, id_step, 0, "batch_size_max", //$NON-NLS-1$
+        m_maxBatchSize );
 
     if ( m_mongoFields != null && m_mongoFields.size() > 0 ) {
       for ( int i = 0; i < m_mongoFields.size(); i++ ) {
@@ -980,6 +1190,8 @@ public class MongoDbOutputMeta extends MongoDbMeta implements StepMetaInterface
             field.m_JSON );
         rep.saveStepAttribute( id_transformation, id_step, i, "allow_null", //$NON-NLS-1$
             field.insertNull );
+        rep.saveStepAttribute( id_transformation, id_step, i, "decimal128", //$NON-NLS-1$
+            field.m_decimal128 );
       }
     }
 
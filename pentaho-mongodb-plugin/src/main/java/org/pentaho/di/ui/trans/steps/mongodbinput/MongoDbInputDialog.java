@@ -1375,10 +1375,19 @@ public class MongoDbInputDialog extends BaseStepDialog implements StepDialogInte
     return !notOk;
   }
 
-  //Used to catch exceptions from discoverFields calls that come through the callback
-  public void handleNotificationException( Exception exception ) {
-    new ErrorDialog( shell, stepname,
-            BaseMessages.getString( PKG, "MongoDbInputDialog.ErrorMessage.ErrorDuringSampling" ), exception ); //$NON-NLS-1$
+  //Used to catch exceptions from discoverFields calls that come through the callback (on the discovery thread)
+  public void handleNotificationException( final Exception exception ) {
+    if ( shell.isDisposed() ) {
+      return;
+    }
+    shell.getDisplay().asyncExec( new Runnable() {
+      @Override public void run() {
+        if ( !shell.isDisposed() ) {
+          new ErrorDialog( shell, stepname,
+                  BaseMessages.getString( PKG, "MongoDbInputDialog.ErrorMessage.ErrorDuringSampling" ), exception ); //$NON-NLS-1$
+        }
+      }
+    } );
   }
 
   private void getFields( MongoDbInputMeta meta ) {
@@ -1873,6 +1882,23 @@ public class MongoDbInputDialog extends BaseStepDialog implements StepDialogInte
               .discoverFields( propertiesBuilder, db, collection, query, fields, meta.getQueryIsPipeline(), numDocsToSample,
                       meta, vars, new DiscoverFieldsCallback() {
                         @Override public void notifyFields( final List<MongoField> fields ) {
+                          showFields( fields );
+                        }
+
+                        @Override public void notifyProgress( List<MongoField> fields, int docsRead ) {
+                          showFields( fields );
+                        }
+
+                        @Override public void notifyException( Exception exception ) {
+                          mongoDialog.handleNotificationException( exception );
+                        }
+
+                        @Override public boolean isCancelled() {
+                          // stop sampling if the dialog is closed
+                          return mongoDialog.isTableDisposed();
+                        }
+
+                        private void showFields( final List<MongoField> fields ) {
                           if ( fields.size() > 0 ) {
                             Spoon.getInstance().getDisplay().asyncExec( new Runnable() {
                               @Override public void run() {
@@ -1884,10 +1910,6 @@ public class MongoDbInputDialog extends BaseStepDialog implements StepDialogInte
                             } );
                           }
                         }
-
-                        @Override public void notifyException( Exception exception ) {
-                          mongoDialog.handleNotificationException( exception );
-                        }
                       } );
     } catch ( KettleException e ) {
       throw new KettleException( "Unable to discover fields from MongoDB", e );
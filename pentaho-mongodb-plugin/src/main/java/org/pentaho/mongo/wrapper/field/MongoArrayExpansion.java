@@ -14,6 +14,7 @@
 package org.pentaho.mongo.wrapper.field;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 import org.pentaho.di.core.Const;
@@ -30,6 +31,13 @@ import com.mongodb.BasicDBObject;
 public class MongoArrayExpansion {
   protected static Class<?> PKG = MongoArrayExpansion.class; // for i18n purposes
 
+  /**
+   * Receives expanded rows one at a time, as soon as each has been filled in
+   */
+  public interface RowSink {
+    void putRow( Object[] row ) throws KettleException;
+  }
+
   /**
    * The prefix of the full path that defines the expansion
    */
@@ -41,7 +49,9 @@ public class MongoArrayExpansion {
   protected List<MongoField> m_subFields;
 
   private List<String> m_pathParts;
-  private List<String> m_tempParts;
+
+  /** The compiled form of the expansion path */
+  private MongoFieldPath m_path;
 
   public RowMetaInterface m_outputRowMeta;
 
@@ -78,7 +88,7 @@ public class MongoArrayExpansion {
       String r = m_pathParts.get( 0 ).substring( 1, m_pathParts.get( 0 ).length() );
       m_pathParts.set( 0, r );
     }
-    m_tempParts = new ArrayList<String>();
+    m_path = MongoFieldPath.compile( m_pathParts );
 
     // initialize the sub fields
     if ( m_subFields != null ) {
@@ -95,11 +105,7 @@ public class MongoArrayExpansion {
    * @param space environment variables (values that environment variables resolve to cannot contain "."s)
    */
   public void reset( VariableSpace space ) {
-    m_tempParts.clear();
-
-    for ( String part : m_pathParts ) {
-      m_tempParts.add( space.environmentSubstitute( part ) );
-    }
+    m_path = m_path.resolve( space );
 
     // reset sub fields
     for ( MongoField f : m_subFields ) {
@@ -113,134 +119,125 @@ public class MongoArrayExpansion {
     return result;
   }
 
+  private Object[][] collect( Object root ) throws KettleException {
+    final List<Object[]> rows = new ArrayList<Object[]>();
+    expand( root, RowDataUtil.allocateRowData( m_outputRowMeta.size() ), new RowSink() {
+      @Override
+      public void putRow( Object[] row ) {
+        rows.add( row );
+      }
+    } );
+
+    return rows.toArray( new Object[rows.size()][] );
+  }
+
   public Object[][] convertToKettleValue( BasicDBObject mongoObject, VariableSpace space ) throws KettleException {
 
     if ( mongoObject == null ) {
       return nullResult();
     }
 
-    if ( m_tempParts.size() == 0 ) {
+    if ( m_path.size() == 0 ) {
       throw new KettleException(
           BaseMessages.getString( PKG, "MongoDbInput.ErrorMessage.MalformedPathRecord" ) ); //$NON-NLS-1$
     }
 
-    String part = m_tempParts.remove( 0 );
+    return collect( mongoObject );
+  }
+
+  public Object[][] convertToKettleValue( BasicDBList mongoList, VariableSpace space ) throws KettleException {
 
-    if ( part.charAt( 0 ) == '[' ) {
-      // we're not expecting an array at this point - this document does not
-      // contain our field(s)
+    if ( mongoList == null ) {
       return nullResult();
     }
 
-    if ( part.indexOf( '[' ) > 0 ) {
-      String arrayPart = part.substring( part.indexOf( '[' ) );
-      part = part.substring( 0, part.indexOf( '[' ) );
-
-      // put the array section back into location zero
-      m_tempParts.add( 0, arrayPart );
+    if ( m_path.size() == 0 ) {
+      throw new KettleException(
+          BaseMessages.getString( PKG, "MongoDbInput.ErrorMessage.MalformedPathArray" ) ); //$NON-NLS-1$
     }
 
-    // part is a named field of this record
-    Object fieldValue = mongoObject.get( part );
-    if ( fieldValue == null ) {
-      return nullResult();
-    }
+    return collect( mongoList );
+  }
 
-    if ( fieldValue instanceof BasicDBObject ) {
-      return convertToKettleValue( ( (BasicDBObject) fieldValue ), space );
+  /**
+   * Expand a record or array that may have been lazily decoded (i.e. is a raw BSON view rather than a BasicDBObject or
+   * BasicDBList).
+   *
+   * @param document the record or array to expand
+   * @param space    variables to use
+   * @return the expanded rows
+   * @throws KettleException if a problem occurs
+   */
+  public Object[][] convertDocumentToKettleValue( Object document, VariableSpace space ) throws KettleException {
+
+    if ( document == null ) {
+      return nullResult();
     }
 
-    if ( fieldValue instanceof BasicDBList ) {
-      return convertToKettleValue( ( (BasicDBList) fieldValue ), space );
+    if ( m_path.size() == 0 ) {
+      throw new KettleException( BaseMessages.getString( PKG, MongoFieldPath.isArray( document )
+          ? "MongoDbInput.ErrorMessage.MalformedPathArray" //$NON-NLS-1$
+          : "MongoDbInput.ErrorMessage.MalformedPathRecord" ) ); //$NON-NLS-1$
     }
 
-    // must mean we have a primitive here, but we're expecting to process more
-    // path so this doesn't match us - return null
-    return nullResult();
+    return collect( document );
   }
 
-  public Object[][] convertToKettleValue( BasicDBList mongoList, VariableSpace space ) throws KettleException {
+  /**
+   * Expand a record or array (which may have been lazily decoded), handing the rows to a sink one at a time rather than
+   * building them all up first - so the memory needed does not grow with the size of the array. Each row starts as a
+   * copy of a template row holding the values of the fields outside the expansion.
+   *
+   * @param document the record or array to expand
+   * @param template the values of the other fields (handed on as the last row, so it must not be reused)
+   * @param sink     receives the rows
+   * @throws KettleException if a problem occurs
+   */
+  public void expand( Object document, Object[] template, RowSink sink ) throws KettleException {
+    if ( document == null ) {
+      sink.putRow( template );
+      return;
+    }
 
-    if ( mongoList == null ) {
-      return nullResult();
+    if ( m_path.size() == 0 ) {
+      throw new KettleException( BaseMessages.getString( PKG, MongoFieldPath.isArray( document )
+          ? "MongoDbInput.ErrorMessage.MalformedPathArray" //$NON-NLS-1$
+          : "MongoDbInput.ErrorMessage.MalformedPathRecord" ) ); //$NON-NLS-1$
     }
 
-    if ( m_tempParts.size() == 0 ) {
+    int last = m_path.size() - 1;
+    if ( m_path.getKind( last ) != MongoFieldPath.STEP_WILDCARD ) {
       throw new KettleException(
           BaseMessages.getString( PKG, "MongoDbInput.ErrorMessage.MalformedPathArray" ) ); //$NON-NLS-1$
     }
 
-    String part = m_tempParts.remove( 0 );
-    if ( !( part.charAt( 0 ) == '[' ) ) {
-      // we're expecting an array at this point - this document does not
-      // contain our field
-      return nullResult();
-    }
-
-    String index = part.substring( 1, part.indexOf( ']' ) );
-
-    if ( part.indexOf( ']' ) < part.length() - 1 ) {
-      // more dimensions to the array
-      part = part.substring( part.indexOf( ']' ) + 1, part.length() );
-      m_tempParts.add( 0, part );
+    // walk down to the array being expanded
+    Object array = m_path.walk( document, 0, last );
+    if ( !MongoFieldPath.isArray( array ) ) {
+      // this document does not contain our field(s)
+      sink.putRow( template );
+      return;
     }
 
-    if ( index.equals( "*" ) ) { //$NON-NLS-1$
-      // start the expansion - we delegate conversion to our subfields
-      Object[][] result = new Object[mongoList.size()][m_outputRowMeta.size() + RowDataUtil.OVER_ALLOCATE_SIZE];
-
-      for ( int i = 0; i < mongoList.size(); i++ ) {
-        Object element = mongoList.get( i );
+    // start the expansion - we delegate conversion to our subfields. Iterate
+    // rather than index - positional access is linear for lazily decoded arrays
+    Iterator<?> elements = ( (List<?>) array ).iterator();
+    while ( elements.hasNext() ) {
+      Object element = elements.next();
+      Object[] row = elements.hasNext() ? template.clone() : template;
 
-        for ( int j = 0; j < m_subFields.size(); j++ ) {
-          MongoField sf = m_subFields.get( j );
-          sf.reset( space );
+      for ( int j = 0; j < m_subFields.size(); j++ ) {
+        MongoField sf = m_subFields.get( j );
 
-          // what have we got?
-          if ( element instanceof BasicDBObject ) {
-            result[i][sf.m_outputIndex] = sf.convertToKettleValue( (BasicDBObject) element );
-          } else if ( element instanceof BasicDBList ) {
-            result[i][sf.m_outputIndex] = sf.convertToKettleValue( (BasicDBList) element );
-          } else {
-            // assume a primitive
-            result[i][sf.m_outputIndex] = sf.getKettleValue( element );
-          }
+        // what have we got?
+        if ( MongoFieldPath.isRecord( element ) || MongoFieldPath.isArray( element ) ) {
+          row[sf.m_outputIndex] = sf.convertDocument( element );
+        } else {
+          // assume a primitive
+          row[sf.m_outputIndex] = sf.getKettleValue( element );
         }
       }
-
-      return result;
-    } else {
-      int arrayI = 0;
-      try {
-        arrayI = Integer.parseInt( index.trim() );
-      } catch ( NumberFormatException e ) {
-        throw new KettleException(
-            BaseMessages.getString( PKG, "MongoDbInput.ErrorMessage.UnableToParseArrayIndex", index ) ); //$NON-NLS-1$
-      }
-
-      if ( arrayI >= mongoList.size() || arrayI < 0 ) {
-        // index is out of bounds
-        return nullResult();
-      }
-
-      Object element = mongoList.get( arrayI );
-
-      if ( element == null ) {
-        return nullResult();
-      }
-
-      if ( element instanceof BasicDBObject ) {
-        return convertToKettleValue( ( (BasicDBObject) element ), space );
-      }
-
-      if ( element instanceof BasicDBList ) {
-        return convertToKettleValue( ( (BasicDBList) element ), space );
-      }
-
-      // must mean we have a primitive here, but we're expecting to process
-      // more
-      // path so this doesn't match us - return null
-      return nullResult();
+      sink.putRow( row );
     }
   }
 }
@@ -16,10 +16,12 @@ package org.pentaho.mongo.wrapper.field;
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
-import org.bson.BsonUndefined;
 import org.bson.types.Binary;
+import org.bson.types.Decimal128;
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.injection.Injection;
@@ -85,7 +87,23 @@ public class MongoField implements Comparable<MongoField> {
   private ValueMetaInterface m_tempValueMeta;
 
   private List<String> m_pathParts;
-  private List<String> m_tempParts;
+
+  /** The compiled form of the path, re-resolved only when variables in the path change */
+  private MongoFieldPath m_path;
+
+  /** Conversions from Mongo leaf values to the Kettle type of this field */
+  private static final int CONVERT_GENERIC = 0;
+  private static final int CONVERT_AS_IS = 1;
+  private static final int CONVERT_TO_INTEGER = 2;
+  private static final int CONVERT_TO_NUMBER = 3;
+  private static final int CONVERT_DECIMAL128_TO_BIGNUMBER = 4;
+
+  /** The class of the last value converted, and the conversion picked for it */
+  private Class<?> m_conversionClass;
+  private int m_conversion;
+
+  /** The conversion picked for each class of value seen */
+  private Map<Class<?>, Integer> m_conversions;
 
   public MongoField copy() {
     MongoField newF = new MongoField();
@@ -133,8 +151,10 @@ public class MongoField implements Comparable<MongoField> {
       m_pathParts.set( 0, r );
     }
 
-    m_tempParts = new ArrayList<String>();
+    m_path = MongoFieldPath.compile( m_pathParts );
     m_tempValueMeta = ValueMetaFactory.createValueMeta( ValueMeta.getType( m_kettleType ) );
+    m_conversionClass = null;
+    m_conversions = new HashMap<Class<?>, Integer>();
     m_outputIndex = outputIndex;
   }
 
@@ -145,14 +165,18 @@ public class MongoField implements Comparable<MongoField> {
    *          variables to use
    */
   public void reset( VariableSpace space ) {
-    // first clear because there may be stuff left over from processing
-    // the previous mongo document object (especially if a path exited early
-    // due to non-existent field or array index out of bounds)
-    m_tempParts.clear();
+    // the compiled path is kept as long as any variables in it resolve to the
+    // same values, so this is a no-op for the common case of a constant path
+    m_path = m_path.resolve( space );
+  }
 
-    for ( String part : m_pathParts ) {
-      m_tempParts.add( space.environmentSubstitute( part ) );
-    }
+  /**
+   * Get the compiled form of this field's path. Only valid after init() has been called.
+   * 
+   * @return the compiled path (with variables resolved as of the last call to reset())
+   */
+  public MongoFieldPath getFieldPath() {
+    return m_path;
   }
 
   /**
@@ -165,10 +189,105 @@ public class MongoField implements Comparable<MongoField> {
    *           if a problem occurs
    */
   public Object getKettleValue( Object fieldValue ) throws KettleException {
+    if ( fieldValue == null ) {
+      return convertValue( null );
+    }
 
+    // values of a field nearly always have the same BSON type, so the
+    // conversion for the last type is kept to hand, and those for any other
+    // types (e.g. a mix of int32 and int64) are remembered per class
+    Class<?> mongoClass = fieldValue.getClass();
+    if ( mongoClass != m_conversionClass ) {
+      Integer conversion = m_conversions.get( mongoClass );
+      if ( conversion == null ) {
+        conversion = conversionFor( mongoClass );
+        m_conversions.put( mongoClass, conversion );
+      }
+      m_conversion = conversion;
+      m_conversionClass = mongoClass;
+    }
+
+    switch ( m_conversion ) {
+      case CONVERT_AS_IS:
+        return fieldValue;
+      case CONVERT_TO_INTEGER:
+        return Long.valueOf( ( (Number) fieldValue ).longValue() );
+      case CONVERT_TO_NUMBER:
+        return Double.valueOf( ( (Number) fieldValue ).doubleValue() );
+      case CONVERT_DECIMAL128_TO_BIGNUMBER:
+        BigDecimal decimal = bigDecimalValue( (Decimal128) fieldValue );
+        return decimal != null ? decimal : convertValue( fieldValue );
+      default:
+        return convertValue( fieldValue );
+    }
+  }
+
+  /**
+   * Pick the conversion for values of a given class. The direct conversions give the same result as
+   * convertValue(), without going through the value meta.
+   * 
+   * @param mongoClass
+   *          the class of the value from the Mongo structure
+   * @return the conversion to use
+   */
+  private int conversionFor( Class<?> mongoClass ) {
     switch ( m_tempValueMeta.getType() ) {
       case ValueMetaInterface.TYPE_BIGNUMBER:
-        if ( fieldValue instanceof Number ) {
+        if ( mongoClass == Decimal128.class ) {
+          return CONVERT_DECIMAL128_TO_BIGNUMBER;
+        }
+        return mongoClass == BigDecimal.class ? CONVERT_AS_IS : CONVERT_GENERIC;
+      case ValueMetaInterface.TYPE_BOOLEAN:
+        return mongoClass == Boolean.class ? CONVERT_AS_IS : CONVERT_GENERIC;
+      case ValueMetaInterface.TYPE_DATE:
+        return mongoClass == Date.class ? CONVERT_AS_IS : CONVERT_GENERIC;
+      case ValueMetaInterface.TYPE_INTEGER:
+        return mongoClass == Integer.class || mongoClass == Long.class ? CONVERT_TO_INTEGER : CONVERT_GENERIC;
+      case ValueMetaInterface.TYPE_NUMBER:
+        if ( mongoClass == Double.class ) {
+          return CONVERT_AS_IS;
+        }
+        return mongoClass == Integer.class || mongoClass == Long.class ? CONVERT_TO_NUMBER : CONVERT_GENERIC;
+      case ValueMetaInterface.TYPE_STRING:
+        // the value meta has no trimming or padding set
+        return mongoClass == String.class ? CONVERT_AS_IS : CONVERT_GENERIC;
+      default:
+        return CONVERT_GENERIC;
+    }
+  }
+
+  /**
+   * Convert a Decimal128 to a BigDecimal directly (no string or double in between).
+   * 
+   * @param value
+   *          the Decimal128
+   * @return the BigDecimal, or null for NaN and infinity, which BigDecimal can't hold
+   */
+  private static BigDecimal bigDecimalValue( Decimal128 value ) {
+    if ( value.isNaN() || value.isInfinite() ) {
+      return null;
+    }
+    try {
+      return value.bigDecimalValue();
+    } catch ( ArithmeticException e ) {
+      // negative zero
+      return BigDecimal.ZERO;
+    }
+  }
+
+  private Object convertValue( Object fieldValue ) throws KettleException {
+
+    switch ( m_tempValueMeta.getType() ) {
+      case ValueMetaInterface.TYPE_BIGNUMBER:
+        BigDecimal decimal = fieldValue instanceof Decimal128 ? bigDecimalValue( (Decimal128) fieldValue ) : null;
+        if ( decimal != null ) {
+          fieldValue = decimal;
+        } else if ( fieldValue instanceof BigDecimal ) {
+          // already a big number
+        } else if ( fieldValue instanceof Integer || fieldValue instanceof Long ) {
+          // exact, unlike going through a double
+          fieldValue = BigDecimal.valueOf( ( (Number) fieldValue ).longValue() );
+        } else if ( fieldValue instanceof Number ) {
           fieldValue = BigDecimal.valueOf( ( (Number) fieldValue ).doubleValue() );
         } else if ( fieldValue instanceof Date ) {
           fieldValue = new BigDecimal( ( (Date) fieldValue ).getTime() );
@@ -193,11 +312,11 @@ public class MongoField implements Comparable<MongoField> {
         return m_tempValueMeta.getBinary( fieldValue );
       case ValueMetaInterface.TYPE_BOOLEAN:
         if ( fieldValue instanceof Number ) {
-          fieldValue = new Boolean( ( (Number) fieldValue ).intValue() != 0 );
+          fieldValue = Boolean.valueOf( ( (Number) fieldValue ).intValue() != 0 );
         } else if ( fieldValue instanceof Date ) {
-          fieldValue = new Boolean( ( (Date) fieldValue ).getTime() != 0 );
+          fieldValue = Boolean.valueOf( ( (Date) fieldValue ).getTime() != 0 );
         } else if ( !( fieldValue instanceof Boolean ) ) {
-          fieldValue = new Boolean( fieldValue.toString().equalsIgnoreCase( "Y" ) //$NON-NLS-1$
+          fieldValue = Boolean.valueOf( fieldValue.toString().equalsIgnoreCase( "Y" ) //$NON-NLS-1$
               || fieldValue.toString().equalsIgnoreCase( "T" ) //$NON-NLS-1$
               || fieldValue.toString().equalsIgnoreCase( "1" ) ); //$NON-NLS-1$
         }
@@ -212,24 +331,25 @@ public class MongoField implements Comparable<MongoField> {
         return m_tempValueMeta.getDate( fieldValue );
       case ValueMetaInterface.TYPE_INTEGER:
         if ( fieldValue instanceof Number ) {
-          fieldValue = new Long( ( (Number) fieldValue ).intValue() );
+          // int64 values don't fit in an int
+          fieldValue = Long.valueOf( ( (Number) fieldValue ).longValue() );
         } else if ( fieldValue instanceof Binary ) {
           byte[] b = ( (Binary) fieldValue ).getData();
           String s = new String( b );
-          fieldValue = new Long( s );
+          fieldValue = Long.valueOf( s );
         } else {
-          fieldValue = new Long( fieldValue.toString() );
+          fieldValue = Long.valueOf( fieldValue.toString() );
         }
         return m_tempValueMeta.getInteger( fieldValue );
       case ValueMetaInterface.TYPE_NUMBER:
         if ( fieldValue instanceof Number ) {
-          fieldValue = new Double( ( (Number) fieldValue ).doubleValue() );
+          fieldValue = Double.valueOf( ( (Number) fieldValue ).doubleValue() );
         } else if ( fieldValue instanceof Binary ) {
           byte[] b = ( (Binary) fieldValue ).getData();
           String s = new String( b );
-          fieldValue = new Double( s );
+          fieldValue = Double.valueOf( s );
         } else {
-          fieldValue = new Double( fieldValue.toString() );
+          fieldValue = Double.valueOf( fieldValue.toString() );
         }
         return m_tempValueMeta.getNumber( fieldValue );
       case ValueMetaInterface.TYPE_STRING:
@@ -254,50 +374,11 @@ public class MongoField implements Comparable<MongoField> {
       return null;
     }
 
-    if ( m_tempParts.size() == 0 ) {
+    if ( m_path.size() == 0 ) {
       throw new KettleException( BaseMessages.getString( PKG, "MongoDbInput.ErrorMessage.MalformedPathRecord" ) ); //$NON-NLS-1$
     }
 
-    String part = m_tempParts.remove( 0 );
-
-    if ( part.charAt( 0 ) == '[' ) {
-      // we're not expecting an array at this point - this document does not
-      // contain our field
-      return null;
-    }
-
-    if ( part.indexOf( '[' ) > 0 ) {
-      String arrayPart = part.substring( part.indexOf( '[' ) );
-      part = part.substring( 0, part.indexOf( '[' ) );
-
-      // put the array section back into location zero
-      m_tempParts.add( 0, arrayPart );
-    }
-
-    // part is a named field of this record
-    Object fieldValue = mongoObject.get( part );
-    if ( fieldValue == null || fieldValue.getClass().equals( BsonUndefined.class ) ) {
-      return null;
-    }
-
-    // what have we got
-    if ( m_tempParts.size() == 0 ) {
-      // we're expecting a leaf primitive - lets see if that's what we have
-      // here...
-      return getKettleValue( fieldValue );
-    }
-
-    if ( fieldValue instanceof BasicDBObject ) {
-      return convertToKettleValue( ( (BasicDBObject) fieldValue ) );
-    }
-
-    if ( fieldValue instanceof BasicDBList ) {
-      return convertToKettleValue( ( (BasicDBList) fieldValue ) );
-    }
-
-    // must mean we have a primitive here, but we're expecting to process more
-    // path so this doesn't match us - return null
-    return null;
+    return convertLeaf( m_path.walk( mongoObject, 0, m_path.size() ) );
   }
 
   /**
@@ -315,59 +396,36 @@ public class MongoField implements Comparable<MongoField> {
       return null;
     }
 
-    if ( m_tempParts.size() == 0 ) {
+    if ( m_path.size() == 0 ) {
       throw new KettleException( BaseMessages.getString( PKG, "MongoDbInput.ErrorMessage.MalformedPathArray" ) ); //$NON-NLS-1$
     }
 
-    String part = m_tempParts.remove( 0 );
-    if ( !( part.charAt( 0 ) == '[' ) ) {
-      // we're expecting an array at this point - this document does not
-      // contain our field
-      return null;
-    }
-
-    String index = part.substring( 1, part.indexOf( ']' ) );
-    int arrayI = 0;
-    try {
-      arrayI = Integer.parseInt( index.trim() );
-    } catch ( NumberFormatException e ) {
-      throw new KettleException( BaseMessages.getString( PKG,
-          "MongoDbInput.ErrorMessage.UnableToParseArrayIndex", index ) ); //$NON-NLS-1$
-    }
-
-    if ( part.indexOf( ']' ) < part.length() - 1 ) {
-      // more dimensions to the array
-      part = part.substring( part.indexOf( ']' ) + 1, part.length() );
-      m_tempParts.add( 0, part );
-    }
-
-    if ( arrayI >= mongoList.size() || arrayI < 0 ) {
-      return null;
-    }
-
-    Object element = mongoList.get( arrayI );
-
-    if ( element == null ) {
-      return null;
-    }
-
-    if ( m_tempParts.size() == 0 ) {
-      // we're expecting a leaf primitive - let's see if that's what we have
-      // here...
-      return getKettleValue( element );
-    }
+    return convertLeaf( m_path.walk( mongoList, 0, m_path.size() ) );
+  }
 
-    if ( element instanceof BasicDBObject ) {
-      return convertToKettleValue( ( (BasicDBObject) element ) );
+  /**
+   * Convert a record or array (fully or lazily decoded) to a Kettle field value (for the field defined by this path)
+   *
+   * @param document
+   *          the record or array to convert
+   * @return the kettle field value
+   * @throws KettleException
+   *           if a problem occurs
+   */
+  Object convertDocument( Object document ) throws KettleException {
+    if ( m_path.size() == 0 ) {
+      throw new KettleException( BaseMessages.getString( PKG, MongoFieldPath.isArray( document )
+          ? "MongoDbInput.ErrorMessage.MalformedPathArray" //$NON-NLS-1$
+          : "MongoDbInput.ErrorMessage.MalformedPathRecord" ) ); //$NON-NLS-1$
     }
 
-    if ( element instanceof BasicDBList ) {
-      return convertToKettleValue( ( (BasicDBList) element ) );
-    }
+    return convertLeaf( m_path.walk( document, 0, m_path.size() ) );
+  }
 
-    // must mean we have a primitive here, but we're expecting to process more
-    // path so this doesn't match us - return null
-    return null;
+  Object convertLeaf( Object leaf ) throws KettleException {
+    // a null leaf means that the document does not contain our field (or
+    // a primitive was found where the path expected more structure)
+    return leaf == null ? null : getKettleValue( MongoFieldPath.materialize( leaf ) );
   }
 
   /**
@@ -0,0 +1,326 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2026 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mongo.wrapper.field;
+
+import java.util.List;
+
+import org.bson.BSONObject;
+import org.bson.BsonUndefined;
+import org.bson.LazyBSONObject;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.i18n.BaseMessages;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+
+/**
+ * An immutable, pre-parsed form of a field path (e.g. <code>$.customer.address[0].street</code>). Each part of the
+ * path is compiled once into a typed step - a key lookup, a fixed array index or an array wildcard - so that values
+ * can be pulled out of documents without re-parsing the path for every record.
+ */
+public final class MongoFieldPath {
+  protected static Class<?> PKG = MongoFieldPath.class; // for i18n purposes
+
+  /** Look up a named field in a record */
+  public static final int STEP_KEY = 0;
+
+  /** Select a fixed element of an array */
+  public static final int STEP_INDEX = 1;
+
+  /** Expand all elements of an array ([*]) */
+  public static final int STEP_WILDCARD = 2;
+
+  /** An array index that could not be parsed - only reported if the step is actually reached */
+  public static final int STEP_BAD_INDEX = 3;
+
+  private static final String[] VARIABLE_MARKERS = { "${", "%%", "$[" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+  /** The unsubstituted path parts (may contain variables) */
+  private final String[] m_rawParts;
+
+  /** The path parts this plan was compiled from (after variable substitution) */
+  private final String[] m_resolvedParts;
+
+  /** True if any of the raw parts contains a variable */
+  private final boolean m_hasVariables;
+
+  private final int[] m_kinds;
+  private final String[] m_keys;
+  private final int[] m_indexes;
+
+  private MongoFieldPath( String[] rawParts, String[] resolvedParts, boolean hasVariables ) {
+    m_rawParts = rawParts;
+    m_resolvedParts = resolvedParts;
+    m_hasVariables = hasVariables;
+
+    int numSteps = 0;
+    for ( String part : resolvedParts ) {
+      numSteps += countSteps( part );
+    }
+    m_kinds = new int[numSteps];
+    m_keys = new String[numSteps];
+    m_indexes = new int[numSteps];
+
+    int step = 0;
+    for ( String part : resolvedParts ) {
+      step = compilePart( part, step );
+    }
+  }
+
+  /**
+   * Compile a path that has already been split on "."s and had the leading root indicator removed.
+   *
+   * @param pathParts the parts of the path
+   * @return the compiled path
+   */
+  public static MongoFieldPath compile( List<String> pathParts ) {
+    String[] raw = pathParts.toArray( new String[pathParts.size()] );
+    boolean hasVariables = false;
+    for ( String part : raw ) {
+      hasVariables |= containsVariable( part );
+    }
+
+    return new MongoFieldPath( raw, raw, hasVariables );
+  }
+
+  /**
+   * Resolve any variables in this path. The same instance is returned if the path contains no variables or if the
+   * variables resolve to the same values as last time, so that documents are processed with an already compiled plan.
+   *
+   * @param space variables to use
+   * @return a compiled path with variables resolved
+   */
+  public MongoFieldPath resolve( VariableSpace space ) {
+    if ( !m_hasVariables ) {
+      return this;
+    }
+
+    String[] resolved = null;
+    for ( int i = 0; i < m_rawParts.length; i++ ) {
+      if ( !containsVariable( m_rawParts[i] ) ) {
+        continue;
+      }
+      String part = space.environmentSubstitute( m_rawParts[i] );
+      if ( !part.equals( m_resolvedParts[i] ) ) {
+        if ( resolved == null ) {
+          resolved = m_resolvedParts.clone();
+        }
+        resolved[i] = part;
+      }
+    }
+
+    return resolved == null ? this : new MongoFieldPath( m_rawParts, resolved, true );
+  }
+
+  /**
+   * @return the number of steps in this path
+   */
+  public int size() {
+    return m_kinds.length;
+  }
+
+  /**
+   * @param step the index of the step
+   * @return the kind of the step (one of the STEP_ constants)
+   */
+  public int getKind( int step ) {
+    return m_kinds[step];
+  }
+
+  /**
+   * @param step the index of the step
+   * @return the field name for a key step
+   */
+  public String getKey( int step ) {
+    return m_keys[step];
+  }
+
+  /**
+   * @param step the index of the step
+   * @return the array index for an index step
+   */
+  public int getIndex( int step ) {
+    return m_indexes[step];
+  }
+
+  /**
+   * Check whether a value is a record (sub-document). Both fully decoded and lazily decoded (raw BSON) records are
+   * recognized.
+   *
+   * @param node the value to check
+   * @return true if the value is a record
+   */
+  public static boolean isRecord( Object node ) {
+    return node instanceof BSONObject && !( node instanceof List );
+  }
+
+  /**
+   * Check whether a value is an array. Both fully decoded and lazily decoded (raw BSON) arrays are recognized.
+   *
+   * @param node the value to check
+   * @return true if the value is an array
+   */
+  public static boolean isArray( Object node ) {
+    return node instanceof List;
+  }
+
+  /**
+   * Fully decode a value reached in a lazily decoded (raw BSON) document, so that it converts to the same Kettle value
+   * as it would have done had the whole document been decoded up front. Other values are returned unchanged.
+   *
+   * @param value the value
+   * @return the decoded value
+   */
+  public static Object materialize( Object value ) {
+    if ( !( value instanceof LazyBSONObject ) ) {
+      return value;
+    }
+
+    if ( value instanceof List ) {
+      BasicDBList list = new BasicDBList();
+      for ( Object element : (List<?>) value ) {
+        list.add( materialize( element ) );
+      }
+      return list;
+    }
+
+    LazyBSONObject lazy = (LazyBSONObject) value;
+    BasicDBObject record = new BasicDBObject();
+    for ( String key : lazy.keySet() ) {
+      record.put( key, materialize( lazy.get( key ) ) );
+    }
+    return record;
+  }
+
+  /**
+   * Execute a range of the steps of this path against a document (or sub-document).
+   *
+   * @param node the record or array to start from
+   * @param from the first step to execute
+   * @param to   the step to stop before
+   * @return the value reached, or null if the document does not contain the path
+   * @throws KettleException if an array index in the path can't be parsed
+   */
+  public Object walk( Object node, int from, int to ) throws KettleException {
+    for ( int i = from; i < to && node != null; i++ ) {
+      node = step( node, i );
+    }
+
+    return node;
+  }
+
+  /**
+   * Execute a single step of this path.
+   *
+   * @param node the record or array that the step applies to
+   * @param step the index of the step
+   * @return the value reached, or null if the node does not contain the step
+   * @throws KettleException if the step is an array index that can't be parsed
+   */
+  public Object step( Object node, int step ) throws KettleException {
+    switch ( m_kinds[step] ) {
+      case STEP_KEY:
+        if ( !isRecord( node ) ) {
+          // we're expecting a record at this point - this document does not
+          // contain our field
+          return null;
+        }
+        Object value = ( (BSONObject) node ).get( m_keys[step] );
+        return value instanceof BsonUndefined ? null : value;
+      case STEP_INDEX:
+        if ( !isArray( node ) ) {
+          return null;
+        }
+        List<?> list = (List<?>) node;
+        if ( m_indexes[step] < 0 || m_indexes[step] >= list.size() ) {
+          return null;
+        }
+        return list.get( m_indexes[step] );
+      default:
+        if ( !isArray( node ) ) {
+          return null;
+        }
+        throw new KettleException( BaseMessages.getString( PKG,
+            "MongoDbInput.ErrorMessage.UnableToParseArrayIndex", m_keys[step] ) ); //$NON-NLS-1$
+    }
+  }
+
+  /**
+   * Check whether a step of this path selects the same thing as a step of another path.
+   *
+   * @param step      the index of the step in this path
+   * @param other     the other path
+   * @param otherStep the index of the step in the other path
+   * @return true if the two steps are equivalent
+   */
+  public boolean sameStep( int step, MongoFieldPath other, int otherStep ) {
+    return m_kinds[step] == other.m_kinds[otherStep] && m_keys[step].equals( other.m_keys[otherStep] );
+  }
+
+  private static boolean containsVariable( String part ) {
+    for ( String marker : VARIABLE_MARKERS ) {
+      if ( part.contains( marker ) ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static int countSteps( String part ) {
+    int count = 0;
+    int pos = 0;
+    while ( pos < part.length() || count == 0 ) {
+      count++;
+      if ( pos < part.length() && part.charAt( pos ) == '[' ) {
+        int close = part.indexOf( ']', pos );
+        pos = close < 0 ? part.length() : close + 1;
+      } else {
+        int open = part.indexOf( '[', pos );
+        pos = open < 0 ? part.length() : open;
+      }
+    }
+    return count;
+  }
+
+  private int compilePart( String part, int step ) {
+    int pos = 0;
+    boolean first = true;
+    while ( pos < part.length() || first ) {
+      first = false;
+      if ( pos < part.length() && part.charAt( pos ) == '[' ) {
+        int close = part.indexOf( ']', pos );
+        String index = part.substring( pos + 1, close < 0 ? part.length() : close );
+        pos = close < 0 ? part.length() : close + 1;
+
+        m_keys[step] = index;
+        if ( index.equals( "*" ) ) { //$NON-NLS-1$
+          m_kinds[step] = STEP_WILDCARD;
+        } else {
+          try {
+            m_indexes[step] = Integer.parseInt( index.trim() );
+            m_kinds[step] = close < 0 ? STEP_BAD_INDEX : STEP_INDEX;
+          } catch ( NumberFormatException e ) {
+            m_kinds[step] = STEP_BAD_INDEX;
+          }
+        }
+      } else {
+        int open = part.indexOf( '[', pos );
+        m_keys[step] = part.substring( pos, open < 0 ? part.length() : open );
+        m_kinds[step] = STEP_KEY;
+        pos = open < 0 ? part.length() : open;
+      }
+      step++;
+    }
+    return step;
+  }
+}
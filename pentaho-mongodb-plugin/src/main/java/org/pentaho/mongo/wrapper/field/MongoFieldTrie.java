@@ -0,0 +1,152 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2026 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mongo.wrapper.field;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.i18n.BaseMessages;
+
+/**
+ * A trie of the compiled paths of a set of fields. Fields that share a path prefix (e.g. $.customer.address.street and
+ * $.customer.address.city) share the nodes for that prefix, so a single walk of a document fills in the values for all
+ * fields rather than traversing the same sub-documents once per field.
+ */
+public class MongoFieldTrie {
+  protected static Class<?> PKG = MongoFieldTrie.class; // for i18n purposes
+
+  private static final Node[] NO_CHILDREN = new Node[0];
+  private static final MongoField[] NO_FIELDS = new MongoField[0];
+
+  private static class Node {
+    /** The path (and step within it) that this node executes */
+    MongoFieldPath m_path;
+    int m_step;
+
+    List<Node> m_childList = new ArrayList<Node>();
+    List<MongoField> m_fieldList = new ArrayList<MongoField>();
+
+    /** Frozen copies of the lists above, used when walking documents */
+    Node[] m_children = NO_CHILDREN;
+    MongoField[] m_fields = NO_FIELDS;
+
+    Node child( MongoFieldPath path, int step ) {
+      for ( Node c : m_childList ) {
+        if ( c.m_path.sameStep( c.m_step, path, step ) ) {
+          return c;
+        }
+      }
+      Node c = new Node();
+      c.m_path = path;
+      c.m_step = step;
+      m_childList.add( c );
+
+      return c;
+    }
+
+    void freeze() {
+      m_children = m_childList.toArray( new Node[m_childList.size()] );
+      m_fields = m_fieldList.toArray( new MongoField[m_fieldList.size()] );
+      m_childList = null;
+      m_fieldList = null;
+      for ( Node c : m_children ) {
+        c.freeze();
+      }
+    }
+  }
+
+  private final List<MongoField> m_sourceFields;
+
+  /** The compiled path of each field at the time the trie was built */
+  private final MongoFieldPath[] m_builtFrom;
+
+  private final Node m_root = new Node();
+
+  /**
+   * Build a trie for the supplied fields. The fields must have been initialized.
+   *
+   * @param fields the fields to build the trie for
+   */
+  public MongoFieldTrie( List<MongoField> fields ) {
+    m_sourceFields = fields;
+    m_builtFrom = new MongoFieldPath[fields.size()];
+
+    for ( int i = 0; i < fields.size(); i++ ) {
+      MongoField f = fields.get( i );
+      MongoFieldPath path = f.getFieldPath();
+      m_builtFrom[i] = path;
+
+      Node current = m_root;
+      for ( int s = 0; s < path.size(); s++ ) {
+        current = current.child( path, s );
+      }
+      current.m_fieldList.add( f );
+    }
+
+    m_root.freeze();
+  }
+
+  /**
+   * Check whether the trie needs to be rebuilt because the path of one of the fields has been re-resolved (i.e.
+   * variables in the path have changed) since the trie was built.
+   *
+   * @return true if the trie is out of date
+   */
+  public boolean isStale() {
+    for ( int i = 0; i < m_builtFrom.length; i++ ) {
+      if ( m_sourceFields.get( i ).getFieldPath() != m_builtFrom[i] ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Walk a document once, setting the value of every field in the trie in the supplied output row. Fields whose path
+   * is not present in the document are left untouched.
+   *
+   * @param document the document (record or array, fully or lazily decoded) to convert
+   * @param row      the output row to fill
+   * @throws KettleException if a problem occurs
+   */
+  public void convert( Object document, Object[] row ) throws KettleException {
+    if ( document == null ) {
+      return;
+    }
+
+    if ( m_root.m_fields.length > 0 ) {
+      throw new KettleException( BaseMessages.getString( PKG, MongoFieldPath.isRecord( document )
+          ? "MongoDbInput.ErrorMessage.MalformedPathRecord" //$NON-NLS-1$
+          : "MongoDbInput.ErrorMessage.MalformedPathArray" ) ); //$NON-NLS-1$
+    }
+
+    visit( m_root, document, row );
+  }
+
+  private static void visit( Node node, Object value, Object[] row ) throws KettleException {
+    for ( Node child : node.m_children ) {
+      Object childValue = child.m_path.step( value, child.m_step );
+      if ( childValue == null ) {
+        continue;
+      }
+
+      for ( MongoField f : child.m_fields ) {
+        row[f.m_outputIndex] = f.convertLeaf( childValue );
+      }
+
+      if ( child.m_children.length > 0 ) {
+        visit( child, childValue, row );
+      }
+    }
+  }
+}
@@ -0,0 +1,247 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2026 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mongo.wrapper.field;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import org.pentaho.di.core.Const;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches the fields discovered by sampling a collection, so that asking for the fields of an unchanged sample again
+ * (e.g. re-opening a step dialog) doesn't re-read the sample. Entries are keyed by a hash of everything that determines
+ * the sample (connection, database, collection, query, sample size etc.), expire after a time to live, and can be
+ * discarded when the document count or size of the collection has changed since the fields were discovered. Entries
+ * can also be written to disk, under the Kettle home directory, so that they outlive the session. Only the key hash is
+ * written to disk, never the connection details themselves.
+ * <p>
+ * Thread safe - one instance is shared by all discoveries.
+ */
+public class MongoSchemaCache {
+
+  /** The maximum number of entries held in memory */
+  public static final int MAX_ENTRIES = 100;
+
+  private static final MongoSchemaCache INSTANCE =
+    new MongoSchemaCache( new File( Const.getKettleDirectory(), "mongodb-schema-cache" ) ); //$NON-NLS-1$
+
+  private static class Entry {
+    final List<MongoField> m_fields;
+    final long m_created;
+
+    /** the collection statistics when the fields were discovered, or null if unknown */
+    final long[] m_stats;
+
+    Entry( List<MongoField> fields, long created, long[] stats ) {
+      m_fields = fields;
+      m_created = created;
+      m_stats = stats;
+    }
+  }
+
+  /** in access order, so the first entry is the least recently used */
+  private final Map<String, Entry> m_entries = new LinkedHashMap<String, Entry>( 16, 0.75f, true ) {
+    @Override
+    protected boolean removeEldestEntry( Map.Entry<String, Entry> eldest ) {
+      return size() > MAX_ENTRIES;
+    }
+  };
+
+  private final File m_directory;
+
+  /**
+   * @param directory where entries are written when they are persisted
+   */
+  public MongoSchemaCache( File directory ) {
+    m_directory = directory;
+  }
+
+  /**
+   * @return the cache shared by all discoveries
+   */
+  public static MongoSchemaCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Build a key from the things that determine a sample.
+   *
+   * @param parts the connection details, database, collection, query etc.
+   * @return the key (a hash of the parts)
+   */
+  public static String key( Object... parts ) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance( "SHA-256" ); //$NON-NLS-1$
+      for ( Object part : parts ) {
+        digest.update( String.valueOf( part ).getBytes( StandardCharsets.UTF_8 ) );
+        digest.update( (byte) 0 );
+      }
+      StringBuilder key = new StringBuilder();
+      for ( byte b : digest.digest() ) {
+        key.append( String.format( "%02x", b ) ); //$NON-NLS-1$
+      }
+      return key.toString();
+    } catch ( NoSuchAlgorithmException e ) {
+      // every Java platform has SHA-256
+      throw new IllegalStateException( e );
+    }
+  }
+
+  /**
+   * Look up the fields discovered for a sample.
+   *
+   * @param key        the key for the sample
+   * @param ttlMillis  how long (ms) discovered fields stay valid
+   * @param stats      the current statistics of the collection, or null to not check them
+   * @param persistent true to look on disk if the entry isn't in memory
+   * @return copies of the fields, or null if there is no valid entry
+   */
+  public synchronized List<MongoField> get( String key, long ttlMillis, long[] stats, boolean persistent ) {
+    Entry entry = m_entries.get( key );
+    if ( entry == null && persistent ) {
+      entry = load( key );
+      if ( entry != null ) {
+        m_entries.put( key, entry );
+      }
+    }
+    if ( entry == null ) {
+      return null;
+    }
+
+    if ( now() - entry.m_created >= ttlMillis || ( stats != null && !Arrays.equals( stats, entry.m_stats ) ) ) {
+      m_entries.remove( key );
+      file( key ).delete();
+      return null;
+    }
+
+    return copy( entry.m_fields );
+  }
+
+  /**
+   * Cache the fields discovered for a sample.
+   *
+   * @param key        the key for the sample
+   * @param fields     the fields
+   * @param stats      the statistics of the collection before it was sampled, or null if unknown
+   * @param persistent true to also write the entry to disk
+   */
+  public synchronized void put( String key, List<MongoField> fields, long[] stats, boolean persistent ) {
+    Entry entry = new Entry( copy( fields ), now(), stats );
+    m_entries.put( key, entry );
+    if ( persistent ) {
+      save( key, entry );
+    }
+  }
+
+  /**
+   * @return the number of entries held in memory
+   */
+  public synchronized int size() {
+    return m_entries.size();
+  }
+
+  /**
+   * @return the current time (ms)
+   */
+  protected long now() {
+    return System.currentTimeMillis();
+  }
+
+  private File file( String key ) {
+    return new File( m_directory, key + ".json" ); //$NON-NLS-1$
+  }
+
+  private void save( String key, Entry entry ) {
+    BasicDBList fields = new BasicDBList();
+    for ( MongoField f : entry.m_fields ) {
+      fields.add( new BasicDBObject( "name", f.m_fieldName ).append( "path", f.m_fieldPath ) //$NON-NLS-1$ //$NON-NLS-2$
+        .append( "type", f.m_kettleType ).append( "occurrence", f.m_occurenceFraction ) //$NON-NLS-1$ //$NON-NLS-2$
+        .append( "array_index", f.m_arrayIndexInfo ).append( "disparate", f.m_disparateTypes ) ); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+    DBObject doc = new BasicDBObject( "created", entry.m_created ).append( "fields", fields ); //$NON-NLS-1$ //$NON-NLS-2$
+    if ( entry.m_stats != null ) {
+      doc.put( "stats", Arrays.asList( entry.m_stats[ 0 ], entry.m_stats[ 1 ] ) ); //$NON-NLS-1$
+    }
+
+    // the cache is only an optimisation, so failing to write it is not an error
+    try {
+      Files.createDirectories( m_directory.toPath() );
+      File temp = File.createTempFile( "entry", ".tmp", m_directory ); //$NON-NLS-1$ //$NON-NLS-2$
+      Files.write( temp.toPath(), JSON.serialize( doc ).getBytes( StandardCharsets.UTF_8 ) );
+      Files.move( temp.toPath(), file( key ).toPath(), StandardCopyOption.REPLACE_EXISTING );
+    } catch ( IOException e ) {
+      // ignore
+    }
+  }
+
+  private Entry load( String key ) {
+    File file = file( key );
+    if ( !file.isFile() ) {
+      return null;
+    }
+
+    // a missing, unreadable or corrupt entry just means sampling again
+    try {
+      DBObject doc = (DBObject) JSON.parse( new String( Files.readAllBytes( file.toPath() ), StandardCharsets.UTF_8 ) );
+      List<MongoField> fields = new ArrayList<MongoField>();
+      for ( Object o : (List<?>) doc.get( "fields" ) ) { //$NON-NLS-1$
+        DBObject f = (DBObject) o;
+        MongoField field = new MongoField();
+        field.m_fieldName = (String) f.get( "name" ); //$NON-NLS-1$
+        field.m_fieldPath = (String) f.get( "path" ); //$NON-NLS-1$
+        field.m_kettleType = (String) f.get( "type" ); //$NON-NLS-1$
+        field.m_occurenceFraction = (String) f.get( "occurrence" ); //$NON-NLS-1$
+        field.m_arrayIndexInfo = (String) f.get( "array_index" ); //$NON-NLS-1$
+        field.m_disparateTypes = Boolean.TRUE.equals( f.get( "disparate" ) ); //$NON-NLS-1$
+        fields.add( field );
+      }
+
+      long[] stats = null;
+      List<?> s = (List<?>) doc.get( "stats" ); //$NON-NLS-1$
+      if ( s != null ) {
+        stats = new long[] { ( (Number) s.get( 0 ) ).longValue(), ( (Number) s.get( 1 ) ).longValue() };
+      }
+      return new Entry( fields, ( (Number) doc.get( "created" ) ).longValue(), stats ); //$NON-NLS-1$
+    } catch ( IOException | RuntimeException e ) {
+      file.delete();
+      return null;
+    }
+  }
+
+  private static List<MongoField> copy( List<MongoField> fields ) {
+    List<MongoField> copies = new ArrayList<MongoField>( fields.size() );
+    for ( MongoField f : fields ) {
+      MongoField copy = f.copy();
+      copy.m_occurenceFraction = f.m_occurenceFraction;
+      copy.m_arrayIndexInfo = f.m_arrayIndexInfo;
+      copy.m_disparateTypes = f.m_disparateTypes;
+      copy.m_percentageOfSample = f.m_percentageOfSample;
+      copy.m_mongoType = f.m_mongoType;
+      copies.add( copy );
+    }
+    return copies;
+  }
+}
@@ -0,0 +1,377 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2026 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mongo.wrapper.field;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.pentaho.di.core.row.ValueMeta;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Accumulates the structure of sampled documents as a tree, with a node for each key and for the elements of each
+ * array. Each place a primitive value occurs keeps counters (occurrences, occurrences by type, and the range of indexes
+ * of the enclosing arrays) instead of a field name and path, which are only produced once all the documents have been
+ * seen, by {@link #getFields()}.
+ * <p>
+ * The number of distinct keys under one path, and the number of elements of a primitive array that get a field of their
+ * own, are capped so that documents with huge heterogeneous arrays (or maps keyed by ids) don't produce an unbounded
+ * number of fields.
+ * <p>
+ * Not thread safe - concurrent discovery builds a tree per thread and merges them.
+ */
+public class MongoSchemaTree {
+
+  /** The maximum number of distinct keys under one path */
+  public static final int MAX_KEYS = 10000;
+
+  /** The maximum number of elements of a primitive array that get a field of their own */
+  public static final int MAX_INDEXED_ELEMENTS = 1000;
+
+  /**
+   * A place where primitive values occur: either a key of a record, or an element (with a fixed index) of an array
+   */
+  private static class Leaf {
+
+    /** true for an array element, false for the value of a record key */
+    final boolean m_element;
+
+    /**
+     * For the value of a record key, the lowest and highest index seen for each enclosing array; for an array element,
+     * the indexes of the enclosing arrays where it was first seen (in m_minIndexes)
+     */
+    final int[] m_minIndexes;
+    final int[] m_maxIndexes;
+
+    /** Occurrences by class of value (String for null), in the order the classes were first seen */
+    final Map<Class<?>, int[]> m_typeCounts = new LinkedHashMap<Class<?>, int[]>();
+
+    /** The Kettle type for the first value seen */
+    final int m_kettleType;
+
+    int m_count;
+
+    Leaf( boolean element, int[] indexes, int depth, Object firstValue ) {
+      m_element = element;
+      m_minIndexes = new int[ depth ];
+      m_maxIndexes = new int[ depth ];
+      System.arraycopy( indexes, 0, m_minIndexes, 0, depth );
+      System.arraycopy( indexes, 0, m_maxIndexes, 0, depth );
+      m_kettleType = MongodbInputDiscoverFieldsImpl.mongoToKettleType( firstValue );
+    }
+
+    void add( Object value, int[] indexes ) {
+      m_count++;
+      Class<?> type = value == null ? String.class : value.getClass();
+      int[] typeCount = m_typeCounts.get( type );
+      if ( typeCount == null ) {
+        m_typeCounts.put( type, new int[] { 1 } );
+      } else {
+        typeCount[ 0 ]++;
+      }
+
+      if ( !m_element ) {
+        for ( int i = 0; i < m_minIndexes.length; i++ ) {
+          m_minIndexes[ i ] = Math.min( m_minIndexes[ i ], indexes[ i ] );
+          m_maxIndexes[ i ] = Math.max( m_maxIndexes[ i ], indexes[ i ] );
+        }
+      }
+    }
+
+    void merge( Leaf other ) {
+      m_count += other.m_count;
+      for ( Map.Entry<Class<?>, int[]> e : other.m_typeCounts.entrySet() ) {
+        int[] typeCount = m_typeCounts.get( e.getKey() );
+        if ( typeCount == null ) {
+          m_typeCounts.put( e.getKey(), new int[] { e.getValue()[ 0 ] } );
+        } else {
+          typeCount[ 0 ] += e.getValue()[ 0 ];
+        }
+      }
+
+      if ( !m_element ) {
+        for ( int i = 0; i < m_minIndexes.length; i++ ) {
+          m_minIndexes[ i ] = Math.min( m_minIndexes[ i ], other.m_minIndexes[ i ] );
+          m_maxIndexes[ i ] = Math.max( m_maxIndexes[ i ], other.m_maxIndexes[ i ] );
+        }
+      }
+    }
+
+    Class<?> getFirstType() {
+      return m_typeCounts.keySet().iterator().next();
+    }
+
+    boolean hasDisparateTypes() {
+      Class<?> first = getFirstType();
+      for ( Class<?> type : m_typeCounts.keySet() ) {
+        if ( !first.isAssignableFrom( type ) ) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * A path in the documents
+   */
+  private static class Node {
+
+    /** Paths below this one through record keys */
+    Map<String, Node> m_keys;
+
+    /** Primitive values found at this path */
+    Leaf m_value;
+
+    /** The path for records and arrays that are elements of an array at this path */
+    Node m_elements;
+
+    /** Primitive elements of an array at this path, by index */
+    Map<Integer, Leaf> m_indexed;
+
+    Node key( String key ) {
+      if ( m_keys == null ) {
+        m_keys = new HashMap<String, Node>();
+      }
+      Node child = m_keys.get( key );
+      if ( child == null && m_keys.size() < MAX_KEYS ) {
+        child = new Node();
+        m_keys.put( key, child );
+      }
+      return child;
+    }
+
+    Node elements() {
+      if ( m_elements == null ) {
+        m_elements = new Node();
+      }
+      return m_elements;
+    }
+
+    void merge( Node other ) {
+      if ( other.m_keys != null ) {
+        for ( Map.Entry<String, Node> e : other.m_keys.entrySet() ) {
+          Node ours = m_keys != null ? m_keys.get( e.getKey() ) : null;
+          if ( ours != null ) {
+            ours.merge( e.getValue() );
+          } else if ( m_keys == null || m_keys.size() < MAX_KEYS ) {
+            key( e.getKey() ).merge( e.getValue() );
+          }
+        }
+      }
+
+      if ( other.m_value != null ) {
+        if ( m_value == null ) {
+          m_value = other.m_value;
+        } else {
+          m_value.merge( other.m_value );
+        }
+      }
+
+      if ( other.m_elements != null ) {
+        if ( m_elements == null ) {
+          m_elements = other.m_elements;
+        } else {
+          m_elements.merge( other.m_elements );
+        }
+      }
+
+      if ( other.m_indexed != null ) {
+        if ( m_indexed == null ) {
+          m_indexed = other.m_indexed;
+        } else {
+          for ( Map.Entry<Integer, Leaf> e : other.m_indexed.entrySet() ) {
+            Leaf ours = m_indexed.get( e.getKey() );
+            if ( ours == null ) {
+              m_indexed.put( e.getKey(), e.getValue() );
+            } else {
+              ours.merge( e.getValue() );
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private final Node m_root = new Node();
+
+  private int m_numDocs;
+
+  /** The index in each enclosing array of the value being added */
+  private int[] m_indexes = new int[ 8 ];
+
+  /**
+   * Add a document to the tree.
+   *
+   * @param doc the document
+   */
+  public void addDocument( DBObject doc ) {
+    m_numDocs++;
+    if ( doc instanceof BasicDBObject ) {
+      addRecord( (BasicDBObject) doc, m_root, 0 );
+    } else if ( doc instanceof BasicDBList ) {
+      addList( (BasicDBList) doc, m_root, 0 );
+    }
+  }
+
+  private void addRecord( BasicDBObject rec, Node node, int depth ) {
+    for ( Map.Entry<String, Object> e : rec.entrySet() ) {
+      Node child = node.key( e.getKey() );
+      if ( child == null ) {
+        continue; // too many keys
+      }
+
+      Object value = e.getValue();
+      if ( value instanceof BasicDBObject ) {
+        addRecord( (BasicDBObject) value, child, depth );
+      } else if ( value instanceof BasicDBList ) {
+        addList( (BasicDBList) value, child, depth );
+      } else {
+        // some sort of primitive
+        if ( child.m_value == null ) {
+          child.m_value = new Leaf( false, m_indexes, depth, value );
+        }
+        child.m_value.add( value, m_indexes );
+      }
+    }
+  }
+
+  private void addList( BasicDBList list, Node node, int depth ) {
+    if ( depth == m_indexes.length ) {
+      int[] indexes = new int[ depth * 2 ];
+      System.arraycopy( m_indexes, 0, indexes, 0, depth );
+      m_indexes = indexes;
+    }
+
+    for ( int i = 0; i < list.size(); i++ ) {
+      Object element = list.get( i );
+      m_indexes[ depth ] = i;
+
+      if ( element instanceof BasicDBObject ) {
+        addRecord( (BasicDBObject) element, node.elements(), depth + 1 );
+      } else if ( element instanceof BasicDBList ) {
+        addList( (BasicDBList) element, node.elements(), depth + 1 );
+      } else if ( i < MAX_INDEXED_ELEMENTS ) {
+        // some sort of primitive
+        if ( node.m_indexed == null ) {
+          node.m_indexed = new TreeMap<Integer, Leaf>();
+        }
+        Leaf leaf = node.m_indexed.get( i );
+        if ( leaf == null ) {
+          leaf = new Leaf( true, m_indexes, depth, element );
+          node.m_indexed.put( i, leaf );
+        }
+        leaf.add( element, m_indexes );
+      }
+    }
+  }
+
+  /**
+   * Add the documents seen by another tree. Merging the trees for the parts of a sample in order gives the same fields
+   * as adding all the documents to one tree in that order.
+   *
+   * @param other the other tree (which may share structure with this one afterwards)
+   */
+  public void merge( MongoSchemaTree other ) {
+    m_numDocs += other.m_numDocs;
+    m_root.merge( other.m_root );
+  }
+
+  /**
+   * @return the number of documents added
+   */
+  public int getNumDocs() {
+    return m_numDocs;
+  }
+
+  /**
+   * Produce a field for each place that primitive values were found. The fields are keyed by their path, and have
+   * the same (not yet post processed) form that {@link MongodbInputDiscoverFieldsImpl#postProcessPaths} expects: an array
+   * of records is shown as [-] in the path and as the [min:max] range of indexes seen in the name.
+   *
+   * @return the fields, by path
+   */
+  public Map<String, MongoField> getFields() {
+    Map<String, MongoField> fields = new HashMap<String, MongoField>();
+    addFields( m_root, new ArrayList<String>(), fields );
+    return fields;
+  }
+
+  private static void addFields( Node node, List<String> segments, Map<String, MongoField> fields ) {
+    if ( node.m_value != null ) {
+      Leaf leaf = node.m_value;
+      String path = path( segments, null, "" ); //$NON-NLS-1$
+      fields.put( path, field( path, path( segments, leaf, "" ), path, leaf ) ); //$NON-NLS-1$
+    }
+
+    if ( node.m_indexed != null ) {
+      for ( Map.Entry<Integer, Leaf> e : node.m_indexed.entrySet() ) {
+        Leaf leaf = e.getValue();
+        String index = "[" + e.getKey() + "]"; //$NON-NLS-1$ //$NON-NLS-2$
+        String path = path( segments, null, index );
+        fields.put( path, field( path, path, path( segments, leaf, index ), leaf ) );
+      }
+    }
+
+    if ( node.m_keys != null ) {
+      for ( Map.Entry<String, Node> e : node.m_keys.entrySet() ) {
+        segments.add( "." + e.getKey() ); //$NON-NLS-1$
+        addFields( e.getValue(), segments, fields );
+        segments.remove( segments.size() - 1 );
+      }
+    }
+
+    if ( node.m_elements != null ) {
+      segments.add( null );
+      addFields( node.m_elements, segments, fields );
+      segments.remove( segments.size() - 1 );
+    }
+  }
+
+  /**
+   * Build a path from its segments (null for the elements of an array), showing the arrays as [-], or as the indexes
+   * recorded for a leaf.
+   */
+  private static String path( List<String> segments, Leaf leaf, String suffix ) {
+    StringBuilder path = new StringBuilder( "$" ); //$NON-NLS-1$
+    int level = 0;
+    for ( String segment : segments ) {
+      if ( segment != null ) {
+        path.append( segment );
+      } else if ( leaf == null ) {
+        path.append( "[-]" ); //$NON-NLS-1$
+      } else {
+        path.append( '[' ).append( leaf.m_minIndexes[ level ] ).append( ':' ).append( leaf.m_maxIndexes[ level ] )
+          .append( ']' );
+        level++;
+      }
+    }
+    return path.append( suffix ).toString();
+  }
+
+  private static MongoField field( String key, String name, String path, Leaf leaf ) {
+    MongoField field = new MongoField();
+    field.m_fieldName = name;
+    field.m_fieldPath = path;
+    field.m_mongoType = leaf.getFirstType();
+    field.m_kettleType = ValueMeta.getTypeDesc( leaf.m_kettleType );
+    field.m_percentageOfSample = leaf.m_count;
+    field.m_disparateTypes = leaf.hasDisparateTypes();
+    return field;
+  }
+}
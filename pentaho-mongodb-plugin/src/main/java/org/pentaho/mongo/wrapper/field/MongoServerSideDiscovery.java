@@ -0,0 +1,424 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2026 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mongo.wrapper.field;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.util.JSON;
+import org.bson.types.BSONTimestamp;
+import org.bson.types.Binary;
+import org.bson.types.Code;
+import org.bson.types.CodeWScope;
+import org.bson.types.Decimal128;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.bson.types.ObjectId;
+import org.bson.types.Symbol;
+import org.pentaho.di.core.row.ValueMeta;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Field discovery that doesn't pull sampled documents over the network: either by mapping the $jsonSchema of a
+ * collection's validator to fields, or by having the server break sampled documents down into path/type/count tuples
+ * with $objectToArray and $type. Both produce fields named the same way as fields discovered by sampling.
+ */
+public class MongoServerSideDiscovery {
+
+  /** How many levels of nested records and arrays the type aggregation breaks down */
+  public static final int MAX_DEPTH = 8;
+
+  /** The maximum number of path/type tuples the type aggregation returns */
+  public static final int MAX_TUPLES = 50000;
+
+  /** The maximum number of alternative types of one path a validator is mapped with */
+  protected static final int MAX_VARIANTS = 8;
+
+  /** A value of each BSON type (by the aliases used by $type, bsonType and type), to derive field types from */
+  private static final Map<String, Object> PROTOTYPES = new HashMap<String, Object>();
+
+  static {
+    PROTOTYPES.put( "double", 0.5 ); //$NON-NLS-1$
+    PROTOTYPES.put( "number", 0.5 ); //$NON-NLS-1$
+    PROTOTYPES.put( "decimal", Decimal128.parse( "0" ) ); //$NON-NLS-1$ //$NON-NLS-2$
+    PROTOTYPES.put( "int", 0 ); //$NON-NLS-1$
+    PROTOTYPES.put( "integer", 0 ); //$NON-NLS-1$
+    PROTOTYPES.put( "long", 0L ); //$NON-NLS-1$
+    PROTOTYPES.put( "timestamp", new BSONTimestamp() ); //$NON-NLS-1$
+    PROTOTYPES.put( "date", new Date( 0 ) ); //$NON-NLS-1$
+    PROTOTYPES.put( "bool", Boolean.FALSE ); //$NON-NLS-1$
+    PROTOTYPES.put( "boolean", Boolean.FALSE ); //$NON-NLS-1$
+    PROTOTYPES.put( "binData", new Binary( new byte[ 0 ] ) ); //$NON-NLS-1$
+    PROTOTYPES.put( "objectId", new ObjectId() ); //$NON-NLS-1$
+    PROTOTYPES.put( "regex", Pattern.compile( "" ) ); //$NON-NLS-1$ //$NON-NLS-2$
+    PROTOTYPES.put( "javascript", new Code( "" ) ); //$NON-NLS-1$ //$NON-NLS-2$
+    PROTOTYPES.put( "javascriptWithScope", new CodeWScope( "", new BasicDBObject() ) ); //$NON-NLS-1$ //$NON-NLS-2$
+    PROTOTYPES.put( "symbol", new Symbol( "" ) ); //$NON-NLS-1$ //$NON-NLS-2$
+    PROTOTYPES.put( "minKey", new MinKey() ); //$NON-NLS-1$
+    PROTOTYPES.put( "maxKey", new MaxKey() ); //$NON-NLS-1$
+    PROTOTYPES.put( "null", null ); //$NON-NLS-1$
+  }
+
+  /**
+   * One of the types a validator allows for a path, with the (sub)schema that describes its properties or items
+   */
+  private static class Alternative {
+    final String m_type;
+    final DBObject m_schema;
+
+    Alternative( String type, DBObject schema ) {
+      m_type = type;
+      m_schema = schema;
+    }
+  }
+
+  /**
+   * Get the $jsonSchema of a collection's validator.
+   *
+   * @param db         the database
+   * @param collection the collection
+   * @return the schema, or null if the collection has no $jsonSchema validator (or it can't be read, e.g. without the
+   * listCollections privilege)
+   */
+  public static DBObject validatorSchema( DB db, String collection ) {
+    try {
+      CommandResult result = db.command( new BasicDBObject( "listCollections", 1 ) //$NON-NLS-1$
+        .append( "filter", new BasicDBObject( "name", collection ) ) ); //$NON-NLS-1$ //$NON-NLS-2$
+      if ( !result.ok() || !( result.get( "cursor" ) instanceof DBObject ) ) { //$NON-NLS-1$
+        return null;
+      }
+      Object batch = ( (DBObject) result.get( "cursor" ) ).get( "firstBatch" ); //$NON-NLS-1$ //$NON-NLS-2$
+      if ( !( batch instanceof List ) || ( (List<?>) batch ).isEmpty() ) {
+        return null;
+      }
+      Object schema = get( ( (List<?>) batch ).get( 0 ), "options", "validator", //$NON-NLS-1$ //$NON-NLS-2$
+        "$jsonSchema" ); //$NON-NLS-1$
+      return schema instanceof DBObject ? (DBObject) schema : null;
+    } catch ( MongoException e ) {
+      return null;
+    }
+  }
+
+  /**
+   * Map a $jsonSchema to fields. Arrays are mapped to their first element (or the elements of a tuple), and a path that
+   * allows several types gets the first one, flagged as disparate if they don't agree. The occurrence of the fields is
+   * not known, so is left empty.
+   *
+   * @param jsonSchema the schema of the documents
+   * @return the fields
+   */
+  public static List<MongoField> validatorFields( DBObject jsonSchema ) {
+    // run prototype documents through the schema tree, one for each alternative type of the paths, so the fields come
+    // out exactly as they would from sampling documents like them
+    MongoSchemaTree tree = new MongoSchemaTree();
+    int variants = variants( jsonSchema );
+    for ( int i = 0; i < variants; i++ ) {
+      DBObject doc = document( jsonSchema, i );
+      if ( !doc.containsField( "_id" ) ) { //$NON-NLS-1$
+        doc.put( "_id", PROTOTYPES.get( "objectId" ) ); //$NON-NLS-1$ //$NON-NLS-2$
+      }
+      tree.addDocument( doc );
+    }
+
+    List<MongoField> fields = new ArrayList<MongoField>();
+    MongodbInputDiscoverFieldsImpl.postProcessPaths( tree.getFields(), fields, tree.getNumDocs() );
+    for ( MongoField field : fields ) {
+      field.m_occurenceFraction = ""; //$NON-NLS-1$
+      field.m_percentageOfSample = -1;
+    }
+    return fields;
+  }
+
+  private static List<Alternative> alternatives( DBObject schema ) {
+    List<Alternative> alternatives = new ArrayList<Alternative>();
+    for ( String combinator : new String[] { "anyOf", "oneOf" } ) { //$NON-NLS-1$ //$NON-NLS-2$
+      if ( schema.get( combinator ) instanceof List ) {
+        for ( Object sub : (List<?>) schema.get( combinator ) ) {
+          if ( sub instanceof DBObject ) {
+            alternatives.addAll( alternatives( (DBObject) sub ) );
+          }
+        }
+      }
+    }
+    if ( !alternatives.isEmpty() ) {
+      return alternatives;
+    }
+
+    Object types = schema.containsField( "bsonType" ) //$NON-NLS-1$
+      ? schema.get( "bsonType" ) : schema.get( "type" ); //$NON-NLS-1$ //$NON-NLS-2$
+    if ( types instanceof List ) {
+      for ( Object type : (List<?>) types ) {
+        // a nullable path is typed by what it holds when it isn't null
+        if ( !"null".equals( type ) || ( (List<?>) types ).size() == 1 ) { //$NON-NLS-1$
+          alternatives.add( new Alternative( String.valueOf( type ), schema ) );
+        }
+      }
+    } else if ( types != null ) {
+      alternatives.add( new Alternative( String.valueOf( types ), schema ) );
+    } else if ( schema.containsField( "properties" ) ) { //$NON-NLS-1$
+      alternatives.add( new Alternative( "object", schema ) ); //$NON-NLS-1$
+    } else if ( schema.containsField( "items" ) ) { //$NON-NLS-1$
+      alternatives.add( new Alternative( "array", schema ) ); //$NON-NLS-1$
+    }
+    if ( alternatives.isEmpty() ) {
+      // no type - the path still exists
+      alternatives.add( new Alternative( null, schema ) );
+    }
+    return alternatives;
+  }
+
+  private static int variants( DBObject schema ) {
+    List<Alternative> alternatives = alternatives( schema );
+    int variants = alternatives.size();
+    for ( Alternative alternative : alternatives ) {
+      for ( DBObject sub : children( alternative ) ) {
+        variants = Math.max( variants, variants( sub ) );
+      }
+    }
+    return Math.min( variants, MAX_VARIANTS );
+  }
+
+  private static List<DBObject> children( Alternative alternative ) {
+    List<DBObject> children = new ArrayList<DBObject>();
+    Object sub = null;
+    if ( "object".equals( alternative.m_type ) ) { //$NON-NLS-1$
+      sub = alternative.m_schema.get( "properties" ); //$NON-NLS-1$
+      if ( sub instanceof DBObject && !( sub instanceof List ) ) {
+        List<Object> properties = new ArrayList<Object>();
+        for ( String key : ( (DBObject) sub ).keySet() ) {
+          properties.add( ( (DBObject) sub ).get( key ) );
+        }
+        sub = properties;
+      }
+    } else if ( "array".equals( alternative.m_type ) ) { //$NON-NLS-1$
+      sub = alternative.m_schema.get( "items" ); //$NON-NLS-1$
+    }
+    if ( sub instanceof List ) {
+      for ( Object o : (List<?>) sub ) {
+        if ( o instanceof DBObject ) {
+          children.add( (DBObject) o );
+        }
+      }
+    } else if ( sub instanceof DBObject ) {
+      children.add( (DBObject) sub );
+    }
+    return children;
+  }
+
+  private static DBObject document( DBObject schema, int variant ) {
+    BasicDBObject doc = new BasicDBObject();
+    Object properties = schema.get( "properties" ); //$NON-NLS-1$
+    if ( properties instanceof DBObject && !( properties instanceof List ) ) {
+      for ( String key : ( (DBObject) properties ).keySet() ) {
+        Object property = ( (DBObject) properties ).get( key );
+        if ( property instanceof DBObject ) {
+          doc.put( key, prototype( (DBObject) property, variant ) );
+        }
+      }
+    }
+    return doc;
+  }
+
+  private static Object prototype( DBObject schema, int variant ) {
+    List<Alternative> alternatives = alternatives( schema );
+    Alternative alternative = alternatives.get( Math.min( variant, alternatives.size() - 1 ) );
+
+    List<DBObject> children = children( alternative );
+    if ( "object".equals( alternative.m_type ) && !children.isEmpty() ) { //$NON-NLS-1$
+      return document( alternative.m_schema, variant );
+    }
+    if ( "array".equals( alternative.m_type ) && !children.isEmpty() ) { //$NON-NLS-1$
+      BasicDBList elements = new BasicDBList();
+      for ( DBObject element : children ) {
+        elements.add( prototype( element, variant ) );
+      }
+      return elements;
+    }
+    if ( alternative.m_type == null && schema.get( "enum" ) instanceof List ) { //$NON-NLS-1$
+      for ( Object value : (List<?>) schema.get( "enum" ) ) { //$NON-NLS-1$
+        if ( value != null ) {
+          return value;
+        }
+      }
+    }
+
+    // a record or array whose contents aren't described is a (JSON) string, as is anything of an unknown type
+    return prototype( alternative.m_type );
+  }
+
+  private static Object prototype( String type ) {
+    return PROTOTYPES.containsKey( type ) ? PROTOTYPES.get( type ) : ""; //$NON-NLS-1$
+  }
+
+  private static Object get( Object doc, String... keys ) {
+    for ( String key : keys ) {
+      doc = doc instanceof DBObject ? ( (DBObject) doc ).get( key ) : null;
+    }
+    return doc;
+  }
+
+  /**
+   * Build the aggregation stages that break the documents coming into them down into one result document, holding the
+   * number of documents ("docs") and a tuple for each distinct path and type found ("fields"). Paths are in the form
+   * used while sampling: arrays of records or arrays are [-], with the lowest and highest index at each level in
+   * min&lt;level&gt;/max&lt;level&gt;, and elements of arrays of primitives have their index. Records and arrays nested
+   * deeper than {@link #MAX_DEPTH} are reported with type "object" or "array".
+   *
+   * @return the stages, to follow the stages that sample the collection
+   */
+  public static List<DBObject> typeAggregation() {
+    List<DBObject> fields = new ArrayList<DBObject>();
+    fields.add( parse( "{$project : {_id : 0, kv : {$objectToArray : '$$ROOT'}}}" ) ); //$NON-NLS-1$
+    fields.add( parse( "{$unwind : '$kv'}" ) ); //$NON-NLS-1$
+    fields.add( parse( "{$project : {p : '$kv.k', v : '$kv.v', ix : {$literal : []}}}" ) ); //$NON-NLS-1$
+
+    // each level takes apart one level of arrays, then one level of records
+    String isElement = "{$eq : [{$type : '$i'}, 'long']}"; //$NON-NLS-1$
+    String isNested = "{$in : ['$t', ['object', 'array']]}"; //$NON-NLS-1$
+    for ( int level = 0; level < MAX_DEPTH; level++ ) {
+      fields.add( parse(
+        "{$unwind : {path : '$v', includeArrayIndex : 'i', preserveNullAndEmptyArrays : true}}" ) ); //$NON-NLS-1$
+      fields.add( parse( "{$project : {p : 1, v : 1, ix : 1, i : 1, t : {$type : '$v'}}}" ) ); //$NON-NLS-1$
+      fields.add( parse( "{$project : {v : 1, t : 1, " //$NON-NLS-1$
+        + "p : {$cond : [" + isElement + ", {$concat : ['$p', {$cond : [" + isNested + ", '[-]', " //$NON-NLS-1$ //$NON-NLS-2$
+        + "{$cond : [{$lt : ['$i', " + MongoSchemaTree.MAX_INDEXED_ELEMENTS + "]}, " //$NON-NLS-1$ //$NON-NLS-2$
+        + "{$concat : ['[', {$toString : '$i'}, ']']}, null]}]}]}, '$p']}, " //$NON-NLS-1$
+        + "ix : {$cond : [{$and : [" + isElement + ", " + isNested + "]}, " //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        + "{$concatArrays : ['$ix', ['$i']]}, '$ix']}}}" ) ); //$NON-NLS-1$
+      fields.add( parse( "{$project : {p : 1, ix : 1, kv : {$cond : [{$eq : ['$t', 'object']}, " //$NON-NLS-1$
+        + "{$objectToArray : '$v'}, [{k : null, v : '$v'}]]}}}" ) ); //$NON-NLS-1$
+      fields.add( parse( "{$unwind : '$kv'}" ) ); //$NON-NLS-1$
+      fields.add( parse( "{$project : {ix : 1, v : '$kv.v', " //$NON-NLS-1$
+        + "p : {$cond : [{$eq : ['$kv.k', null]}, '$p', {$concat : ['$p', '.', '$kv.k']}]}}}" ) ); //$NON-NLS-1$
+    }
+
+    BasicDBObject group = new BasicDBObject( "_id", parse( "{p : '$p', t : {$type : '$v'}}" ) ) //$NON-NLS-1$ //$NON-NLS-2$
+      .append( "count", parse( "{$sum : 1}" ) ); //$NON-NLS-1$ //$NON-NLS-2$
+    for ( int level = 0; level < MAX_DEPTH; level++ ) {
+      String index = "{$arrayElemAt : ['$ix', " + level + "]}"; //$NON-NLS-1$ //$NON-NLS-2$
+      group.append( "min" + level, parse( "{$min : " + index + "}" ) ) //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        .append( "max" + level, parse( "{$max : " + index + "}" ) ); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    }
+    fields.add( new BasicDBObject( "$group", group ) ); //$NON-NLS-1$
+    fields.add( parse( "{$match : {'_id.p' : {$ne : null}, '_id.t' : {$ne : 'missing'}}}" ) ); //$NON-NLS-1$
+    fields.add( new BasicDBObject( "$limit", MAX_TUPLES ) ); //$NON-NLS-1$
+
+    BasicDBList docs = new BasicDBList();
+    docs.add( parse( "{$count : 'n'}" ) ); //$NON-NLS-1$
+    return Collections.<DBObject>singletonList( new BasicDBObject( "$facet", //$NON-NLS-1$
+      new BasicDBObject( "docs", docs ).append( "fields", fields ) ) ); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  /**
+   * Map the result of the type aggregation to fields. A path seen with several types gets the most frequent one,
+   * flagged as disparate if they don't agree.
+   *
+   * @param result the result document of the stages from {@link #typeAggregation()}
+   * @return the fields
+   */
+  public static List<MongoField> typeFields( DBObject result ) {
+    Object docs = result.get( "docs" ); //$NON-NLS-1$
+    int numDocs = docs instanceof List && !( (List<?>) docs ).isEmpty()
+      ? ( (Number) get( ( (List<?>) docs ).get( 0 ), "n" ) ).intValue() : 0; //$NON-NLS-1$
+
+    Map<String, List<DBObject>> byPath = new LinkedHashMap<String, List<DBObject>>();
+    for ( Object o : (List<?>) result.get( "fields" ) ) { //$NON-NLS-1$
+      String path = (String) get( o, "_id", "p" ); //$NON-NLS-1$ //$NON-NLS-2$
+      List<DBObject> tuples = byPath.get( path );
+      if ( tuples == null ) {
+        tuples = new ArrayList<DBObject>();
+        byPath.put( path, tuples );
+      }
+      tuples.add( (DBObject) o );
+    }
+
+    Map<String, MongoField> lookup = new HashMap<String, MongoField>();
+    for ( Map.Entry<String, List<DBObject>> e : byPath.entrySet() ) {
+      List<DBObject> tuples = e.getValue();
+      Collections.sort( tuples, new Comparator<DBObject>() {
+        @Override
+        public int compare( DBObject o1, DBObject o2 ) {
+          return Long.compare( count( o2 ), count( o1 ) );
+        }
+      } );
+
+      MongoField field = new MongoField();
+      Object first = prototype( (String) get( tuples.get( 0 ), "_id", "t" ) ); //$NON-NLS-1$ //$NON-NLS-2$
+      field.m_mongoType = first == null ? String.class : first.getClass();
+      field.m_kettleType = ValueMeta.getTypeDesc( MongodbInputDiscoverFieldsImpl.mongoToKettleType( first ) );
+      int count = 0;
+      for ( DBObject tuple : tuples ) {
+        Object value = prototype( (String) get( tuple, "_id", "t" ) ); //$NON-NLS-1$ //$NON-NLS-2$
+        count += count( tuple );
+        Class<?> type = value == null ? String.class : value.getClass();
+        field.m_disparateTypes |= !field.m_mongoType.isAssignableFrom( type );
+      }
+      field.m_percentageOfSample = count;
+
+      // as in MongoSchemaTree: a record key is named with the index ranges and has [-] in its path, an array element
+      // the other way round (with the lowest indexes)
+      String path = "$." + e.getKey(); //$NON-NLS-1$
+      boolean element = path.endsWith( "]" ) && !path.endsWith( "[-]" ); //$NON-NLS-1$ //$NON-NLS-2$
+      StringBuilder indexed = new StringBuilder();
+      int level = 0;
+      int from = 0;
+      for ( int at = path.indexOf( "[-]" ); at >= 0; at = path.indexOf( "[-]", from ) ) { //$NON-NLS-1$ //$NON-NLS-2$
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for ( DBObject tuple : tuples ) {
+          min = Math.min( min, index( tuple, "min" + level, Long.MAX_VALUE ) ); //$NON-NLS-1$
+          max = Math.max( max, index( tuple, "max" + level, Long.MIN_VALUE ) ); //$NON-NLS-1$
+        }
+        if ( element ) {
+          max = min;
+        }
+        indexed.append( path, from, at ).append( '[' ).append( min ).append( ':' ).append( max ).append( ']' );
+        from = at + 3;
+        level++;
+      }
+      indexed.append( path.substring( from ) );
+
+      field.m_fieldName = element ? path : indexed.toString();
+      field.m_fieldPath = element ? indexed.toString() : path;
+      lookup.put( path, field );
+    }
+
+    List<MongoField> fields = new ArrayList<MongoField>();
+    MongodbInputDiscoverFieldsImpl.postProcessPaths( lookup, fields, numDocs );
+    return fields;
+  }
+
+  private static long count( DBObject tuple ) {
+    return ( (Number) tuple.get( "count" ) ).longValue(); //$NON-NLS-1$
+  }
+
+  private static long index( DBObject tuple, String key, long none ) {
+    Object index = tuple.get( key );
+    return index instanceof Number ? ( (Number) index ).longValue() : none;
+  }
+
+  private static DBObject parse( String json ) {
+    return (DBObject) JSON.parse( json );
+  }
+}
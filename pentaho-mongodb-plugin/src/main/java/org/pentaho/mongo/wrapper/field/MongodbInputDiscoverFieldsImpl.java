@@ -13,17 +13,19 @@
 package org.pentaho.mongo.wrapper.field;
 
 import com.mongodb.AggregationOptions;
-import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
 import com.mongodb.Cursor;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.MongoException;
 import com.mongodb.util.JSON;
 import org.bson.types.BSONTimestamp;
 import org.bson.types.Binary;
 import org.bson.types.Code;
+import org.bson.types.Decimal128;
 import org.bson.types.MaxKey;
 import org.bson.types.MinKey;
 import org.bson.types.ObjectId;
@@ -44,12 +46,19 @@ import org.pentaho.mongo.wrapper.MongoDBAction;
 import org.pentaho.mongo.wrapper.MongoWrapperUtil;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Created by bryan on 8/7/14.
@@ -57,10 +66,27 @@ import java.util.Map;
 public class MongodbInputDiscoverFieldsImpl implements MongoDbInputDiscoverFields {
   private static final Class<?> PKG = MongodbInputDiscoverFieldsImpl.class;
 
+  /** the (maximum) number of strata in a stratified sample */
+  protected static final int SAMPLE_STRATA = 10;
+
+  /** samples are only split up for concurrent reading when each part gets at least this many documents */
+  protected static final int MIN_DOCS_PER_PARTITION = 1000;
+
+  /** how often (in documents read) the fields found so far are passed to a callback */
+  protected static final int PROGRESS_INTERVAL = 1000;
+
   public List<MongoField> discoverFields( final MongoProperties.Builder properties, final String db, final String collection,
                                          final String query, final String fields,
                                          final boolean isPipeline, final int docsToSample, MongoDbInputMeta step, VariableSpace vars )
     throws KettleException {
+    return discover( db, collection, query, fields, isPipeline, docsToSample, step, vars, null );
+  }
+
+  private List<MongoField> discover( final String db, final String collection, final String query,
+                                     final String fields, final boolean isPipeline, final int docsToSample,
+                                     final MongoDbInputMeta step, final VariableSpace vars,
+                                     final DiscoverFieldsCallback callback )
+    throws KettleException {
     MongoClientWrapper clientWrapper = null;
     try {
       clientWrapper = MongoWrapperUtil.createMongoClientWrapper( step, vars, null );
@@ -71,14 +97,12 @@ public class MongodbInputDiscoverFieldsImpl implements MongoDbInputDiscoverField
       return clientWrapper.perform( db, new MongoDBAction<List<MongoField>>() {
         @Override
         public List<MongoField> perform( DB db ) throws MongoDbException {
-          DBCursor cursor = null;
           int numDocsToSample = docsToSample;
           if ( numDocsToSample < 1 ) {
             numDocsToSample = 100; // default
           }
 
           List<MongoField> discoveredFields = new ArrayList<MongoField>();
-          Map<String, MongoField> fieldLookup = new HashMap<String, MongoField>();
           try {
             if ( Const.isEmpty( collection ) ) {
               throw new KettleException( BaseMessages.getString( PKG,
@@ -86,36 +110,49 @@ public class MongodbInputDiscoverFieldsImpl implements MongoDbInputDiscoverField
             }
             DBCollection dbcollection = db.getCollection( collection );
 
-            Iterator<DBObject> pipeSample = null;
-
-            if ( isPipeline ) {
-              pipeSample = setUpPipelineSample( query, numDocsToSample, dbcollection );
-            } else {
-              if ( Const.isEmpty( query ) && Const.isEmpty( fields ) ) {
-                cursor = dbcollection.find().limit( numDocsToSample );
-              } else {
-                DBObject dbObject = (DBObject) JSON.parse( Const.isEmpty( query ) ? "{}" : query ); //$NON-NLS-1$
-                DBObject dbObject2 = (DBObject) JSON.parse( fields );
-                cursor = dbcollection.find( dbObject, dbObject2 ).limit( numDocsToSample );
+            String sampleMode = step != null ? step.getSampleMode() : null;
+            String strategy = step != null ? step.getDiscoveryStrategy() : null;
+            String timeField = MongoDbInputMeta.SAMPLE_STRATIFIED.equals( sampleMode )
+              ? vars.environmentSubstitute( step.getSampleTimeField() ) : null;
+
+            long ttl = step != null ? Const.toLong( vars.environmentSubstitute( step.getSchemaCacheTtl() ), 0 ) : 0;
+            String cacheKey = null;
+            long[] stats = null;
+            if ( ttl > 0 ) {
+              cacheKey = MongoSchemaCache.key( connectionKey( step, vars ), db.getName(), collection, query, fields,
+                isPipeline, numDocsToSample, sampleMode, timeField, strategy );
+              stats = step.getSchemaCacheCheckStats() ? collectionStats( dbcollection ) : null;
+              List<MongoField> cached =
+                MongoSchemaCache.getInstance().get( cacheKey, ttl * 1000, stats, step.getSchemaCachePersist() );
+              if ( cached != null ) {
+                return cached;
               }
             }
 
-            int actualCount = 0;
-            while ( cursor != null ? cursor.hasNext() : pipeSample.hasNext() ) {
-              actualCount++;
-              DBObject nextDoc = ( cursor != null ? cursor.next() : pipeSample.next() );
-              docToFields( nextDoc, fieldLookup );
+            List<MongoField> serverSide = null;
+            if ( MongoDbInputMeta.DISCOVER_VALIDATOR.equals( strategy ) && !isPipeline ) {
+              DBObject jsonSchema = MongoServerSideDiscovery.validatorSchema( db, collection );
+              serverSide = jsonSchema != null ? MongoServerSideDiscovery.validatorFields( jsonSchema ) : null;
+            } else if ( MongoDbInputMeta.DISCOVER_AGGREGATION.equals( strategy ) ) {
+              serverSide = aggregateTypes( query, fields, isPipeline, sampleMode, numDocsToSample, dbcollection );
             }
 
-            postProcessPaths( fieldLookup, discoveredFields, actualCount );
+            if ( serverSide != null ) {
+              discoveredFields = serverSide;
+            } else {
+              List<Callable<Cursor>> partitions = samplePartitions( query, fields, isPipeline, sampleMode, timeField,
+                numDocsToSample, dbcollection );
+
+              MongoSchemaTree schema = discoverSchema( partitions, callback );
+              postProcessPaths( schema.getFields(), discoveredFields, schema.getNumDocs() );
+            }
 
+            if ( cacheKey != null ) {
+              MongoSchemaCache.getInstance().put( cacheKey, discoveredFields, stats, step.getSchemaCachePersist() );
+            }
             return discoveredFields;
           } catch ( Exception e ) {
             throw new MongoDbException( e );
-          } finally {
-            if ( cursor != null ) {
-              cursor.close();
-            }
           }
         }
       } );
@@ -140,17 +177,25 @@ public class MongodbInputDiscoverFieldsImpl implements MongoDbInputDiscoverField
                              final String query, final String fields,
                              final boolean isPipeline, final int docsToSample, final MongoDbInputMeta step,
                              final VariableSpace vars, final DiscoverFieldsCallback discoverFieldsCallback ) throws KettleException {
-    new Thread( new Runnable() {
+    Thread discovery = new Thread( new Runnable() {
       @Override
       public void run() {
         try {
-          discoverFieldsCallback.notifyFields(
-              discoverFields( properties, db, collection, query, fields, isPipeline, docsToSample, step, vars ) );
-        } catch ( KettleException e ) {
-          discoverFieldsCallback.notifyException( e );
+          List<MongoField> discovered =
+            discover( db, collection, query, fields, isPipeline, docsToSample, step, vars, discoverFieldsCallback );
+          if ( !discoverFieldsCallback.isCancelled() ) {
+            discoverFieldsCallback.notifyFields( discovered );
+          }
+        } catch ( Exception e ) {
+          // anything not reported here would leave the caller waiting for an answer that never comes
+          if ( !discoverFieldsCallback.isCancelled() ) {
+            discoverFieldsCallback.notifyException( e );
+          }
         }
       }
-    } ).run();
+    }, "MongoDB field discovery" ); //$NON-NLS-1$
+    discovery.setDaemon( true );
+    discovery.start();
   }
 
   protected static void postProcessPaths( Map<String, MongoField> fieldLookup, List<MongoField> discoveredFields,
@@ -244,202 +289,398 @@ public class MongodbInputDiscoverFieldsImpl implements MongoDbInputDiscoverField
     m.m_fieldPath = updated.toString();
   }
 
-  protected static void docToFields( DBObject doc, Map<String, MongoField> lookup ) {
-    String root = "$"; //$NON-NLS-1$
-    String name = "$"; //$NON-NLS-1$
+  protected static int mongoToKettleType( Object fieldValue ) {
+    if ( fieldValue == null ) {
+      return ValueMetaInterface.TYPE_STRING;
+    }
 
-    if ( doc instanceof BasicDBObject ) {
-      processRecord( (BasicDBObject) doc, root, name, lookup );
-    } else if ( doc instanceof BasicDBList ) {
-      processList( (BasicDBList) doc, root, name, lookup );
+    if ( fieldValue instanceof Symbol || fieldValue instanceof String || fieldValue instanceof Code
+          || fieldValue instanceof ObjectId || fieldValue instanceof MinKey || fieldValue instanceof MaxKey ) {
+      return ValueMetaInterface.TYPE_STRING;
+    } else if ( fieldValue instanceof Date ) {
+      return ValueMetaInterface.TYPE_DATE;
+    } else if ( fieldValue instanceof Decimal128 ) {
+      return ValueMetaInterface.TYPE_BIGNUMBER;
+    } else if ( fieldValue instanceof Number ) {
+      // try to parse as an Integer
+      try {
+        Integer.parseInt( fieldValue.toString() );
+        return ValueMetaInterface.TYPE_INTEGER;
+      } catch ( NumberFormatException e ) {
+        return ValueMetaInterface.TYPE_NUMBER;
+      }
+    } else if ( fieldValue instanceof Binary ) {
+      return ValueMetaInterface.TYPE_BINARY;
+    } else if ( fieldValue instanceof BSONTimestamp ) {
+      return ValueMetaInterface.TYPE_INTEGER;
     }
-  }
 
-  private static void processRecord( BasicDBObject rec, String path, String name, Map<String, MongoField> lookup ) {
-    for ( String key : rec.keySet() ) {
-      Object fieldValue = rec.get( key );
+    return ValueMetaInterface.TYPE_STRING;
+  }
 
-      if ( fieldValue instanceof BasicDBObject ) {
-        processRecord( (BasicDBObject) fieldValue, path + "." + key, name + "." + //$NON-NLS-1$ //$NON-NLS-2$
-            key, lookup );
-      } else if ( fieldValue instanceof BasicDBList ) {
-        processList( (BasicDBList) fieldValue, path + "." + key, name + "." + //$NON-NLS-1$ //$NON-NLS-2$
-            key, lookup );
-      } else {
-        // some sort of primitive
-        String finalPath = path + "." + key; //$NON-NLS-1$
-        String finalName = name + "." + key; //$NON-NLS-1$
-        if ( !lookup.containsKey( finalPath ) ) {
-          MongoField newField = new MongoField();
-          int kettleType = mongoToKettleType( fieldValue );
-          // Following suit of mongoToKettleType by interpreting null as String type
-          newField.m_mongoType = String.class;
-          if ( fieldValue != null ) {
-            newField.m_mongoType = fieldValue.getClass();
-          }
-          newField.m_fieldName = finalName;
-          newField.m_fieldPath = finalPath;
-          newField.m_kettleType = ValueMeta.getTypeDesc( kettleType );
-          newField.m_percentageOfSample = 1;
+  /**
+   * Split up the sample into parts that can be read concurrently. Only large samples of the first documents, and
+   * stratified samples, are split; a pipeline or a random sample is always read as one part.
+   * <p>
+   * A sample of the first documents that is split is of the first documents in _id order (rather than natural order),
+   * with each part reading a range of _ids - natural order isn't stable across separate cursors, and skipping to each
+   * part's offset would make the server walk all the documents before it. The _ids that bound the parts come from
+   * one read of the sample's _ids. If they aren't all of one type (so a range can't hold them), or the sample is small,
+   * it is read as one part in natural order.
+   *
+   * @return the parts, each of which opens a cursor over its documents
+   */
+  protected static List<Callable<Cursor>> samplePartitions( final String query, final String fields,
+                                                            final boolean isPipeline, String sampleMode,
+                                                            String timeField, final int numDocsToSample,
+                                                            final DBCollection collection ) {
+    List<Callable<Cursor>> partitions = new ArrayList<Callable<Cursor>>();
+    final boolean sampleFirst = Const.isEmpty( sampleMode ) || MongoDbInputMeta.SAMPLE_FIRST.equals( sampleMode );
+
+    if ( isPipeline ) {
+      partitions.add( new Callable<Cursor>() {
+        @Override
+        public Cursor call() throws Exception {
+          return sampleFirst ? setUpPipelineSample( query, numDocsToSample, collection )
+            : setUpRandomPipelineSample( query, numDocsToSample, collection );
+        }
+      } );
+      return partitions;
+    }
 
-          lookup.put( finalPath, newField );
-        } else {
-          // update max indexes in array parts of name
-          MongoField m = lookup.get( finalPath );
-          Class<?> fieldClass = String.class;
-          if ( fieldValue != null ) {
-            fieldClass = fieldValue.getClass();
-          }
-          if ( !m.m_mongoType.isAssignableFrom( fieldClass ) ) {
-            m.m_disparateTypes = true;
-          }
-          m.m_percentageOfSample++;
-          updateMinMaxArrayIndexes( m, finalName );
+    final DBObject match = parseQuery( query );
+    if ( MongoDbInputMeta.SAMPLE_STRATIFIED.equals( sampleMode ) && !Const.isEmpty( timeField ) ) {
+      // each stratum is a part
+      List<Object> bounds = stratumBounds( timeFieldValue( collection, match, timeField, 1 ),
+        timeFieldValue( collection, match, timeField, -1 ), Math.min( SAMPLE_STRATA, numDocsToSample ) );
+      if ( bounds != null ) {
+        int strata = bounds.size() - 1;
+        for ( int i = 0; i < strata; i++ ) {
+          // the last stratum includes the highest value
+          DBObject range = new BasicDBObject( "$gte", bounds.get( i ) ) //$NON-NLS-1$
+            .append( i == strata - 1 ? "$lte" : "$lt", bounds.get( i + 1 ) ); //$NON-NLS-1$ //$NON-NLS-2$
+          DBObject stratumMatch = new BasicDBObject( "$and", //$NON-NLS-1$
+            Arrays.asList( match, new BasicDBObject( timeField, range ) ) );
+          partitions.add( randomSample( stratumMatch, fields, partSize( numDocsToSample, strata, i ), collection ) );
         }
+        return partitions;
       }
     }
+
+    if ( !sampleFirst ) {
+      // a single $sample - separate ones could pick the same documents, and each would scan all the matching documents
+      partitions.add( randomSample( match, fields, numDocsToSample, collection ) );
+      return partitions;
+    }
+
+    int parts = Math.max( 1, Math.min( Runtime.getRuntime().availableProcessors(),
+      numDocsToSample / MIN_DOCS_PER_PARTITION ) );
+    List<Object> bounds = parts > 1 ? firstSampleBounds( match, parts, numDocsToSample, collection ) : null;
+    if ( bounds == null ) {
+      partitions.add( firstSample( query, fields, numDocsToSample, collection ) );
+      return partitions;
+    }
+
+    int ranges = bounds.size() - 1;
+    for ( int i = 0; i < ranges; i++ ) {
+      // the last range includes the last _id of the sample
+      DBObject range = new BasicDBObject( "$gte", bounds.get( i ) ) //$NON-NLS-1$
+        .append( i == ranges - 1 ? "$lte" : "$lt", bounds.get( i + 1 ) ); //$NON-NLS-1$ //$NON-NLS-2$
+      DBObject idRange = new BasicDBObject( "_id", range ); //$NON-NLS-1$
+      DBObject rangeMatch = match.keySet().isEmpty() ? idRange
+        : new BasicDBObject( "$and", Arrays.asList( match, idRange ) ); //$NON-NLS-1$
+      partitions.add( rangeSample( rangeMatch, fields, collection ) );
+    }
+    return partitions;
   }
 
-  private static void processList( BasicDBList list, String path, String name, Map<String, MongoField> lookup ) {
+  /**
+   * Discover fields with the type aggregation, so that only a tuple per path and type comes back from the server rather
+   * than the sampled documents. A stratified sample is taken as a random one.
+   *
+   * @return the fields, or null if the server can't run the aggregation (before MongoDB 4.0)
+   */
+  protected static List<MongoField> aggregateTypes( String query, String fields, boolean isPipeline, String sampleMode,
+                                                    int numDocsToSample, DBCollection collection )
+    throws KettleException {
+    boolean sampleFirst = Const.isEmpty( sampleMode ) || MongoDbInputMeta.SAMPLE_FIRST.equals( sampleMode );
+    DBObject size = sampleFirst ? new BasicDBObject( "$limit", numDocsToSample ) //$NON-NLS-1$
+      : new BasicDBObject( "$sample", new BasicDBObject( "size", numDocsToSample ) ); //$NON-NLS-1$ //$NON-NLS-2$
+
+    List<DBObject> pipeline;
+    if ( isPipeline ) {
+      pipeline = jsonPipelineToDBObjectList( query );
+      pipeline.add( size );
+    } else {
+      pipeline = samplePipeline( parseQuery( query ), fields, size );
+    }
+    pipeline.addAll( MongoServerSideDiscovery.typeAggregation() );
 
-    if ( list.size() == 0 ) {
-      return; // can't infer anything about an empty list
+    try {
+      Cursor cursor = collection.aggregate( pipeline, AggregationOptions.builder().allowDiskUse( true ).build() );
+      try {
+        return cursor.hasNext() ? MongoServerSideDiscovery.typeFields( cursor.next() ) : null;
+      } finally {
+        cursor.close();
+      }
+    } catch ( MongoException e ) {
+      // e.g. no $objectToArray or $toString
+      return null;
     }
+  }
 
-    String nonPrimitivePath = path + "[-]"; //$NON-NLS-1$
-    String primitivePath = path;
+  private static int partSize( int numDocsToSample, int parts, int part ) {
+    return numDocsToSample / parts + ( part < numDocsToSample % parts ? 1 : 0 );
+  }
 
-    for ( int i = 0; i < list.size(); i++ ) {
-      Object element = list.get( i );
+  /**
+   * Find the _ids that split the first documents of a sample (in _id order) into parts, reading only the _ids.
+   *
+   * @return the first _id of each part followed by the last _id of the sample, or null if the _ids aren't all of one
+   * type or there are too few documents to split
+   */
+  protected static List<Object> firstSampleBounds( DBObject match, int parts, int numDocsToSample,
+                                                   DBCollection collection ) {
+    List<Object> bounds = new ArrayList<Object>();
+    Object last = null;
+    DBCursor cursor = collection.find( match, new BasicDBObject( "_id", 1 ) ) //$NON-NLS-1$
+      .sort( new BasicDBObject( "_id", 1 ) ).limit( numDocsToSample ); //$NON-NLS-1$
+    try {
+      int read = 0;
+      int nextStart = 0;
+      while ( cursor.hasNext() ) {
+        Object id = cursor.next().get( "_id" ); //$NON-NLS-1$
+        if ( id == null || ( last != null && !sameSortType( last, id ) ) ) {
+          // a range of _ids only matches values of one type
+          return null;
+        }
+        if ( read == nextStart ) {
+          nextStart += partSize( numDocsToSample, parts, bounds.size() );
+          bounds.add( id );
+        }
+        last = id;
+        read++;
+      }
+    } finally {
+      cursor.close();
+    }
 
-      if ( element instanceof BasicDBObject ) {
-        processRecord( (BasicDBObject) element, nonPrimitivePath, name + "[" + i + //$NON-NLS-1$
-            ":" + i + "]", lookup ); //$NON-NLS-1$ //$NON-NLS-2$
-      } else if ( element instanceof BasicDBList ) {
-        processList( (BasicDBList) element, nonPrimitivePath, name + "[" + i + //$NON-NLS-1$
-            ":" + i + "]", lookup ); //$NON-NLS-1$ //$NON-NLS-2$
-      } else {
-        // some sort of primitive
-        String finalPath = primitivePath + "[" + i + "]"; //$NON-NLS-1$ //$NON-NLS-2$
-        String finalName = name + "[" + i + "]"; //$NON-NLS-1$ //$NON-NLS-2$
-        if ( !lookup.containsKey( finalPath ) ) {
-          MongoField newField = new MongoField();
-          int kettleType = mongoToKettleType( element );
-          // Following suit of mongoToKettleType by interpreting null as String type
-          newField.m_mongoType = String.class;
-          if ( element != null ) {
-            newField.m_mongoType = element.getClass();
-          }
-          newField.m_fieldName = finalPath;
-          newField.m_fieldPath = finalName;
-          newField.m_kettleType = ValueMeta.getTypeDesc( kettleType );
-          newField.m_percentageOfSample = 1;
+    if ( bounds.size() < 2 ) {
+      return null;
+    }
+    bounds.add( last );
+    return bounds;
+  }
 
-          lookup.put( finalPath, newField );
+  private static boolean sameSortType( Object a, Object b ) {
+    // the server compares all numeric types with each other
+    return a instanceof Number ? b instanceof Number : a.getClass() == b.getClass();
+  }
+
+  private static Callable<Cursor> rangeSample( final DBObject match, final String fields,
+                                               final DBCollection collection ) {
+    return new Callable<Cursor>() {
+      @Override
+      public Cursor call() throws Exception {
+        return collection.find( match, Const.isEmpty( fields ) ? null : (DBObject) JSON.parse( fields ) );
+      }
+    };
+  }
+
+  private static Callable<Cursor> firstSample( final String query, final String fields, final int numDocsToSample,
+                                               final DBCollection collection ) {
+    return new Callable<Cursor>() {
+      @Override
+      public Cursor call() throws Exception {
+        DBCursor cursor;
+        if ( Const.isEmpty( query ) && Const.isEmpty( fields ) ) {
+          cursor = collection.find();
         } else {
-          // update max indexes in array parts of name
-          MongoField m = lookup.get( finalPath );
-          Class<?> elementClass = String.class;
-          if ( element != null ) {
-            elementClass = element.getClass();
-          }
-          if ( !m.m_mongoType.isAssignableFrom( elementClass ) ) {
-            m.m_disparateTypes = true;
-          }
-          m.m_percentageOfSample++;
-          updateMinMaxArrayIndexes( m, finalName );
+          DBObject dbObject = (DBObject) JSON.parse( Const.isEmpty( query ) ? "{}" : query ); //$NON-NLS-1$
+          DBObject dbObject2 = (DBObject) JSON.parse( fields );
+          cursor = collection.find( dbObject, dbObject2 );
         }
+        return cursor.limit( numDocsToSample );
       }
-    }
+    };
   }
 
-  protected static void updateMinMaxArrayIndexes( MongoField m, String update ) {
-    // just look at the second (i.e. max index value) in the array parts
-    // of update
-    if ( m.m_fieldName.indexOf( '[' ) < 0 ) {
-      return;
-    }
+  private static Callable<Cursor> randomSample( final DBObject match, final String fields, final int numDocsToSample,
+                                                final DBCollection collection ) {
+    return new Callable<Cursor>() {
+      @Override
+      public Cursor call() throws Exception {
+        return collection.aggregate( samplePipeline( match, fields, numDocsToSample ),
+          AggregationOptions.builder().build() );
+      }
+    };
+  }
 
-    if ( m.m_fieldName.split( "\\[" ).length != update.split( "\\[" ).length ) { //$NON-NLS-1$ //$NON-NLS-2$
-      throw new IllegalArgumentException( "Field path and update path do not seem to contain " //$NON-NLS-1$
-        + "the same number of array parts!" ); //$NON-NLS-1$
+  /**
+   * Identify the server and user for a step, for the schema cache.
+   */
+  private static String connectionKey( MongoDbInputMeta step, VariableSpace vars ) {
+    if ( step.isUseConnectionString() ) {
+      return vars.environmentSubstitute( step.getConnectionString() );
     }
+    return vars.environmentSubstitute( step.getHostnames() ) + "/" + vars.environmentSubstitute( step.getPort() ) //$NON-NLS-1$
+      + "/" + vars.environmentSubstitute( step.getAuthenticationUser() ) //$NON-NLS-1$
+      + "/" + vars.environmentSubstitute( step.getAuthenticationDatabaseName() ); //$NON-NLS-1$
+  }
 
-    String temp = m.m_fieldName;
-    String tempComp = update;
-    StringBuffer updated = new StringBuffer();
-
-    while ( temp.indexOf( '[' ) >= 0 ) {
-      String firstPart = temp.substring( 0, temp.indexOf( '[' ) );
-      String innerPart = temp.substring( temp.indexOf( '[' ) + 1, temp.indexOf( ']' ) );
+  /**
+   * Get the document count and size of a collection, to tell whether it has changed since it was sampled.
+   *
+   * @return the count and size, or null if they are not available (e.g. for a view, or without the privilege)
+   */
+  private static long[] collectionStats( DBCollection collection ) {
+    try {
+      CommandResult stats = collection.getStats();
+      if ( stats.ok() && stats.get( "count" ) instanceof Number && stats.get( "size" ) instanceof Number ) { //$NON-NLS-1$ //$NON-NLS-2$
+        return new long[] { ( (Number) stats.get( "count" ) ).longValue(), //$NON-NLS-1$
+          ( (Number) stats.get( "size" ) ).longValue() }; //$NON-NLS-1$
+      }
+    } catch ( RuntimeException e ) {
+      // no statistics
+    }
+    return null;
+  }
 
-      if ( innerPart.indexOf( ':' ) < 0 ) {
-        // terminal primitive specific index
-        updated.append( temp ); // finished
-        temp = ""; //$NON-NLS-1$
-        break;
-      } else {
-        updated.append( firstPart );
+  protected static MongoSchemaTree discoverSchema( List<Callable<Cursor>> partitions ) throws Exception {
+    return discoverSchema( partitions, null );
+  }
 
-        String innerComp = tempComp.substring( tempComp.indexOf( '[' ) + 1, tempComp.indexOf( ']' ) );
+  /**
+   * Read the parts of a sample and find the fields in them. Each part is read and processed on its own thread (up to
+   * the number of processors), into its own schema tree; the trees are then merged in order. If a part fails, the
+   * cursors of the parts still being read are closed.
+   *
+   * @param partitions the parts of the sample
+   * @param callback   if not null, told about the fields found so far every {@link #PROGRESS_INTERVAL} documents
+   *                   (or as each part is merged), and asked between documents whether to stop
+   * @return the fields found
+   * @throws CancellationException if the callback cancelled discovery
+   */
+  protected static MongoSchemaTree discoverSchema( List<Callable<Cursor>> partitions,
+                                                   final DiscoverFieldsCallback callback ) throws Exception {
+    if ( partitions.size() == 1 ) {
+      return readPartition( partitions.get( 0 ), callback, true, null );
+    }
 
-        if ( temp.indexOf( ']' ) < temp.length() - 1 ) {
-          temp = temp.substring( temp.indexOf( ']' ) + 1 );
-          tempComp = tempComp.substring( tempComp.indexOf( ']' ) + 1 );
-        } else {
-          temp = ""; //$NON-NLS-1$
+    ExecutorService executor = Executors.newFixedThreadPool(
+      Math.min( partitions.size(), Runtime.getRuntime().availableProcessors() ), new ThreadFactory() {
+        @Override
+        public Thread newThread( Runnable r ) {
+          Thread t = new Thread( r, "MongoDB field discovery" ); //$NON-NLS-1$
+          t.setDaemon( true );
+          return t;
         }
+      } );
+    final OpenCursors open = new OpenCursors();
+    try {
+      List<Future<MongoSchemaTree>> parts = new ArrayList<Future<MongoSchemaTree>>();
+      for ( final Callable<Cursor> partition : partitions ) {
+        parts.add( executor.submit( new Callable<MongoSchemaTree>() {
+          @Override
+          public MongoSchemaTree call() throws Exception {
+            return readPartition( partition, callback, false, open );
+          }
+        } ) );
+      }
 
-        String[] origParts = innerPart.split( ":" ); //$NON-NLS-1$
-        String[] compParts = innerComp.split( ":" ); //$NON-NLS-1$
-        int origMin = Integer.parseInt( origParts[ 0 ] );
-        int compMin = Integer.parseInt( compParts[ 0 ] );
-        int origMax = Integer.parseInt( origParts[ 1 ] );
-        int compMax = Integer.parseInt( compParts[ 1 ] );
-
-        String newRange =
-          "[" + ( compMin < origMin ? compMin : origParts[ 0 ] ) + ":" + ( compMax > origMax ? compMax : origParts[ 1 ] )
-          + "]";
-        updated.append( newRange );
+      MongoSchemaTree schema = new MongoSchemaTree();
+      for ( Future<MongoSchemaTree> part : parts ) {
+        try {
+          schema.merge( part.get() );
+          if ( callback != null ) {
+            notifyProgress( callback, schema );
+          }
+        } catch ( ExecutionException e ) {
+          throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
       }
+      return schema;
+    } finally {
+      executor.shutdownNow();
+      open.closeAll();
     }
+  }
 
-    if ( temp.length() > 0 ) {
-      // append remaining part
-      updated.append( temp );
+  /**
+   * @param open if not null, the cursors of the parts being read - the cursor is added to it while the part is read,
+   *             and the part is abandoned if the cursors have been closed
+   */
+  private static MongoSchemaTree readPartition( Callable<Cursor> partition, DiscoverFieldsCallback callback,
+                                                boolean reportProgress, OpenCursors open ) throws Exception {
+    MongoSchemaTree schema = new MongoSchemaTree();
+    Cursor cursor = partition.call();
+    if ( open != null && !open.add( cursor ) ) {
+      cursor.close();
+      throw new CancellationException();
     }
-
-    m.m_fieldName = updated.toString();
+    try {
+      while ( cursor.hasNext() ) {
+        // a part is interrupted when another part failed
+        if ( ( callback != null && callback.isCancelled() )
+          || ( open != null && Thread.currentThread().isInterrupted() ) ) {
+          throw new CancellationException();
+        }
+        schema.addDocument( cursor.next() );
+        if ( reportProgress && callback != null && schema.getNumDocs() % PROGRESS_INTERVAL == 0 ) {
+          notifyProgress( callback, schema );
+        }
+      }
+    } finally {
+      if ( open != null ) {
+        open.remove( cursor );
+      }
+      cursor.close();
+    }
+    return schema;
   }
 
-  protected static int mongoToKettleType( Object fieldValue ) {
-    if ( fieldValue == null ) {
-      return ValueMetaInterface.TYPE_STRING;
+  /**
+   * The cursors of the parts of a sample that are being read, so that they can all be closed if one part fails.
+   */
+  private static final class OpenCursors {
+    private final List<Cursor> m_cursors = new ArrayList<Cursor>();
+    private boolean m_closed;
+
+    /**
+     * @return false if the cursors have already been closed (the cursor isn't added)
+     */
+    synchronized boolean add( Cursor cursor ) {
+      if ( m_closed ) {
+        return false;
+      }
+      m_cursors.add( cursor );
+      return true;
     }
 
-    if ( fieldValue instanceof Symbol || fieldValue instanceof String || fieldValue instanceof Code
-          || fieldValue instanceof ObjectId || fieldValue instanceof MinKey || fieldValue instanceof MaxKey ) {
-      return ValueMetaInterface.TYPE_STRING;
-    } else if ( fieldValue instanceof Date ) {
-      return ValueMetaInterface.TYPE_DATE;
-    } else if ( fieldValue instanceof Number ) {
-      // try to parse as an Integer
-      try {
-        Integer.parseInt( fieldValue.toString() );
-        return ValueMetaInterface.TYPE_INTEGER;
-      } catch ( NumberFormatException e ) {
-        return ValueMetaInterface.TYPE_NUMBER;
+    synchronized void remove( Cursor cursor ) {
+      m_cursors.remove( cursor );
+    }
+
+    synchronized void closeAll() {
+      m_closed = true;
+      for ( Cursor cursor : m_cursors ) {
+        try {
+          cursor.close();
+        } catch ( RuntimeException e ) {
+          // the part is failing anyway
+        }
       }
-    } else if ( fieldValue instanceof Binary ) {
-      return ValueMetaInterface.TYPE_BINARY;
-    } else if ( fieldValue instanceof BSONTimestamp ) {
-      return ValueMetaInterface.TYPE_INTEGER;
+      m_cursors.clear();
     }
+  }
 
-    return ValueMetaInterface.TYPE_STRING;
+  private static void notifyProgress( DiscoverFieldsCallback callback, MongoSchemaTree schema ) {
+    List<MongoField> fields = new ArrayList<MongoField>();
+    postProcessPaths( schema.getFields(), fields, schema.getNumDocs() );
+    callback.notifyProgress( fields, schema.getNumDocs() );
   }
 
-  private static Iterator<DBObject> setUpPipelineSample( String query, int numDocsToSample, DBCollection collection )
+  private static Cursor setUpPipelineSample( String query, int numDocsToSample, DBCollection collection )
     throws KettleException {
 
     query = query + ", {$limit : " + numDocsToSample + "}"; //$NON-NLS-1$ //$NON-NLS-2$
@@ -449,6 +690,94 @@ public class MongodbInputDiscoverFieldsImpl implements MongoDbInputDiscoverField
   }
 
 
+  private static Cursor setUpRandomPipelineSample( String query, int numDocsToSample,
+                                                              DBCollection collection ) throws KettleException {
+
+    query = query + ", {$sample : {size : " + numDocsToSample + "}}"; //$NON-NLS-1$ //$NON-NLS-2$
+    List<DBObject> samplePipe = jsonPipelineToDBObjectList( query );
+    Cursor cursor = collection.aggregate( samplePipe, AggregationOptions.builder().build() );
+    return cursor;
+  }
+
+  private static DBObject parseQuery( String query ) {
+    return (DBObject) JSON.parse( Const.isEmpty( query ) ? "{}" : query ); //$NON-NLS-1$
+  }
+
+  private static List<DBObject> samplePipeline( DBObject match, String fields, int numDocsToSample ) {
+    return samplePipeline( match, fields,
+      new BasicDBObject( "$sample", new BasicDBObject( "size", numDocsToSample ) ) ); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  private static List<DBObject> samplePipeline( DBObject match, String fields, DBObject size ) {
+    List<DBObject> samplePipe = new ArrayList<DBObject>();
+    if ( !match.keySet().isEmpty() ) {
+      samplePipe.add( new BasicDBObject( "$match", match ) ); //$NON-NLS-1$
+    }
+    samplePipe.add( size );
+    DBObject projection = Const.isEmpty( fields ) ? null : (DBObject) JSON.parse( fields );
+    if ( projection != null && !projection.keySet().isEmpty() ) {
+      samplePipe.add( new BasicDBObject( "$project", projection ) ); //$NON-NLS-1$
+    }
+    return samplePipe;
+  }
+
+  /**
+   * Find the lowest (or highest) date or numeric value of a field among the documents matching a query. Uses an index
+   * on the field if there is one.
+   */
+  private static Object timeFieldValue( DBCollection collection, DBObject match, String timeField, int order ) {
+    DBObject hasValue = new BasicDBObject( "$and", Arrays.asList( match, new BasicDBObject( timeField, //$NON-NLS-1$
+      new BasicDBObject( "$exists", true ).append( "$ne", null ) ) ) ); //$NON-NLS-1$ //$NON-NLS-2$
+    DBCursor cursor = collection.find( hasValue, new BasicDBObject( timeField, 1 ) )
+      .sort( new BasicDBObject( timeField, order ) ).limit( 1 );
+    try {
+      if ( !cursor.hasNext() ) {
+        return null;
+      }
+      Object value = cursor.next();
+      for ( String part : timeField.split( "\\." ) ) { //$NON-NLS-1$
+        value = value instanceof DBObject ? ( (DBObject) value ).get( part ) : null;
+      }
+      return value;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /**
+   * Split the range between two values of a time field into (at most) the given number of equal strata.
+   *
+   * @param min     the lowest value
+   * @param max     the highest value
+   * @param strata  the number of strata
+   * @return the boundaries of the strata (one more than the number of strata), or null if the values are not both dates
+   * or both numbers
+   */
+  protected static List<Object> stratumBounds( Object min, Object max, int strata ) {
+    List<Object> bounds = new ArrayList<Object>();
+    if ( min instanceof Date && max instanceof Date ) {
+      long from = ( (Date) min ).getTime();
+      long to = ( (Date) max ).getTime();
+      strata = (int) Math.max( 1, Math.min( strata, to - from ) );
+      for ( int i = 0; i <= strata; i++ ) {
+        bounds.add( new Date( i == strata ? to : from + (long) ( ( to - from ) * ( (double) i / strata ) ) ) );
+      }
+      return bounds;
+    }
+    if ( min instanceof Number && max instanceof Number ) {
+      double from = ( (Number) min ).doubleValue();
+      double to = ( (Number) max ).doubleValue();
+      if ( to <= from ) {
+        strata = 1;
+      }
+      for ( int i = 0; i <= strata; i++ ) {
+        bounds.add( i == 0 ? min : i == strata ? max : from + ( to - from ) * i / strata );
+      }
+      return bounds;
+    }
+    return null;
+  }
+
   public static List<DBObject> jsonPipelineToDBObjectList( String jsonPipeline ) throws KettleException {
     List<DBObject> pipeline = new ArrayList<DBObject>();
     StringBuilder b = new StringBuilder( jsonPipeline.trim() );
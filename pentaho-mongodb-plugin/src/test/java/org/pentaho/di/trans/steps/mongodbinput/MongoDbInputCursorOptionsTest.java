@@ -0,0 +1,77 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2026 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.mongodbinput;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import org.junit.Test;
+import org.pentaho.di.core.variables.Variables;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MongoDbInputCursorOptionsTest {
+
+  @Test
+  public void testDefaultsLeaveTheQueryAlone() {
+    MongoDbInputCursorOptions options = new MongoDbInputCursorOptions( new MongoDbInputMeta(), new Variables() );
+    assertFalse( options.isSet() );
+
+    List<DBObject> pipeline = new ArrayList<DBObject>();
+    options.appendStages( pipeline );
+    assertTrue( pipeline.isEmpty() );
+  }
+
+  @Test
+  public void testSettingsAreResolvedAndApplied() {
+    MongoDbInputMeta meta = new MongoDbInputMeta();
+    meta.setBatchSize( "${batch}" );
+    meta.setMaxTimeMS( "5000" );
+    meta.setQuerySkip( "10" );
+    meta.setQueryLimit( "20" );
+    Variables vars = new Variables();
+    vars.setVariable( "batch", "500" );
+
+    MongoDbInputCursorOptions options = new MongoDbInputCursorOptions( meta, vars );
+    assertTrue( options.isSet() );
+    assertEquals( 500, options.getBatchSize() );
+
+    AggregationOptions aggOptions = options.toAggregationOptions( true );
+    assertEquals( Integer.valueOf( 500 ), aggOptions.getBatchSize() );
+    assertEquals( 5000, aggOptions.getMaxTime( TimeUnit.MILLISECONDS ) );
+    assertTrue( aggOptions.getAllowDiskUse() );
+
+    List<DBObject> pipeline = new ArrayList<DBObject>();
+    options.appendStages( pipeline );
+    assertEquals( 2, pipeline.size() );
+    assertEquals( JSON.parse( "{\"$skip\": 10}" ), pipeline.get( 0 ) );
+    assertEquals( JSON.parse( "{\"$limit\": 20}" ), pipeline.get( 1 ) );
+  }
+
+  @Test
+  public void testAdaptiveBatchSize() {
+    // 4MB of 1KB documents, capped by the row set
+    assertEquals( 4096, MongoDbInputCursorOptions.adaptiveBatchSize( 1024, 10000 ) );
+    assertEquals( 1000, MongoDbInputCursorOptions.adaptiveBatchSize( 1024, 1000 ) );
+    // never below the driver's default first batch
+    assertEquals( MongoDbInputCursorOptions.ADAPTIVE_MIN_BATCH_SIZE,
+        MongoDbInputCursorOptions.adaptiveBatchSize( 1024 * 1024, 10000 ) );
+    assertEquals( MongoDbInputCursorOptions.ADAPTIVE_MIN_BATCH_SIZE,
+        MongoDbInputCursorOptions.adaptiveBatchSize( 0, 10000 ) );
+  }
+}
@@ -13,8 +13,13 @@
 
 package org.pentaho.di.trans.steps.mongodbinput;
 
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
+import com.mongodb.LazyDBCallback;
+import com.mongodb.LazyDBObject;
 import com.mongodb.util.JSON;
+import org.bson.BasicBSONEncoder;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
@@ -32,6 +37,7 @@ import org.pentaho.di.core.variables.VariableSpace;
 import org.pentaho.di.core.variables.Variables;
 import org.pentaho.di.ui.trans.steps.mongodbinput.MongoDbInputDialog;
 import org.pentaho.mongo.MongoProperties;
+import org.pentaho.mongo.wrapper.field.MongoArrayExpansion;
 import org.pentaho.mongo.wrapper.field.MongoField;
 
 import java.util.ArrayList;
@@ -438,6 +444,61 @@ public class MongoDbInputDataTest {
     assertEquals( "george", result[1][1] );
   }
 
+  @Test public void testArrayUnwindStreamsRowsToSink() throws KettleException {
+    BasicDBList items = new BasicDBList();
+    for ( int i = 0; i < 1000; i++ ) {
+      items.add( new BasicDBObject( "n", i ) );
+    }
+    DBObject doc = new BasicDBObject( "name", "george" ).append( "items", items );
+
+    List<MongoField> fields = new ArrayList<MongoField>();
+    MongoField mm = new MongoField();
+    mm.m_fieldName = "n";
+    mm.m_fieldPath = "$.items[*].n";
+    mm.m_kettleType = "Integer";
+    fields.add( mm );
+    mm = new MongoField();
+    mm.m_fieldName = "name";
+    mm.m_fieldPath = "$.name";
+    mm.m_kettleType = "String";
+    fields.add( mm );
+
+    RowMetaInterface rowMeta = new RowMeta();
+    for ( MongoField m : fields ) {
+      rowMeta.addValueMeta( new ValueMeta( m.m_fieldName, ValueMeta.getType( m.m_kettleType ) ) );
+    }
+    MongoDbInputData data = new MongoDbInputData();
+    data.outputRowMeta = rowMeta;
+    data.setMongoFields( fields );
+    data.init();
+
+    final List<Object[]> rows = new ArrayList<Object[]>();
+    data.mongoDocumentToKettle( doc, new Variables(), new MongoArrayExpansion.RowSink() {
+      @Override public void putRow( Object[] row ) throws KettleException {
+        // each row is complete (and distinct) by the time it is handed over
+        assertEquals( (long) rows.size(), row[0] );
+        assertEquals( "george", row[1] );
+        assertTrue( rows.isEmpty() || rows.get( rows.size() - 1 ) != row );
+        rows.add( row );
+      }
+    } );
+    assertEquals( 1000, rows.size() );
+
+    // rows are handed over as they are produced, so a failing sink stops the expansion straight away
+    final int[] count = { 0 };
+    try {
+      data.mongoDocumentToKettle( doc, new Variables(), new MongoArrayExpansion.RowSink() {
+        @Override public void putRow( Object[] row ) throws KettleException {
+          count[0]++;
+          throw new KettleException( "stop" );
+        }
+      } );
+    } catch ( KettleException e ) {
+      // expected
+    }
+    assertEquals( 1, count[0] );
+  }
+
   @Test public void testArrayUnwindWithOneExistingAndOneNonExistingField() throws KettleException {
     Object mongoO = JSON.parse( s_testData2 );
     assertTrue( mongoO instanceof DBObject );
@@ -487,6 +548,89 @@ public class MongoDbInputDataTest {
     assertTrue( result[1][1] == null );
   }
 
+  @Test public void testFieldsSharingPathPrefixes() throws KettleException {
+    Object mongoO = JSON.parse( s_testData2 );
+    assertTrue( mongoO instanceof DBObject );
+
+    String[][] specs = { { "f1a", "$.one.two[0].rec1.f1", "String" }, { "f2a", "$.one.two[0].rec1.f2", "String" },
+      { "f1b", "$.one.two[1].rec1.f1", "String" }, { "f0", "$.one.three[0].rec2.f0", "String" },
+      { "missing", "$.one.two[0].rec1.nope", "String" }, { "num", "$.aNumber", "String" } };
+    List<MongoField> fields = new ArrayList<MongoField>();
+    RowMetaInterface rowMeta = new RowMeta();
+    for ( String[] spec : specs ) {
+      MongoField mm = new MongoField();
+      mm.m_fieldName = spec[0];
+      mm.m_fieldPath = spec[1];
+      mm.m_kettleType = spec[2];
+      fields.add( mm );
+      rowMeta.addValueMeta( new ValueMeta( mm.m_fieldName, ValueMeta.getType( mm.m_kettleType ) ) );
+    }
+
+    MongoDbInputData data = new MongoDbInputData();
+    data.outputRowMeta = rowMeta;
+    data.setMongoFields( fields );
+    data.init();
+
+    Object[] result = data.mongoDocumentToKettle( (DBObject) mongoO, new Variables() )[0];
+    assertEquals( "bob", result[0] );
+    assertEquals( "fred", result[1] );
+    assertEquals( "sid", result[2] );
+    assertEquals( "zzz", result[3] );
+    assertTrue( result[4] == null );
+    assertEquals( "Forty two", result[5] );
+  }
+
+  @Test public void testLazilyDecodedDocumentConvertsLikeDecodedDocument() throws KettleException {
+    DBObject decoded = (DBObject) JSON.parse( s_testData2 );
+    DBObject lazy = new LazyDBObject( new BasicBSONEncoder().encode( decoded ), new LazyDBCallback( null ) );
+
+    String[][] specs = { { "f1a", "$.one.two[0].rec1.f1", "String" }, { "f1b", "$.one.two[1].rec1.f1", "String" },
+      { "rec", "$.one.two[0].rec1", "String" }, { "arr", "$.one.three", "String" },
+      { "missing", "$.one.two[0].rec1.nope", "String" }, { "num", "$.aNumber", "String" } };
+    List<MongoField> fields = new ArrayList<MongoField>();
+    RowMetaInterface rowMeta = new RowMeta();
+    for ( String[] spec : specs ) {
+      MongoField mm = new MongoField();
+      mm.m_fieldName = spec[0];
+      mm.m_fieldPath = spec[1];
+      mm.m_kettleType = spec[2];
+      fields.add( mm );
+      rowMeta.addValueMeta( new ValueMeta( mm.m_fieldName, ValueMeta.getType( mm.m_kettleType ) ) );
+    }
+
+    MongoDbInputData data = new MongoDbInputData();
+    data.outputRowMeta = rowMeta;
+    data.setMongoFields( fields );
+    data.init();
+
+    Object[] expected = data.mongoDocumentToKettle( decoded, new Variables() )[0];
+    Object[] result = data.mongoDocumentToKettle( lazy, new Variables() )[0];
+    assertEquals( "bob", result[0] );
+    for ( int i = 0; i < specs.length; i++ ) {
+      assertEquals( specs[i][0], expected[i], result[i] );
+    }
+  }
+
+  @Test public void testBuildProjection() {
+    String[] paths = { "$.one.two[0].rec1.f1", "$.one.two[*].rec1.f2", "$.name", "$.one.three", "$.aNumber",
+      "$.name.first" };
+    List<MongoField> fields = new ArrayList<MongoField>();
+    for ( String path : paths ) {
+      MongoField mm = new MongoField();
+      mm.m_fieldPath = path;
+      fields.add( mm );
+    }
+
+    assertEquals( JSON.parse( "{\"name\": 1, \"aNumber\": 1, \"one.two\": 1, \"one.three\": 1, \"_id\": 0}" ),
+        MongoDbInputData.buildProjection( fields, new Variables() ) );
+
+    // a field on the root array needs the whole document
+    MongoField root = new MongoField();
+    root.m_fieldPath = "$[0].f";
+    fields.add( root );
+    assertTrue( MongoDbInputData.buildProjection( fields, new Variables() ) == null );
+  }
+
   @Test public void testCleansePath() {
     // param at end of path
     assertThat( MongoDbInputData.cleansePath( "my.path.with.${a.dot.param}" ),
@@ -365,6 +365,62 @@ public class MongoDbInputHelperTest {
         }
     }
 
+    @Test
+    public void getFieldsAction_timeout_returnsPartialFieldsAndCancels() throws Exception {
+        when(meta.getDbName()).thenReturn("db");
+        when(meta.getCollection()).thenReturn("coll");
+        when(meta.getJsonQuery()).thenReturn("");
+        when(transMeta.environmentSubstitute(anyString())).thenReturn("");
+        MongoField field1 = new MongoField();
+        field1.m_fieldName = "field1";
+        field1.m_fieldPath = "path1";
+        field1.m_kettleType = "String";
+        List<MongoField> fields = Collections.singletonList(field1);
+        DiscoverFieldsCallback[] callback = new DiscoverFieldsCallback[1];
+        try (MockedStatic<MongoDBHelper> mongoHelper = Mockito.mockStatic(MongoDBHelper.class)) {
+            mongoHelper.when(() -> MongoDBHelper.validateRequestForFields(meta)).thenReturn("");
+
+            try (MockedStatic<MongoWrapperUtil> wrapperUtil = Mockito.mockStatic(MongoWrapperUtil.class)) {
+                wrapperUtil.when(() -> MongoWrapperUtil.createPropertiesBuilder(meta, transMeta)).thenReturn(builder);
+
+                MongoDbInputDiscoverFields discoverFieldsMock = mock(MongoDbInputDiscoverFields.class);
+                MongoDbInputDiscoverFieldsHolder holderMock = mock(MongoDbInputDiscoverFieldsHolder.class);
+                Field holderField = MongoDbInputData.class.getDeclaredField("mongoDbInputDiscoverFieldsHolder");
+                holderField.setAccessible(true);
+                holderField.set(null, holderMock);
+                when(holderMock.getMongoDbInputDiscoverFields()).thenReturn(discoverFieldsMock);
+
+                // discovery that has read part of the sample, and is still going
+                doAnswer(invocation -> {
+                    callback[0] = invocation.getArgument(9);
+                    callback[0].notifyProgress(fields, 1000);
+                    return null;
+                }).when(discoverFieldsMock).discoverFields(
+                        eq(builder), eq("db"), eq("coll"), any(), any(), anyBoolean(), anyInt(),
+                        eq(meta), eq(transMeta), any()
+                );
+
+                Map<String, String> params = new HashMap<>();
+                params.put("sampleSize", "100000");
+                params.put("timeout", "0");
+
+                MongoDbInputHelper helper = new MongoDbInputHelper(meta);
+                injectLog(helper, mockLog);
+
+                JSONObject resp = helper.handleStepAction("getFields", transMeta, params);
+
+                assertEquals(StepInterface.SUCCESS_RESPONSE, resp.get(StepInterface.ACTION_STATUS));
+                assertEquals(Boolean.TRUE, resp.get("partial"));
+                assertNotNull(resp.get("fields"));
+                assertTrue(callback[0].isCancelled());
+
+                // a late result is ignored
+                callback[0].notifyFields(Collections.emptyList());
+                assertEquals(StepInterface.SUCCESS_RESPONSE, resp.get(StepInterface.ACTION_STATUS));
+            }
+        }
+    }
+
     @Test
     public void getTagSet_whenExceptionOnWrapper_returnsError() {
         when(meta.getHostnames()).thenReturn("localhost");
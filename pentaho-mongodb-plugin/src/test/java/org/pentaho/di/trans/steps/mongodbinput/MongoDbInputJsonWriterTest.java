@@ -0,0 +1,66 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2026 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.mongodbinput;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import org.bson.BasicBSONEncoder;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+
+public class MongoDbInputJsonWriterTest {
+
+  private static DBObject document() {
+    return new BasicDBObject( "name", "bob" ).append( "n", 42L ).append( "when", new Date( 0 ) )
+        .append( "tags", Arrays.asList( "a", "b" ) ).append( "sub", new BasicDBObject( "x", 1.5 ) );
+  }
+
+  private static DBObject raw( DBObject doc ) {
+    byte[] bytes = new BasicBSONEncoder().encode( doc );
+    return (DBObject) new RawBsonDBDecoder().decode( bytes, (DBCollection) null );
+  }
+
+  @Test
+  public void testRelaxedJson() {
+    MongoDbInputJsonWriter writer = new MongoDbInputJsonWriter( MongoDbInputMeta.JSON_OUTPUT_RELAXED );
+    String expected = "{\"name\": \"bob\", \"n\": 42, \"when\": {\"$date\": \"1970-01-01T00:00:00Z\"}, "
+        + "\"tags\": [\"a\", \"b\"], \"sub\": {\"x\": 1.5}}";
+
+    assertEquals( expected, writer.toJson( document() ) );
+    // straight from the BSON, and the buffer is reused
+    assertEquals( expected, writer.toJson( raw( document() ) ) );
+    assertEquals( expected, writer.toJson( raw( document() ) ) );
+  }
+
+  @Test
+  public void testCanonicalJson() {
+    MongoDbInputJsonWriter writer = new MongoDbInputJsonWriter( MongoDbInputMeta.JSON_OUTPUT_CANONICAL );
+    String expected = "{\"name\": \"bob\", \"n\": {\"$numberLong\": \"42\"}, "
+        + "\"when\": {\"$date\": {\"$numberLong\": \"0\"}}, \"tags\": [\"a\", \"b\"], "
+        + "\"sub\": {\"x\": {\"$numberDouble\": \"1.5\"}}}";
+
+    assertEquals( expected, writer.toJson( raw( document() ) ) );
+    assertEquals( expected, writer.toJson( document() ) );
+  }
+
+  @Test
+  public void testRawDocumentsStillSupportFieldAccess() {
+    DBObject doc = raw( document() );
+    assertEquals( "bob", doc.get( "name" ) );
+    assertEquals( 1.5, ( (DBObject) doc.get( "sub" ) ).get( "x" ) );
+  }
+}
@@ -124,6 +124,150 @@ public class MongoDbInputMetaInjectionTest extends BaseMetadataInjectionTest<Mon
         return meta.isUseLegacyOptions();
       }
     } );
+    check( "PARTITIONED_READ", new BooleanGetter() {
+      @Override
+      public boolean get() {
+        return meta.isPartitionedRead();
+      }
+    } );
+    check( "PARTITION_STRATEGY", new StringGetter() {
+      @Override
+      public String get() {
+        return meta.getPartitionStrategy();
+      }
+    } );
+    check( "PARTITION_FIELD", new StringGetter() {
+      @Override
+      public String get() {
+        return meta.getPartitionField();
+      }
+    } );
+    check( "RAW_BSON_DECODING", new BooleanGetter() {
+      @Override
+      public boolean get() {
+        return meta.isRawBsonDecoding();
+      }
+    } );
+    check( "AUTO_PROJECTION", new BooleanGetter() {
+      @Override
+      public boolean get() {
+        return meta.isAutoProjection();
+      }
+    } );
+    check( "PREFETCH_SIZE", new StringGetter() {
+      @Override
+      public String get() {
+        return meta.getPrefetchSize();
+      }
+    } );
+    check( "BATCH_SIZE", new StringGetter() {
+      @Override
+      public String get() {
+        return meta.getBatchSize();
+      }
+    } );
+    check( "MAX_TIME_MS", new StringGetter() {
+      @Override
+      public String get() {
+        return meta.getMaxTimeMS();
+      }
+    } );
+    check( "QUERY_LIMIT", new StringGetter() {
+      @Override
+      public String get() {
+        return meta.getQueryLimit();
+      }
+    } );
+    check( "QUERY_SKIP", new StringGetter() {
+      @Override
+      public String get() {
+        return meta.getQuerySkip();
+      }
+    } );
+    check( "NO_CURSOR_TIMEOUT", new BooleanGetter() {
+      @Override
+      public boolean get() {
+        return meta.isNoCursorTimeout();
+      }
+    } );
+    check( "ADAPTIVE_BATCH_SIZE", new BooleanGetter() {
+      @Override
+      public boolean get() {
+        return meta.isAdaptiveBatchSize();
+      }
+    } );
+    check( "JSON_OUTPUT_MODE", new StringGetter() {
+      @Override
+      public String get() {
+        return meta.getJsonOutputMode();
+      }
+    } );
+    check( "QUERY_BATCH_SIZE", new StringGetter() {
+      @Override
+      public String get() {
+        return meta.getQueryBatchSize();
+      }
+    } );
+    check( "RESULT_CACHE_SIZE", new StringGetter() {
+      @Override
+      public String get() {
+        return meta.getResultCacheSize();
+      }
+    } );
+    check( "RESULT_CACHE_TTL", new StringGetter() {
+      @Override
+      public String get() {
+        return meta.getResultCacheTtl();
+      }
+    } );
+    check( "RESULT_CACHE_MEMORY", new StringGetter() {
+      @Override
+      public String get() {
+        return meta.getResultCacheMemory();
+      }
+    } );
+    check( "SERVER_SIDE_UNWIND", new BooleanGetter() {
+      @Override
+      public boolean get() {
+        return meta.isServerSideUnwind();
+      }
+    } );
+    check( "SAMPLE_MODE", new StringGetter() {
+      @Override
+      public String get() {
+        return meta.getSampleMode();
+      }
+    } );
+    check( "SAMPLE_TIME_FIELD", new StringGetter() {
+      @Override
+      public String get() {
+        return meta.getSampleTimeField();
+      }
+    } );
+    check( "SCHEMA_CACHE_TTL", new StringGetter() {
+      @Override
+      public String get() {
+        return meta.getSchemaCacheTtl();
+      }
+    } );
+    check( "SCHEMA_CACHE_CHECK_STATS", new BooleanGetter() {
+      @Override
+      public boolean get() {
+        return meta.getSchemaCacheCheckStats();
+      }
+    } );
+    check( "SCHEMA_CACHE_PERSIST", new BooleanGetter() {
+      @Override
+      public boolean get() {
+        return meta.getSchemaCachePersist();
+      }
+    } );
+    check( "DISCOVERY_STRATEGY", new StringGetter() {
+      @Override
+      public String get() {
+        return meta.getDiscoveryStrategy();
+      }
+    } );
     check( "CONNECTION_STRING", new StringGetter() {
       @Override
       public String get() {
@@ -53,6 +53,15 @@ public class MongoDbInputMetaTest {
     getterMap.put( "execute_for_each_row", "getExecuteForEachIncomingRow" );
     getterMap.put( "mongo_fields", "getMongoFields" );
     getterMap.put( "tag_sets", "getReadPrefTagSets" );
+    getterMap.put( "partitioned_read", "isPartitionedRead" );
+    getterMap.put( "raw_bson_decoding", "isRawBsonDecoding" );
+    getterMap.put( "auto_projection", "isAutoProjection" );
+    getterMap.put( "no_cursor_timeout", "isNoCursorTimeout" );
+    getterMap.put( "adaptive_batch_size", "isAdaptiveBatchSize" );
+    getterMap.put( "max_time_ms", "getMaxTimeMS" );
+    getterMap.put( "server_side_unwind", "isServerSideUnwind" );
+    getterMap.put( "schema_cache_check_stats", "getSchemaCacheCheckStats" );
+    getterMap.put( "schema_cache_persist", "getSchemaCachePersist" );
     Map<String, String> setterMap = new HashMap<String, String>();
     setterMap.put( "hostname", "setHostnames" );
     setterMap.put( "auth_user", "setAuthenticationUser" );
@@ -62,6 +71,15 @@ public class MongoDbInputMetaTest {
     setterMap.put( "execute_for_each_row", "setExecuteForEachIncomingRow" );
     setterMap.put( "mongo_fields", "setMongoFields" );
     setterMap.put( "tag_sets", "setReadPrefTagSets" );
+    setterMap.put( "partitioned_read", "setPartitionedRead" );
+    setterMap.put( "raw_bson_decoding", "setRawBsonDecoding" );
+    setterMap.put( "auto_projection", "setAutoProjection" );
+    setterMap.put( "no_cursor_timeout", "setNoCursorTimeout" );
+    setterMap.put( "adaptive_batch_size", "setAdaptiveBatchSize" );
+    setterMap.put( "max_time_ms", "setMaxTimeMS" );
+    setterMap.put( "server_side_unwind", "setServerSideUnwind" );
+    setterMap.put( "schema_cache_persist", "setSchemaCachePersist" );
+    setterMap.put( "schema_cache_check_stats", "setSchemaCacheCheckStats" );
 
     Map<String, FieldLoadSaveValidator<?>>
         fieldLoadSaveValidatorAttributeMap =
@@ -88,7 +106,12 @@ public class MongoDbInputMetaTest {
         new LoadSaveTester( MongoDbInputMeta.class, Arrays.asList( "hostname", "port", "db_name",
             "fields_name", "collection", "json_field_name", "json_query", "auth_user", "auth_password",
             "auth_kerberos", "connect_timeout", "socket_timeout", "read_preference", "output_json",
-            "use_all_replica_members", "query_is_pipeline", "execute_for_each_row", "mongo_fields", "tag_sets" ),
+            "use_all_replica_members", "query_is_pipeline", "execute_for_each_row", "mongo_fields", "tag_sets",
+            "partitioned_read", "partition_strategy", "partition_field", "raw_bson_decoding",
+            "auto_projection", "prefetch_size", "batch_size", "max_time_ms",
+            "no_cursor_timeout", "query_limit", "query_skip", "adaptive_batch_size", "json_output_mode",
+            "query_batch_size", "result_cache_size", "result_cache_ttl", "result_cache_memory",
+            "server_side_unwind", "sample_mode", "sample_time_field", "schema_cache_ttl", "schema_cache_check_stats", "schema_cache_persist", "discovery_strategy" ),
             getterMap, setterMap, fieldLoadSaveValidatorAttributeMap, fieldLoadSaveValidatorTypeMap );
 
     FieldLoadSaveValidatorFactory validatorFactory = tester.getFieldLoadSaveValidatorFactory();
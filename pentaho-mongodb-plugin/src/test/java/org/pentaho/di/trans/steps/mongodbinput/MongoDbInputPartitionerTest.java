@@ -0,0 +1,148 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2026 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.mongodbinput;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class MongoDbInputPartitionerTest {
+
+  @Test
+  public void testRangesCoverTheKeySpace() {
+    MongoDbInputPartitioner.Partitioning partitioning =
+        new MongoDbInputPartitioner.Partitioning( "_id", Arrays.<Object>asList( 10, 20 ), 30 );
+
+    assertEquals( 3, partitioning.getNumRanges() );
+    // the first range also reads _ids of other types, so isn't capped
+    assertEquals( JSON.parse( "{\"_id\": {\"$not\": {\"$gte\": 10}}}" ), partitioning.getFilter( 0 ) );
+    assertEquals( JSON.parse( "{\"_id\": {\"$gte\": 10, \"$lt\": 20, \"$lte\": 30}}" ),
+        partitioning.getFilter( 1 ) );
+    assertEquals( JSON.parse( "{\"_id\": {\"$gte\": 20, \"$lte\": 30}}" ), partitioning.getFilter( 2 ) );
+  }
+
+  @Test
+  public void testSurplusCopiesReadNothing() {
+    MongoDbInputPartitioner.Partitioning partitioning =
+        new MongoDbInputPartitioner.Partitioning( "ts", new ArrayList<Object>(), null );
+
+    assertEquals( 1, partitioning.getNumRanges() );
+    assertEquals( 0, partitioning.getFilter( 0 ).keySet().size() );
+
+    DBObject none = partitioning.getFilter( 1 );
+    assertEquals( JSON.parse( "{\"ts\": {\"$in\": []}}" ), none );
+  }
+
+  private static DBCursor first( String field, Object value ) {
+    DBCursor cursor = mock( DBCursor.class );
+    when( cursor.limit( 1 ) ).thenReturn( cursor );
+    when( cursor.hasNext() ).thenReturn( value != null );
+    when( cursor.next() ).thenReturn( new BasicDBObject( field, value ) );
+    return cursor;
+  }
+
+  /** a collection whose smallest and largest values of a field (of the type being split on) are min and max */
+  private static DBCollection collection( String field, Object min, Object max ) {
+    DBCollection collection = mock( DBCollection.class );
+    DBCursor found = mock( DBCursor.class );
+    when( collection.find( any( DBObject.class ), any( DBObject.class ) ) ).thenReturn( found );
+    DBCursor minCursor = first( field, min );
+    DBCursor maxCursor = first( field, max );
+    when( found.sort( new BasicDBObject( field, 1 ) ) ).thenReturn( minCursor );
+    when( found.sort( new BasicDBObject( field, -1 ) ) ).thenReturn( maxCursor );
+    return collection;
+  }
+
+  private static ObjectId objectId( int seconds ) {
+    return new ObjectId( String.format( "%08x", seconds ) + "0000000000000000" );
+  }
+
+  @Test
+  public void testIdRangesAreSplitOnTheTypeOfTheLargestId() throws KettleException {
+    // the collection also holds string _ids, which sort before ObjectIds
+    DBCollection collection = collection( "_id", objectId( 0x50000000 ), objectId( 0x50000040 ) );
+    MongoDbInputPartitioner.Partitioning partitioning = MongoDbInputPartitioner.computePartitioning( collection,
+        new BasicDBObject(), MongoDbInputMeta.PARTITION_ID_RANGE, null, 4 );
+
+    verify( collection ).find( eq( JSON.parse( "{\"_id\": {\"$type\": \"objectId\"}}" ) ), any( DBObject.class ) );
+    assertEquals( Arrays.<Object>asList( objectId( 0x50000010 ), objectId( 0x50000020 ), objectId( 0x50000030 ) ),
+        partitioning.getBoundaries() );
+    // the string _ids are read by the first copy only
+    assertEquals( new BasicDBObject( "_id", new BasicDBObject( "$not", new BasicDBObject( "$gte",
+        objectId( 0x50000010 ) ) ) ), partitioning.getFilter( 0 ) );
+    assertEquals( objectId( 0x50000040 ), ( (DBObject) partitioning.getFilter( 3 ).get( "_id" ) ).get( "$lte" ) );
+  }
+
+  @Test
+  public void testTypeRestrictionIsAddedToTheQuery() throws KettleException {
+    DBCollection collection = collection( "_id", 1, 100 );
+    MongoDbInputPartitioner.computePartitioning( collection, new BasicDBObject( "_id", new BasicDBObject( "$gt", 0 ) ),
+        MongoDbInputMeta.PARTITION_ID_RANGE, null, 2 );
+
+    verify( collection ).find( eq( JSON.parse( "{\"$and\": [{\"_id\": {\"$gt\": 0}}, "
+        + "{\"_id\": {\"$type\": \"number\"}}]}" ) ), any( DBObject.class ) );
+  }
+
+  @Test
+  public void testWideIntegerRangesDontOverflow() throws KettleException {
+    List<Object> boundaries = MongoDbInputPartitioner.computePartitioning(
+        collection( "_id", Long.MIN_VALUE, Long.MAX_VALUE ), new BasicDBObject(), MongoDbInputMeta.PARTITION_ID_RANGE,
+        null, 4 ).getBoundaries();
+
+    assertEquals( 3, boundaries.size() );
+    assertEquals( Long.MIN_VALUE / 2 - 1, boundaries.get( 0 ) );
+    assertEquals( -1L, boundaries.get( 1 ) );
+    assertEquals( Long.MAX_VALUE / 2, boundaries.get( 2 ) );
+
+    boundaries = MongoDbInputPartitioner.computePartitioning( collection( "_id", -Double.MAX_VALUE, Double.MAX_VALUE ),
+        new BasicDBObject(), MongoDbInputMeta.PARTITION_ID_RANGE, null, 2 ).getBoundaries();
+    assertEquals( Arrays.<Object>asList( 0.0 ), boundaries );
+  }
+
+  @Test
+  public void testDateRanges() throws KettleException {
+    DBCollection collection = collection( "ts", new Date( -3000 ), new Date( 3000 ) );
+    MongoDbInputPartitioner.Partitioning partitioning = MongoDbInputPartitioner.computePartitioning( collection,
+        new BasicDBObject(), MongoDbInputMeta.PARTITION_DATE_RANGE, "ts", 3 );
+
+    assertEquals( Arrays.<Object>asList( new Date( -1000 ), new Date( 1000 ) ), partitioning.getBoundaries() );
+    assertNull( partitioning.getUpperBound() );
+  }
+
+  @Test
+  public void testEmptyCollectionIsOneRange() throws KettleException {
+    MongoDbInputPartitioner.Partitioning partitioning = MongoDbInputPartitioner.computePartitioning(
+        collection( "_id", null, null ), new BasicDBObject(), MongoDbInputMeta.PARTITION_ID_RANGE, null, 3 );
+
+    assertEquals( 1, partitioning.getNumRanges() );
+    assertTrue( partitioning.getFilter( 0 ).keySet().isEmpty() );
+  }
+}
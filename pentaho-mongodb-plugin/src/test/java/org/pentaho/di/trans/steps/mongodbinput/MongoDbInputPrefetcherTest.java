@@ -0,0 +1,126 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2026 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.mongodbinput;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.ServerAddress;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.mongo.MongoDbException;
+import org.pentaho.mongo.wrapper.cursor.MongoCursorWrapper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class MongoDbInputPrefetcherTest {
+
+  @Test
+  public void testDocumentsArriveInOrder() throws KettleException {
+    List<DBObject> docs = new ArrayList<DBObject>();
+    for ( int i = 0; i < 100; i++ ) {
+      docs.add( new BasicDBObject( "i", i ) );
+    }
+
+    // a queue much smaller than the result set, so the reader has to wait for the step
+    MongoDbInputPrefetcher prefetcher = new MongoDbInputPrefetcher( docs.iterator(), 3 );
+    prefetcher.start( "test" );
+    for ( int i = 0; i < 100; i++ ) {
+      assertTrue( prefetcher.hasNext() );
+      assertEquals( i, prefetcher.next().get( "i" ) );
+    }
+    assertFalse( prefetcher.hasNext() );
+    prefetcher.stop();
+
+    assertEquals( 3, prefetcher.getDepth() );
+    assertTrue( prefetcher.getMaxOccupancy() <= 4 );
+  }
+
+  @Test
+  public void testServerAddressIsReadByTheReaderThread() throws Exception {
+    MongoCursorWrapper cursor = mock( MongoCursorWrapper.class );
+    DBObject doc = new BasicDBObject( "a", 1 );
+    ServerAddress server = new ServerAddress( "mongo1", 27017 );
+    when( cursor.hasNext() ).thenReturn( true, false );
+    when( cursor.next() ).thenReturn( doc );
+    when( cursor.getServerAddress() ).thenReturn( server );
+
+    MongoDbInputPrefetcher prefetcher = new MongoDbInputPrefetcher( cursor, 10 );
+    prefetcher.start( "test" );
+    assertEquals( doc, prefetcher.next() );
+    assertEquals( server, prefetcher.getServerAddress() );
+    assertFalse( prefetcher.hasNext() );
+    prefetcher.stop();
+  }
+
+  @Test
+  public void testReadFailureIsReportedToTheStep() throws Exception {
+    MongoCursorWrapper cursor = mock( MongoCursorWrapper.class );
+    DBObject doc = new BasicDBObject( "a", 1 );
+    when( cursor.hasNext() ).thenReturn( true ).thenThrow( new MongoDbException( "lost connection" ) );
+    when( cursor.next() ).thenReturn( doc );
+
+    MongoDbInputPrefetcher prefetcher = new MongoDbInputPrefetcher( cursor, 10 );
+    prefetcher.start( "test" );
+    assertEquals( doc, prefetcher.next() );
+    try {
+      prefetcher.hasNext();
+      fail( "expected the read failure to be rethrown" );
+    } catch ( KettleException e ) {
+      assertTrue( e.getCause() instanceof MongoDbException );
+    }
+    prefetcher.stop();
+  }
+
+  @Test
+  public void testStopClosesTheCursorUnderABlockedRead() throws Exception {
+    MongoCursorWrapper cursor = mock( MongoCursorWrapper.class );
+    final CountDownLatch reading = new CountDownLatch( 1 );
+    final CountDownLatch closed = new CountDownLatch( 1 );
+    // a getMore that doesn't return until the cursor is closed (or the reader thread is interrupted)
+    when( cursor.hasNext() ).thenAnswer( new Answer<Boolean>() {
+      @Override
+      public Boolean answer( InvocationOnMock invocation ) throws Throwable {
+        reading.countDown();
+        closed.await( 60, TimeUnit.SECONDS );
+        throw new MongoDbException( "cursor closed" );
+      }
+    } );
+    doAnswer( new Answer<Void>() {
+      @Override
+      public Void answer( InvocationOnMock invocation ) {
+        closed.countDown();
+        return null;
+      }
+    } ).when( cursor ).close();
+
+    MongoDbInputPrefetcher prefetcher = new MongoDbInputPrefetcher( cursor, 10 );
+    prefetcher.start( "test" );
+    reading.await();
+
+    assertTrue( prefetcher.stop() );
+    verify( cursor ).close();
+  }
+}
@@ -0,0 +1,83 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2026 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.mongodbinput;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MongoDbInputQueryBatcherTest {
+
+  private static List<DBObject> queries( String... json ) {
+    List<DBObject> queries = new ArrayList<DBObject>();
+    for ( String q : json ) {
+      queries.add( (DBObject) JSON.parse( q ) );
+    }
+    return queries;
+  }
+
+  @Test
+  public void testOnlyEqualityTemplatesAreBatchable() {
+    assertTrue( new MongoDbInputQueryBatcher( "{\"a\": \"?{f}\", \"b\": 1}" ).isBatchable() );
+    assertTrue( new MongoDbInputQueryBatcher( "{\"a\": ?{f}}" ).isBatchable() );
+    assertTrue( new MongoDbInputQueryBatcher( "{\"a.b\": {\"$eq\": \"?{f}\"}}" ).isBatchable() );
+
+    assertFalse( new MongoDbInputQueryBatcher( "{\"a\": {\"$gt\": ?{f}}}" ).isBatchable() );
+    assertFalse( new MongoDbInputQueryBatcher( "{\"a\": \"x?{f}\"}" ).isBatchable() );
+    assertFalse( new MongoDbInputQueryBatcher( "{\"a\": \"?{f}\", \"$or\": [{\"b\": \"?{g}\"}]}" ).isBatchable() );
+    assertFalse( new MongoDbInputQueryBatcher( "{\"a\": 1}" ).isBatchable() );
+  }
+
+  @Test
+  public void testSingleKeyBecomesIn() {
+    MongoDbInputQueryBatcher batcher = new MongoDbInputQueryBatcher( "{\"a\": ?{f}, \"b\": \"x\"}" );
+    DBObject combined = batcher.combine( queries( "{\"a\": 1, \"b\": \"x\"}", "{\"a\": 2, \"b\": \"x\"}",
+        "{\"a\": 1, \"b\": \"x\"}" ) );
+
+    assertEquals( JSON.parse( "{\"a\": {\"$in\": [1, 2]}, \"b\": \"x\"}" ), combined );
+    assertEquals( Arrays.asList( 0, 2 ), batcher.getMatchingRows( (DBObject) JSON.parse( "{\"a\": 1.0}" ) ) );
+    assertEquals( Arrays.asList( 0, 1, 2 ),
+        batcher.getMatchingRows( (DBObject) JSON.parse( "{\"a\": [2, 1]}" ) ) );
+    assertEquals( Collections.<Integer>emptyList(),
+        batcher.getMatchingRows( (DBObject) JSON.parse( "{\"a\": \"1\"}" ) ) );
+  }
+
+  @Test
+  public void testCompoundKeysBecomeOr() {
+    MongoDbInputQueryBatcher batcher = new MongoDbInputQueryBatcher( "{\"a\": \"?{f}\", \"c.d\": ?{g}}" );
+    DBObject combined = batcher.combine( queries( "{\"a\": \"x\", \"c.d\": 1}", "{\"a\": \"y\", \"c.d\": 1}" ) );
+
+    assertEquals( JSON.parse( "{\"$or\": [{\"a\": \"x\", \"c.d\": 1}, {\"a\": \"y\", \"c.d\": 1}]}" ), combined );
+    assertEquals( Arrays.asList( 1 ),
+        batcher.getMatchingRows( (DBObject) JSON.parse( "{\"a\": \"y\", \"c\": [{\"d\": 0}, {\"d\": 1}]}" ) ) );
+    assertEquals( Collections.<Integer>emptyList(),
+        batcher.getMatchingRows( (DBObject) JSON.parse( "{\"a\": \"y\", \"c\": {\"d\": 2}}" ) ) );
+  }
+
+  @Test
+  public void testValuesThatAreNotPlainCannotBeCombined() {
+    MongoDbInputQueryBatcher batcher = new MongoDbInputQueryBatcher( "{\"a\": ?{f}}" );
+
+    assertNull( batcher.combine( queries( "{\"a\": 1}", "{\"a\": {\"$gt\": 5}}" ) ) );
+    assertNull( batcher.combine( queries( "{\"a\": null}" ) ) );
+  }
+}
@@ -0,0 +1,89 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2026 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.mongodbinput;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MongoDbInputResultCacheTest {
+
+  private static final List<DBObject> RESULT = Arrays.<DBObject>asList( new BasicDBObject( "a", 1 ) );
+
+  @Test
+  public void testLeastRecentlyUsedResultIsEvicted() {
+    MongoDbInputResultCache cache = new MongoDbInputResultCache( 2, 0, 1000 );
+    cache.put( "q1", RESULT, 10 );
+    cache.put( "q2", RESULT, 10 );
+    assertEquals( RESULT, cache.get( "q1" ) );
+
+    cache.put( "q3", RESULT, 10 );
+    assertNull( cache.get( "q2" ) );
+    assertEquals( RESULT, cache.get( "q1" ) );
+    assertEquals( RESULT, cache.get( "q3" ) );
+
+    assertEquals( 2, cache.size() );
+    assertEquals( 3, cache.getHits() );
+    assertEquals( 1, cache.getMisses() );
+    assertEquals( 1, cache.getEvictions() );
+  }
+
+  @Test
+  public void testMemoryLimit() {
+    MongoDbInputResultCache cache = new MongoDbInputResultCache( 100, 0, 100 );
+    cache.put( "q1", RESULT, 60 );
+    cache.put( "q2", RESULT, 60 );
+    assertNull( cache.get( "q1" ) );
+    assertEquals( 60, cache.getBytes() );
+
+    // bigger than the whole cache
+    cache.put( "q3", RESULT, 101 );
+    assertNull( cache.get( "q3" ) );
+    assertEquals( RESULT, cache.get( "q2" ) );
+  }
+
+  @Test
+  public void testResultsExpire() {
+    final long[] now = { 0 };
+    MongoDbInputResultCache cache = new MongoDbInputResultCache( 10, 1000, 1000 ) {
+      @Override
+      protected long now() {
+        return now[0];
+      }
+    };
+    cache.put( "q1", Collections.<DBObject>emptyList(), 10 );
+
+    now[0] = 999;
+    assertEquals( 0, cache.get( "q1" ).size() );
+    now[0] = 1000;
+    assertNull( cache.get( "q1" ) );
+    assertEquals( 1, cache.getExpirations() );
+    assertEquals( 0, cache.getBytes() );
+  }
+
+  @Test
+  public void testSizeEstimateGrowsWithContent() {
+    long small = MongoDbInputResultCache.estimateSize( new BasicDBObject( "a", "x" ) );
+    long large = MongoDbInputResultCache.estimateSize( new BasicDBObject( "a", new String( new char[1000] ) ) );
+
+    assertTrue( small > 0 );
+    assertTrue( large - small >= 1000 );
+  }
+}
@@ -38,6 +38,7 @@ import org.pentaho.mongo.MongoDbException;
 import org.pentaho.mongo.MongoProperties;
 import org.pentaho.mongo.MongoUtilLogger;
 import org.pentaho.mongo.wrapper.cursor.MongoCursorWrapper;
+import org.pentaho.mongo.wrapper.field.MongoArrayExpansion;
 import org.pentaho.mongo.wrapper.field.MongoField;
 
 import java.util.ArrayList;
@@ -60,6 +61,7 @@ import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.anyBoolean;
 import static org.mockito.Mockito.anyInt;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -373,9 +375,15 @@ public class MongoDbInputTest extends BaseMongoDbStepTest {
     when( mockCursor.getServerAddress() ).thenReturn( serverAddress );
 
     DBObject nextDoc = (DBObject) JSON.parse( "{ '_id' : 'ObjectId(60e433324a1cb8ec4ccd9758)', 'Company' : 'Portugal','Name': 'steve' ,'gender' : 'Male' }" );
-    Object[][] output = new Object[][]{ { null, null, "HC", 1000 } };
+    final Object[] output = new Object[]{ null, null, "HC", 1000 };
 
-    when( stepDataInterface.mongoDocumentToKettle( nextDoc, dbInput ) ).thenReturn( output );
+    doAnswer( new Answer<Void>() {
+      @Override public Void answer( InvocationOnMock invocationOnMock ) throws Throwable {
+        ( (MongoArrayExpansion.RowSink) invocationOnMock.getArguments()[ 2 ] ).putRow( output );
+        return null;
+      }
+    } ).when( stepDataInterface ).mongoDocumentToKettle( eq( nextDoc ), eq( dbInput ),
+        any( MongoArrayExpansion.RowSink.class ) );
     when( mockCursor.next() ).thenReturn( nextDoc );
 
     Answer<Void> mongoFieldsAnswer = new Answer<Void>() {
@@ -0,0 +1,110 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2026 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.mongodbinput;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.variables.Variables;
+import org.pentaho.mongo.wrapper.field.MongoField;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class MongoDbInputUnwindTest {
+
+  private static List<MongoField> fields( String... paths ) {
+    List<MongoField> fields = new ArrayList<MongoField>();
+    for ( int i = 0; i < paths.length; i++ ) {
+      MongoField f = new MongoField();
+      f.m_fieldName = "f" + i;
+      f.m_fieldPath = paths[i];
+      f.m_kettleType = "String";
+      fields.add( f );
+    }
+    return fields;
+  }
+
+  @Test
+  public void testExpansionsBecomeUnwindStages() {
+    MongoDbInputUnwind unwind = MongoDbInputUnwind.plan(
+        fields( "$.name", "$.orders[*].lines[*].sku", "$.orders[*].id", "$.tags[*]" ), new Variables() );
+
+    assertEquals( Arrays.asList( "tags", "orders", "orders.lines" ), unwind.getUnwindPaths() );
+    assertEquals( "$.name", unwind.getFields().get( 0 ).m_fieldPath );
+    assertEquals( "$.orders.lines.sku", unwind.getFields().get( 1 ).m_fieldPath );
+    assertEquals( "$.orders.id", unwind.getFields().get( 2 ).m_fieldPath );
+    assertEquals( "$.tags", unwind.getFields().get( 3 ).m_fieldPath );
+
+    List<DBObject> pipeline = new ArrayList<DBObject>();
+    unwind.appendStages( pipeline );
+    // anything but an array gives one row (with nulls), an empty array gives none - as when expanding on the client
+    assertEquals( JSON.parse( "{\"$addFields\": {\"tags\": "
+        + "{\"$cond\": [{\"$isArray\": \"$tags\"}, \"$tags\", [null]]}}}" ), pipeline.get( 0 ) );
+    assertEquals( JSON.parse( "{\"$unwind\": \"$tags\"}" ), pipeline.get( 1 ) );
+    assertEquals( JSON.parse( "{\"$addFields\": {\"orders.lines\": "
+        + "{\"$cond\": [{\"$isArray\": \"$orders.lines\"}, \"$orders.lines\", [null]]}}}" ), pipeline.get( 4 ) );
+    assertEquals( 6, pipeline.size() );
+    assertEquals( JSON.parse( "{\"name\": 1, \"tags\": 1, \"orders.id\": 1, \"orders.lines.sku\": 1, \"_id\": 0}" ),
+        unwind.getProjection( new Variables() ) );
+  }
+
+  @Test
+  public void testUnsupportedExpansions() {
+    assertNull( MongoDbInputUnwind.plan( fields( "$.name", "$.one.two[0]" ), new Variables() ) );
+    assertNull( MongoDbInputUnwind.plan( fields( "$[*].name" ), new Variables() ) );
+    assertNull( MongoDbInputUnwind.plan( fields( "$.a[0].b[*]" ), new Variables() ) );
+  }
+
+  @Test
+  public void testFieldsThroughAnUnwoundArrayAreNotUnwound() {
+    // after unwinding, orders is a single element, so these would read the wrong value
+    assertNull( MongoDbInputUnwind.plan( fields( "$.orders[*].id", "$.orders[0].id" ), new Variables() ) );
+    assertNull( MongoDbInputUnwind.plan( fields( "$.orders[*].id", "$.orders" ), new Variables() ) );
+    assertNull( MongoDbInputUnwind.plan( fields( "$.orders[*].id", "$.orders.count" ), new Variables() ) );
+    assertNull( MongoDbInputUnwind.plan( fields( "$.orders[*].id", "$" ), new Variables() ) );
+
+    assertEquals( Arrays.asList( "orders" ),
+        MongoDbInputUnwind.plan( fields( "$.orders[*].id", "$.ordersCount" ), new Variables() ).getUnwindPaths() );
+  }
+
+  @Test
+  public void testUnwoundDocumentConvertsToOneRow() throws KettleException {
+    MongoDbInputUnwind unwind =
+        MongoDbInputUnwind.plan( fields( "$.name", "$.orders[*].id", "$.tags[*]" ), new Variables() );
+
+    RowMetaInterface rowMeta = new RowMeta();
+    for ( MongoField f : unwind.getFields() ) {
+      rowMeta.addValueMeta( new ValueMeta( f.m_fieldName, ValueMeta.getType( f.m_kettleType ) ) );
+    }
+    MongoDbInputData data = new MongoDbInputData();
+    data.outputRowMeta = rowMeta;
+    data.setMongoFields( unwind.getFields() );
+    data.init();
+
+    // what the server sends for one combination of order and tag
+    Object[][] rows = data.mongoDocumentToKettle(
+        (DBObject) JSON.parse( "{\"name\": \"n\", \"orders\": {\"id\": \"o2\"}, \"tags\": \"t1\"}" ), new Variables() );
+    assertEquals( 1, rows.length );
+    assertEquals( "n", rows[0][0] );
+    assertEquals( "o2", rows[0][1] );
+    assertEquals( "t1", rows[0][2] );
+  }
+}
@@ -0,0 +1,90 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2026 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.mongodboutput;
+
+import org.junit.Test;
+
+import java.util.SortedMap;
+
+import static org.junit.Assert.assertEquals;
+
+public class MongoDbOutputBatchSizerTest {
+
+  private static final long SECOND = 1000000000L;
+
+  @Test
+  public void testSizeGrowsAdditivelyWhileBatchesSucceed() {
+    MongoDbOutputBatchSizer sizer = new MongoDbOutputBatchSizer( 100, 10, 125 );
+    assertEquals( 100, sizer.getBatchSize() );
+    assertEquals( 110, sizer.record( 100, 100, SECOND, 0, false ) );
+    assertEquals( 120, sizer.record( 110, 110, SECOND, 0, false ) );
+    assertEquals( 125, sizer.record( 120, 120, SECOND, 0, false ) );
+    assertEquals( 125, sizer.getBatchSize() );
+  }
+
+  @Test
+  public void testFailuresHalveTheSize() {
+    MongoDbOutputBatchSizer sizer = new MongoDbOutputBatchSizer( 40, 15, 1000 );
+    assertEquals( 20, sizer.record( 40, 40, SECOND, 0, true ) );
+    assertEquals( 15, sizer.record( 20, 20, SECOND, 20, false ) );
+    assertEquals( 15, sizer.record( 15, 15, SECOND, 0, true ) );
+  }
+
+  @Test
+  public void testAFewFailedWritesDoNotHalveTheSize() {
+    MongoDbOutputBatchSizer sizer = new MongoDbOutputBatchSizer( 100, 10, 1000 );
+    assertEquals( 110, sizer.record( 100, 100, SECOND, 10, false ) );
+    assertEquals( 55, sizer.record( 110, 110, SECOND, 12, false ) );
+  }
+
+  @Test
+  public void testSlowerBatchesHalveTheSize() {
+    MongoDbOutputBatchSizer sizer = new MongoDbOutputBatchSizer( 100, 10, 1000 );
+    sizer.record( 100, 100, SECOND, 0, false );
+    // a tenth of the throughput of the first batch
+    assertEquals( 55, sizer.record( 110, 110, 11 * SECOND, 0, false ) );
+  }
+
+  @Test
+  public void testPartialBatchesOnlyDecreaseTheSize() {
+    MongoDbOutputBatchSizer sizer = new MongoDbOutputBatchSizer( 100, 10, 1000 );
+    assertEquals( 100, sizer.record( 0, 30, SECOND, 0, false ) );
+    assertEquals( 50, sizer.record( 0, 30, SECOND, 0, true ) );
+    assertEquals( 0, sizer.getCurve().size() );
+  }
+
+  @Test
+  public void testInitialSizeIsWithinTheBounds() {
+    assertEquals( 10, new MongoDbOutputBatchSizer( 1, 10, 100 ).getBatchSize() );
+    assertEquals( 100, new MongoDbOutputBatchSizer( 1000, 10, 100 ).getBatchSize() );
+  }
+
+  @Test
+  public void testCurveRecordsTheThroughputOfEachSize() {
+    MongoDbOutputBatchSizer sizer = new MongoDbOutputBatchSizer( 100, 10, 1000 );
+    assertEquals( 0, sizer.getBestBatchSize() );
+
+    sizer.record( 100, 100, SECOND, 0, false );
+    sizer.record( 100, 100, 3 * SECOND, 0, false );
+    sizer.record( 200, 200, SECOND, 0, false );
+    sizer.record( 50, 50, SECOND / 2, 0, true );
+    // cut short, e.g. the last batch
+    sizer.record( 0, 20, SECOND / 1000, 0, false );
+
+    SortedMap<Integer, Double> curve = sizer.getCurve();
+    assertEquals( 3, curve.size() );
+    assertEquals( 50.0, curve.get( 100 ), 0.001 );
+    assertEquals( 200.0, curve.get( 200 ), 0.001 );
+    assertEquals( 100.0, curve.get( 50 ), 0.001 );
+    assertEquals( 200, sizer.getBestBatchSize() );
+  }
+}
@@ -0,0 +1,120 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2026 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.mongodboutput;
+
+import com.mongodb.DBObject;
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MongoDbOutputBatchWriterTest {
+
+  private static MongoDbOutputBatch batch() {
+    return new MongoDbOutputBatch( new ArrayList<DBObject>(), null, new ArrayList<Object[]>() );
+  }
+
+  private static Callable<MongoDbOutputBatch> write( final MongoDbOutputBatch batch, final List<Integer> order,
+                                                     final int id ) {
+    return new Callable<MongoDbOutputBatch>() {
+      @Override
+      public MongoDbOutputBatch call() throws Exception {
+        // later batches finish sooner, unless they are written in order
+        Thread.sleep( 40 - 10 * id );
+        order.add( id );
+        return batch;
+      }
+    };
+  }
+
+  @Test
+  public void testSubmitWaitsWhenTheMaximumIsInFlight() throws Exception {
+    MongoDbOutputBatchWriter writer = new MongoDbOutputBatchWriter( 2, 2, "writer" );
+    List<Integer> order = Collections.synchronizedList( new ArrayList<Integer>() );
+
+    assertTrue( writer.submit( write( batch(), order, 0 ) ).isEmpty() );
+    assertTrue( writer.submit( write( batch(), order, 1 ) ).isEmpty() );
+    assertEquals( 2, writer.getInFlight() );
+
+    // no room, so one of the batches in flight has to finish first
+    assertEquals( 1, writer.submit( write( batch(), order, 2 ) ).size() );
+    assertEquals( 2, writer.getInFlight() );
+
+    assertEquals( 2, writer.finish().size() );
+    assertEquals( 0, writer.getInFlight() );
+  }
+
+  @Test
+  public void testOneThreadWritesInOrder() throws Exception {
+    MongoDbOutputBatchWriter writer = new MongoDbOutputBatchWriter( 4, 1, "writer" );
+    List<Integer> order = Collections.synchronizedList( new ArrayList<Integer>() );
+    List<MongoDbOutputBatch> batches = Arrays.asList( batch(), batch(), batch(), batch() );
+
+    for ( int i = 0; i < batches.size(); i++ ) {
+      assertTrue( writer.submit( write( batches.get( i ), order, i ) ).isEmpty() );
+    }
+
+    assertEquals( batches, writer.finish() );
+    assertEquals( Arrays.asList( 0, 1, 2, 3 ), order );
+  }
+
+  @Test
+  public void testFailedWriteIsReported() throws Exception {
+    MongoDbOutputBatchWriter writer = new MongoDbOutputBatchWriter( 2, 2, "writer" );
+    writer.submit( new Callable<MongoDbOutputBatch>() {
+      @Override
+      public MongoDbOutputBatch call() {
+        throw new IllegalStateException( "write failed" );
+      }
+    } );
+
+    try {
+      writer.finish();
+      fail( "expected an exception" );
+    } catch ( KettleException e ) {
+      assertTrue( e.getCause() instanceof IllegalStateException );
+    }
+  }
+
+  @Test
+  public void testStopWaitsForTheWriteInProgressToEnd() throws Exception {
+    MongoDbOutputBatchWriter writer = new MongoDbOutputBatchWriter( 2, 1, "writer" );
+    final CountDownLatch started = new CountDownLatch( 1 );
+    final AtomicBoolean ended = new AtomicBoolean();
+    writer.submit( new Callable<MongoDbOutputBatch>() {
+      @Override
+      public MongoDbOutputBatch call() throws Exception {
+        started.countDown();
+        try {
+          Thread.sleep( 60000 );
+        } finally {
+          ended.set( true );
+        }
+        return batch();
+      }
+    } );
+    started.await();
+
+    assertTrue( writer.stop() );
+    assertTrue( ended.get() );
+  }
+}
@@ -14,9 +14,15 @@
 package org.pentaho.di.trans.steps.mongodboutput;
 
 import com.mongodb.BasicDBObject;
+import com.mongodb.BulkUpdateRequestBuilder;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteRequestBuilder;
+import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
 import com.mongodb.util.JSON;
+import org.bson.BasicBSONEncoder;
+import org.bson.types.Decimal128;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -36,10 +42,13 @@ import org.pentaho.di.core.variables.VariableSpace;
 import org.pentaho.di.trans.steps.mongodboutput.MongoDbOutputMeta.MongoIndex;
 import org.pentaho.mongo.MongoDbException;
 import org.pentaho.mongo.wrapper.MongoClientWrapper;
+import org.pentaho.mongo.wrapper.MongoDBAction;
 import org.pentaho.mongo.wrapper.collection.DefaultMongoCollectionWrapper;
 import org.pentaho.mongo.wrapper.collection.MongoCollectionWrapper;
 
+import java.math.BigDecimal;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 
 import static junit.framework.TestCase.fail;
@@ -47,13 +56,17 @@ import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyBoolean;
 import static org.mockito.Mockito.anyInt;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class MongoDbOutputDataTest {
@@ -269,4 +282,86 @@ public class MongoDbOutputDataTest {
     assertThat( data.getOutputRowMeta(), equalTo( rowMeta ) );
   }
 
+  @Test
+  public void testBulkUpdate() throws MongoDbException {
+    final DB db = mock( DB.class );
+    DBCollection dbCollection = mock( DBCollection.class );
+    BulkWriteOperation bulk = mock( BulkWriteOperation.class );
+    BulkWriteRequestBuilder find = mock( BulkWriteRequestBuilder.class );
+    BulkUpdateRequestBuilder upsertFind = mock( BulkUpdateRequestBuilder.class );
+    when( db.getCollection( "coll" ) ).thenReturn( dbCollection );
+    when( dbCollection.initializeOrderedBulkOperation() ).thenReturn( bulk );
+    when( bulk.find( any( DBObject.class ) ) ).thenReturn( find );
+    when( find.upsert() ).thenReturn( upsertFind );
+    when( client.perform( eq( "db" ), any( MongoDBAction.class ) ) ).thenAnswer( new Answer<Object>() {
+      @Override public Object answer( InvocationOnMock invocationOnMock ) throws Throwable {
+        return ( (MongoDBAction) invocationOnMock.getArguments()[1] ).perform( db );
+      }
+    } );
+
+    MongoDbOutputData data = new MongoDbOutputData();
+    data.setConnection( client );
+    data.setCollectionName( "db", "coll" );
+
+    DBObject query = new BasicDBObject( "foo", "a" );
+    DBObject replacement = new BasicDBObject( "foo", "a" ).append( "bar", 1 );
+    DBObject modifier = new BasicDBObject( "$inc", new BasicDBObject( "bar", 1 ) );
+    List<DBObject> queries = Arrays.asList( query, query );
+    List<DBObject> updates = Arrays.asList( replacement, modifier );
+
+    // a replacement document replaces the first match, update operators apply to the first or all matches
+    data.bulkUpdate( queries, updates, false, false, true );
+    verify( find ).replaceOne( replacement );
+    verify( find ).updateOne( modifier );
+
+    data.bulkUpdate( queries, updates, true, true, true );
+    verify( upsertFind ).replaceOne( replacement );
+    verify( upsertFind ).update( modifier );
+    verify( bulk, times( 2 ) ).execute();
+  }
+
+  @Test
+  public void testBulkInsertIsUnordered() throws MongoDbException {
+    final DB db = mock( DB.class );
+    DBCollection dbCollection = mock( DBCollection.class );
+    BulkWriteOperation bulk = mock( BulkWriteOperation.class );
+    when( db.getCollection( "coll" ) ).thenReturn( dbCollection );
+    when( dbCollection.initializeUnorderedBulkOperation() ).thenReturn( bulk );
+    when( client.perform( eq( "db" ), any( MongoDBAction.class ) ) ).thenAnswer( new Answer<Object>() {
+      @Override public Object answer( InvocationOnMock invocationOnMock ) throws Throwable {
+        return ( (MongoDBAction) invocationOnMock.getArguments()[1] ).perform( db );
+      }
+    } );
+
+    MongoDbOutputData data = new MongoDbOutputData();
+    data.setConnection( client );
+    data.setCollectionName( "db", "coll" );
+
+    DBObject first = new BasicDBObject( "foo", "a" );
+    DBObject second = new BasicDBObject( "foo", "b" );
+    data.bulkInsert( Arrays.asList( first, second ) );
+    verify( bulk ).insert( first );
+    verify( bulk ).insert( second );
+    verify( bulk ).execute();
+  }
+
+  @Test
+  public void testEstimateBsonSizeMatchesTheEncodedSize() {
+    DBObject doc = (DBObject) JSON.parse( "{name : 'caf\u00e9 \u20ac \ud83d\ude00', n : 1, big : 12345678901, d : 1.5, "
+      + "ok : true, none : null, id : {$oid : '5f0c6a6b1c9d440000a1b2c3'}, re : {$regex : 'a.*', $options : 'i'}, "
+      + "list : [1, 'two', {three : 3}], nested : {a : {b : 'c'}}}" );
+    doc.put( "when", new Date( 0 ) );
+    doc.put( "bytes", new byte[] { 1, 2, 3 } );
+    doc.put( "num", new Decimal128( new BigDecimal( "1.25" ) ) );
+
+    assertEquals( new BasicBSONEncoder().encode( doc ).length, MongoDbOutputData.estimateBsonSize( doc ) );
+  }
+
+  @Test
+  public void testIsIdempotentUpdate() {
+    assertTrue( MongoDbOutputData.isIdempotentUpdate( new BasicDBObject( "n", 1 ) ) );
+    assertTrue( MongoDbOutputData.isIdempotentUpdate( (DBObject) JSON.parse( "{$set : {n : 1}, $unset : {m : 1}}" ) ) );
+    assertFalse( MongoDbOutputData.isIdempotentUpdate( (DBObject) JSON.parse( "{$set : {n : 1}, $inc : {m : 1}}" ) ) );
+    assertFalse( MongoDbOutputData.isIdempotentUpdate( (DBObject) JSON.parse( "{$push : {tags : 'a'}}" ) ) );
+  }
 }
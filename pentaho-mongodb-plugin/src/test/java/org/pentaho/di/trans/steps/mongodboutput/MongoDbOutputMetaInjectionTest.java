@@ -93,6 +93,36 @@ public class MongoDbOutputMetaInjectionTest extends BaseMetadataInjectionTest<Mo
         return meta.getWriteRetryDelay();
       }
     } );
+    check( "ORDERED_WRITES", new BooleanGetter() {
+      public boolean get() {
+        return meta.getOrderedWrites();
+      }
+    } );
+    check( "IN_FLIGHT_BATCHES", new StringGetter() {
+      public String get() {
+        return meta.getInFlightBatches();
+      }
+    } );
+    check( "BATCH_MAX_BYTES", new StringGetter() {
+      public String get() {
+        return meta.getBatchMaxBytes();
+      }
+    } );
+    check( "AUTO_TUNE_BATCH_SIZE", new BooleanGetter() {
+      public boolean get() {
+        return meta.getAutoTuneBatchSize();
+      }
+    } );
+    check( "BATCH_SIZE_MIN", new StringGetter() {
+      public String get() {
+        return meta.getMinBatchSize();
+      }
+    } );
+    check( "BATCH_SIZE_MAX", new StringGetter() {
+      public String get() {
+        return meta.getMaxBatchSize();
+      }
+    } );
     check( "HOSTNAME", new StringGetter() {
       public String get() {
         return meta.getHostnames();
@@ -221,6 +251,11 @@ public class MongoDbOutputMetaInjectionTest extends BaseMetadataInjectionTest<Mo
         return meta.getMongoFields().get( 0 ).m_JSON;
       }
     } );
+    check( "DECIMAL128", new BooleanGetter() {
+      public boolean get() {
+        return meta.getMongoFields().get( 0 ).m_decimal128;
+      }
+    } );
     check( "INDEX_FIELD", new StringGetter() {
       public String get() {
         return meta.getMongoIndexes().get( 0 ).m_pathToFields;
@@ -55,7 +55,9 @@ public class MongoDbOutputMetaTest {
       Arrays.asList( "mongo_host", "mongo_port", "use_all_replica_members", "mongo_user", "mongo_password",
         "auth_kerberos", "mongo_db", "mongo_collection", "batch_insert_size", "connect_timeout", "socket_timeout",
         "read_preference", "write_concern", "w_timeout", "journaled_writes", "truncate", "update", "upsert",
-        "multi", "modifier_update", "write_retries", "write_retry_delay", "mongo_fields", "mongo_indexes" );
+        "multi", "modifier_update", "write_retries", "write_retry_delay", "mongo_fields", "mongo_indexes",
+        "ordered_writes", "in_flight_batches", "batch_max_bytes", "auto_tune_batch_size", "batch_size_min",
+        "batch_size_max" );
     Map<String, String> getterMap = new HashMap<String, String>();
     getterMap.put( "mongo_host", "getHostnames" );
     getterMap.put( "mongo_port", "getPort" );
@@ -66,6 +68,12 @@ public class MongoDbOutputMetaTest {
     getterMap.put( "mongo_db", "getDbName" );
     getterMap.put( "mongo_collection", "getCollection" );
     getterMap.put( "journaled_writes", "getJournal" );
+    getterMap.put( "ordered_writes", "getOrderedWrites" );
+    getterMap.put( "in_flight_batches", "getInFlightBatches" );
+    getterMap.put( "batch_max_bytes", "getBatchMaxBytes" );
+    getterMap.put( "auto_tune_batch_size", "getAutoTuneBatchSize" );
+    getterMap.put( "batch_size_min", "getMinBatchSize" );
+    getterMap.put( "batch_size_max", "getMaxBatchSize" );
 
     Map<String, String> setterMap = new HashMap<String, String>();
     setterMap.put( "mongo_host", "setHostnames" );
@@ -78,6 +86,12 @@ public class MongoDbOutputMetaTest {
     setterMap.put( "mongo_collection", "setCollection" );
     setterMap.put( "batch_insert_size", "setBatchInsertSize" );
     setterMap.put( "journaled_writes", "setJournal" );
+    setterMap.put( "ordered_writes", "setOrderedWrites" );
+    setterMap.put( "in_flight_batches", "setInFlightBatches" );
+    setterMap.put( "batch_max_bytes", "setBatchMaxBytes" );
+    setterMap.put( "auto_tune_batch_size", "setAutoTuneBatchSize" );
+    setterMap.put( "batch_size_min", "setMinBatchSize" );
+    setterMap.put( "batch_size_max", "setMaxBatchSize" );
 
     LoadSaveTester tester = new LoadSaveTester( MongoDbOutputMeta.class, commonFields, getterMap, setterMap );
 
@@ -87,7 +101,7 @@ public class MongoDbOutputMetaTest {
       new ListLoadSaveValidator<MongoField>( new ObjectValidator<MongoField>( validatorFactory, MongoField.class,
         Arrays.asList( "m_incomingFieldName", "m_mongoDocPath", "m_useIncomingFieldNameAsMongoFieldName",
           "m_updateMatchField", "m_modifierUpdateOperation", "m_modifierOperationApplyPolicy", "m_JSON",
-          "insertNull" ) ) ) );
+          "insertNull", "m_decimal128" ) ) ) );
 
     validatorFactory.registerValidator( validatorFactory.getName( List.class, MongoIndex.class ),
       new ListLoadSaveValidator<MongoIndex>( new ObjectValidator<MongoIndex>( validatorFactory, MongoIndex.class,
@@ -15,13 +15,15 @@ package org.pentaho.di.trans.steps.mongodboutput;
 
 import com.google.common.collect.ImmutableMap;
 import com.mongodb.BasicDBObject;
-import com.mongodb.CommandResult;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
 import com.mongodb.DBObject;
 import com.mongodb.MongoException;
-import com.mongodb.WriteResult;
+import com.mongodb.MongoExecutionTimeoutException;
 import com.mongodb.util.JSON;
 import junit.framework.Assert;
 import junit.framework.TestCase;
+import org.bson.types.Decimal128;
 import org.easymock.Capture;
 import org.easymock.CaptureType;
 import org.easymock.EasyMock;
@@ -46,6 +48,7 @@ import org.pentaho.di.core.plugins.PluginRegistry;
 import org.pentaho.di.core.row.RowMeta;
 import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaBigNumber;
 import org.pentaho.di.core.row.value.ValueMetaInteger;
 import org.pentaho.di.core.row.value.ValueMetaPluginType;
 import org.pentaho.di.core.row.value.ValueMetaString;
@@ -68,7 +71,9 @@ import org.w3c.dom.NodeList;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import java.io.ByteArrayInputStream;
+import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Map;
 import java.util.HashMap;
@@ -88,9 +93,12 @@ import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyBoolean;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.anyList;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -275,6 +283,35 @@ public class MongoDbOutputTest extends BaseMongoDbStepTest {
     assertEquals( JSON.serialize( result ), "{ \"field1\" : \"value1\" , \"field2\" : 12}" );
   }
 
+  @Test public void testBigNumberStoredAsDecimal128() throws Exception {
+    MongoDbOutputMeta.MongoField asDecimal = mf( "field1", true, "" );
+    asDecimal.m_decimal128 = true;
+    List<MongoDbOutputMeta.MongoField> paths = asList( asDecimal, mf( "field2", true, "" ) );
+
+    RowMetaInterface rmi = new RowMeta();
+    rmi.addValueMeta( new ValueMetaBigNumber( "field1" ) );
+    rmi.addValueMeta( new ValueMetaBigNumber( "field2" ) );
+
+    BigDecimal value = new BigDecimal( "12345678901234567890.0123456789" );
+    Object[] row = new Object[] { value, value };
+    VariableSpace vs = new Variables();
+
+    for ( MongoDbOutputMeta.MongoField f : paths ) {
+      f.init( vs );
+    }
+
+    DBObject result = kettleRowToMongo( paths, rmi, row, MongoDbOutputData.MongoTopLevel.RECORD, false );
+
+    assertEquals( new Decimal128( value ), result.get( "field1" ) );
+    assertEquals( value, ( (Decimal128) result.get( "field1" ) ).bigDecimalValue() );
+    assertTrue( result.get( "field2" ) instanceof String );
+
+    // more digits than Decimal128 can hold
+    row[ 0 ] = new BigDecimal( "1234567890123456789012345678901234567890" );
+    result = kettleRowToMongo( paths, rmi, row, MongoDbOutputData.MongoTopLevel.RECORD, false );
+    assertTrue( result.get( "field1" ) instanceof String );
+  }
+
   @Test public void testTopLevelArrayStructureWithPrimitives() throws Exception {
     List<MongoDbOutputMeta.MongoField> paths = asList( mf( "field1", false, "[0]" ), mf( "field2", false, "[1]" ) );
 
@@ -910,10 +947,6 @@ public class MongoDbOutputTest extends BaseMongoDbStepTest {
 
   @Test public void testUpdate() throws Exception {
     setupReturns();
-    WriteResult result = mock( WriteResult.class );
-    CommandResult commandResult = mock( CommandResult.class );
-    when( mongoCollectionWrapper.update( any( DBObject.class ), any( DBObject.class ), anyBoolean(), anyBoolean() ) )
-      .thenReturn( result );
     when( stepMetaInterface.getUpdate() ).thenReturn( true );
 
     // flag a field for update = "foo"
@@ -923,17 +956,22 @@ public class MongoDbOutputTest extends BaseMongoDbStepTest {
     setupRowMeta();
     dbOutput.init( stepMetaInterface, stepDataInterace );
     assertTrue( dbOutput.processRow( stepMetaInterface, stepDataInterace ) );
-    ArgumentCaptor<BasicDBObject> updateQueryCaptor = ArgumentCaptor.forClass( BasicDBObject.class );
-    ArgumentCaptor<BasicDBObject> insertCaptor = ArgumentCaptor.forClass( BasicDBObject.class );
+    // updates are batched
+    verify( stepDataInterace, never() ).bulkUpdate( anyList(), anyList(), anyBoolean(), anyBoolean(), anyBoolean() );
+
+    rowData = null;
+    assertFalse( dbOutput.processRow( stepMetaInterface, stepDataInterace ) );
+    ArgumentCaptor<List> updateQueryCaptor = ArgumentCaptor.forClass( List.class );
+    ArgumentCaptor<List> insertCaptor = ArgumentCaptor.forClass( List.class );
 
     // update is executed
-    verify( mongoCollectionWrapper )
-      .update( updateQueryCaptor.capture(), insertCaptor.capture(), anyBoolean(), anyBoolean() );
+    verify( stepDataInterace )
+      .bulkUpdate( updateQueryCaptor.capture(), insertCaptor.capture(), anyBoolean(), anyBoolean(), anyBoolean() );
     // updated field is expected
-    assertThat( updateQueryCaptor.getValue(), equalTo( new BasicDBObject( "foo", "foo" ) ) );
+    assertThat( updateQueryCaptor.getValue(), equalTo( (List) singletonList( new BasicDBObject( "foo", "foo" ) ) ) );
     // insert document is expected
-    assertThat( insertCaptor.getValue(),
-      equalTo( new BasicDBObject( ( ImmutableMap.of( "foo", "foo", "bar", "bar", "baz", "baz" ) ) ) ) );
+    assertThat( insertCaptor.getValue(), equalTo( (List) singletonList(
+      new BasicDBObject( ( ImmutableMap.of( "foo", "foo", "bar", "bar", "baz", "baz" ) ) ) ) ) );
   }
 
   @Test public void updateFailureRetries() throws Exception {
@@ -946,18 +984,310 @@ public class MongoDbOutputTest extends BaseMongoDbStepTest {
     MongoDbOutputMeta.MongoField mongoField = mongoFields.get( 0 );
     mongoField.m_updateMatchField = true;
 
-    when( mongoCollectionWrapper.update( any( DBObject.class ), any( DBObject.class ), anyBoolean(), anyBoolean() ) )
+    when( stepDataInterace.bulkUpdate( anyList(), anyList(), anyBoolean(), anyBoolean(), anyBoolean() ) )
       .thenThrow( mock( MongoDbException.class ) );
 
     dbOutput.init( stepMetaInterface, stepDataInterace );
+    assertTrue( dbOutput.processRow( stepMetaInterface, stepDataInterace ) );
+    rowData = null;
     try {
       dbOutput.processRow( stepMetaInterface, stepDataInterace );
       fail( "expected exception" );
     } catch ( KettleException ke ) {
       // update should be called 3 times (first time plus 2 retries)
-      verify( mongoCollectionWrapper, times( 3 ) )
-        .update( any( DBObject.class ), any( DBObject.class ), anyBoolean(), anyBoolean() );
+      verify( stepDataInterace, times( 3 ) )
+        .bulkUpdate( anyList(), anyList(), anyBoolean(), anyBoolean(), anyBoolean() );
+    }
+  }
+
+  private List<Object[]> writeWithErrorHandling( boolean update, Object[]... rows ) throws Exception {
+    final List<Object[]> errorRows = new ArrayList<Object[]>();
+    dbOutput = new MongoDbOutput( stepMeta, stepDataInterace, 1, transMeta, trans ) {
+      public Object[] getRow() {
+        return rowData;
+      }
+
+      @Override
+      public void putRow( RowMetaInterface rowMeta, Object[] row ) throws KettleStepException {
+        outputRowData.add( row );
+      }
+
+      @Override
+      public void putError( RowMetaInterface rowMeta, Object[] row, long nrErrors, String errorDescriptions,
+                            String fieldNames, String errorCodes ) {
+        errorRows.add( row );
+      }
+
+      @Override
+      public RowMetaInterface getInputRowMeta() {
+        return rowMeta;
+      }
+    };
+    when( stepMetaInterface.getWriteRetries() ).thenReturn( "1" );
+    when( stepMetaInterface.getWriteRetryDelay() ).thenReturn( "0" );
+    when( stepMetaInterface.getUpdate() ).thenReturn( update );
+    mongoFields.get( 0 ).m_updateMatchField = update;
+
+    dbOutput.init( stepMetaInterface, stepDataInterace );
+    for ( Object[] row : rows ) {
+      rowData = row;
+      assertTrue( dbOutput.processRow( stepMetaInterface, stepDataInterace ) );
     }
+    rowData = null;
+    assertFalse( dbOutput.processRow( stepMetaInterface, stepDataInterace ) );
+    return errorRows;
+  }
+
+  private static BulkWriteException bulkWriteError( int index, String message ) {
+    BulkWriteException e = mock( BulkWriteException.class );
+    when( e.getWriteErrors() )
+      .thenReturn( singletonList( new BulkWriteError( 11000, message, new BasicDBObject(), index ) ) );
+    return e;
+  }
+
+  @Test public void unorderedUpdateErrorsAreRetriedAndRoutedPerRow() throws Exception {
+    setupReturns();
+    setupRowMeta();
+    Object[] a = { "a", "bar", "baz" };
+    Object[] b = { "b", "bar", "baz" };
+    Object[] c = { "c", "bar", "baz" };
+
+    when( stepMeta.isDoingErrorHandling() ).thenReturn( true );
+
+    // the second update fails, and fails again when it is retried on its own
+    BulkWriteException first = bulkWriteError( 1, "duplicate key" );
+    BulkWriteException retry = bulkWriteError( 0, "duplicate key" );
+    when( stepDataInterace.bulkUpdate( anyList(), anyList(), anyBoolean(), anyBoolean(), anyBoolean() ) )
+      .thenThrow( first ).thenThrow( retry );
+
+    List<Object[]> errorRows = writeWithErrorHandling( true, a, b, c );
+
+    ArgumentCaptor<List> queries = ArgumentCaptor.forClass( List.class );
+    verify( stepDataInterace, times( 2 ) )
+      .bulkUpdate( queries.capture(), anyList(), anyBoolean(), anyBoolean(), eq( false ) );
+    assertEquals( 3, queries.getAllValues().get( 0 ).size() );
+    assertEquals( singletonList( new BasicDBObject( "foo", "b" ) ), queries.getAllValues().get( 1 ) );
+
+    assertEquals( 1, errorRows.size() );
+    assertTrue( errorRows.get( 0 ) == b );
+    // every row is still passed on
+    assertEquals( 3, outputRowData.size() );
+  }
+
+  @Test public void insertErrorsAreRetriedAndRoutedPerRow() throws Exception {
+    setupReturns();
+    setupRowMeta();
+    when( stepMeta.isDoingErrorHandling() ).thenReturn( true );
+    Object[] a = { "a", "bar", "baz" };
+    Object[] b = { "b", "bar", "baz" };
+    Object[] c = { "c", "bar", "baz" };
+
+    // the second document is a duplicate, the others are inserted by the first attempt
+    BulkWriteException first = bulkWriteError( 1, "duplicate key" );
+    BulkWriteException retry = bulkWriteError( 0, "duplicate key" );
+    when( stepDataInterace.bulkInsert( anyList() ) ).thenThrow( first ).thenThrow( retry );
+
+    List<Object[]> errorRows = writeWithErrorHandling( false, a, b, c );
+
+    ArgumentCaptor<List> documents = ArgumentCaptor.forClass( List.class );
+    verify( stepDataInterace, times( 2 ) ).bulkInsert( documents.capture() );
+    assertEquals( 3, documents.getAllValues().get( 0 ).size() );
+    assertEquals( 1, documents.getAllValues().get( 1 ).size() );
+    assertEquals( "b", ( (DBObject) documents.getAllValues().get( 1 ).get( 0 ) ).get( "foo" ) );
+
+    assertEquals( 1, errorRows.size() );
+    assertTrue( errorRows.get( 0 ) == b );
+    assertEquals( 3, outputRowData.size() );
+  }
+
+  @Test public void insertsWrittenByAFailedAttemptAreNotRetriedAgain() throws Exception {
+    setupReturns();
+    setupRowMeta();
+
+    // the first attempt times out after the document was inserted, so the retry finds it already there
+    MongoExecutionTimeoutException timeout = new MongoExecutionTimeoutException( 50, "operation exceeded time limit" );
+    BulkWriteException retry =
+      bulkWriteError( 0, "E11000 duplicate key error collection: dbname.collection index: _id_ dup key: { _id: 1 }" );
+    when( stepDataInterace.bulkInsert( anyList() ) ).thenThrow( timeout ).thenThrow( retry );
+
+    assertTrue( writeWithErrorHandling( false, rowData ).isEmpty() );
+    verify( stepDataInterace, times( 2 ) ).bulkInsert( anyList() );
+  }
+
+  @Test public void duplicatesOnOtherIndexesAfterAFailedAttemptAreErrors() throws Exception {
+    setupReturns();
+    setupRowMeta();
+    when( stepMeta.isDoingErrorHandling() ).thenReturn( true );
+
+    // the retry collides on a secondary unique index, so the document may never have been written
+    MongoExecutionTimeoutException timeout = new MongoExecutionTimeoutException( 50, "operation exceeded time limit" );
+    BulkWriteException retry =
+      bulkWriteError( 0, "E11000 duplicate key error collection: dbname.collection index: foo_1 dup key: { foo: 1 }" );
+    when( stepDataInterace.bulkInsert( anyList() ) ).thenThrow( timeout ).thenThrow( retry );
+
+    assertEquals( 1, writeWithErrorHandling( false, rowData ).size() );
+    verify( stepDataInterace, times( 2 ) ).bulkInsert( anyList() );
+  }
+
+  @Test public void batchesAreWrittenInTheBackground() throws Exception {
+    setupReturns();
+    setupRowMeta();
+    when( stepMetaInterface.getBatchInsertSize() ).thenReturn( "1" );
+    when( stepMetaInterface.getInFlightBatches() ).thenReturn( "2" );
+
+    dbOutput.init( stepMetaInterface, stepDataInterace );
+    for ( int i = 0; i < 3; i++ ) {
+      assertTrue( dbOutput.processRow( stepMetaInterface, stepDataInterace ) );
+    }
+    assertTrue( dbOutput.m_writer.getInFlight() <= 2 );
+
+    rowData = null;
+    assertFalse( dbOutput.processRow( stepMetaInterface, stepDataInterace ) );
+    verify( stepDataInterace, times( 3 ) ).bulkInsert( anyList() );
+    assertNull( dbOutput.m_writer );
+    assertEquals( 3, outputRowData.size() );
+  }
+
+  @Test public void batchesAreWrittenBeforeTheyExceedTheMaximumBytes() throws Exception {
+    setupReturns();
+    setupRowMeta();
+    // each document is 42 bytes, so two fit
+    when( stepMetaInterface.getBatchMaxBytes() ).thenReturn( "100" );
+
+    writeWithErrorHandling( false, new Object[] { "a", "bar", "baz" }, new Object[] { "b", "bar", "baz" },
+      new Object[] { "c", "bar", "baz" } );
+
+    ArgumentCaptor<List> documents = ArgumentCaptor.forClass( List.class );
+    verify( stepDataInterace, times( 2 ) ).bulkInsert( documents.capture() );
+    assertEquals( 2, documents.getAllValues().get( 0 ).size() );
+    assertEquals( 1, documents.getAllValues().get( 1 ).size() );
+  }
+
+  @Test public void documentsOverTheSizeLimitAreNeverSent() throws Exception {
+    setupReturns();
+    setupRowMeta();
+    when( stepMeta.isDoingErrorHandling() ).thenReturn( true );
+    char[] chars = new char[ MongoDbOutputData.MAX_DOCUMENT_BYTES ];
+    Arrays.fill( chars, 'x' );
+    Object[] large = { new String( chars ), "bar", "baz" };
+    Object[] small = { "a", "bar", "baz" };
+
+    List<Object[]> errorRows = writeWithErrorHandling( false, large, small );
+
+    ArgumentCaptor<List> documents = ArgumentCaptor.forClass( List.class );
+    verify( stepDataInterace ).bulkInsert( documents.capture() );
+    assertEquals( "a", ( (DBObject) documents.getValue().get( 0 ) ).get( "foo" ) );
+    assertEquals( 1, errorRows.size() );
+    assertTrue( errorRows.get( 0 ) == large );
+    // the large row only goes to the error stream
+    assertEquals( 1, outputRowData.size() );
+  }
+
+  @Test public void theGeneratedIdCountsTowardsTheSizeLimit() throws Exception {
+    setupReturns();
+    setupRowMeta();
+    when( stepMeta.isDoingErrorHandling() ).thenReturn( true );
+    // a 42 byte document with a one character string, so this is just under the limit until the driver adds an _id
+    char[] chars = new char[ MongoDbOutputData.MAX_DOCUMENT_BYTES - 46 ];
+    Arrays.fill( chars, 'x' );
+    Object[] large = { new String( chars ), "bar", "baz" };
+    Object[] small = { "a", "bar", "baz" };
+
+    List<Object[]> errorRows = writeWithErrorHandling( false, large, small );
+
+    verify( stepDataInterace ).bulkInsert( anyList() );
+    assertEquals( 1, errorRows.size() );
+    assertTrue( errorRows.get( 0 ) == large );
+  }
+
+  @Test public void queriesCountTowardsTheMaximumBatchBytes() throws Exception {
+    setupReturns();
+    setupRowMeta();
+    // each update document is 42 bytes, so two would fit if the queries weren't counted
+    when( stepMetaInterface.getBatchMaxBytes() ).thenReturn( "100" );
+
+    writeWithErrorHandling( true, new Object[] { "a", "bar", "baz" }, new Object[] { "b", "bar", "baz" } );
+
+    verify( stepDataInterace, times( 2 ) ).bulkUpdate( anyList(), anyList(), anyBoolean(), anyBoolean(),
+      anyBoolean() );
+  }
+
+  @Test public void batchSizeIsTunedWhileWriting() throws Exception {
+    setupReturns();
+    setupRowMeta();
+    when( stepMetaInterface.getBatchInsertSize() ).thenReturn( "2" );
+    when( stepMetaInterface.getAutoTuneBatchSize() ).thenReturn( true );
+    when( stepMetaInterface.getMinBatchSize() ).thenReturn( "2" );
+    when( stepMetaInterface.getMaxBatchSize() ).thenReturn( "10" );
+
+    dbOutput.init( stepMetaInterface, stepDataInterace );
+    for ( int i = 0; i < 6; i++ ) {
+      assertTrue( dbOutput.processRow( stepMetaInterface, stepDataInterace ) );
+    }
+    rowData = null;
+    assertFalse( dbOutput.processRow( stepMetaInterface, stepDataInterace ) );
+
+    ArgumentCaptor<List> documents = ArgumentCaptor.forClass( List.class );
+    verify( stepDataInterace, atLeastOnce() ).bulkInsert( documents.capture() );
+    // the first batch is the batch insert size
+    assertEquals( 2, documents.getAllValues().get( 0 ).size() );
+    int written = 0;
+    for ( List<?> batch : documents.getAllValues() ) {
+      written += batch.size();
+    }
+    assertEquals( 6, written );
+    // the curve is by the size batches were cut at, so a last batch smaller than the minimum size isn't on it
+    assertTrue( dbOutput.m_sizer.getCurve().containsKey( 2 ) );
+    assertTrue( dbOutput.m_sizer.getCurve().firstKey() >= 2 );
+  }
+
+  @Test public void orderedUpdatesAfterAnErrorAreRetried() throws Exception {
+    setupReturns();
+    setupRowMeta();
+    when( stepMetaInterface.getOrderedWrites() ).thenReturn( true );
+    Object[] a = { "a", "bar", "baz" };
+    Object[] b = { "b", "bar", "baz" };
+    Object[] c = { "c", "bar", "baz" };
+
+    // the second update fails, so the third is never attempted
+    BulkWriteException error = bulkWriteError( 1, "document failed validation" );
+    when( stepDataInterace.bulkUpdate( anyList(), anyList(), anyBoolean(), anyBoolean(), anyBoolean() ) )
+      .thenThrow( error ).thenReturn( null );
+
+    List<Object[]> errorRows = writeWithErrorHandling( true, a, b, c );
+
+    ArgumentCaptor<List> queries = ArgumentCaptor.forClass( List.class );
+    verify( stepDataInterace, times( 2 ) )
+      .bulkUpdate( queries.capture(), anyList(), anyBoolean(), anyBoolean(), eq( true ) );
+    assertEquals( asList( new BasicDBObject( "foo", "b" ), new BasicDBObject( "foo", "c" ) ),
+      queries.getAllValues().get( 1 ) );
+    assertTrue( errorRows.isEmpty() );
+  }
+
+  @Test public void modifierUpdatesAreNotRetriedAfterTheBatchFailedAsAWhole() throws Exception {
+    setupReturns();
+    when( stepMetaInterface.getWriteRetries() ).thenReturn( "1" );
+    when( stepMetaInterface.getWriteRetryDelay() ).thenReturn( "0" );
+    MongoException timeout = new MongoExecutionTimeoutException( 50, "operation exceeded time limit" );
+    when( stepDataInterace.bulkUpdate( anyList(), anyList(), anyBoolean(), anyBoolean(), anyBoolean() ) )
+      .thenThrow( timeout ).thenReturn( null );
+    dbOutput.init( stepMetaInterface, stepDataInterace );
+
+    // the $inc may have been applied before the timeout, the replacement and the $set can safely be applied again
+    MongoDbOutputBatch batch = new MongoDbOutputBatch(
+      Arrays.<DBObject>asList( new BasicDBObject( "$inc", new BasicDBObject( "n", 1 ) ), new BasicDBObject( "n", 1 ),
+        new BasicDBObject( "$set", new BasicDBObject( "n", 1 ) ) ),
+      Arrays.<DBObject>asList( new BasicDBObject( "foo", "a" ), new BasicDBObject( "foo", "b" ),
+        new BasicDBObject( "foo", "c" ) ),
+      Arrays.asList( new Object[] { "a" }, new Object[] { "b" }, new Object[] { "c" } ) );
+    dbOutput.writeBatch( batch );
+
+    assertEquals( singletonList( 0 ), batch.m_failed );
+    ArgumentCaptor<List> queries = ArgumentCaptor.forClass( List.class );
+    verify( stepDataInterace, times( 2 ) )
+      .bulkUpdate( queries.capture(), anyList(), anyBoolean(), anyBoolean(), anyBoolean() );
+    assertEquals( Arrays.asList( new BasicDBObject( "foo", "b" ), new BasicDBObject( "foo", "c" ) ),
+      queries.getAllValues().get( 1 ) );
   }
 
   @Test public void doBatchWithRetry() throws Exception {
@@ -973,17 +1303,13 @@ public class MongoDbOutputTest extends BaseMongoDbStepTest {
     dbOutput.m_batchRows = batchRows;
     when( stepMetaInterface.getWriteRetries() ).thenReturn( "1" );
     when( stepMetaInterface.getWriteRetryDelay() ).thenReturn( "0" );
-    WriteResult result = mock( WriteResult.class );
-    CommandResult commandResult = mock( CommandResult.class );
-    when( mongoCollectionWrapper.save( dbOutput.m_batch.get( 0 ) ) ).thenReturn( result );
 
-    doThrow( mock( MongoException.class ) ).when( mongoCollectionWrapper ).insert( anyList() );
+    when( stepDataInterace.bulkInsert( anyList() ) ).thenThrow( mock( MongoException.class ) ).thenReturn( null );
     dbOutput.init( stepMetaInterface, stepDataInterace );
     dbOutput.doBatch();
 
-    // should attempt insert once, falling back to save on retry
-    verify( mongoCollectionWrapper, times( 1 ) ).insert( anyList() );
-    verify( mongoCollectionWrapper, times( 1 ) ).save( batchCopy.get( 0 ) );
+    // should attempt the insert again on retry
+    verify( stepDataInterace, times( 2 ) ).bulkInsert( batchCopy );
 
     // batch should be cleared.
     assertThat( dbOutput.m_batch.size(), equalTo( 0 ) );
@@ -16,6 +16,7 @@ package org.pentaho.mongo.wrapper;
 import com.mongodb.BasicDBObject;
 import com.mongodb.util.JSON;
 import org.bson.types.Binary;
+import org.bson.types.Decimal128;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
@@ -27,6 +28,7 @@ import org.pentaho.di.core.exception.KettlePluginException;
 import org.pentaho.di.core.plugins.PluginRegistry;
 import org.pentaho.di.core.row.value.ValueMetaPluginType;
 import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.core.variables.Variables;
 import org.pentaho.mongo.wrapper.field.MongoField;
 
 import java.math.BigDecimal;
@@ -124,6 +126,53 @@ public class MongoFieldTest {
     assertThat( field.getKettleValue( 123 ), equalTo( (Object) "123" ) );
   }
 
+  @Test
+  public void testConversionFollowsChangingMongoTypes() throws KettleException {
+    initField( "Integer" );
+    assertThat( field.getKettleValue( 123 ), equalTo( (Object) 123l ) );
+    assertThat( field.getKettleValue( 123l ), equalTo( (Object) 123l ) );
+    assertThat( field.getKettleValue( "123" ), equalTo( (Object) 123l ) );
+    assertThat( field.getKettleValue( 123.4 ), equalTo( (Object) 123l ) );
+    assertThat( field.getKettleValue( 124 ), equalTo( (Object) 124l ) );
+    // int64 values beyond the range of an int32
+    assertThat( field.getKettleValue( 5000000000l ), equalTo( (Object) 5000000000l ) );
+    assertThat( field.getKettleValue( -5000000000l ), equalTo( (Object) -5000000000l ) );
+    assertThat( field.getKettleValue( 125 ), equalTo( (Object) 125l ) );
+
+    initField( "Number" );
+    Double d = 1.5;
+    assertTrue( field.getKettleValue( d ) == d );
+    assertThat( field.getKettleValue( 2 ), equalTo( (Object) 2.0 ) );
+    assertThat( field.getKettleValue( 3l ), equalTo( (Object) 3.0 ) );
+    assertThat( field.getKettleValue( "4.5" ), equalTo( (Object) 4.5 ) );
+
+    initField( "String" );
+    assertThat( field.getKettleValue( "foo" ), equalTo( (Object) "foo" ) );
+    assertThat( field.getKettleValue( 123 ), equalTo( (Object) "123" ) );
+    assertThat( field.getKettleValue( "bar" ), equalTo( (Object) "bar" ) );
+    assertNull( field.getKettleValue( null ) );
+
+    initField( "Boolean" );
+    assertThat( field.getKettleValue( false ), equalTo( (Object) false ) );
+    assertThat( field.getKettleValue( "T" ), equalTo( (Object) true ) );
+  }
+
+  @Test
+  public void testDecimal128ToBigNumber() throws KettleException {
+    initField( "BigNumber" );
+    BigDecimal value = new BigDecimal( "12345678901234567890.0123456789" );
+    assertThat( field.getKettleValue( new Decimal128( value ) ), equalTo( (Object) value ) );
+    assertThat( field.getKettleValue( value ), equalTo( (Object) value ) );
+    assertThat( field.getKettleValue( Decimal128.NEGATIVE_ZERO ), equalTo( (Object) BigDecimal.ZERO ) );
+    assertThat( field.getKettleValue( 9007199254740993L ), equalTo( (Object) new BigDecimal( "9007199254740993" ) ) );
+    try {
+      field.getKettleValue( Decimal128.NaN );
+      fail( "expected exception" );
+    } catch ( Exception e ) {
+      // as for a NaN double
+    }
+  }
+
   @Test
   public void testConvertArrayIndicesToKettleValue() throws KettleException {
     BasicDBObject dbObj = (BasicDBObject) JSON.parse( "{ parent : { fieldName : ['valA', 'valB'] } } " );
@@ -146,6 +195,42 @@ public class MongoFieldTest {
     assertNull( field.convertToKettleValue( dbObj ) );
   }
 
+  @Test
+  public void testConvertNestedArrayIndicesToKettleValue() throws KettleException {
+    BasicDBObject dbObj = (BasicDBObject) JSON.parse( "{ grid : [ [ 1, 2 ], [ 3, { cell : 'x' } ] ] } " );
+
+    initField( "fieldName", "$.grid[1][0]", "Integer" );
+    assertThat( field.convertToKettleValue( dbObj ), equalTo( (Object) 3L ) );
+    initField( "fieldName", "$.grid[1][1].cell", "String" );
+    assertThat( field.convertToKettleValue( dbObj ), equalTo( (Object) "x" ) );
+    initField( "fieldName", "$.grid[5][0]", "Integer" );
+    assertNull( field.convertToKettleValue( dbObj ) );
+    initField( "fieldName", "$.grid.cell", "String" );
+    assertNull( field.convertToKettleValue( dbObj ) );
+  }
+
+  @Test
+  public void testPathIsReResolvedWhenVariablesChange() throws KettleException {
+    BasicDBObject dbObj = (BasicDBObject) JSON.parse( "{ a : { b : 'first', c : 'second' } } " );
+    VariableSpace vars = new Variables();
+    vars.setVariable( "child", "b" );
+
+    field = new MongoField();
+    field.m_fieldName = "fieldName";
+    field.m_fieldPath = "$.a.${child}";
+    field.m_kettleType = "String";
+    field.init( 0 );
+
+    field.reset( vars );
+    assertThat( field.convertToKettleValue( dbObj ), equalTo( (Object) "first" ) );
+    field.reset( vars );
+    assertThat( field.convertToKettleValue( dbObj ), equalTo( (Object) "first" ) );
+
+    vars.setVariable( "child", "c" );
+    field.reset( vars );
+    assertThat( field.convertToKettleValue( dbObj ), equalTo( (Object) "second" ) );
+  }
+
   private void initField( String type ) throws KettleException {
     initField( "fieldName", "$.parent.child.fieldName", type );
   }
@@ -0,0 +1,114 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2026 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mongo.wrapper.field;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MongoSchemaTreeTest {
+
+  private static final String[] DOCS = {
+    "{\"a\" : 1, \"b\" : [ {\"c\" : \"x\"} ]}",
+    "{\"a\" : 2, \"b\" : [ {\"c\" : \"y\"}, {\"c\" : \"z\"} ], \"d\" : [5]}",
+    "{\"a\" : \"three\", \"b\" : [ {}, {}, {\"c\" : \"w\", \"e\" : [true]} ]}",
+    "{\"d\" : [6, 7]}" };
+
+  private static MongoSchemaTree tree( int from, int to ) {
+    MongoSchemaTree tree = new MongoSchemaTree();
+    for ( int i = from; i < to; i++ ) {
+      tree.addDocument( (DBObject) JSON.parse( DOCS[i] ) );
+    }
+    return tree;
+  }
+
+  private static List<MongoField> discovered( MongoSchemaTree tree ) {
+    List<MongoField> fields = new ArrayList<MongoField>();
+    MongodbInputDiscoverFieldsImpl.postProcessPaths( tree.getFields(), fields, tree.getNumDocs() );
+    return fields;
+  }
+
+  @Test
+  public void testFieldsAndCounters() {
+    Map<String, MongoField> fields = tree( 0, DOCS.length ).getFields();
+    assertEquals( 5, fields.size() );
+
+    MongoField a = fields.get( "$.a" );
+    assertEquals( "$.a", a.m_fieldName );
+    assertEquals( Integer.class, a.m_mongoType );
+    assertEquals( "Integer", a.m_kettleType );
+    assertEquals( 3, a.m_percentageOfSample );
+    assertTrue( a.m_disparateTypes );
+
+    MongoField c = fields.get( "$.b[-].c" );
+    assertEquals( "$.b[0:2].c", c.m_fieldName );
+    assertEquals( 4, c.m_percentageOfSample );
+    assertFalse( c.m_disparateTypes );
+
+    // primitive elements of an array of records keep the indexes they were first seen at
+    MongoField e = fields.get( "$.b[-].e[0]" );
+    assertEquals( "$.b[-].e[0]", e.m_fieldName );
+    assertEquals( "$.b[2:2].e[0]", e.m_fieldPath );
+
+    assertEquals( 2, fields.get( "$.d[0]" ).m_percentageOfSample );
+    assertEquals( 1, fields.get( "$.d[1]" ).m_percentageOfSample );
+  }
+
+  @Test
+  public void testMergedTreesMatchSequentialRead() {
+    MongoSchemaTree merged = tree( 0, 1 );
+    merged.merge( tree( 1, 3 ) );
+    merged.merge( tree( 3, 4 ) );
+    assertEquals( 4, merged.getNumDocs() );
+
+    List<MongoField> expected = discovered( tree( 0, DOCS.length ) );
+    List<MongoField> actual = discovered( merged );
+    assertEquals( expected.size(), actual.size() );
+    for ( int i = 0; i < expected.size(); i++ ) {
+      assertEquals( expected.get( i ).m_fieldName, actual.get( i ).m_fieldName );
+      assertEquals( expected.get( i ).m_fieldPath, actual.get( i ).m_fieldPath );
+      assertEquals( expected.get( i ).m_kettleType, actual.get( i ).m_kettleType );
+      assertEquals( expected.get( i ).m_occurenceFraction, actual.get( i ).m_occurenceFraction );
+      assertEquals( expected.get( i ).m_arrayIndexInfo, actual.get( i ).m_arrayIndexInfo );
+      assertEquals( expected.get( i ).m_disparateTypes, actual.get( i ).m_disparateTypes );
+    }
+  }
+
+  @Test
+  public void testHugeArraysAreCapped() {
+    BasicDBList values = new BasicDBList();
+    BasicDBObject keys = new BasicDBObject();
+    for ( int i = 0; i < MongoSchemaTree.MAX_KEYS + 10; i++ ) {
+      values.add( i );
+      keys.append( "k" + i, i );
+    }
+
+    MongoSchemaTree tree = new MongoSchemaTree();
+    tree.addDocument( new BasicDBObject( "values", values ).append( "keys", keys ) );
+    Map<String, MongoField> fields = tree.getFields();
+
+    assertEquals( MongoSchemaTree.MAX_INDEXED_ELEMENTS + MongoSchemaTree.MAX_KEYS, fields.size() );
+    assertNull( fields.get( "$.values[" + MongoSchemaTree.MAX_INDEXED_ELEMENTS + "]" ) );
+    assertNull( fields.get( "$.keys.k" + MongoSchemaTree.MAX_KEYS ) );
+  }
+}
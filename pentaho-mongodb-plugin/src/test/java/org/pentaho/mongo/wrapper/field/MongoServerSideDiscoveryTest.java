@@ -0,0 +1,141 @@
+/*! ******************************************************************************
+ *
+ * Pentaho
+ *
+ * Copyright (C) 2026 by Hitachi Vantara, LLC : http://www.pentaho.com
+ *
+ * Use of this software is governed by the Business Source License included
+ * in the LICENSE.TXT file.
+ *
+ ******************************************************************************/
+
+package org.pentaho.mongo.wrapper.field;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.util.JSON;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class MongoServerSideDiscoveryTest {
+
+  private static final String SCHEMA = "{bsonType : 'object', properties : {"
+    + "name : {bsonType : 'string'}, age : {bsonType : ['int', 'null']}, score : {bsonType : ['double', 'string']}, "
+    + "tags : {bsonType : 'array', items : {bsonType : 'string'}}, "
+    + "lines : {bsonType : 'array', items : {properties : {sku : {type : 'string'}, qty : {bsonType : 'long'}}}}, "
+    + "meta : {bsonType : 'object'}, kind : {enum : [1, 2]}}}";
+
+  private static MongoField field( List<MongoField> fields, String name ) {
+    for ( MongoField f : fields ) {
+      if ( f.m_fieldName.equals( name ) ) {
+        return f;
+      }
+    }
+    throw new AssertionError( "no field " + name );
+  }
+
+  @Test
+  public void testValidatorFields() {
+    List<MongoField> fields = MongoServerSideDiscovery.validatorFields( (DBObject) JSON.parse( SCHEMA ) );
+    assertEquals( 9, fields.size() );
+
+    assertEquals( "$._id", field( fields, "_id" ).m_fieldPath );
+    assertEquals( "String", field( fields, "name" ).m_kettleType );
+    assertEquals( "", field( fields, "name" ).m_occurenceFraction );
+
+    // nullable, but always an int when there is a value
+    assertEquals( "Integer", field( fields, "age" ).m_kettleType );
+    assertFalse( field( fields, "age" ).m_disparateTypes );
+
+    assertEquals( "String", field( fields, "score" ).m_kettleType );
+    assertTrue( field( fields, "score" ).m_disparateTypes );
+
+    assertEquals( "$.tags[0]", field( fields, "tags[0]" ).m_fieldPath );
+    assertEquals( "$.lines[0].qty", field( fields, "qty" ).m_fieldPath );
+    assertEquals( "$.lines[0:0].qty", field( fields, "qty" ).m_arrayIndexInfo );
+    assertEquals( "Integer", field( fields, "qty" ).m_kettleType );
+    assertEquals( "String", field( fields, "sku" ).m_kettleType );
+
+    // a record without properties is read as JSON
+    assertEquals( "String", field( fields, "meta" ).m_kettleType );
+    assertEquals( "Integer", field( fields, "kind" ).m_kettleType );
+  }
+
+  @Test
+  public void testValidatorSchemaIsReadFromListCollections() {
+    DB db = mock( DB.class );
+    CommandResult result = mock( CommandResult.class );
+    when( result.ok() ).thenReturn( true );
+    when( result.get( "cursor" ) ).thenReturn( JSON.parse(
+      "{firstBatch : [{name : 'coll', options : {validator : {$jsonSchema : " + SCHEMA + "}}}]}" ) );
+    when( db.command( any( DBObject.class ) ) ).thenReturn( result );
+
+    assertEquals( JSON.parse( SCHEMA ), MongoServerSideDiscovery.validatorSchema( db, "coll" ) );
+    ArgumentCaptor<DBObject> command = ArgumentCaptor.forClass( DBObject.class );
+    verify( db ).command( command.capture() );
+    assertEquals( JSON.parse( "{listCollections : 1, filter : {name : 'coll'}}" ), command.getValue() );
+
+    when( result.get( "cursor" ) ).thenReturn( JSON.parse( "{firstBatch : [{name : 'coll', options : {}}]}" ) );
+    assertNull( MongoServerSideDiscovery.validatorSchema( db, "coll" ) );
+
+    when( db.command( any( DBObject.class ) ) ).thenThrow( new MongoException( "not authorized" ) );
+    assertNull( MongoServerSideDiscovery.validatorSchema( db, "coll" ) );
+  }
+
+  @Test
+  public void testTypeAggregationIsOneFacet() {
+    List<DBObject> stages = MongoServerSideDiscovery.typeAggregation();
+    assertEquals( 1, stages.size() );
+    DBObject facet = (DBObject) stages.get( 0 ).get( "$facet" );
+    assertEquals( Collections.singletonList( JSON.parse( "{$count : 'n'}" ) ), facet.get( "docs" ) );
+    List<?> fields = (List<?>) facet.get( "fields" );
+    assertEquals( new BasicDBObject( "$limit", MongoServerSideDiscovery.MAX_TUPLES ), fields.get( fields.size() - 1 ) );
+  }
+
+  @Test
+  public void testTypeFieldsMatchSampledFields() {
+    // the tuples the type aggregation returns for the documents of MongoSchemaTreeTest
+    DBObject result = (DBObject) JSON.parse( "{docs : [{n : 4}], fields : ["
+      + "{_id : {p : 'a', t : 'int'}, count : 2}, {_id : {p : 'a', t : 'string'}, count : 1}, "
+      + "{_id : {p : 'b[-].c', t : 'string'}, count : 4, min0 : 0, max0 : 2}, "
+      + "{_id : {p : 'b[-].e[0]', t : 'bool'}, count : 1, min0 : 2, max0 : 2}, "
+      + "{_id : {p : 'd[0]', t : 'int'}, count : 2}, {_id : {p : 'd[1]', t : 'int'}, count : 1}]}" );
+
+    MongoSchemaTree tree = new MongoSchemaTree();
+    for ( String doc : Arrays.asList( "{\"a\" : 1, \"b\" : [ {\"c\" : \"x\"} ]}",
+      "{\"a\" : 2, \"b\" : [ {\"c\" : \"y\"}, {\"c\" : \"z\"} ], \"d\" : [5]}",
+      "{\"a\" : \"three\", \"b\" : [ {}, {}, {\"c\" : \"w\", \"e\" : [true]} ]}", "{\"d\" : [6, 7]}" ) ) {
+      tree.addDocument( (DBObject) JSON.parse( doc ) );
+    }
+    List<MongoField> expected = new ArrayList<MongoField>();
+    MongodbInputDiscoverFieldsImpl.postProcessPaths( tree.getFields(), expected, tree.getNumDocs() );
+
+    List<MongoField> actual = MongoServerSideDiscovery.typeFields( result );
+    assertEquals( expected.size(), actual.size() );
+    for ( int i = 0; i < expected.size(); i++ ) {
+      assertEquals( expected.get( i ).m_fieldName, actual.get( i ).m_fieldName );
+      assertEquals( expected.get( i ).m_fieldPath, actual.get( i ).m_fieldPath );
+      assertEquals( expected.get( i ).m_kettleType, actual.get( i ).m_kettleType );
+      assertEquals( expected.get( i ).m_occurenceFraction, actual.get( i ).m_occurenceFraction );
+      assertEquals( expected.get( i ).m_arrayIndexInfo, actual.get( i ).m_arrayIndexInfo );
+      assertEquals( expected.get( i ).m_disparateTypes, actual.get( i ).m_disparateTypes );
+    }
+  }
+}
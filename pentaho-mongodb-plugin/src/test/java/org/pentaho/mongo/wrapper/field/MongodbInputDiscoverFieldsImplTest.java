@@ -16,10 +16,13 @@ package org.pentaho.mongo.wrapper.field;
 import com.mongodb.AggregationOptions;
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.Cursor;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.MongoException;
 import com.mongodb.util.JSON;
 import org.junit.After;
 import org.junit.Before;
@@ -35,6 +38,7 @@ import org.pentaho.di.core.exception.KettlePluginException;
 import org.pentaho.di.core.plugins.PluginRegistry;
 import org.pentaho.di.core.row.value.ValueMetaPluginType;
 import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.trans.steps.mongodbinput.DiscoverFieldsCallback;
 import org.pentaho.di.trans.steps.mongodbinput.MongoDbInputMeta;
 import org.pentaho.mongo.MongoDbException;
 import org.pentaho.mongo.MongoProperties;
@@ -46,19 +50,31 @@ import org.pentaho.mongo.wrapper.MongoWrapperUtil;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyInt;
 import static org.mockito.Mockito.anyList;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -205,6 +221,174 @@ public class MongodbInputDiscoverFieldsImplTest {
     verify( collection ).aggregate( anyList(), any( AggregationOptions.class ) );
   }
 
+  @Test public void testRandomSampleUsesSampleStage() throws KettleException, MongoDbException {
+    setupPerform();
+    when( inputMeta.getSampleMode() ).thenReturn( MongoDbInputMeta.SAMPLE_RANDOM );
+    when( collection.aggregate( anyList(), any( AggregationOptions.class ) ) ).thenReturn( cursor );
+    when( cursor.next() ).thenReturn( new BasicDBObject( "foo", "bar" ) );
+
+    VariableSpace vars = mock( VariableSpace.class );
+    List<MongoField> fields = discoverFields.discoverFields( new MongoProperties.Builder(), "mydb", "mycollection",
+        "{\"a\" : 1}", "{\"foo\" : 1}", false, NUM_DOCS_TO_SAMPLE, inputMeta, vars );
+
+    ArgumentCaptor<List> pipeline = ArgumentCaptor.forClass( List.class );
+    verify( collection ).aggregate( pipeline.capture(), any( AggregationOptions.class ) );
+    assertThat( pipeline.getValue(), equalTo( (List) Arrays.asList( JSON.parse( "{\"$match\" : {\"a\" : 1}}" ),
+        JSON.parse( "{\"$sample\" : {\"size\" : 2}}" ), JSON.parse( "{\"$project\" : {\"foo\" : 1}}" ) ) ) );
+    validateFields( fields, "foo", "foo", "bar" );
+  }
+
+  @Test public void testLargeRandomSampleIsOneSample() throws Exception {
+    int numDocs = MongodbInputDiscoverFieldsImpl.MIN_DOCS_PER_PARTITION * 64;
+    List<Callable<Cursor>> partitions = MongodbInputDiscoverFieldsImpl.samplePartitions( "", "", false,
+        MongoDbInputMeta.SAMPLE_RANDOM, null, numDocs, collection );
+    assertThat( partitions.size(), equalTo( 1 ) );
+
+    when( collection.aggregate( anyList(), any( AggregationOptions.class ) ) ).thenReturn( cursor );
+    partitions.get( 0 ).call();
+    ArgumentCaptor<List> pipeline = ArgumentCaptor.forClass( List.class );
+    verify( collection ).aggregate( pipeline.capture(), any( AggregationOptions.class ) );
+    assertThat( pipeline.getValue(), equalTo( (List) Collections.singletonList(
+        new BasicDBObject( "$sample", new BasicDBObject( "size", numDocs ) ) ) ) );
+  }
+
+  @Test public void testFirstSampleIsSplitByIdRanges() throws Exception {
+    DBCursor ids = idCursor( 1, 2, 3, 4L, 5.0 );
+    // parts of 3 and 2 documents
+    assertThat( MongodbInputDiscoverFieldsImpl.firstSampleBounds( new BasicDBObject(), 2, 5, collection ),
+        equalTo( Arrays.<Object>asList( 1, 4L, 5.0 ) ) );
+    verify( ids ).close();
+  }
+
+  @Test public void testFirstSampleWithMixedIdTypesIsNotSplit() throws Exception {
+    DBCursor ids = idCursor( 1, 2, "3", "4" );
+    assertThat( MongodbInputDiscoverFieldsImpl.firstSampleBounds( new BasicDBObject(), 2, 4, collection ),
+        equalTo( null ) );
+    verify( ids ).close();
+  }
+
+  private DBCursor idCursor( Object... ids ) {
+    DBCursor idCursor = mock( DBCursor.class );
+    when( collection.find( any( DBObject.class ), any( DBObject.class ) ) ).thenReturn( idCursor );
+    when( idCursor.sort( any( DBObject.class ) ) ).thenReturn( idCursor );
+    when( idCursor.limit( anyInt() ) ).thenReturn( idCursor );
+    Boolean[] more = new Boolean[ ids.length ];
+    DBObject[] docs = new DBObject[ ids.length ];
+    for ( int i = 0; i < ids.length; i++ ) {
+      more[ i ] = true;
+      docs[ i ] = new BasicDBObject( "_id", ids[ i ] );
+    }
+    when( idCursor.hasNext() ).thenReturn( true, Arrays.copyOf( more, more.length - 1 ) ).thenReturn( false );
+    when( idCursor.next() ).thenReturn( docs[ 0 ], Arrays.copyOfRange( docs, 1, docs.length ) );
+    return idCursor;
+  }
+
+  @Test public void testFailedPartClosesTheCursorsOfTheOtherParts() throws Exception {
+    // the parts have to be read at the same time
+    assumeTrue( Runtime.getRuntime().availableProcessors() > 1 );
+    final CountDownLatch opened = new CountDownLatch( 1 );
+    final CountDownLatch closed = new CountDownLatch( 1 );
+    final Cursor reading = mock( Cursor.class );
+    // a read that doesn't return until the cursor is closed
+    when( reading.hasNext() ).thenAnswer( new Answer<Boolean>() {
+      @Override public Boolean answer( InvocationOnMock invocation ) throws Throwable {
+        opened.countDown();
+        closed.await( 10, TimeUnit.SECONDS );
+        return false;
+      }
+    } );
+    doAnswer( new Answer<Void>() {
+      @Override public Void answer( InvocationOnMock invocation ) {
+        closed.countDown();
+        return null;
+      }
+    } ).when( reading ).close();
+
+    List<Callable<Cursor>> partitions = Arrays.<Callable<Cursor>>asList( new Callable<Cursor>() {
+      @Override public Cursor call() {
+        return reading;
+      }
+    }, new Callable<Cursor>() {
+      @Override public Cursor call() throws Exception {
+        opened.await( 10, TimeUnit.SECONDS );
+        throw new MongoException( "part failed" );
+      }
+    } );
+
+    try {
+      MongodbInputDiscoverFieldsImpl.discoverSchema( partitions );
+      fail( "expected the failed part to be reported" );
+    } catch ( MongoException e ) {
+      // expected
+    }
+    assertThat( closed.getCount(), equalTo( 0L ) );
+  }
+
+  @Test public void testValidatorStrategyDoesNotReadDocuments() throws KettleException, MongoDbException {
+    setupPerform();
+    when( inputMeta.getDiscoveryStrategy() ).thenReturn( MongoDbInputMeta.DISCOVER_VALIDATOR );
+    CommandResult result = mock( CommandResult.class );
+    when( result.ok() ).thenReturn( true );
+    when( result.get( "cursor" ) ).thenReturn( JSON.parse( "{firstBatch : [{options : {validator : {$jsonSchema : "
+        + "{properties : {_id : {bsonType : 'objectId'}, foo : {bsonType : 'string'}}}}}}]}" ) );
+    when( mockDb.command( any( DBObject.class ) ) ).thenReturn( result );
+
+    VariableSpace vars = mock( VariableSpace.class );
+    List<MongoField> fields = discoverFields.discoverFields( new MongoProperties.Builder(), "mydb", "mycollection",
+        "", "", false, NUM_DOCS_TO_SAMPLE, inputMeta, vars );
+
+    verify( collection, times( 0 ) ).find();
+    validateFields( fields, "_id", "_id", "id", "foo", "foo", "bar" );
+  }
+
+  @Test public void testAggregationStrategyAggregatesTypesOnServer() throws KettleException, MongoDbException {
+    setupPerform();
+    when( inputMeta.getDiscoveryStrategy() ).thenReturn( MongoDbInputMeta.DISCOVER_AGGREGATION );
+    Cursor types = mock( Cursor.class );
+    when( types.hasNext() ).thenReturn( true );
+    when( types.next() ).thenReturn( (DBObject) JSON.parse(
+        "{docs : [{n : 2}], fields : [{_id : {p : 'foo', t : 'string'}, count : 2}]}" ) );
+    when( collection.aggregate( anyList(), any( AggregationOptions.class ) ) ).thenReturn( types );
+
+    VariableSpace vars = mock( VariableSpace.class );
+    List<MongoField> fields = discoverFields.discoverFields( new MongoProperties.Builder(), "mydb", "mycollection",
+        "{\"a\" : 1}", "", false, NUM_DOCS_TO_SAMPLE, inputMeta, vars );
+
+    ArgumentCaptor<List> pipeline = ArgumentCaptor.forClass( List.class );
+    verify( collection ).aggregate( pipeline.capture(), any( AggregationOptions.class ) );
+    verify( collection, times( 0 ) ).find();
+    assertThat( pipeline.getValue().subList( 0, 2 ), equalTo( (List) Arrays.asList(
+        JSON.parse( "{\"$match\" : {\"a\" : 1}}" ), JSON.parse( "{\"$limit\" : 2}" ) ) ) );
+    assertThat( pipeline.getValue().subList( 2, 3 ), equalTo( (List) MongoServerSideDiscovery.typeAggregation() ) );
+    assertThat( fields.get( 0 ).m_occurenceFraction, equalTo( "2/2" ) );
+    validateFields( fields, "foo", "foo", "bar" );
+  }
+
+  @Test public void testAggregationStrategyFallsBackToSampling() throws KettleException, MongoDbException {
+    setupPerform();
+    when( inputMeta.getDiscoveryStrategy() ).thenReturn( MongoDbInputMeta.DISCOVER_AGGREGATION );
+    when( collection.aggregate( anyList(), any( AggregationOptions.class ) ) )
+        .thenThrow( new MongoException( "Unrecognized expression '$toString'" ) );
+    when( cursor.next() ).thenReturn( new BasicDBObject( "foo", "bar" ) );
+
+    VariableSpace vars = mock( VariableSpace.class );
+    List<MongoField> fields = discoverFields.discoverFields( new MongoProperties.Builder(), "mydb", "mycollection",
+        "", "", false, NUM_DOCS_TO_SAMPLE, inputMeta, vars );
+
+    verify( collection ).find();
+    validateFields( fields, "foo", "foo", "bar" );
+  }
+
+  @Test public void testStratumBounds() {
+    Date from = new Date( 1000 );
+    Date to = new Date( 2000 );
+    assertThat( MongodbInputDiscoverFieldsImpl.stratumBounds( from, to, 4 ), equalTo( Arrays.<Object>asList(
+        from, new Date( 1250 ), new Date( 1500 ), new Date( 1750 ), to ) ) );
+    assertThat( MongodbInputDiscoverFieldsImpl.stratumBounds( 0, 10, 2 ), equalTo( Arrays.<Object>asList( 0, 5.0, 10 ) ) );
+    assertThat( MongodbInputDiscoverFieldsImpl.stratumBounds( 3, 3, 10 ), equalTo( Arrays.<Object>asList( 3, 3 ) ) );
+    assertThat( MongodbInputDiscoverFieldsImpl.stratumBounds( "a", "b", 10 ), equalTo( null ) );
+  }
+
   @Test ( expected = KettleException.class )
   public void testClientExceptionIsRethrown() throws MongoDbException, KettleException {
     when( clientFactory.createMongoClientWrapper( any( MongoProperties.class ), any( MongoUtilLogger.class ) ) )
@@ -228,6 +412,111 @@ public class MongodbInputDiscoverFieldsImplTest {
             inputMeta, vars );
   }
 
+  @Test
+  public void testUnchangedSampleIsReadFromSchemaCache() throws Exception {
+    setupPerform();
+    when( cursor.next() ).thenReturn( new BasicDBObject( "foo", "bar" ) );
+    when( inputMeta.getSchemaCacheTtl() ).thenReturn( "600" );
+    VariableSpace vars = mock( VariableSpace.class );
+    when( vars.environmentSubstitute( "600" ) ).thenReturn( "600" );
+
+    List<MongoField> first = discoverFields.discoverFields( new MongoProperties.Builder(), "mydb",
+        "cachedcollection", "", "", false, NUM_DOCS_TO_SAMPLE, inputMeta, vars );
+    List<MongoField> second = discoverFields.discoverFields( new MongoProperties.Builder(), "mydb",
+        "cachedcollection", "", "", false, NUM_DOCS_TO_SAMPLE, inputMeta, vars );
+
+    verify( collection, times( 1 ) ).find();
+    assertThat( second.size(), equalTo( 1 ) );
+    assertThat( second.get( 0 ).m_fieldPath, equalTo( first.get( 0 ).m_fieldPath ) );
+  }
+
+  @Test
+  public void testCallbackIsNotifiedFromDiscoveryThread() throws Exception {
+    setupPerform();
+    when( cursor.next() ).thenReturn( new BasicDBObject( "foo", "bar" ) );
+    final CountDownLatch done = new CountDownLatch( 1 );
+    final List<Object> notified = new ArrayList<Object>();
+    discoverFields.discoverFields( new MongoProperties.Builder(), "mydb", "mycollection", "", "", false,
+        NUM_DOCS_TO_SAMPLE, inputMeta, mock( VariableSpace.class ), new DiscoverFieldsCallback() {
+          @Override public void notifyFields( List<MongoField> fields ) {
+            notified.add( Thread.currentThread() );
+            notified.add( fields.size() );
+            done.countDown();
+          }
+
+          @Override public void notifyException( Exception exception ) {
+            notified.add( exception );
+            done.countDown();
+          }
+        } );
+
+    assertThat( done.await( 10, TimeUnit.SECONDS ), equalTo( true ) );
+    assertThat( notified.get( 0 ), not( equalTo( (Object) Thread.currentThread() ) ) );
+    assertThat( notified.get( 1 ), equalTo( (Object) 1 ) );
+  }
+
+  @Test
+  public void testRuntimeFailureIsNotifiedFromDiscoveryThread() throws Exception {
+    setupPerform();
+    when( cursor.next() ).thenReturn( new BasicDBObject( "foo", "bar" ) );
+    doThrow( new IllegalStateException( "closed" ) ).when( clientWrapper ).dispose();
+    final CountDownLatch done = new CountDownLatch( 1 );
+    final List<Exception> notified = new ArrayList<Exception>();
+    discoverFields.discoverFields( new MongoProperties.Builder(), "mydb", "mycollection", "", "", false,
+        NUM_DOCS_TO_SAMPLE, inputMeta, mock( VariableSpace.class ), new DiscoverFieldsCallback() {
+          @Override public void notifyFields( List<MongoField> fields ) {
+            done.countDown();
+          }
+
+          @Override public void notifyException( Exception exception ) {
+            notified.add( exception );
+            done.countDown();
+          }
+        } );
+
+    assertThat( done.await( 10, TimeUnit.SECONDS ), equalTo( true ) );
+    assertThat( notified.size(), equalTo( 1 ) );
+    assertThat( notified.get( 0 ), instanceOf( IllegalStateException.class ) );
+  }
+
+  @Test
+  public void testDiscoverSchemaReportsProgressUntilCancelled() throws Exception {
+    final int interval = MongodbInputDiscoverFieldsImpl.PROGRESS_INTERVAL;
+    setupCursorWithNRows( interval * 3 );
+    when( cursor.next() ).thenReturn( new BasicDBObject( "foo", "bar" ) );
+    final List<Integer> progress = new ArrayList<Integer>();
+    DiscoverFieldsCallback callback = new DiscoverFieldsCallback() {
+      @Override public void notifyFields( List<MongoField> fields ) {
+      }
+
+      @Override public void notifyException( Exception exception ) {
+      }
+
+      @Override public void notifyProgress( List<MongoField> fields, int docsRead ) {
+        assertThat( fields.size(), equalTo( 1 ) );
+        progress.add( docsRead );
+      }
+
+      @Override public boolean isCancelled() {
+        return progress.size() == 2;
+      }
+    };
+
+    try {
+      MongodbInputDiscoverFieldsImpl.discoverSchema( Collections.<Callable<Cursor>>singletonList(
+          new Callable<Cursor>() {
+            @Override public Cursor call() {
+              return cursor;
+            }
+          } ), callback );
+      fail( "discovery should have been cancelled" );
+    } catch ( CancellationException e ) {
+      // expected
+    }
+    assertThat( progress, equalTo( Arrays.asList( interval, interval * 2 ) ) );
+    verify( cursor ).close();
+  }
+
   private void setupPerform() throws MongoDbException {
     when( clientWrapper.perform( any( String.class ), any( MongoDBAction.class ) ) )
         .thenAnswer( new Answer<List<MongoField>>() {
@@ -297,20 +586,6 @@ public class MongodbInputDiscoverFieldsImplTest {
     assertThat( "bob[5].fred[2].george", equalTo( m.m_fieldPath ) );
   }
 
-  @Test
-  public void testUpdateMinMaxArrayIndexes() {
-
-    MongoField m = new MongoField();
-    m.m_fieldName = "bob.fred[2:4].george";
-    m.m_fieldPath = "bob.fred[-].george";
-
-    MongodbInputDiscoverFieldsImpl.updateMinMaxArrayIndexes( m, "bob.fred[1:1].george" );
-
-    assertThat( "bob.fred[1:4].george", equalTo( m.m_fieldName ) );
-    MongodbInputDiscoverFieldsImpl.updateMinMaxArrayIndexes( m, "bob.fred[5:5].george" );
-    assertThat( "bob.fred[1:5].george", equalTo( m.m_fieldName ) );
-  }
-
   @Test
   public void testPostProcessPaths() {
     Map<String, MongoField> fieldMap = new LinkedHashMap<String, MongoField>();
@@ -345,10 +620,11 @@ public class MongodbInputDiscoverFieldsImplTest {
 
   @Test
   public void testDocToFields() {
-    Map<String, MongoField> fieldMap = new LinkedHashMap<String, MongoField>();
     DBObject doc = (DBObject) JSON.parse( "{\"fred\" : {\"george\" : 1}, \"bob\" : [1 , 2]}" );
 
-    MongodbInputDiscoverFieldsImpl.docToFields( doc, fieldMap );
+    MongoSchemaTree tree = new MongoSchemaTree();
+    tree.addDocument( doc );
+    Map<String, MongoField> fieldMap = tree.getFields();
     assertThat( 3, equalTo( fieldMap.size() ) );
 
     assertThat( fieldMap.get( "$.fred.george" ),  notNullValue() );